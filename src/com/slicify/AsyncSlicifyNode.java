@@ -0,0 +1,334 @@
+package com.slicify;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking version of SlicifyNode. Every booking operation returns a CompletableFuture and runs on
+ * the configured executor, so an application can drive many bookings at once without dedicating a thread
+ * to each one. Arguments are validated before the call is queued, so invalid input throws
+ * IllegalArgumentException straight away, exactly as the blocking methods do.
+ *
+ * Example use:
+ *
+ *     AsyncSlicifyNode async = new AsyncSlicifyNode(node, Executors.newFixedThreadPool(16));
+ *     async.addBid(1, 0.03, 64, 5, "")
+ *          .thenCompose(bidID -> async.getBookingID(bidID))
+ *          .thenAccept(bookingID -> System.out.println("BookingID:" + bookingID));
+ *
+ * @author slicify
+ *
+ */
+public class AsyncSlicifyNode {
+
+	/**
+	 * Number of threads used by the default executor. Matches the default per-host connection limit, as
+	 * more threads than connections would just queue inside the transport.
+	 */
+	public static final int DEFAULT_THREADS = PooledHttpsTransport.DEFAULT_MAX_PER_ROUTE;
+
+	private static ExecutorService DefaultExecutor = null;
+
+	private final SlicifyNode Node;
+	private final Executor Executor;
+
+	/**
+	 * Wrap the node using the shared default executor.
+	 *
+	 * @param node
+	 */
+	public AsyncSlicifyNode(SlicifyNode node) {
+		this(node, getDefaultExecutor());
+	}
+
+	/**
+	 * Wrap the node, running all calls on the specified executor.
+	 *
+	 * @param node
+	 * @param executor
+	 */
+	public AsyncSlicifyNode(SlicifyNode node, Executor executor) {
+		if(node == null || executor == null)
+			throw new IllegalArgumentException("Node and executor must be set");
+		Node = node;
+		Executor = executor;
+	}
+
+	/**
+	 * Get the executor shared by all AsyncSlicifyNode instances that haven't been given their own. Uses
+	 * daemon threads, which are released again when idle.
+	 *
+	 * @return
+	 */
+	public static synchronized ExecutorService getDefaultExecutor()
+	{
+		if(DefaultExecutor == null)
+		{
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("slicify-async"));
+			executor.allowCoreThreadTimeOut(true);
+			DefaultExecutor = executor;
+		}
+		return DefaultExecutor;
+	}
+
+	/**
+	 * Create an executor that runs each call on its own virtual thread. Only available when running on Java 21
+	 * or later; the library itself still runs on Java 8.
+	 *
+	 * @return
+	 * @throws UnsupportedOperationException If the JVM doesn't support virtual threads
+	 */
+	public static ExecutorService newVirtualThreadExecutor()
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(Exception e)
+		{
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+		}
+	}
+
+	/**
+	 * @return The blocking node that this wraps
+	 */
+	public SlicifyNode getNode() {
+		return Node;
+	}
+
+	/**
+	 * @return The executor that calls are run on
+	 */
+	public Executor getExecutor() {
+		return Executor;
+	}
+
+	public CompletableFuture<Double> getAccountBalance()
+	{
+		return submit(() -> Node.getAccountBalance());
+	}
+
+	/**
+	 * Book a machine - see SlicifyNode.addBid(). The future completes with the new bid ID.
+	 *
+	 * @throws IllegalArgumentException If the bid parameters are out of range
+	 */
+	public CompletableFuture<Integer> addBid(final int minRam, final double maxPrice, final int bits, final int minEcu, final String country)
+	{
+		SlicifyNode.validateBid(minRam, maxPrice, bits, minEcu);
+		return submit(() -> Node.addBid(minRam, maxPrice, bits, minEcu, country));
+	}
+
+	/**
+	 * Delete the bid and cancel the associated booking.
+	 */
+	public CompletableFuture<Void> deleteBid(final int bidID)
+	{
+		SlicifyNode.validateBidID(bidID);
+		return submit(() -> {
+			Node.deleteBid(bidID);
+			return null;
+		});
+	}
+
+	/**
+	 * Get the booking ID for the specified bid. Completes with -1 if no booking is currently open.
+	 */
+	public CompletableFuture<Integer> getBookingID(final int bidID)
+	{
+		SlicifyNode.validateBidID(bidID);
+		return submit(() -> Node.getBookingID(bidID));
+	}
+
+	public CompletableFuture<List<Integer>> getActiveBidIDs()
+	{
+		return submit(() -> Node.getActiveBidIDs());
+	}
+
+	public CompletableFuture<List<Integer>> getActiveBookingIDs()
+	{
+		return submit(() -> Node.getActiveBookingIDs());
+	}
+
+	public CompletableFuture<String> getBookingStatus(final int bookingID)
+	{
+		SlicifyNode.validateBookingID(bookingID);
+		return submit(() -> Node.getBookingStatus(bookingID));
+	}
+
+	public CompletableFuture<String> getBookingCountry(final int bookingID)
+	{
+		SlicifyNode.validateBookingID(bookingID);
+		return submit(() -> Node.getBookingCountry(bookingID));
+	}
+
+	public CompletableFuture<String> getBookingPassword(final int bookingID)
+	{
+		SlicifyNode.validateBookingID(bookingID);
+		return submit(() -> Node.getBookingPassword(bookingID));
+	}
+
+	public CompletableFuture<String> getSudoPassword(final int bookingID)
+	{
+		SlicifyNode.validateBookingID(bookingID);
+		return submit(() -> Node.getSudoPassword(bookingID));
+	}
+
+	public CompletableFuture<String> getMachineSpec(final int bookingID)
+	{
+		SlicifyNode.validateBookingID(bookingID);
+		return submit(() -> Node.getMachineSpec(bookingID));
+	}
+
+	public CompletableFuture<Integer> getCoreCount(final int bookingID)
+	{
+		SlicifyNode.validateBookingID(bookingID);
+		return submit(() -> Node.getCoreCount(bookingID));
+	}
+
+	public CompletableFuture<Integer> getBookingBidID(final int bookingID)
+	{
+		SlicifyNode.validateBookingID(bookingID);
+		return submit(() -> Node.getBookingBidID(bookingID));
+	}
+
+	public CompletableFuture<Integer> getECU(final int bookingID)
+	{
+		SlicifyNode.validateBookingID(bookingID);
+		return submit(() -> Node.getECU(bookingID));
+	}
+
+	public CompletableFuture<String> getCloseReason(final int bookingID)
+	{
+		SlicifyNode.validateBookingID(bookingID);
+		return submit(() -> Node.getCloseReason(bookingID));
+	}
+
+	/**
+	 * Get all the details of a booking at once. The individual fields are requested concurrently over the
+	 * pooled connections, rather than as seven sequential calls.
+	 *
+	 * @param bookingID
+	 * @return
+	 */
+	public CompletableFuture<BookingInfo> getBookingInfo(final int bookingID)
+	{
+		SlicifyNode.validateBookingID(bookingID);
+
+		final CompletableFuture<String> status = getBookingStatus(bookingID);
+		final CompletableFuture<String> password = getBookingPassword(bookingID);
+		final CompletableFuture<String> sudoPassword = getSudoPassword(bookingID);
+		final CompletableFuture<Integer> cores = getCoreCount(bookingID);
+		final CompletableFuture<Integer> ecu = getECU(bookingID);
+		final CompletableFuture<String> spec = getMachineSpec(bookingID);
+		final CompletableFuture<String> country = getBookingCountry(bookingID);
+		final CompletableFuture<Integer> bidID = getBookingBidID(bookingID);
+
+		return CompletableFuture.allOf(status, password, sudoPassword, cores, ecu, spec, country, bidID)
+				.thenApply(v -> new BookingInfo(bookingID, status.join(), password.join(), sudoPassword.join(),
+						cores.join(), ecu.join(), spec.join(), country.join(), bidID.join()));
+	}
+
+	/**
+	 * Get the details of many bookings at once. All requests are issued up front, so the time taken is close
+	 * to that of the slowest single request rather than the sum of them. A booking that can't be looked up
+	 * doesn't stop the others - its result carries the error instead.
+	 *
+	 * @param bookingIDs
+	 * @return Unmodifiable map of booking ID to result, in the order the IDs were passed. The future itself
+	 * doesn't fail.
+	 */
+	public CompletableFuture<Map<Integer, BookingInfoResult>> getBookingInfo(Collection<Integer> bookingIDs)
+	{
+		for(int bookingID : bookingIDs)
+			SlicifyNode.validateBookingID(bookingID);
+
+		final List<CompletableFuture<BookingInfoResult>> futures = new ArrayList<CompletableFuture<BookingInfoResult>>(bookingIDs.size());
+		for(final int bookingID : bookingIDs)
+		{
+			futures.add(getBookingInfo(bookingID)
+					.handle((info, e) -> new BookingInfoResult(bookingID, info, e == null ? null : unwrap(e))));
+		}
+
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(v -> {
+			Map<Integer, BookingInfoResult> result = new LinkedHashMap<Integer, BookingInfoResult>();
+			for(CompletableFuture<BookingInfoResult> future : futures)
+			{
+				BookingInfoResult info = future.join();
+				result.put(info.getBookingID(), info);
+			}
+			return Collections.unmodifiableMap(result);
+		});
+	}
+
+	private static Throwable unwrap(Throwable e)
+	{
+		while(e instanceof CompletionException && e.getCause() != null)
+			e = e.getCause();
+		return e;
+	}
+
+	/**
+	 * Run the blocking call on the executor, and pass its result or exception on to the returned future.
+	 */
+	private <T> CompletableFuture<T> submit(final Callable<T> call)
+	{
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try
+		{
+			Executor.execute(() -> {
+				try
+				{
+					future.complete(call.call());
+				}
+				catch(Throwable t)
+				{
+					future.completeExceptionally(t);
+				}
+			});
+		}
+		catch(RejectedExecutionException e)
+		{
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Names threads and marks them as daemons, so an idle pool doesn't keep the JVM alive.
+	 */
+	static class DaemonThreadFactory implements ThreadFactory {
+
+		private final String Prefix;
+		private final AtomicInteger Count = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix) {
+			Prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, Prefix + "-" + Count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.slicify;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable record for a single bid, as returned by BidGetAllInfo. Every field in the record is kept,
+ * by element name - the common ones also have typed getters.
+ *
+ * @author slicify
+ *
+ */
+public final class BidInfo {
+
+	private final Map<String, String> Fields;
+
+	public BidInfo(Map<String, String> fields) {
+		Fields = Collections.unmodifiableMap(new LinkedHashMap<String, String>(fields));
+	}
+
+	/**
+	 * @return The bid ID, or -1 if the record didnt include one
+	 */
+	public int getBidID() {
+		return getInt("BidID", -1);
+	}
+
+	/**
+	 * @return True if the bid is active
+	 */
+	public boolean isActive() {
+		return "true".equalsIgnoreCase(Fields.get("Active"));
+	}
+
+	/**
+	 * Get the raw text of a field in the record.
+	 *
+	 * @param name Element name, e.g. "BidID"
+	 * @return Text content, or null if the record doesnt contain this field
+	 */
+	public String getField(String name) {
+		return Fields.get(name);
+	}
+
+	/**
+	 * Get a field parsed as an integer.
+	 *
+	 * @param name
+	 * @param defaultValue Returned if the field is missing or empty
+	 * @return
+	 */
+	public int getInt(String name, int defaultValue) {
+		String value = Fields.get(name);
+		if(value == null || value.trim().length() == 0)
+			return defaultValue;
+		return Integer.parseInt(value.trim());
+	}
+
+	/**
+	 * Get a field parsed as a double.
+	 *
+	 * @param name
+	 * @param defaultValue Returned if the field is missing or empty
+	 * @return
+	 */
+	public double getDouble(String name, double defaultValue) {
+		String value = Fields.get(name);
+		if(value == null || value.trim().length() == 0)
+			return defaultValue;
+		return Double.parseDouble(value.trim());
+	}
+
+	/**
+	 * @return All fields in the record, in the order they were sent
+	 */
+	public Map<String, String> getFields() {
+		return Fields;
+	}
+
+	@Override
+	public String toString() {
+		return "BidInfo" + Fields;
+	}
+}
@@ -0,0 +1,199 @@
+package com.slicify;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the BidGetAllInfo reply one bid record at a time, as it arrives. Each child of the root element is
+ * treated as a record, and each child of a record as a field, so the fields of one bid always stay together.
+ *
+ * Closing the reader releases the underlying connection.
+ *
+ * @author slicify
+ *
+ */
+class BidRecordReader implements Closeable {
+
+	private final Closeable Source;
+	private final XMLStreamReader Reader;
+	private int Depth = 0;
+
+	/**
+	 * @param in Reply stream
+	 * @param source Closed along with the reader (e.g. the HttpsResponse). Can be null.
+	 * @throws XMLStreamException
+	 */
+	BidRecordReader(InputStream in, Closeable source) throws XMLStreamException {
+		Source = source;
+		Reader = ReplyDecoder.createReader(in);
+	}
+
+	/**
+	 * Read the next record.
+	 *
+	 * @param wanted Names of the fields to keep, or null to keep all of them
+	 * @return Map of field name to text, or null if there are no more records
+	 * @throws XMLStreamException
+	 */
+	Map<String, String> next(Set<String> wanted) throws XMLStreamException
+	{
+		while(Reader.hasNext())
+		{
+			switch(Reader.next())
+			{
+			case XMLStreamConstants.START_ELEMENT:
+				//depth 1 is the root element, its children are the records
+				if(Depth == 1)
+					return readRecord(wanted);
+				Depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				Depth--;
+				break;
+			}
+		}
+		return null;
+	}
+
+	private Map<String, String> readRecord(Set<String> wanted) throws XMLStreamException
+	{
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		while(true)
+		{
+			switch(Reader.next())
+			{
+			case XMLStreamConstants.START_ELEMENT:
+				String name = Reader.getLocalName();
+				if(wanted == null || wanted.contains(name))
+					fields.put(name, ReplyDecoder.readElementText(Reader));
+				else
+					skipElement();
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				return fields;
+			case XMLStreamConstants.END_DOCUMENT:
+				throw new XMLStreamException("Unexpected end of BidGetAllInfo response");
+			}
+		}
+	}
+
+	private void skipElement() throws XMLStreamException
+	{
+		int depth = 1;
+		while(depth > 0)
+		{
+			int event = Reader.next();
+			if(event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if(event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			Reader.close();
+		}
+		catch(XMLStreamException e)
+		{
+			//nothing more to read - just release the source
+		}
+		finally
+		{
+			if(Source != null)
+				Source.close();
+		}
+	}
+
+	/**
+	 * Iterator over every bid record, with all fields.
+	 */
+	Iterator<BidInfo> bids()
+	{
+		return new Iterator<BidInfo>() {
+			private Map<String, String> Next = null;
+
+			@Override
+			public boolean hasNext() {
+				if(Next == null)
+					Next = read(BidRecordReader.this, null);
+				return Next != null;
+			}
+
+			@Override
+			public BidInfo next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				BidInfo bid = new BidInfo(Next);
+				Next = null;
+				return bid;
+			}
+		};
+	}
+
+	/**
+	 * Iterator over the IDs of records that pass the filter, only decoding the BidID and Active fields.
+	 *
+	 * @param activeOnly Skip bids that arent active
+	 */
+	PrimitiveIterator.OfInt bidIDs(final boolean activeOnly)
+	{
+		final Set<String> wanted = new HashSet<String>(Arrays.asList("BidID", "Active"));
+		return new PrimitiveIterator.OfInt() {
+			private boolean HasNext = false;
+			private int Next;
+
+			@Override
+			public boolean hasNext() {
+				while(!HasNext)
+				{
+					Map<String, String> fields = read(BidRecordReader.this, wanted);
+					if(fields == null)
+						return false;
+					String bidID = fields.get("BidID");
+					if(bidID == null || (activeOnly && !"true".equalsIgnoreCase(fields.get("Active"))))
+						continue;
+					Next = Integer.parseInt(bidID.trim());
+					HasNext = true;
+				}
+				return true;
+			}
+
+			@Override
+			public int nextInt() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				HasNext = false;
+				return Next;
+			}
+		};
+	}
+
+	private static Map<String, String> read(BidRecordReader reader, Set<String> wanted)
+	{
+		try
+		{
+			return reader.next(wanted);
+		}
+		catch(XMLStreamException e)
+		{
+			throw new IllegalStateException("Error reading BidGetAllInfo response", e);
+		}
+	}
+}
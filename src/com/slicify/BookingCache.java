@@ -0,0 +1,315 @@
+package com.slicify;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, least-recently-used cache for booking attributes that don't change during the lifetime of a booking
+ * (passwords, machine spec, country, cores, ECU and bid ID). Volatile operations such as BookingGetStatus and
+ * AccountBalance have no TTL and are never cached.
+ *
+ * SlicifyNode puts one of these in front of its booking operations, and invalidates the cached entries for a
+ * bid's bookings when the bid is deleted. Thread safe.
+ *
+ * @author slicify
+ *
+ */
+public class BookingCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	public static final long DEFAULT_TTL = 12 * 60 * 60 * 1000L;
+
+	/**
+	 * Operations whose result is fixed for the lifetime of a booking, and so are cached by default.
+	 */
+	public static final String[] IMMUTABLE_OPERATIONS = { "BookingGetPassword", "BookingGetSudoPassword", "BookingGetMachineSpec",
+		"BookingGetCountry", "BookingGetCoreCount", "BookingGetECU", "BookingGetBidID" };
+
+	private final int MaxEntries;
+	private final Map<String, Long> TTLs = new HashMap<String, Long>();
+	private final LinkedHashMap<String, CachedValue> Entries;
+	private final Map<Integer, Set<Integer>> BidBookings = new HashMap<Integer, Set<Integer>>();
+
+	//which bid each booking belongs to, and how many cached values each booking has, so the bid lookup is
+	//trimmed as values are evicted or expire
+	private final LinkedHashMap<Integer, Integer> BookingBids;
+	private final Map<Integer, Integer> EntryCounts = new HashMap<Integer, Integer>();
+
+	private final AtomicLong Hits = new AtomicLong();
+	private final AtomicLong Misses = new AtomicLong();
+	private final AtomicLong Evictions = new AtomicLong();
+
+	public BookingCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+	}
+
+	/**
+	 * @param maxEntries Maximum number of cached values - the least recently used are evicted beyond this
+	 * @param ttlms Time to live for each of the IMMUTABLE_OPERATIONS
+	 */
+	public BookingCache(int maxEntries, long ttlms) {
+		if(maxEntries <= 0)
+			throw new IllegalArgumentException("Maximum entries must be greater than 0");
+
+		MaxEntries = maxEntries;
+		Entries = new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+				if(size() <= MaxEntries)
+					return false;
+				Evictions.incrementAndGet();
+				removed(eldest.getKey());
+				return true;
+			}
+		};
+
+		//bookings associated before any of their values are cached (e.g. by getBookingID) are bounded too
+		BookingBids = new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+				if(size() <= MaxEntries)
+					return false;
+				unlink(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+		};
+
+		for(String operation : IMMUTABLE_OPERATIONS)
+			TTLs.put(operation, ttlms);
+	}
+
+	/**
+	 * Set how long results of the operation are cached for.
+	 *
+	 * @param operation Web service operation, e.g. "BookingGetMachineSpec"
+	 * @param ttlms Time to live in milliseconds. 0 stops the operation being cached.
+	 */
+	public synchronized void setTTL(String operation, long ttlms)
+	{
+		if(ttlms < 0)
+			throw new IllegalArgumentException("TTL must be >= 0");
+
+		if(ttlms == 0)
+		{
+			TTLs.remove(operation);
+			Iterator<String> keys = Entries.keySet().iterator();
+			while(keys.hasNext())
+			{
+				String key = keys.next();
+				if(key.startsWith(operation + ":"))
+				{
+					keys.remove();
+					removed(key);
+				}
+			}
+		}
+		else
+			TTLs.put(operation, ttlms);
+	}
+
+	/**
+	 * @return True if results of the operation are cached
+	 */
+	public synchronized boolean isCacheable(String operation)
+	{
+		return TTLs.containsKey(operation);
+	}
+
+	/**
+	 * Look up a cached result. Counts as a hit or a miss.
+	 *
+	 * @return The cached value, or null if it isn't cached or has expired
+	 */
+	public synchronized String get(String operation, int bookingID)
+	{
+		String key = key(operation, bookingID);
+		CachedValue entry = Entries.get(key);
+		if(entry != null && entry.Expires <= System.currentTimeMillis())
+		{
+			Entries.remove(key);
+			removed(key);
+			entry = null;
+		}
+
+		if(entry == null)
+		{
+			Misses.incrementAndGet();
+			return null;
+		}
+		Hits.incrementAndGet();
+		return entry.Value;
+	}
+
+	/**
+	 * Cache a result. Ignored if the operation isn't cacheable, or the value is null/empty (which the service
+	 * returns for details that aren't available yet).
+	 */
+	public synchronized void put(String operation, int bookingID, String value)
+	{
+		Long ttl = TTLs.get(operation);
+		if(ttl == null || value == null || value.length() == 0)
+			return;
+
+		if(Entries.put(key(operation, bookingID), new CachedValue(value, System.currentTimeMillis() + ttl)) == null)
+		{
+			Integer count = EntryCounts.get(bookingID);
+			EntryCounts.put(bookingID, count == null ? 1 : count + 1);
+		}
+		if(operation.equals("BookingGetBidID"))
+		{
+			try
+			{
+				associate(Integer.parseInt(value.trim()), bookingID);
+			}
+			catch(NumberFormatException e)
+			{
+				//not a bid ID - nothing to associate
+			}
+		}
+	}
+
+	/**
+	 * Record that the booking belongs to the bid, so it is invalidated along with the bid.
+	 */
+	public synchronized void associate(int bidID, int bookingID)
+	{
+		if(bidID < 0 || bookingID < 0)
+			return;
+
+		Integer old = BookingBids.put(bookingID, bidID);
+		if(old != null && old != bidID)
+			unlink(bookingID, old);
+
+		Set<Integer> bookings = BidBookings.get(bidID);
+		if(bookings == null)
+		{
+			bookings = new HashSet<Integer>();
+			BidBookings.put(bidID, bookings);
+		}
+		bookings.add(bookingID);
+	}
+
+	/**
+	 * Remove every cached value for the booking.
+	 */
+	public synchronized void invalidateBooking(int bookingID)
+	{
+		String suffix = ":" + bookingID;
+		Iterator<String> keys = Entries.keySet().iterator();
+		while(keys.hasNext())
+		{
+			String key = keys.next();
+			if(key.endsWith(suffix))
+			{
+				keys.remove();
+				removed(key);
+			}
+		}
+	}
+
+	/**
+	 * Remove every cached value for the bookings made against the bid (e.g. after deleteBid).
+	 */
+	public synchronized void invalidateBid(int bidID)
+	{
+		Set<Integer> bookings = BidBookings.remove(bidID);
+		if(bookings == null)
+			return;
+		for(int bookingID : bookings)
+		{
+			BookingBids.remove(bookingID);
+			invalidateBooking(bookingID);
+		}
+	}
+
+	public synchronized void clear()
+	{
+		Entries.clear();
+		BidBookings.clear();
+		BookingBids.clear();
+		EntryCounts.clear();
+	}
+
+	/**
+	 * A cached value has gone. Once a booking has none left, it is dropped from its bid too.
+	 */
+	private void removed(String key)
+	{
+		int bookingID = Integer.parseInt(key.substring(key.lastIndexOf(':') + 1));
+		Integer count = EntryCounts.get(bookingID);
+		if(count != null && count > 1)
+			EntryCounts.put(bookingID, count - 1);
+		else
+		{
+			EntryCounts.remove(bookingID);
+			Integer bidID = BookingBids.remove(bookingID);
+			if(bidID != null)
+				unlink(bookingID, bidID);
+		}
+	}
+
+	private void unlink(int bookingID, int bidID)
+	{
+		Set<Integer> bookings = BidBookings.get(bidID);
+		if(bookings != null)
+		{
+			bookings.remove(bookingID);
+			if(bookings.isEmpty())
+				BidBookings.remove(bidID);
+		}
+	}
+
+	public synchronized int size() {
+		return Entries.size();
+	}
+
+	/**
+	 * @return Number of bids with bookings that would be invalidated along with them
+	 */
+	public synchronized int getBidCount() {
+		return BidBookings.size();
+	}
+
+	public long getHitCount() {
+		return Hits.get();
+	}
+
+	public long getMissCount() {
+		return Misses.get();
+	}
+
+	public long getEvictionCount() {
+		return Evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BookingCache[size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() +
+				", evictions=" + getEvictionCount() + "]";
+	}
+
+	private static String key(String operation, int bookingID)
+	{
+		return operation + ":" + bookingID;
+	}
+
+	private static class CachedValue {
+
+		final String Value;
+		final long Expires;
+
+		CachedValue(String value, long expires) {
+			Value = value;
+			Expires = expires;
+		}
+	}
+}
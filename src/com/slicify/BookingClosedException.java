@@ -0,0 +1,33 @@
+package com.slicify;
+
+/**
+ * Thrown (or used to complete a future exceptionally) when a booking is closed before it became ready.
+ *
+ * @author slicify
+ *
+ */
+public class BookingClosedException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int BookingID;
+	private final String CloseReason;
+
+	public BookingClosedException(int bookingID, String closeReason) {
+		super("Machine wasnt able to be booked succesfully:" + bookingID + " Closed" +
+				(closeReason != null && closeReason.length() > 0 ? " (" + closeReason + ")" : ""));
+		BookingID = bookingID;
+		CloseReason = closeReason;
+	}
+
+	public int getBookingID() {
+		return BookingID;
+	}
+
+	/**
+	 * @return The reason given by the booking service, or null if it couldn't be retrieved
+	 */
+	public String getCloseReason() {
+		return CloseReason;
+	}
+}
@@ -0,0 +1,95 @@
+package com.slicify;
+
+/**
+ * Immutable snapshot of the details of a single booking, as returned by AsyncSlicifyNode.getBookingInfo().
+ *
+ * @author slicify
+ *
+ */
+public final class BookingInfo {
+
+	private final int BookingID;
+	private final String Status;
+	private final String Password;
+	private final String SudoPassword;
+	private final int CoreCount;
+	private final int ECU;
+	private final String MachineSpec;
+	private final String Country;
+	private final int BidID;
+
+	public BookingInfo(int bookingID, String status, String password, String sudoPassword, int coreCount, int ecu,
+			String machineSpec, String country, int bidID) {
+		BookingID = bookingID;
+		Status = status;
+		Password = password;
+		SudoPassword = sudoPassword;
+		CoreCount = coreCount;
+		ECU = ecu;
+		MachineSpec = machineSpec;
+		Country = country;
+		BidID = bidID;
+	}
+
+	public int getBookingID() {
+		return BookingID;
+	}
+
+	/**
+	 * @return Booking status at the time the snapshot was taken, e.g. "Ready"
+	 */
+	public String getStatus() {
+		return Status;
+	}
+
+	/**
+	 * @return SSH login password for the machine
+	 */
+	public String getPassword() {
+		return Password;
+	}
+
+	/**
+	 * @return SUDO/root password for the machine
+	 */
+	public String getSudoPassword() {
+		return SudoPassword;
+	}
+
+	public int getCoreCount() {
+		return CoreCount;
+	}
+
+	/**
+	 * @return Approximate ECU benchmark for the machine
+	 */
+	public int getECU() {
+		return ECU;
+	}
+
+	public String getMachineSpec() {
+		return MachineSpec;
+	}
+
+	public String getCountry() {
+		return Country;
+	}
+
+	/**
+	 * @return The bid this booking was made for
+	 */
+	public int getBidID() {
+		return BidID;
+	}
+
+	public boolean isReady() {
+		return BookingWatcher.STATUS_READY.equals(Status);
+	}
+
+	@Override
+	public String toString() {
+		//passwords deliberately left out, so snapshots can be logged
+		return "BookingInfo[bookingID=" + BookingID + ", status=" + Status + ", bidID=" + BidID + ", cores=" + CoreCount +
+				", ecu=" + ECU + ", country=" + Country + ", spec=" + MachineSpec + "]";
+	}
+}
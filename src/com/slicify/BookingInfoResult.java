@@ -0,0 +1,53 @@
+package com.slicify;
+
+/**
+ * Outcome of looking up one booking in AsyncSlicifyNode.getBookingInfo(Collection) - either its details, or why
+ * they couldn't be fetched.
+ *
+ * @author slicify
+ *
+ */
+public final class BookingInfoResult {
+
+	private final int BookingID;
+	private final BookingInfo Info;
+	private final Throwable Error;
+
+	/**
+	 * @param bookingID
+	 * @param info Null if the lookup failed
+	 * @param error Null if the lookup succeeded
+	 */
+	public BookingInfoResult(int bookingID, BookingInfo info, Throwable error) {
+		BookingID = bookingID;
+		Info = info;
+		Error = error;
+	}
+
+	public int getBookingID() {
+		return BookingID;
+	}
+
+	/**
+	 * @return The booking's details, or null if the lookup failed
+	 */
+	public BookingInfo getInfo() {
+		return Info;
+	}
+
+	/**
+	 * @return Why the lookup failed, or null if it succeeded
+	 */
+	public Throwable getError() {
+		return Error;
+	}
+
+	public boolean isSuccess() {
+		return Error == null;
+	}
+
+	@Override
+	public String toString() {
+		return "BookingInfoResult[" + BookingID + (Error != null ? ", error=" + Error : ", " + Info) + "]";
+	}
+}
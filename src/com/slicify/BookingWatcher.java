@@ -0,0 +1,328 @@
+package com.slicify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks many bookings until they become Ready (or Closed), using a single scheduler thread instead of
+ * a blocked waitReady() call per booking.
+ *
+ * Each tick, every booking that is due a check has its status requested together through the async
+ * node. A booking is polled quickly at first, and the interval then backs off towards the maximum the
+ * longer it stays in a provisioning state, which keeps the number of status calls down for large batches.
+ *
+ * Listeners and futures are completed on the async node's executor threads, so they should not block.
+ *
+ * @author slicify
+ *
+ */
+public class BookingWatcher {
+
+	public static final long DEFAULT_INITIAL_INTERVAL = 2000;
+	public static final long DEFAULT_MAX_INTERVAL = 30000;
+	public static final double DEFAULT_BACKOFF = 1.5;
+	public static final int DEFAULT_MAX_ERRORS = 5;
+
+	public static final String STATUS_READY = "Ready";
+	public static final String STATUS_CLOSED = "Closed";
+
+	/**
+	 * Callback for booking state transitions.
+	 */
+	public interface Listener {
+
+		/**
+		 * The booking has reached Ready status and can be logged into.
+		 */
+		public void onReady(int bookingID);
+
+		/**
+		 * The booking was closed before becoming ready.
+		 * @param closeReason Text from getCloseReason(), or null if it couldn't be retrieved
+		 */
+		public void onClosed(int bookingID, String closeReason);
+
+		/**
+		 * Status checks for the booking failed too many times in a row, and it is no longer being watched.
+		 */
+		public void onError(int bookingID, Throwable error);
+	}
+
+	private final AsyncSlicifyNode Node;
+	private final long InitialInterval;
+	private final long MaxInterval;
+	private final double Backoff;
+	private volatile int MaxErrors = DEFAULT_MAX_ERRORS;
+
+	private final ScheduledExecutorService Scheduler;
+	private final ConcurrentHashMap<Integer, Watch> Watches = new ConcurrentHashMap<Integer, Watch>();
+	private final List<Listener> Listeners = new CopyOnWriteArrayList<Listener>();
+	private final AtomicLong StatusCalls = new AtomicLong();
+
+	public BookingWatcher(SlicifyNode node) {
+		this(new AsyncSlicifyNode(node));
+	}
+
+	public BookingWatcher(AsyncSlicifyNode node) {
+		this(node, DEFAULT_INITIAL_INTERVAL, DEFAULT_MAX_INTERVAL, DEFAULT_BACKOFF);
+	}
+
+	/**
+	 * @param node Async node used to send the status checks
+	 * @param initialIntervalms Delay between the first status checks of a booking
+	 * @param maxIntervalms Longest delay between status checks, once backed off
+	 * @param backoff Factor the interval grows by after each check that isn't Ready/Closed (>= 1)
+	 */
+	public BookingWatcher(AsyncSlicifyNode node, long initialIntervalms, long maxIntervalms, double backoff) {
+		if(initialIntervalms <= 0 || maxIntervalms < initialIntervalms)
+			throw new IllegalArgumentException("Intervals must be > 0, and max interval must be >= initial interval");
+		if(backoff < 1)
+			throw new IllegalArgumentException("Backoff factor must be >= 1");
+
+		Node = node;
+		InitialInterval = initialIntervalms;
+		MaxInterval = maxIntervalms;
+		Backoff = backoff;
+
+		//tick often enough that a booking isn't checked much later than it is due
+		long tick = Math.max(100, Math.min(1000, initialIntervalms / 4));
+		Scheduler = Executors.newSingleThreadScheduledExecutor(new AsyncSlicifyNode.DaemonThreadFactory("slicify-watcher"));
+		Scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, 0, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Number of consecutive failed status checks after which a booking is reported as an error.
+	 *
+	 * @param maxErrors
+	 */
+	public void setMaxErrors(int maxErrors) {
+		MaxErrors = maxErrors;
+	}
+
+	/**
+	 * Add a listener that is told about every watched booking.
+	 *
+	 * @param listener
+	 */
+	public void addListener(Listener listener) {
+		Listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		Listeners.remove(listener);
+	}
+
+	/**
+	 * Start watching the booking. The returned future completes with the booking ID once the booking is Ready,
+	 * or exceptionally with a BookingClosedException if it is closed first. Watching a booking that is already
+	 * being watched returns the existing future.
+	 *
+	 * @param bookingID
+	 * @return
+	 */
+	public CompletableFuture<Integer> watch(int bookingID)
+	{
+		return watch(bookingID, null);
+	}
+
+	/**
+	 * Start watching the booking, and notify the passed listener (as well as any registered listeners) when it
+	 * changes state.
+	 *
+	 * @param bookingID
+	 * @param listener Can be null
+	 * @return
+	 */
+	public CompletableFuture<Integer> watch(int bookingID, Listener listener)
+	{
+		SlicifyNode.validateBookingID(bookingID);
+		if(Scheduler.isShutdown())
+			throw new IllegalStateException("Watcher has been shut down");
+
+		Watch watch = new Watch(bookingID, listener, InitialInterval);
+		Watch existing = Watches.putIfAbsent(bookingID, watch);
+		return existing != null ? existing.Future : watch.Future;
+	}
+
+	/**
+	 * Stop watching the booking, and cancel its future.
+	 *
+	 * @param bookingID
+	 */
+	public void unwatch(int bookingID)
+	{
+		Watch watch = Watches.remove(bookingID);
+		if(watch != null)
+			watch.Future.cancel(false);
+	}
+
+	/**
+	 * @return Number of bookings currently being watched
+	 */
+	public int getWatchedCount() {
+		return Watches.size();
+	}
+
+	/**
+	 * @return Total number of status calls sent by this watcher
+	 */
+	public long getStatusCallCount() {
+		return StatusCalls.get();
+	}
+
+	/**
+	 * Stop the scheduler and cancel all outstanding futures.
+	 */
+	public void shutdown()
+	{
+		Scheduler.shutdownNow();
+		for(Integer bookingID : new ArrayList<Integer>(Watches.keySet()))
+			unwatch(bookingID);
+	}
+
+	/**
+	 * Send a status check for every booking that is due one.
+	 */
+	private void tick()
+	{
+		long now = System.currentTimeMillis();
+		for(final Watch watch : Watches.values())
+		{
+			synchronized(watch)
+			{
+				if(watch.InFlight || watch.NextPoll > now)
+					continue;
+				watch.InFlight = true;
+			}
+
+			StatusCalls.incrementAndGet();
+			try
+			{
+				Node.getBookingStatus(watch.BookingID).whenComplete((status, error) -> onStatus(watch, status, error));
+			}
+			catch(Exception e)
+			{
+				onStatus(watch, null, e);
+			}
+		}
+	}
+
+	private void onStatus(final Watch watch, String status, Throwable error)
+	{
+		if(watch.Future.isDone())
+			return;
+
+		if(error != null)
+		{
+			boolean failed;
+			synchronized(watch)
+			{
+				watch.Errors++;
+				failed = watch.Errors >= MaxErrors;
+				reschedule(watch);
+			}
+			if(failed && finish(watch))
+			{
+				watch.Future.completeExceptionally(error);
+				for(Listener listener : listeners(watch))
+				{
+					try { listener.onError(watch.BookingID, error); } catch(RuntimeException e) { /* ignore listener faults */ }
+				}
+			}
+		}
+		else if(STATUS_READY.equals(status))
+		{
+			if(finish(watch))
+			{
+				watch.Future.complete(watch.BookingID);
+				for(Listener listener : listeners(watch))
+				{
+					try { listener.onReady(watch.BookingID); } catch(RuntimeException e) { /* ignore listener faults */ }
+				}
+			}
+		}
+		else if(STATUS_CLOSED.equals(status))
+		{
+			//look up the reason before reporting, so callers can tell a price cancellation from a fault
+			StatusCalls.incrementAndGet();
+			Node.getCloseReason(watch.BookingID).whenComplete((reason, reasonError) -> onClosed(watch, reasonError == null ? reason : null));
+		}
+		else
+		{
+			//still provisioning - back off
+			synchronized(watch)
+			{
+				watch.Errors = 0;
+				watch.Interval = Math.min(MaxInterval, (long) (watch.Interval * Backoff));
+				reschedule(watch);
+			}
+		}
+	}
+
+	private void onClosed(Watch watch, String reason)
+	{
+		if(finish(watch))
+		{
+			watch.Future.completeExceptionally(new BookingClosedException(watch.BookingID, reason));
+			for(Listener listener : listeners(watch))
+			{
+				try { listener.onClosed(watch.BookingID, reason); } catch(RuntimeException e) { /* ignore listener faults */ }
+			}
+		}
+	}
+
+	private void reschedule(Watch watch)
+	{
+		watch.NextPoll = System.currentTimeMillis() + watch.Interval;
+		watch.InFlight = false;
+	}
+
+	/**
+	 * Remove the watch - returns false if it had already been removed (unwatched or finished).
+	 */
+	private boolean finish(Watch watch)
+	{
+		return Watches.remove(watch.BookingID, watch);
+	}
+
+	private List<Listener> listeners(Watch watch)
+	{
+		List<Listener> result = new ArrayList<Listener>(Listeners);
+		if(watch.Listener != null)
+			result.add(watch.Listener);
+		return result;
+	}
+
+	/**
+	 * Polling state for one booking. Mutable fields are guarded by the Watch monitor.
+	 */
+	private static class Watch {
+
+		final int BookingID;
+		final Listener Listener;
+		final CompletableFuture<Integer> Future = new CompletableFuture<Integer>();
+
+		long Interval;
+		long NextPoll = 0;
+		boolean InFlight = false;
+		int Errors = 0;
+
+		Watch(int bookingID, Listener listener, long interval) {
+			BookingID = bookingID;
+			Listener = listener;
+			Interval = interval;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.slicify;
+
+/**
+ * Holds the most recent output captured by an expect, up to a fixed number of characters. Once full it acts as
+ * a ring buffer - the oldest output is overwritten, so a huge command output can't exhaust the heap.
+ *
+ * @author slicify
+ *
+ */
+final class CaptureBuffer {
+
+	private static final int INITIAL_SIZE = 256;
+
+	private final int Max;
+	private char[] Data;
+	private int Start = 0;
+	private int Length = 0;
+	private long Dropped = 0;
+
+	/**
+	 * @param max Maximum number of characters kept
+	 */
+	CaptureBuffer(int max) {
+		if(max <= 0)
+			throw new IllegalArgumentException("Capture size must be greater than 0");
+		Max = max;
+		Data = new char[Math.min(max, INITIAL_SIZE)];
+	}
+
+	void append(char[] chars, int offset, int length)
+	{
+		//only the tail of an oversized chunk can survive
+		if(length > Max)
+		{
+			Dropped += Length + length - Max;
+			offset += length - Max;
+			length = Max;
+			Start = 0;
+			Length = 0;
+		}
+
+		grow(Length + length);
+
+		int overflow = Length + length - Data.length;
+		if(overflow > 0)
+		{
+			Start = (Start + overflow) % Data.length;
+			Length -= overflow;
+			Dropped += overflow;
+		}
+
+		int pos = (Start + Length) % Data.length;
+		int first = Math.min(length, Data.length - pos);
+		System.arraycopy(chars, offset, Data, pos, first);
+		System.arraycopy(chars, offset + first, Data, 0, length - first);
+		Length += length;
+	}
+
+	/**
+	 * @return Number of characters discarded from the start of the output
+	 */
+	long getDropped() {
+		return Dropped;
+	}
+
+	int length() {
+		return Length;
+	}
+
+	@Override
+	public String toString() {
+		int first = Math.min(Length, Data.length - Start);
+		StringBuilder sb = new StringBuilder(Length);
+		sb.append(Data, Start, first);
+		sb.append(Data, 0, Length - first);
+		return sb.toString();
+	}
+
+	private void grow(int needed)
+	{
+		if(needed <= Data.length || Data.length >= Max)
+			return;
+
+		char[] bigger = new char[(int) Math.min(Max, Math.max(needed, Data.length * 2L))];
+		int first = Math.min(Length, Data.length - Start);
+		System.arraycopy(Data, Start, bigger, 0, first);
+		System.arraycopy(Data, 0, bigger, first, Length - first);
+		Data = bigger;
+		Start = 0;
+	}
+}
@@ -0,0 +1,96 @@
+package com.slicify;
+
+/**
+ * Output and exit status of a command run on one node.
+ *
+ * @author slicify
+ *
+ */
+public final class CommandResult {
+
+	private final NodeSSHClient Client;
+	private final String Command;
+	private final String Output;
+	private final int ExitStatus;
+	private final boolean Timeout;
+	private final Throwable Error;
+	private final long Duration;
+
+	/**
+	 * @param client
+	 * @param command
+	 * @param output
+	 * @param exitStatus -1 if not known
+	 * @param timeout
+	 * @param error Null if the command ran
+	 * @param durationms
+	 */
+	public CommandResult(NodeSSHClient client, String command, String output, int exitStatus, boolean timeout, Throwable error, long durationms) {
+		Client = client;
+		Command = command;
+		Output = output;
+		ExitStatus = exitStatus;
+		Timeout = timeout;
+		Error = error;
+		Duration = durationms;
+	}
+
+	/**
+	 * @return The client the command was run on
+	 */
+	public NodeSSHClient getClient() {
+		return Client;
+	}
+
+	public String getCommand() {
+		return Command;
+	}
+
+	/**
+	 * @return Output of the command, without the echoed command line or the prompt. Partial if the command timed out.
+	 */
+	public String getOutput() {
+		return Output;
+	}
+
+	/**
+	 * @return The command's exit status ($?), or -1 if it timed out or failed to run
+	 */
+	public int getExitStatus() {
+		return ExitStatus;
+	}
+
+	/**
+	 * @return True if the command ran and exited with status 0
+	 */
+	public boolean isSuccess() {
+		return ExitStatus == 0;
+	}
+
+	/**
+	 * @return True if the command didn't finish within the timeout. The shell may still be running it.
+	 */
+	public boolean isTimeout() {
+		return Timeout;
+	}
+
+	/**
+	 * @return The error that stopped the command running (e.g. the SSH connection dropped), or null
+	 */
+	public Throwable getError() {
+		return Error;
+	}
+
+	/**
+	 * @return Time from sending the command to getting its result, in milliseconds
+	 */
+	public long getDuration() {
+		return Duration;
+	}
+
+	@Override
+	public String toString() {
+		String status = Error != null ? "error=" + Error : Timeout ? "timeout" : "exit=" + ExitStatus;
+		return "CommandResult[" + Command + ", " + status + ", " + Duration + "ms]";
+	}
+}
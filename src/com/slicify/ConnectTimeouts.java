@@ -0,0 +1,71 @@
+package com.slicify;
+
+/**
+ * Timeouts for each phase of connecting a NodeSSHClient, so one slow or unresponsive node fails quickly (with a
+ * NodeConnectException saying which phase) rather than holding up a whole provisioning wave. 0 means no timeout
+ * for that phase.
+ *
+ * @author slicify
+ *
+ */
+public final class ConnectTimeouts {
+
+	public static final int DEFAULT_CONNECT = 10000;
+	public static final int DEFAULT_KEY_EXCHANGE = 15000;
+	public static final int DEFAULT_AUTHENTICATE = 15000;
+	public static final int DEFAULT_SHELL = 15000;
+	public static final int DEFAULT_PROMPT = 60000;
+
+	private final int Connect;
+	private final int KeyExchange;
+	private final int Authenticate;
+	private final int Shell;
+	private final int Prompt;
+
+	public ConnectTimeouts() {
+		this(DEFAULT_CONNECT, DEFAULT_KEY_EXCHANGE, DEFAULT_AUTHENTICATE, DEFAULT_SHELL, DEFAULT_PROMPT);
+	}
+
+	/**
+	 * @param connectms TCP connect to the gateway
+	 * @param keyExchangems SSH version exchange and key exchange
+	 * @param authenticatems Password login
+	 * @param shellms Opening the session and starting the shell
+	 * @param promptms Waiting for the first prompt, unless connect() is given its own timeout
+	 */
+	public ConnectTimeouts(int connectms, int keyExchangems, int authenticatems, int shellms, int promptms) {
+		if(connectms < 0 || keyExchangems < 0 || authenticatems < 0 || shellms < 0 || promptms < 0)
+			throw new IllegalArgumentException("Timeouts must be >= 0");
+		Connect = connectms;
+		KeyExchange = keyExchangems;
+		Authenticate = authenticatems;
+		Shell = shellms;
+		Prompt = promptms;
+	}
+
+	public int getConnect() {
+		return Connect;
+	}
+
+	public int getKeyExchange() {
+		return KeyExchange;
+	}
+
+	public int getAuthenticate() {
+		return Authenticate;
+	}
+
+	public int getShell() {
+		return Shell;
+	}
+
+	public int getPrompt() {
+		return Prompt;
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectTimeouts[connect=" + Connect + ", kex=" + KeyExchange + ", auth=" + Authenticate + ", shell=" + Shell +
+				", prompt=" + Prompt + "]";
+	}
+}
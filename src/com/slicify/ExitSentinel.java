@@ -0,0 +1,92 @@
+package com.slicify;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Marks the start and end of each command's output in a shell. Each command line echoes a start marker, runs
+ * the command, then echoes an end marker with $?, so the output can be cut out exactly and the exit status read
+ * back, rather than relying on the prompt. The terminal's echo of the typed line has $((n)) and $? unexpanded,
+ * so only the real markers match.
+ *
+ * One sentinel is used for a whole batch of commands, with each command identified by its index.
+ *
+ * @author slicify
+ *
+ */
+final class ExitSentinel {
+
+	private static final AtomicLong Sequence = new AtomicLong();
+	private static final String START = "[slicify-start:";
+	private static final String EXIT = "[slicify-exit:";
+
+	private final String Token;
+
+	ExitSentinel() {
+		Token = Long.toHexString(System.nanoTime()) + "-" + Sequence.incrementAndGet();
+	}
+
+	/**
+	 * @return Shell line that marks the start, runs the command, and then echoes the exit status
+	 */
+	String wrap(String command, int index) {
+		return "echo \"" + START + Token + ":$((" + index + "))]\"; " + command + "; echo \"" + EXIT + Token + ":" + index + ":$?]\"";
+	}
+
+	/**
+	 * @return Pattern matching the end marker of the command, with the exit status as group 1
+	 */
+	Pattern getPattern(int index) {
+		return Pattern.compile(Pattern.quote(EXIT + Token + ":" + index + ":") + "(\\d+)\\]");
+	}
+
+	/**
+	 * @return Exit status from a result that matched the end marker
+	 */
+	static int exitStatus(ExpectResult result) {
+		return Integer.parseInt(result.getGroup(1));
+	}
+
+	/**
+	 * Cut the command's own output out of what was captured up to its end marker: everything after the start
+	 * marker, less any echoed command lines and the line break before the end marker.
+	 *
+	 * @param captured Output up to and including the end marker
+	 * @param match The matched end marker, or null if it wasn't seen
+	 * @param index
+	 * @return
+	 */
+	String output(String captured, String match, int index) {
+		int end = match == null ? captured.length() : captured.length() - match.length();
+		int begin = 0;
+		String start = START + Token + ":" + index + "]";
+		int marker = captured.lastIndexOf(start, end);
+		if(marker >= 0)
+		{
+			int eol = captured.indexOf('\n', marker);
+			begin = eol < 0 || eol >= end ? end : eol + 1;
+		}
+
+		//drop echoes of the typed command lines, which can land in the middle of the output
+		StringBuilder output = new StringBuilder(end - begin);
+		int pos = begin;
+		while(pos < end)
+		{
+			int eol = captured.indexOf('\n', pos);
+			int next = eol < 0 || eol >= end ? end : eol + 1;
+			if(captured.substring(pos, next).indexOf(Token) < 0)
+				output.append(captured, pos, next);
+			pos = next;
+		}
+
+		int length = output.length();
+		if(match != null)
+		{
+			if(length >= 2 && output.charAt(length - 2) == '\r' && output.charAt(length - 1) == '\n')
+				output.setLength(length - 2);
+			else if(length >= 1 && output.charAt(length - 1) == '\n')
+				output.setLength(length - 1);
+		}
+		return output.toString();
+	}
+}
@@ -0,0 +1,481 @@
+package com.slicify;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Watches the output of many shells from a small number of dispatcher threads, and completes each expectation
+ * as soon as its text arrives.
+ *
+ * sshj's channel streams have no selector or data-arrived callback, so each dispatcher sweeps its shells'
+ * available() counts in a loop. After a sweep that found data it goes straight round again; when everything is
+ * quiet it backs off from a spin to parking for up to MAX_PARK_NANOS, so a match is seen within a couple of
+ * milliseconds of the bytes arriving, rather than up to 100 ms with the old sleep-poll loop, and without a
+ * thread per shell. Once nothing has arrived for IDLE_AFTER_NANOS it parks for up to IDLE_PARK_NANOS instead,
+ * so a shell waiting a long time for a prompt doesn't keep a core waking hundreds of times a second.
+ *
+ * Only one expectation should be outstanding per stream at a time, as the expectation consumes the stream.
+ * Futures are completed on a dispatcher thread, so dependent actions that block should use the *Async
+ * CompletableFuture methods.
+ *
+ * @author slicify
+ *
+ */
+public class ExpectEngine {
+
+	public static final int DEFAULT_THREADS = 2;
+
+	//idle backoff - spin, then park for doubling intervals up to the maximum
+	static final int SPIN_SWEEPS = 64;
+	static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+	//after this long with no output or new expectations, keep doubling up to the idle maximum
+	static final long IDLE_AFTER_NANOS = TimeUnit.SECONDS.toNanos(1);
+	static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	//characters read from one shell per sweep, so a chatty shell can't starve the others
+	static final int MAX_READ_PER_SWEEP = 8192;
+
+	//how long a finished expect waits for its sink to pass on the rest of the output
+	static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private static ExpectEngine Shared = null;
+
+	private final Dispatcher[] Dispatchers;
+
+	/**
+	 * Get the engine shared by all NodeSSHClients that haven't been given their own.
+	 * @return
+	 */
+	public static synchronized ExpectEngine getShared()
+	{
+		if(Shared == null)
+			Shared = new ExpectEngine(DEFAULT_THREADS);
+		return Shared;
+	}
+
+	/**
+	 * @param threads Number of dispatcher threads. Each can watch hundreds of shells.
+	 */
+	public ExpectEngine(int threads) {
+		if(threads <= 0)
+			throw new IllegalArgumentException("Thread count must be greater than 0");
+
+		Dispatchers = new Dispatcher[threads];
+		for(int i=0; i<threads; i++)
+		{
+			Dispatchers[i] = new Dispatcher("slicify-expect-" + (i + 1));
+			Dispatchers[i].start();
+		}
+	}
+
+	/**
+	 * Wait for the literal text to appear in the stream.
+	 *
+	 * @param reader Shell output
+	 * @param text Literal text to wait for
+	 * @param buffer If true, the result contains everything read up to and including the match
+	 * @param timeoutms Timeout in milliseconds, 0 for no timeout. On timeout the future completes with whatever
+	 * was captured so far (the same as NodeSSHClient.expectLiteral).
+	 * @param log Output read is echoed here (can be null)
+	 * @param connected Checked on each sweep - the future fails with an IOException once it returns false
+	 * @return Completes with the captured output ("" if buffer is false)
+	 */
+	public CompletableFuture<String> expect(ShellReader reader, String text, boolean buffer, int timeoutms, PrintStream log,
+			BooleanSupplier connected)
+	{
+		return expect(reader, new String[] { text }, buffer, timeoutms, log, connected).thenApply(result -> result.getCaptured());
+	}
+
+	/**
+	 * Wait for any of the literals to appear in the stream. All of them are watched in a single pass over the
+	 * output, and the one that ends first wins.
+	 *
+	 * @param reader Shell output
+	 * @param literals Literal strings to wait for
+	 * @param buffer If true, the result contains everything read up to and including the match
+	 * @param timeoutms Timeout in milliseconds, 0 for no timeout. On timeout the future completes with a result
+	 * whose index is -1.
+	 * @param log Output read is echoed here (can be null)
+	 * @param connected Checked on each sweep - the future fails with an IOException once it returns false
+	 * @return
+	 */
+	public CompletableFuture<ExpectResult> expect(ShellReader reader, String[] literals, boolean buffer, int timeoutms,
+			PrintStream log, BooleanSupplier connected)
+	{
+		return expect(reader, new LiteralMatcher(literals), buffer, timeoutms, log, connected);
+	}
+
+	/**
+	 * Wait for any of the regular expressions to match the stream. The pattern whose match ends first wins, and
+	 * the result holds its captured groups. A match that arrives in pieces can't be longer than
+	 * PatternMatcher.MAX_MATCH characters.
+	 *
+	 * @param reader Shell output
+	 * @param patterns Patterns to wait for
+	 * @param buffer If true, the result contains everything read up to and including the match
+	 * @param timeoutms Timeout in milliseconds, 0 for no timeout. On timeout the future completes with a result
+	 * whose index is -1.
+	 * @param log Output read is echoed here (can be null)
+	 * @param connected Checked on each sweep - the future fails with an IOException once it returns false
+	 * @return
+	 */
+	public CompletableFuture<ExpectResult> expect(ShellReader reader, Pattern[] patterns, boolean buffer, int timeoutms,
+			PrintStream log, BooleanSupplier connected)
+	{
+		return expect(reader, new PatternMatcher(patterns), buffer, timeoutms, log, connected);
+	}
+
+	/**
+	 * Wait for any of the literals, passing the output to the sink as it arrives rather than buffering it.
+	 *
+	 * @param reader Shell output
+	 * @param literals Literal strings to wait for
+	 * @param sink Receives everything read up to and including the match
+	 * @param timeoutms Timeout in milliseconds, 0 for no timeout
+	 * @param log Output read is echoed here (can be null)
+	 * @param connected Checked on each sweep - the future fails with an IOException once it returns false
+	 * @return Completes once the sink has taken the output up to the match (getCaptured() is empty)
+	 */
+	public CompletableFuture<ExpectResult> expect(ShellReader reader, String[] literals, OutputSink sink, int timeoutms,
+			PrintStream log, BooleanSupplier connected)
+	{
+		return expect(reader, new LiteralMatcher(literals), sink, false, timeoutms, log, connected);
+	}
+
+	/**
+	 * Wait for any of the regular expressions, passing the output to the sink as it arrives rather than
+	 * buffering it.
+	 *
+	 * @param reader Shell output
+	 * @param patterns Patterns to wait for
+	 * @param sink Receives everything read up to and including the match
+	 * @param timeoutms Timeout in milliseconds, 0 for no timeout
+	 * @param log Output read is echoed here (can be null)
+	 * @param connected Checked on each sweep - the future fails with an IOException once it returns false
+	 * @return Completes once the sink has taken the output up to the match (getCaptured() is empty)
+	 */
+	public CompletableFuture<ExpectResult> expect(ShellReader reader, Pattern[] patterns, OutputSink sink, int timeoutms,
+			PrintStream log, BooleanSupplier connected)
+	{
+		return expect(reader, new PatternMatcher(patterns), sink, false, timeoutms, log, connected);
+	}
+
+	private CompletableFuture<ExpectResult> expect(ShellReader reader, StreamMatcher matcher, boolean buffer, int timeoutms,
+			PrintStream log, BooleanSupplier connected)
+	{
+		return expect(reader, matcher, null, buffer, timeoutms, log, connected);
+	}
+
+	private CompletableFuture<ExpectResult> expect(ShellReader reader, StreamMatcher matcher, OutputSink sink, boolean buffer,
+			int timeoutms, PrintStream log, BooleanSupplier connected)
+	{
+		Expectation expectation = new Expectation(reader, matcher, sink, buffer, timeoutms, log, connected);
+
+		//hand it to the least loaded dispatcher
+		Dispatcher target = Dispatchers[0];
+		for(Dispatcher dispatcher : Dispatchers)
+		{
+			if(dispatcher.Load.get() < target.Load.get())
+				target = dispatcher;
+		}
+		target.add(expectation);
+		return expectation.Result;
+	}
+
+	/**
+	 * @return Number of expectations currently being watched
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		for(Dispatcher dispatcher : Dispatchers)
+			count += dispatcher.Load.get();
+		return count;
+	}
+
+	/**
+	 * Stop the dispatcher threads. Pending expectations fail with an IOException.
+	 */
+	public void shutdown()
+	{
+		for(Dispatcher dispatcher : Dispatchers)
+			dispatcher.shutdown();
+	}
+
+	/**
+	 * One wait for a set of literals or patterns on one stream.
+	 */
+	private static class Expectation {
+
+		final ShellReader Reader;
+		final StreamMatcher Matcher;
+		final OutputSink Sink;
+		final CaptureBuffer Capture;
+		final long Deadline;
+		final PrintStream Log;
+		final BooleanSupplier Connected;
+		final CompletableFuture<ExpectResult> Result = new CompletableFuture<ExpectResult>();
+
+		//characters already scanned but not yet taken by the sink, and the match waiting on them
+		int Backlog = 0;
+		String[] Groups = null;
+
+		//set once matched or timed out while the sink is still passing output on
+		boolean Flushing = false;
+		long FlushDeadline = 0;
+		int FinishIndex = -1;
+		String[] FinishGroups = null;
+
+		Expectation(ShellReader reader, StreamMatcher matcher, OutputSink sink, boolean buffer, int timeoutms, PrintStream log,
+				BooleanSupplier connected) {
+			Reader = reader;
+			Matcher = matcher;
+			Sink = sink;
+			Capture = buffer ? new CaptureBuffer(reader.getMaxCapture()) : null;
+			Deadline = timeoutms > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutms) : 0;
+			Log = log;
+			Connected = connected;
+		}
+
+		/**
+		 * Read whatever is waiting and check for a match, timeout or disconnect.
+		 *
+		 * @return True if any data was read
+		 */
+		boolean poll(long now)
+		{
+			//cancelled by the caller
+			if(Result.isDone())
+				return false;
+			if(Flushing)
+				return flushed(now);
+
+			boolean read = false;
+			try
+			{
+				int budget = MAX_READ_PER_SWEEP;
+				while(true)
+				{
+					//hand scanned output on - if the sink is full, stop reading until it catches up
+					if(Backlog > 0)
+					{
+						int taken = Sink == null ? Backlog : Sink.write(Reader.chars(), Reader.offset(), Backlog);
+						Reader.consume(taken);
+						Backlog -= taken;
+						if(taken > 0)
+							read = true;
+						if(Backlog > 0)
+							break;
+					}
+
+					if(Groups != null)
+					{
+						finish(Matcher.getMatchedIndex(), Groups);
+						return true;
+					}
+					if(budget <= 0)
+						break;
+
+					int pending = Reader.fill();
+					if(pending < 0)
+					{
+						Result.completeExceptionally(new IOException("SSH no longer connected"));
+						return true;
+					}
+					if(pending == 0)
+						break;
+					read = true;
+
+					//scan the whole block, and only take what we need if it matched
+					char[] chars = Reader.chars();
+					int offset = Reader.offset();
+					int end = Matcher.scan(chars, offset, pending);
+					int used = end < 0 ? pending : end - offset;
+
+					if(Capture != null)
+						Capture.append(chars, offset, used);
+					if(Log != null)
+						Log.print(new String(chars, offset, used));
+					Backlog = used;
+					budget -= used;
+
+					if(end >= 0)
+						Groups = Matcher.getGroups();
+				}
+
+				if(Connected != null && !Connected.getAsBoolean())
+					Result.completeExceptionally(new IOException("SSH no longer connected"));
+				else if(Deadline != 0 && now - Deadline >= 0)
+					finish(-1, null);
+			}
+			catch(IOException e)
+			{
+				Result.completeExceptionally(e);
+				return true;
+			}
+			return read;
+		}
+
+		void finish(int index, String[] groups) throws IOException
+		{
+			if(Sink != null && !Sink.tryFlush())
+			{
+				//finish on a later sweep, rather than hold up the other shells on this dispatcher
+				Flushing = true;
+				FlushDeadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+				FinishIndex = index;
+				FinishGroups = groups;
+				return;
+			}
+			complete(index, groups);
+		}
+
+		/**
+		 * Try again to flush the sink of a finished expect.
+		 *
+		 * @return True if the expect has now completed
+		 */
+		boolean flushed(long now)
+		{
+			try
+			{
+				if(Sink.tryFlush())
+				{
+					complete(FinishIndex, FinishGroups);
+					return true;
+				}
+				if(now - FlushDeadline >= 0)
+				{
+					Result.completeExceptionally(new IOException("Output sink didn't take the rest of the output in time"));
+					return true;
+				}
+			}
+			catch(IOException e)
+			{
+				Result.completeExceptionally(e);
+				return true;
+			}
+			return false;
+		}
+
+		private void complete(int index, String[] groups)
+		{
+			if(Capture == null)
+				Result.complete(new ExpectResult(index, groups, "", 0));
+			else
+				Result.complete(new ExpectResult(index, groups, Capture.toString(), Capture.getDropped()));
+		}
+	}
+
+	/**
+	 * Thread that sweeps its own set of expectations.
+	 */
+	private static class Dispatcher extends Thread {
+
+		final ConcurrentLinkedQueue<Expectation> Incoming = new ConcurrentLinkedQueue<Expectation>();
+		final AtomicInteger Load = new AtomicInteger();
+		private final List<Expectation> Active = new ArrayList<Expectation>();
+		private volatile boolean Running = true;
+
+		Dispatcher(String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		void add(Expectation expectation)
+		{
+			Load.incrementAndGet();
+			Incoming.add(expectation);
+			LockSupport.unpark(this);
+
+			if(!Running && Incoming.remove(expectation))
+				expectation.Result.completeExceptionally(new IOException("Expect engine shut down"));
+		}
+
+		@Override
+		public void run() {
+			int idleSweeps = 0;
+			long park = MIN_PARK_NANOS;
+			long lastActivity = System.nanoTime();
+			while(Running)
+			{
+				Expectation added;
+				while((added = Incoming.poll()) != null)
+				{
+					//a new expect usually follows a command, so its output is due soon
+					Active.add(added);
+					idleSweeps = 0;
+					park = MIN_PARK_NANOS;
+					lastActivity = System.nanoTime();
+				}
+
+				if(Active.isEmpty())
+				{
+					//nothing to watch - sleep until add() unparks us
+					LockSupport.park(this);
+					idleSweeps = 0;
+					park = MIN_PARK_NANOS;
+					continue;
+				}
+
+				boolean progress = false;
+				long now = System.nanoTime();
+				Iterator<Expectation> it = Active.iterator();
+				while(it.hasNext())
+				{
+					Expectation expectation = it.next();
+					try
+					{
+						progress |= expectation.poll(now);
+					}
+					catch(RuntimeException e)
+					{
+						expectation.Result.completeExceptionally(e);
+					}
+					if(expectation.Result.isDone())
+					{
+						it.remove();
+						Load.decrementAndGet();
+					}
+				}
+
+				if(progress)
+				{
+					idleSweeps = 0;
+					park = MIN_PARK_NANOS;
+					lastActivity = now;
+				}
+				else if(++idleSweeps < SPIN_SWEEPS)
+					Thread.yield();
+				else
+				{
+					LockSupport.parkNanos(this, park);
+					park = Math.min(now - lastActivity >= IDLE_AFTER_NANOS ? IDLE_PARK_NANOS : MAX_PARK_NANOS, park * 2);
+				}
+			}
+
+			//fail anything left over
+			Expectation left;
+			while((left = Incoming.poll()) != null)
+				Active.add(left);
+			for(Expectation expectation : Active)
+				expectation.Result.completeExceptionally(new IOException("Expect engine shut down"));
+			Active.clear();
+		}
+
+		void shutdown() {
+			Running = false;
+			LockSupport.unpark(this);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.slicify;
+
+/**
+ * The outcome of an expect: which of the expected strings or patterns was seen, its captured groups, and the
+ * output captured up to it.
+ *
+ * @author slicify
+ *
+ */
+public final class ExpectResult {
+
+	private final int Index;
+	private final String[] Groups;
+	private final String Captured;
+	private final long Dropped;
+
+	/**
+	 * @param index
+	 * @param groups Matched text followed by the captured groups, null on timeout
+	 * @param captured
+	 * @param dropped
+	 */
+	ExpectResult(int index, String[] groups, String captured, long dropped) {
+		Index = index;
+		Groups = groups;
+		Captured = captured;
+		Dropped = dropped;
+	}
+
+	/**
+	 * @return Position of the matched string or pattern in the list passed to expect, or -1 if the expect timed out
+	 */
+	public int getIndex() {
+		return Index;
+	}
+
+	public boolean isTimeout() {
+		return Index < 0;
+	}
+
+	/**
+	 * @return The text that matched, or null on timeout
+	 */
+	public String getMatch() {
+		return Groups == null ? null : Groups[0];
+	}
+
+	/**
+	 * @param group Group number, as for java.util.regex.Matcher.group(int). Group 0 is the whole match.
+	 * @return Text captured by the group, or null if the group didn't take part in the match
+	 * @throws IndexOutOfBoundsException If there is no such group
+	 */
+	public String getGroup(int group) {
+		if(Groups == null || group < 0 || group >= Groups.length)
+			throw new IndexOutOfBoundsException("No group " + group);
+		return Groups[group];
+	}
+
+	/**
+	 * @return Number of capturing groups in the matched pattern (0 for literals and timeouts)
+	 */
+	public int getGroupCount() {
+		return Groups == null ? 0 : Groups.length - 1;
+	}
+
+	/**
+	 * @return Output read up to and including the match ("" if the expect wasn't buffering)
+	 */
+	public String getCaptured() {
+		return Captured;
+	}
+
+	/**
+	 * @return Number of characters dropped from the start of getCaptured() because the capture limit was reached
+	 */
+	public long getDroppedCount() {
+		return Dropped;
+	}
+
+	@Override
+	public String toString() {
+		return "ExpectResult[" + (isTimeout() ? "timeout" : Index + ":" + getMatch()) + ", captured=" + Captured.length() +
+				(Dropped > 0 ? ", dropped=" + Dropped : "") + "]";
+	}
+}
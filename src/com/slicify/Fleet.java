@@ -0,0 +1,71 @@
+package com.slicify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The result of FleetProvisioner.provision(): the nodes that were booked and are ready to use (with their
+ * SSH credentials), plus the reason for any nodes that couldn't be booked.
+ *
+ * @author slicify
+ *
+ */
+public final class Fleet {
+
+	private final FleetSpec Spec;
+	private final List<BookingInfo> Nodes;
+	private final List<Throwable> Failures;
+	private final AsyncSlicifyNode Node;
+
+	Fleet(FleetSpec spec, List<BookingInfo> nodes, List<Throwable> failures, AsyncSlicifyNode node) {
+		Spec = spec;
+		Nodes = Collections.unmodifiableList(new ArrayList<BookingInfo>(nodes));
+		Failures = Collections.unmodifiableList(new ArrayList<Throwable>(failures));
+		Node = node;
+	}
+
+	public FleetSpec getSpec() {
+		return Spec;
+	}
+
+	/**
+	 * @return Ready nodes. Use BookingInfo.getPassword() with your slicify username to log in over SSH.
+	 */
+	public List<BookingInfo> getNodes() {
+		return Nodes;
+	}
+
+	/**
+	 * @return Why each missing node couldn't be booked (empty if the whole fleet was booked)
+	 */
+	public List<Throwable> getFailures() {
+		return Failures;
+	}
+
+	/**
+	 * @return True if every node in the spec was booked
+	 */
+	public boolean isComplete() {
+		return Nodes.size() == Spec.getNodeCount();
+	}
+
+	/**
+	 * Delete the bids for every node in the fleet, which cancels the bookings.
+	 *
+	 * @return Completes once every bid has been deleted
+	 */
+	public CompletableFuture<Void> release()
+	{
+		List<CompletableFuture<Void>> deletes = new ArrayList<CompletableFuture<Void>>();
+		for(BookingInfo node : Nodes)
+			deletes.add(Node.deleteBid(node.getBidID()));
+		return CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[deletes.size()]));
+	}
+
+	@Override
+	public String toString() {
+		return "Fleet[" + Nodes.size() + "/" + Spec.getNodeCount() + " ready, " + Failures.size() + " failed]";
+	}
+}
@@ -0,0 +1,285 @@
+package com.slicify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Books a whole fleet of nodes in parallel. Every node gets its own bid straight away, and each bid is then
+ * driven through getBookingID -> BookingWatcher -> getBookingInfo independently, so the fleet is ready as soon
+ * as the slowest single node is, rather than after the sum of them.
+ *
+ * When getBookingID returns -1 (no machines available) the booking is checked again a few times, as a machine
+ * may free up while the bid is open. If there is still no machine, or the call returns -2 (error), or the
+ * booking is closed before it is ready, the bid is deleted and the node is re-bid, up to a maximum number of
+ * attempts per node.
+ *
+ * Example use:
+ *
+ *     FleetProvisioner provisioner = new FleetProvisioner(node);
+ *     Fleet fleet = provisioner.provision(new FleetSpec(40, 1, 0.03, 64, 5, "")).get();
+ *     for(BookingInfo info : fleet.getNodes())
+ *         sshClient.connect(username, info.getPassword());
+ *
+ * @author slicify
+ *
+ */
+public class FleetProvisioner {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	public static final int DEFAULT_NO_MACHINE_CHECKS = 3;
+	public static final long DEFAULT_RETRY_DELAY = 10000;
+
+	private final AsyncSlicifyNode Node;
+	private final BookingWatcher Watcher;
+	private final boolean OwnsWatcher;
+	private final ScheduledExecutorService Scheduler;
+
+	private volatile int MaxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private volatile int NoMachineChecks = DEFAULT_NO_MACHINE_CHECKS;
+	private volatile long RetryDelay = DEFAULT_RETRY_DELAY;
+
+	public FleetProvisioner(SlicifyNode node) {
+		this(new AsyncSlicifyNode(node));
+	}
+
+	public FleetProvisioner(AsyncSlicifyNode node) {
+		this(node, new BookingWatcher(node), true);
+	}
+
+	/**
+	 * @param node Async node used for the booking calls
+	 * @param watcher Watcher used to wait for bookings to become ready. Left running by shutdown().
+	 */
+	public FleetProvisioner(AsyncSlicifyNode node, BookingWatcher watcher) {
+		this(node, watcher, false);
+	}
+
+	private FleetProvisioner(AsyncSlicifyNode node, BookingWatcher watcher, boolean ownsWatcher) {
+		Node = node;
+		Watcher = watcher;
+		OwnsWatcher = ownsWatcher;
+		Scheduler = Executors.newSingleThreadScheduledExecutor(new AsyncSlicifyNode.DaemonThreadFactory("slicify-fleet"));
+	}
+
+	/**
+	 * Maximum number of bids made for each node before giving up on it.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if(maxAttempts <= 0)
+			throw new IllegalArgumentException("Max attempts must be greater than 0");
+		MaxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Number of extra getBookingID checks made when no machine is available, before the bid is replaced.
+	 */
+	public void setNoMachineChecks(int checks) {
+		if(checks < 0)
+			throw new IllegalArgumentException("Checks must be >= 0");
+		NoMachineChecks = checks;
+	}
+
+	/**
+	 * Delay before re-checking a bid with no machine, or re-bidding after a failure.
+	 */
+	public void setRetryDelay(long delayms) {
+		if(delayms < 0)
+			throw new IllegalArgumentException("Delay must be >= 0");
+		RetryDelay = delayms;
+	}
+
+	/**
+	 * Book the fleet.
+	 *
+	 * @param spec
+	 * @return Completes once every node is either ready or has used up its attempts. Check Fleet.isComplete().
+	 */
+	public CompletableFuture<Fleet> provision(FleetSpec spec)
+	{
+		return provision(spec, null);
+	}
+
+	/**
+	 * Book the fleet, notifying the callback as each node becomes ready so work can start on it straight away.
+	 *
+	 * @param spec
+	 * @param onReady Called once per ready node (can be null). Runs on an executor thread, so should not block.
+	 * @return Completes once every node is either ready or has used up its attempts. Check Fleet.isComplete().
+	 */
+	public CompletableFuture<Fleet> provision(final FleetSpec spec, final Consumer<BookingInfo> onReady)
+	{
+		final List<Slot> slots = new ArrayList<Slot>(spec.getNodeCount());
+		CompletableFuture<?>[] results = new CompletableFuture<?>[spec.getNodeCount()];
+		for(int i=0; i<spec.getNodeCount(); i++)
+		{
+			Slot slot = new Slot(spec, onReady);
+			slots.add(slot);
+			results[i] = slot.Result;
+			slot.bid();
+		}
+
+		return CompletableFuture.allOf(results).handle((v, e) -> {
+			List<BookingInfo> nodes = new ArrayList<BookingInfo>();
+			List<Throwable> failures = new ArrayList<Throwable>();
+			for(Slot slot : slots)
+			{
+				try
+				{
+					nodes.add(slot.Result.join());
+				}
+				catch(CompletionException | CancellationException ce)
+				{
+					//e.g. a watch cancelled by BookingWatcher.unwatch() - the other slots' nodes are still kept
+					failures.add(unwrap(ce));
+				}
+			}
+			return new Fleet(spec, nodes, failures, Node);
+		});
+	}
+
+	/**
+	 * Stop the retry scheduler, and the watcher if this provisioner created it. Provisioning still in progress
+	 * won't be retried any more.
+	 */
+	public void shutdown()
+	{
+		Scheduler.shutdownNow();
+		if(OwnsWatcher)
+			Watcher.shutdown();
+	}
+
+	private static Throwable unwrap(Throwable e)
+	{
+		while(e instanceof CompletionException && e.getCause() != null)
+			e = e.getCause();
+		return e;
+	}
+
+	/**
+	 * Booking state for one node of the fleet. Only one step of a slot runs at a time, as each step is
+	 * started from the completion of the previous one.
+	 */
+	private class Slot {
+
+		final FleetSpec Spec;
+		final Consumer<BookingInfo> OnReady;
+		final CompletableFuture<BookingInfo> Result = new CompletableFuture<BookingInfo>();
+
+		volatile int Attempts = 0;
+		volatile int NoMachinePolls = 0;
+		volatile int BidID = -1;
+
+		Slot(FleetSpec spec, Consumer<BookingInfo> onReady) {
+			Spec = spec;
+			OnReady = onReady;
+		}
+
+		void bid()
+		{
+			Attempts++;
+			NoMachinePolls = 0;
+			try
+			{
+				Node.addBid(Spec.getMinRam(), Spec.getMaxPrice(), Spec.getBits(), Spec.getMinEcu(), Spec.getCountry())
+					.whenComplete((bidID, e) -> {
+						if(e != null)
+							retry(e);
+						else if(bidID < 0)
+							retry(new Exception("Error thrown from booking call: " + bidID));
+						else
+						{
+							BidID = bidID;
+							checkBooking();
+						}
+					});
+			}
+			catch(RuntimeException e)
+			{
+				retry(e);
+			}
+		}
+
+		void checkBooking()
+		{
+			Node.getBookingID(BidID).whenComplete((bookingID, e) -> {
+				if(e != null)
+					retry(e);
+				else if(bookingID == -1)
+				{
+					//bid stays open, so a machine may still become available
+					if(NoMachinePolls++ < NoMachineChecks)
+						schedule(() -> checkBooking());
+					else
+						retry(new Exception("No machines available for bid " + BidID));
+				}
+				else if(bookingID < 0)
+					retry(new Exception("getBookingID returned an error for bid " + BidID + ": " + bookingID));
+				else
+				{
+					try
+					{
+						Watcher.watch(bookingID)
+							.thenCompose(id -> Node.getBookingInfo(id))
+							.whenComplete((info, e2) -> {
+								if(e2 != null)
+									retry(unwrap(e2));
+								else
+								{
+									Result.complete(info);
+									if(OnReady != null)
+									{
+										try { OnReady.accept(info); } catch(RuntimeException e3) { /* ignore callback faults */ }
+									}
+								}
+							});
+					}
+					catch(RuntimeException e2)
+					{
+						//e.g. the watcher has been shut down - thrown here it would be lost in this callback's future
+						retry(e2);
+					}
+				}
+			});
+		}
+
+		void retry(Throwable cause)
+		{
+			//give up the current bid, so we aren't charged for a booking we wont use
+			if(BidID >= 0)
+			{
+				Node.deleteBid(BidID);
+				BidID = -1;
+			}
+
+			if(Attempts >= MaxAttempts)
+				Result.completeExceptionally(unwrap(cause));
+			else
+				schedule(() -> bid());
+		}
+
+		void schedule(Runnable step)
+		{
+			try
+			{
+				Scheduler.schedule(step, RetryDelay, TimeUnit.MILLISECONDS);
+			}
+			catch(RuntimeException e)
+			{
+				//scheduler has been shut down
+				if(BidID >= 0)
+				{
+					Node.deleteBid(BidID);
+					BidID = -1;
+				}
+				Result.completeExceptionally(e);
+			}
+		}
+	}
+}
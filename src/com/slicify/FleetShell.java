@@ -0,0 +1,176 @@
+package com.slicify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs the same command on many connected NodeSSHClients in parallel, and collects the output and exit status
+ * from each node. Commands are sent without a thread per node (the ExpectEngine watches all the shells), so a
+ * fleet-wide command takes about as long as the slowest node rather than the sum of them.
+ *
+ * Example use:
+ *
+ *     FleetShell fleet = new FleetShell(clients, 20);
+ *     fleet.runAsync("sudo apt-get -y install openjdk-7-jre", 600000,
+ *         result -> System.out.println(result.getClient() + " exit=" + result.getExitStatus()));
+ *
+ * @author slicify
+ *
+ */
+public class FleetShell {
+
+	public static final int DEFAULT_CONCURRENCY = 32;
+
+	//starting a node can block (writing to the shell, or reconnecting), so it is kept off the engine threads
+	private static final ExecutorService Starter = Executors.newCachedThreadPool(new AsyncSlicifyNode.DaemonThreadFactory("slicify-fleet"));
+
+	private final List<NodeSSHClient> Clients;
+	private final int Concurrency;
+	private final Executor Executor;
+
+	public FleetShell(Collection<NodeSSHClient> clients) {
+		this(clients, DEFAULT_CONCURRENCY);
+	}
+
+	/**
+	 * @param clients Connected clients to run commands on
+	 * @param concurrency Maximum number of nodes running the command at once
+	 */
+	public FleetShell(Collection<NodeSSHClient> clients, int concurrency) {
+		this(clients, concurrency, Starter);
+	}
+
+	/**
+	 * @param clients Connected clients to run commands on
+	 * @param concurrency Maximum number of nodes running the command at once
+	 * @param executor Starts the next node as each one finishes, and runs the onResult callbacks
+	 */
+	public FleetShell(Collection<NodeSSHClient> clients, int concurrency, Executor executor) {
+		if(concurrency <= 0)
+			throw new IllegalArgumentException("Concurrency must be greater than 0");
+		if(executor == null)
+			throw new IllegalArgumentException("Executor can't be null");
+		Clients = Collections.unmodifiableList(new ArrayList<NodeSSHClient>(clients));
+		Concurrency = concurrency;
+		Executor = executor;
+	}
+
+	public List<NodeSSHClient> getClients() {
+		return Clients;
+	}
+
+	/**
+	 * Run the command on every node and wait for them all to finish.
+	 *
+	 * @param command
+	 * @param timeoutms Per-node timeout in milliseconds, 0 for infinite
+	 * @return One result per client, in the same order as the clients
+	 */
+	public List<CommandResult> run(String command, int timeoutms)
+	{
+		return runAsync(command, timeoutms, null).join();
+	}
+
+	/**
+	 * Run the command on every node, at most concurrency at a time.
+	 *
+	 * @param command
+	 * @param timeoutms Per-node timeout in milliseconds, 0 for infinite
+	 * @param onResult Called with each node's result as soon as it finishes (can be null). Runs on the
+	 * FleetShell's executor.
+	 * @return Completes with one result per client, in the same order as the clients. Nodes that fail or time out
+	 * have a result with getError() or isTimeout() set - the future itself doesn't fail.
+	 */
+	public CompletableFuture<List<CommandResult>> runAsync(String command, int timeoutms, Consumer<CommandResult> onResult)
+	{
+		Run run = new Run(command, timeoutms, onResult);
+		if(Clients.isEmpty())
+			run.All.complete(Collections.<CommandResult>emptyList());
+		for(int i=0; i<Math.min(Concurrency, Clients.size()); i++)
+			run.startNext();
+		return run.All;
+	}
+
+	/**
+	 * One fleet-wide command. Each finished node starts the next waiting one.
+	 */
+	private class Run {
+
+		final String Command;
+		final int Timeout;
+		final Consumer<CommandResult> OnResult;
+		final CommandResult[] Results = new CommandResult[Clients.size()];
+		final AtomicInteger Next = new AtomicInteger();
+		final AtomicInteger Remaining = new AtomicInteger(Clients.size());
+		final CompletableFuture<List<CommandResult>> All = new CompletableFuture<List<CommandResult>>();
+
+		Run(String command, int timeoutms, Consumer<CommandResult> onResult) {
+			Command = command;
+			Timeout = timeoutms;
+			OnResult = onResult;
+		}
+
+		void startNext()
+		{
+			final int index = Next.getAndIncrement();
+			if(index >= Results.length)
+				return;
+
+			final NodeSSHClient client = Clients.get(index);
+			final long start = System.currentTimeMillis();
+			CompletableFuture<CommandResult> result;
+			try
+			{
+				result = client.runAsync(Command, Timeout);
+			}
+			catch(IOException | RuntimeException e)
+			{
+				result = new CompletableFuture<CommandResult>();
+				result.completeExceptionally(e);
+			}
+
+			//finish on the executor, as the next node's start may block the engine thread that completed this one
+			result.handleAsync((r, e) -> {
+				if(r == null)
+				{
+					Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+					r = new CommandResult(client, Command, "", -1, false, cause, System.currentTimeMillis() - start);
+				}
+				finished(index, r);
+				return null;
+			}, Executor);
+		}
+
+		void finished(int index, CommandResult result)
+		{
+			Results[index] = result;
+			if(OnResult != null)
+			{
+				try
+				{
+					OnResult.accept(result);
+				}
+				catch(RuntimeException e)
+				{
+					//a faulty callback shouldn't stop the rest of the fleet
+				}
+			}
+
+			if(Remaining.decrementAndGet() == 0)
+				All.complete(Collections.unmodifiableList(Arrays.asList(Results)));
+			else
+				startNext();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.slicify;
+
+/**
+ * Describes a fleet of identical nodes to book, e.g. "40 nodes, >= 5 ECU, 64-bit, <= $0.03/h". The machine
+ * criteria are the same as for SlicifyNode.addBid().
+ *
+ * @author slicify
+ *
+ */
+public final class FleetSpec {
+
+	private final int NodeCount;
+	private final int MinRam;
+	private final double MaxPrice;
+	private final int Bits;
+	private final int MinEcu;
+	private final String Country;
+
+	/**
+	 * @param nodeCount Number of nodes to book
+	 * @param minRam Minimum RAM (mb)
+	 * @param maxPrice Maximum price per node ($/hour)
+	 * @param bits Set to 0 if no preference for 32 or 64 bit
+	 * @param minEcu Minimum ECU benchmark
+	 * @param country Leave blank if no country filter needed.
+	 * @throws IllegalArgumentException If the criteria are out of range
+	 */
+	public FleetSpec(int nodeCount, int minRam, double maxPrice, int bits, int minEcu, String country) {
+		if(nodeCount <= 0)
+			throw new IllegalArgumentException("Node count must be greater than 0");
+		SlicifyNode.validateBid(minRam, maxPrice, bits, minEcu);
+
+		NodeCount = nodeCount;
+		MinRam = minRam;
+		MaxPrice = maxPrice;
+		Bits = bits;
+		MinEcu = minEcu;
+		Country = country == null ? "" : country;
+	}
+
+	public int getNodeCount() {
+		return NodeCount;
+	}
+
+	public int getMinRam() {
+		return MinRam;
+	}
+
+	public double getMaxPrice() {
+		return MaxPrice;
+	}
+
+	public int getBits() {
+		return Bits;
+	}
+
+	public int getMinEcu() {
+		return MinEcu;
+	}
+
+	public String getCountry() {
+		return Country;
+	}
+
+	@Override
+	public String toString() {
+		return "FleetSpec[" + NodeCount + " nodes, ecu>=" + MinEcu + ", bits=" + Bits + ", price<=" + MaxPrice +
+				", ram>=" + MinRam + (Country.length() > 0 ? ", country=" + Country : "") + "]";
+	}
+}
@@ -0,0 +1,313 @@
+package com.slicify;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javax.net.SocketFactory;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.userauth.UserAuthException;
+
+import com.slicify.NodeConnectException.Phase;
+
+/**
+ * Connects and logs in to the gateway one phase at a time, each with its own timeout. The TCP connect uses the
+ * socket's connect timeout. sshj has no timeout on some of the other blocking calls (e.g. reading the server's
+ * version line), so for those a watchdog closes the socket or transport when time runs out, which makes the
+ * blocked call fail straight away.
+ *
+ * @author slicify
+ *
+ */
+final class Handshake {
+
+	private static final ScheduledExecutorService Watchdog =
+			Executors.newSingleThreadScheduledExecutor(new AsyncSlicifyNode.DaemonThreadFactory("slicify-connect"));
+
+	//runs steps on shared transports, so the caller can stop waiting without disconnecting the transport
+	private static final ExecutorService Steps = Executors.newCachedThreadPool(new AsyncSlicifyNode.DaemonThreadFactory("slicify-shell"));
+
+	interface Step<T> {
+		T run() throws IOException;
+	}
+
+	private Handshake() {
+	}
+
+	/**
+	 * Connect a new transport, verify the host key and log in.
+	 *
+	 * @param username
+	 * @param bookingPassword
+	 * @param timeouts
+	 * @param keepAlive Keep-alive interval in seconds, 0 for none
+	 * @return
+	 * @throws NodeConnectException
+	 */
+	static SSHClient open(String username, String bookingPassword, ConnectTimeouts timeouts, int keepAlive) throws NodeConnectException
+	{
+		return open(NodeSSHClient.SERVER, SSHClient.DEFAULT_PORT, username, bookingPassword, timeouts, keepAlive);
+	}
+
+	/**
+	 * Connect a new transport to the gateway at the given address, verify the host key and log in.
+	 */
+	static SSHClient open(String host, int port, String username, String bookingPassword, ConnectTimeouts timeouts, int keepAlive) throws NodeConnectException
+	{
+		final SSHClient ssh = new SSHClient();
+		ssh.addHostKeyVerifier(NodeSSHClient.HOST_KEY);
+		ssh.setConnectTimeout(timeouts.getConnect());
+		final KexSocketFactory sockets = new KexSocketFactory(timeouts.getKeyExchange());
+		ssh.setSocketFactory(sockets);
+
+		try
+		{
+			try
+			{
+				ssh.connect(host, port);
+			}
+			catch(IOException | RuntimeException e)
+			{
+				if(sockets.Socket == null || !sockets.Socket.isConnected())
+				{
+					boolean timeout = e instanceof SocketTimeoutException;
+					throw new NodeConnectException(Phase.CONNECT, timeout, (timeout ? "Timed out connecting to " : "Couldn't connect to ")
+							+ host + ": " + e.getMessage(), e);
+				}
+				throw new NodeConnectException(Phase.KEY_EXCHANGE, sockets.TimedOut.get(), sockets.TimedOut.get() ?
+						"Timed out in key exchange with " + host : "Key exchange failed: " + e.getMessage(), e);
+			}
+			finally
+			{
+				sockets.connected();
+			}
+			if(sockets.TimedOut.get())
+				throw new NodeConnectException(Phase.KEY_EXCHANGE, true, "Timed out in key exchange with " + host, null);
+
+			ssh.getTransport().setHeartbeatInterval(keepAlive);
+			run(Phase.AUTHENTICATE, timeouts.getAuthenticate(), ssh, () -> {
+				ssh.authPassword(username, bookingPassword);
+				return null;
+			});
+			return ssh;
+		}
+		catch(NodeConnectException e)
+		{
+			disconnect(ssh);
+			throw e;
+		}
+	}
+
+	/**
+	 * Run one phase, disconnecting the transport if it takes longer than the timeout.
+	 *
+	 * @param phase
+	 * @param timeoutms 0 for no timeout
+	 * @param ssh Disconnected if the phase times out
+	 * @param step
+	 * @return
+	 * @throws NodeConnectException
+	 */
+	static <T> T run(Phase phase, int timeoutms, final SSHClient ssh, Step<T> step) throws NodeConnectException
+	{
+		final AtomicBoolean timedOut = new AtomicBoolean();
+		ScheduledFuture<?> watchdog = null;
+		if(timeoutms > 0)
+		{
+			watchdog = Watchdog.schedule(() -> {
+				timedOut.set(true);
+				disconnect(ssh);
+			}, timeoutms, TimeUnit.MILLISECONDS);
+		}
+
+		try
+		{
+			T result = step.run();
+			if(watchdog != null && !watchdog.cancel(false) && timedOut.get())
+				throw new NodeConnectException(phase, true, "Timed out after " + timeoutms + "ms in " + phase, null);
+			return result;
+		}
+		catch(UserAuthException e)
+		{
+			if(watchdog != null)
+				watchdog.cancel(false);
+			throw new NodeConnectException(phase, timedOut.get(), !timedOut.get(), timedOut.get() ? "Timed out after " + timeoutms + "ms in " + phase :
+				"Login rejected - check the booking is still open", e);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			if(watchdog != null)
+				watchdog.cancel(false);
+			throw new NodeConnectException(phase, timedOut.get(), timedOut.get() ? "Timed out after " + timeoutms + "ms in " + phase :
+				phase + " failed: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Run one phase on a transport that other shells are using. If the phase takes longer than the timeout it is
+	 * abandoned, rather than the transport being disconnected - sshj's own channel timeout ends the step, and
+	 * anything it opens after giving up is handed to abandon.
+	 *
+	 * @param phase
+	 * @param timeoutms 0 for no timeout
+	 * @param step
+	 * @param abandon Cleans up the result of a step that finishes after the timeout
+	 * @return
+	 * @throws NodeConnectException
+	 */
+	static <T> T runShared(Phase phase, int timeoutms, Step<T> step, Consumer<T> abandon) throws NodeConnectException
+	{
+		if(timeoutms <= 0)
+			return run(phase, 0, null, step);
+
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		Steps.execute(() -> {
+			try
+			{
+				result.complete(step.run());
+			}
+			catch(Throwable e)
+			{
+				result.completeExceptionally(e);
+			}
+		});
+
+		try
+		{
+			return result.get(timeoutms, TimeUnit.MILLISECONDS);
+		}
+		catch(TimeoutException e)
+		{
+			result.thenAccept(abandon);
+			throw new NodeConnectException(phase, true, "Timed out after " + timeoutms + "ms in " + phase, null);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			result.thenAccept(abandon);
+			throw new NodeConnectException(phase, false, "Interrupted in " + phase, e);
+		}
+		catch(ExecutionException e)
+		{
+			throw new NodeConnectException(phase, false, phase + " failed: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Close a session without disturbing the transport it was opened on.
+	 */
+	static void close(Session session)
+	{
+		try
+		{
+			session.close();
+		}
+		catch(IOException | RuntimeException e)
+		{
+			//already closed, or the transport has gone
+		}
+	}
+
+	static void disconnect(SSHClient ssh)
+	{
+		try
+		{
+			ssh.disconnect();
+		}
+		catch(IOException | RuntimeException e)
+		{
+			//already gone, or never connected
+		}
+	}
+
+	/**
+	 * Hands sshj a socket that starts the key exchange watchdog once the TCP connect is done.
+	 */
+	private static class KexSocketFactory extends SocketFactory {
+
+		final int Timeout;
+		final AtomicBoolean TimedOut = new AtomicBoolean();
+		volatile Socket Socket = null;
+		volatile ScheduledFuture<?> Watchdog = null;
+
+		KexSocketFactory(int timeoutms) {
+			Timeout = timeoutms;
+		}
+
+		/**
+		 * Key exchange is over (or failed), so stop the watchdog.
+		 */
+		void connected() {
+			ScheduledFuture<?> watchdog = Watchdog;
+			if(watchdog != null)
+				watchdog.cancel(false);
+		}
+
+		@Override
+		public Socket createSocket() {
+			Socket = new Socket() {
+				@Override
+				public void connect(SocketAddress endpoint, int timeout) throws IOException {
+					super.connect(endpoint, timeout);
+					if(Timeout > 0)
+					{
+						final Socket socket = this;
+						Watchdog = Handshake.Watchdog.schedule(() -> {
+							TimedOut.set(true);
+							try
+							{
+								socket.close();
+							}
+							catch(IOException e)
+							{
+								//already closed
+							}
+						}, Timeout, TimeUnit.MILLISECONDS);
+					}
+				}
+			};
+			return Socket;
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return connect(new InetSocketAddress(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return connect(new InetSocketAddress(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return connect(new InetSocketAddress(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return connect(new InetSocketAddress(address, port));
+		}
+
+		private Socket connect(SocketAddress address) throws IOException {
+			Socket socket = createSocket();
+			socket.connect(address, 0);
+			return socket;
+		}
+	}
+}
@@ -2,13 +2,8 @@ package com.slicify;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Scanner;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
 import net.schmizz.sshj.common.Base64;
 
 import org.w3c.dom.Document;
@@ -19,18 +14,26 @@ public class HttpsGet {
 	public Object Result;
 	public boolean ParseOnQuery = false;
 	public String ServiceURL = null;
-	public String Username = null;
-	public String Password = null;
+	public volatile String Username = null;
+	public volatile String Password = null;
 	
 	public Document XMLDoc = null;
+	public volatile HttpsTransport Transport;
 
 	public HttpsGet(String serviceUrl) {
+		this(serviceUrl, PooledHttpsTransport.getShared());
+	}
+
+	public HttpsGet(String serviceUrl, HttpsTransport transport) {
 		ServiceURL = serviceUrl;
+		Transport = transport;
 	}
 
 	/**
 	 * Query the web service at the configured ServiceURL, with the passed operation and URL parameters.
-	 * Populates the XMLDoc with the returned XML document
+	 * Populates the XMLDoc with the returned XML document.
+	 * 
+	 * Not thread safe, as the result is stored in XMLDoc - use execute() when sharing an instance between threads.
 	 *  
 	 * @param operation
 	 * @param urlParameters
@@ -38,55 +41,106 @@ public class HttpsGet {
 	 */
 	public void query(String operation, String urlParameters) throws Exception
 	{	
-		if(Username == null || Username.length() <= 0 || Password == null || Password.length() <= 0)
-			throw new Exception("Must setUsername() / setPassword() before calling any query");
-		
-		URL url;
-		HttpURLConnection connection = null;
+		HttpsResponse response = open(operation, urlParameters);
 		try
 		{
-			//open target url
-			//String targetURL = ServiceURL + "/" + operation;
-			String targetURL = ServiceURL + "/" + operation;
-			//System.out.println("Connecting to " + targetURL + " : " + urlParameters);
-
-			if(!ServiceURL.startsWith("https://"))
-				throw new IllegalArgumentException("Can only be used with https connections - otherwise password is sent plain text");
-			
-			url = new URL(targetURL + "?" + urlParameters);
-			
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("GET");
-			
-			connection.setUseCaches(false);
-			connection.setDoInput(true);
-			connection.setDoOutput(true);
-	
-			//add basic authentication header			
-			String encoded = Base64.encodeBytes((Username+":"+Password).getBytes()); 
-			connection.setRequestProperty("Authorization", "Basic "+encoded);
-			connection.setConnectTimeout(120000);
-			connection.connect();
-	 
-			//check HTTP response code
-			int response = connection.getResponseCode();
-			if(response != 200)
-				throw new IOException("HTTP response code error reading from web service: " + response);
-
 			if(ParseOnQuery)
 			{
 				//parse response using xml DOM parser to get the response booking ID
-				DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-				DocumentBuilder db = dbf.newDocumentBuilder(); 
-				XMLDoc = db.parse(connection.getInputStream());
+				XMLDoc = ReplyDecoder.parseDocument(response.getInputStream());
 			}
 		}
 		finally
 		{
-			if (connection != null) {
-				connection.disconnect();
+			//hand the connection back to the transport for reuse
+			response.close();
+		}
+	}
+
+	/**
+	 * Query the web service at the configured ServiceURL, with the passed operation and URL parameters, and
+	 * return the parsed reply. Safe to call from multiple threads at once - each call gets its own reply.
+	 * 
+	 * @param operation
+	 * @param urlParameters
+	 * @param parse Set to false if the caller doesnt need the reply (null is returned)
+	 * @return
+	 * @throws Exception
+	 */
+	public ServiceReply execute(String operation, String urlParameters, boolean parse) throws Exception
+	{
+		return execute(operation, urlParameters, parse ? ReplyDecoder.all() : null);
+	}
+
+	/**
+	 * Query the web service, and stream the reply through the passed handler, which only needs to pull out the
+	 * fields it wants. Safe to call from multiple threads at once.
+	 * 
+	 * @param operation
+	 * @param urlParameters
+	 * @param handler Can be null if the caller doesnt need the reply (null is returned)
+	 * @return The value decoded by the handler
+	 * @throws Exception
+	 */
+	public <T> T execute(String operation, String urlParameters, ReplyHandler<T> handler) throws Exception
+	{
+		HttpsResponse response = open(operation, urlParameters);
+		try
+		{
+			if(handler == null)
+				return null;
+			return ReplyDecoder.decode(response.getInputStream(), handler);
+		}
+		finally
+		{
+			//hand the connection back to the transport for reuse
+			response.close();
+		}
+	}
+
+	/**
+	 * Send the query and check the response code. The caller must close the returned response.
+	 */
+	HttpsResponse open(String operation, String urlParameters) throws Exception
+	{
+		//read the credentials once, so a concurrent setUsername/setPassword cant give us a mixed pair
+		String username = Username;
+		String password = Password;
+		if(username == null || username.length() <= 0 || password == null || password.length() <= 0)
+			throw new Exception("Must setUsername() / setPassword() before calling any query");
+		
+		//open target url
+		String targetURL = ServiceURL + "/" + operation;
+		//System.out.println("Connecting to " + targetURL + " : " + urlParameters);
+
+		if(!ServiceURL.startsWith("https://"))
+			throw new IllegalArgumentException("Can only be used with https connections - otherwise password is sent plain text");
+
+		//add basic authentication header
+		String encoded = Base64.encodeBytes((username+":"+password).getBytes());
+		HttpsResponse response = Transport.get(targetURL + "?" + urlParameters, "Basic "+encoded);
+
+		try
+		{
+			//check HTTP response code
+			int responseCode = response.getStatusCode();
+			if(responseCode != 200)
+				throw new IOException("HTTP response code error reading from web service: " + responseCode);
+			return response;
+		}
+		catch(IOException | RuntimeException e)
+		{
+			//hand the connection back rather than leak it
+			try
+			{
+				response.close();
 			}
-		}		
+			catch(IOException e2)
+			{
+				e.addSuppressed(e2);
+			}
+			throw e;
+		}
 	}
 	
 	/**
@@ -1,12 +1,6 @@
 package com.slicify;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import net.schmizz.sshj.common.Base64;
 
@@ -29,9 +23,15 @@ public class HttpsPost {
 	public String Password = null;
 	
 	public Document XMLDoc = null;
+	public HttpsTransport Transport;
 
 	public HttpsPost(String serviceUrl) {
+		this(serviceUrl, PooledHttpsTransport.getShared());
+	}
+
+	public HttpsPost(String serviceUrl, HttpsTransport transport) {
 		ServiceURL = serviceUrl;
+		Transport = transport;
 	}
 
 	/**
@@ -47,56 +47,33 @@ public class HttpsPost {
 		if(Username == null || Username.length() <= 0 || Password == null || Password.length() <= 0)
 			throw new Exception("Must setUsername() / setPassword() before calling any query");
 		
-		URL url;
-		HttpURLConnection connection = null;
-		try
-		{
-			//open target url
-			//String targetURL = ServiceURL + "/" + operation;
-			String targetURL = ServiceURL + "/" + operation;
-			//System.out.println("Connecting to " + targetURL + " : " + urlParameters);
+		//open target url
+		String targetURL = ServiceURL + "/" + operation;
+		//System.out.println("Connecting to " + targetURL + " : " + urlParameters);
 
-			if(!ServiceURL.startsWith("https://"))
-				throw new IllegalArgumentException("Can only be used with https connections - otherwise password is sent plain text");
-			
-			url = new URL(targetURL);
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("POST");
-			connection.setRequestProperty("Content-Type","application/x-www-form-urlencoded");
-			connection.setRequestProperty("Content-Length","" + Integer.toString(urlParameters.getBytes().length));
-			connection.setRequestProperty("Content-Language", "en-US");
-			connection.setUseCaches(false);
-			connection.setDoInput(true);
-			connection.setDoOutput(true);
-	
-			//add basic authentication header			
-			String encoded = Base64.encodeBytes((Username+":"+Password).getBytes()); 
-			connection.setRequestProperty("Authorization", "Basic "+encoded);
-	 
-			// Send request
-			DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-			wr.writeBytes(urlParameters);
-			wr.flush();
-			wr.close();
+		if(!ServiceURL.startsWith("https://"))
+			throw new IllegalArgumentException("Can only be used with https connections - otherwise password is sent plain text");
 
+		//add basic authentication header
+		String encoded = Base64.encodeBytes((Username+":"+Password).getBytes());
+		HttpsResponse response = Transport.post(targetURL, "Basic "+encoded, urlParameters);
+		try
+		{
 			//check HTTP response code
-			int response = connection.getResponseCode();
-			if(response != 200)
-				throw new IOException("HTTP response code error reading from web service: " + response);
+			int responseCode = response.getStatusCode();
+			if(responseCode != 200)
+				throw new IOException("HTTP response code error reading from web service: " + responseCode);
 
 			if(ParseOnQuery)
 			{
 				//parse response using xml DOM parser to get the response booking ID
-				DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-				DocumentBuilder db = dbf.newDocumentBuilder(); 
-				XMLDoc = db.parse(connection.getInputStream());
+				XMLDoc = ReplyDecoder.parseDocument(response.getInputStream());
 			}
 		}
 		finally
 		{
-			if (connection != null) {
-				connection.disconnect();
-			}
+			//hand the connection back to the transport for reuse
+			response.close();
 		}		
 	}
 	
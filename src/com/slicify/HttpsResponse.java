@@ -0,0 +1,32 @@
+package com.slicify;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A single response returned by an HttpsTransport. Closing the response releases the connection
+ * back to the transport.
+ *
+ * @author slicify
+ *
+ */
+public interface HttpsResponse extends Closeable {
+
+	/**
+	 * @return HTTP status code of the response
+	 * @throws IOException If the response couldn't be read
+	 */
+	public int getStatusCode() throws IOException;
+
+	/**
+	 * @return The response body. Never null - an empty stream is returned if the response had no body.
+	 * @throws IOException
+	 */
+	public InputStream getInputStream() throws IOException;
+
+	/**
+	 * Consume any remaining content and release the connection.
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,43 @@
+package com.slicify;
+
+import java.io.IOException;
+
+/**
+ * Pluggable transport used by HttpsGet / HttpsPost to talk to the Slicify Web Services. The default
+ * implementation (PooledHttpsTransport) keeps connections alive between calls so that repeated booking
+ * queries don't pay for a new TCP + TLS handshake every time.
+ *
+ * Implementations must be thread safe.
+ *
+ * @author slicify
+ *
+ */
+public interface HttpsTransport {
+
+	/**
+	 * Send a GET request to the specified URL. The returned response must be closed by the caller, which
+	 * releases the underlying connection for reuse.
+	 *
+	 * @param url Full target URL, including any query parameters
+	 * @param authorization Value for the Authorization header (can be null)
+	 * @return
+	 * @throws IOException
+	 */
+	public HttpsResponse get(String url, String authorization) throws IOException;
+
+	/**
+	 * Send a form encoded POST request to the specified URL. The returned response must be closed by the caller.
+	 *
+	 * @param url Target URL
+	 * @param authorization Value for the Authorization header (can be null)
+	 * @param formBody application/x-www-form-urlencoded request body
+	 * @return
+	 * @throws IOException
+	 */
+	public HttpsResponse post(String url, String authorization, String formBody) throws IOException;
+
+	/**
+	 * Close any pooled connections and release resources held by this transport.
+	 */
+	public void shutdown();
+}
@@ -0,0 +1,172 @@
+package com.slicify;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Streaming Aho-Corasick matcher for a set of literal strings. Characters are fed in chunks as they arrive,
+ * and each character is examined exactly once - there is no backtracking, and overlapping matches (e.g. "aab"
+ * in "aaab") are found correctly. With a single literal this is equivalent to KMP.
+ *
+ * @author slicify
+ *
+ */
+final class LiteralMatcher implements StreamMatcher {
+
+	private final String[] Literals;
+
+	//goto function, as sorted keys + target states per state
+	private final char[][] Keys;
+	private final int[][] Targets;
+	private final int[] Fail;
+
+	//literal recognised on reaching each state (directly or via the fail chain), -1 if none
+	private final int[] Match;
+
+	private int State = 0;
+	private int Matched = -1;
+
+	/**
+	 * @param literals Strings to watch for. Must be non-empty.
+	 */
+	LiteralMatcher(String... literals) {
+		if(literals == null || literals.length == 0)
+			throw new IllegalArgumentException("At least one literal is required");
+
+		Literals = literals.clone();
+
+		//build the trie
+		List<TreeMap<Character, Integer>> children = new ArrayList<TreeMap<Character, Integer>>();
+		List<Integer> outputs = new ArrayList<Integer>();
+		children.add(new TreeMap<Character, Integer>());
+		outputs.add(-1);
+		for(int i=0; i<Literals.length; i++)
+		{
+			String literal = Literals[i];
+			if(literal == null || literal.length() == 0)
+				throw new IllegalArgumentException("Literals must not be empty");
+
+			int state = 0;
+			for(int j=0; j<literal.length(); j++)
+			{
+				Integer next = children.get(state).get(literal.charAt(j));
+				if(next == null)
+				{
+					next = children.size();
+					children.add(new TreeMap<Character, Integer>());
+					outputs.add(-1);
+					children.get(state).put(literal.charAt(j), next);
+				}
+				state = next;
+			}
+			if(outputs.get(state) < 0)
+				outputs.set(state, i);
+		}
+
+		int states = children.size();
+		Keys = new char[states][];
+		Targets = new int[states][];
+		for(int s=0; s<states; s++)
+		{
+			Map<Character, Integer> map = children.get(s);
+			Keys[s] = new char[map.size()];
+			Targets[s] = new int[map.size()];
+			int k = 0;
+			for(Map.Entry<Character, Integer> entry : map.entrySet())
+			{
+				Keys[s][k] = entry.getKey();
+				Targets[s][k] = entry.getValue();
+				k++;
+			}
+		}
+
+		//fail links and match outputs, breadth first so shorter states are done first
+		Fail = new int[states];
+		Match = new int[states];
+		Match[0] = -1;
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for(int child : Targets[0])
+		{
+			Fail[child] = 0;
+			Match[child] = outputs.get(child);
+			queue.add(child);
+		}
+		while(!queue.isEmpty())
+		{
+			int s = queue.removeFirst();
+			for(int k=0; k<Keys[s].length; k++)
+			{
+				int child = Targets[s][k];
+				Fail[child] = step(Fail[s], Keys[s][k]);
+				Match[child] = outputs.get(child) >= 0 ? outputs.get(child) : Match[Fail[child]];
+				queue.add(child);
+			}
+		}
+	}
+
+	@Override
+	public int scan(char[] chars, int offset, int length)
+	{
+		int end = offset + length;
+		for(int i=offset; i<end; i++)
+		{
+			State = step(State, chars[i]);
+			if(Match[State] >= 0)
+			{
+				Matched = Match[State];
+				State = 0;
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int getMatchedIndex() {
+		return Matched;
+	}
+
+	@Override
+	public String[] getGroups() {
+		return Matched < 0 ? null : new String[] { Literals[Matched] };
+	}
+
+	void reset() {
+		State = 0;
+		Matched = -1;
+	}
+
+	private int step(int state, char c)
+	{
+		while(true)
+		{
+			int next = child(state, c);
+			if(next >= 0)
+				return next;
+			if(state == 0)
+				return 0;
+			state = Fail[state];
+		}
+	}
+
+	private int child(int state, char c)
+	{
+		char[] keys = Keys[state];
+		int low = 0;
+		int high = keys.length - 1;
+		while(low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			if(keys[mid] < c)
+				low = mid + 1;
+			else if(keys[mid] > c)
+				high = mid - 1;
+			else
+				return Targets[state][mid];
+		}
+		return -1;
+	}
+}
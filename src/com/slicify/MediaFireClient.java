@@ -2,31 +2,50 @@ package com.slicify;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.util.Formatter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.ByteArrayBody;
 import org.apache.http.entity.mime.content.ContentBody;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.util.EntityUtils;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 /**
- * This class provides a wrapper to access MediaFire for file upload/download.
+ * This class provides a wrapper to access MediaFire for file upload/download. All requests go over the pooled
+ * keep-alive connections of a PooledHttpsTransport (the shared one by default), so clients used from many
+ * threads (see MediaFireTransfers) reuse connections rather than opening one per file.
  * 
  * @author slicify
  *
@@ -41,7 +60,20 @@ public class MediaFireClient {
 	private final String AppID; 
 	private final String AppKey;
 
+	private final PooledHttpsTransport Transport;
+
+	//lookups that miss refresh the index, but no more often than this
+	private static final long MISS_REFRESH_INTERVAL = 1000;
+
+	private final MediaFireIndex Index = new MediaFireIndex();
+	private Path IndexFile = null;
+
 	private String SessionToken = null;
+	private int ChunkSize = StreamingBody.DEFAULT_CHUNK_SIZE;
+
+	//fetches the blocks of a folder listing, created on first use
+	private int ListParallelism = 4;
+	private ExecutorService ListExecutor = null;
 	
 	/**
 	 * Opens a mediafire session. Requires your mediafire username/password, as well as an application id/key, 
@@ -55,6 +87,22 @@ public class MediaFireClient {
 	 */
 	public MediaFireClient(String mediaFireUsername, String mediaFirePassword,
 			String appId, String appKey) throws Exception {
+		this(mediaFireUsername, mediaFirePassword, appId, appKey, PooledHttpsTransport.getShared());
+	}
+
+	/**
+	 * Opens a mediafire session, sending requests over the specified transport.
+	 * 
+	 * @param mediaFireUsername
+	 * @param mediaFirePassword
+	 * @param appId
+	 * @param appKey
+	 * @param transport
+	 * @throws Exception
+	 */
+	public MediaFireClient(String mediaFireUsername, String mediaFirePassword,
+			String appId, String appKey, PooledHttpsTransport transport) throws Exception {
+		Transport = transport;
 		Username = mediaFireUsername;
 		Password = mediaFirePassword;
 		AppID = appId;
@@ -86,16 +134,126 @@ public class MediaFireClient {
 	}
 	
 	/**
-	 * Gets the quickkey (the mediafire hash) for the specified filename in the root directory.
+	 * Gets the quickkey (the mediafire hash) for the specified filename in the root directory. Answered from the
+	 * local index when it is fresh (see getFile()).
 	 * 
 	 * @param filename
-	 * @return
+	 * @return The quickkey, or null if there is no such file
 	 * @throws Exception
 	 */
 	public String getQuickKey(String filename) throws Exception
 	{
-		Map<String, String> fileKeys = listFiles();
-		return fileKeys.get(filename);
+		MediaFireFile file = getFile(filename);
+		return file == null ? null : file.getQuickKey();
+	}
+
+	/**
+	 * Look up a file in the root directory using the local index. The index is refreshed first if it is older
+	 * than its TTL. A file that isn't in the index is looked for again on the server - as a check on its upload
+	 * if it was uploaded through this client, otherwise by refreshing the index (at most once a second).
+	 * 
+	 * @param filename
+	 * @return The file, or null if there is no such file
+	 * @throws Exception
+	 */
+	public MediaFireFile getFile(String filename) throws Exception
+	{
+		if(Index.isExpired())
+			refreshIndex();
+
+		MediaFireFile file = Index.get(filename);
+		if(file == null)
+		{
+			String uploadKey = Index.getPending(filename);
+			if(uploadKey != null)
+				file = pollUpload(filename, uploadKey);
+			if(file == null && Index.getAge() >= MISS_REFRESH_INTERVAL)
+			{
+				refreshIndex();
+				file = Index.get(filename);
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * @return The index of the root directory used by getQuickKey() and getFile(), e.g. to change its TTL
+	 */
+	public MediaFireIndex getIndex()
+	{
+		return Index;
+	}
+
+	/**
+	 * Keep the index in a local file, so it survives restarts. Loads the saved index if there is one.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void setIndexFile(Path file) throws IOException
+	{
+		IndexFile = file;
+		Index.load(file);
+	}
+
+	/**
+	 * Bring the index up to date. If the root directory's revision hasn't changed since the last listing this
+	 * is a single call, otherwise the directory is listed again.
+	 * 
+	 * @throws Exception
+	 */
+	public void refreshIndex() throws Exception
+	{
+		//the same folder info gives the file count if the folder has to be listed again
+		Document info = getFolderInfo();
+		String revision = revision(info);
+		if(revision != null && revision.equals(Index.getRevision()))
+			Index.touch();
+		else
+			Index.replace(collect(streamFiles(CompletableFuture.completedFuture(info))), revision);
+		saveIndex();
+	}
+
+	/**
+	 * @return Revision of the root directory, which changes whenever a file in it is added, changed or removed.
+	 * Null if the server doesn't report one.
+	 * @throws Exception
+	 */
+	public String getFolderRevision() throws Exception
+	{
+		return revision(getFolderInfo());
+	}
+
+	/**
+	 * Check on an upload made through this client, and add the file to the index once it has a quickkey.
+	 */
+	private MediaFireFile pollUpload(String filename, String uploadKey) throws Exception
+	{
+		String targetURL = HTTP_MEDIAFIRE_BASE_API + "upload/poll_upload.php?session_token=" + SessionToken + "&key=" + uploadKey;
+		Element upload = (Element) httpGet(targetURL).getElementsByTagName("doupload").item(0);
+		if(upload == null)
+			return null;
+
+		String quickKey = text(upload, "quickkey");
+		if(quickKey == null || quickKey.isEmpty())
+		{
+			//status 99 means the upload has finished, so without a quickkey it failed
+			if("99".equals(text(upload, "status")))
+				Index.removePending(filename);
+			return null;
+		}
+
+		String size = text(upload, "size");
+		MediaFireFile file = new MediaFireFile(filename, quickKey, size == null ? -1 : Long.parseLong(size), text(upload, "hash"), text(upload, "created"));
+		Index.put(file);
+		saveIndex();
+		return file;
+	}
+
+	private void saveIndex() throws IOException
+	{
+		if(IndexFile != null)
+			Index.save(IndexFile);
 	}
 	
 	/**
@@ -107,15 +265,11 @@ public class MediaFireClient {
 	 */
 	public String downloadText(String quickKey) throws Exception 
 	{
-		String ddLink = getDownloadLink(quickKey);
-		
-		URL website = new URL(ddLink);
-		InputStream webStream = website.openStream();
-		return convertStreamToString(webStream);
+		return convertStreamToString(downloadBLOB(quickKey));
 	}
 	
 	/**
-	 * Download a file and open as an InputStream.
+	 * Download a file and open as an InputStream. Close the stream to hand the connection back to the pool.
 	 * 
 	 * @param quickKey Requires the mediafire quickkey for the file
 	 * @return
@@ -123,11 +277,90 @@ public class MediaFireClient {
 	 */
 	public InputStream downloadBLOB(String quickKey) throws Exception 
 	{
-		String ddLink = getDownloadLink(quickKey);
-		
-		URL website = new URL(ddLink);
-		InputStream webStream = website.openStream();
-		return webStream;
+		return open(getDownloadLink(quickKey)).getContent();
+	}
+
+	/**
+	 * Download a file to a local path, replacing the file if it exists. The file is streamed in chunks, so it
+	 * doesn't need to fit in memory.
+	 * 
+	 * @param quickKey Requires the mediafire quickkey for the file
+	 * @param file
+	 * @param progress Told the bytes received after each chunk, can be null
+	 * @return Bytes downloaded
+	 * @throws Exception
+	 */
+	public long download(String quickKey, Path file, TransferProgress progress) throws Exception
+	{
+		try(OutputStream out = Files.newOutputStream(file))
+		{
+			return download(quickKey, out, progress);
+		}
+	}
+
+	/**
+	 * Download a file to a stream. The stream is left open.
+	 * 
+	 * @param quickKey Requires the mediafire quickkey for the file
+	 * @param out
+	 * @param progress Told the bytes received after each chunk, can be null
+	 * @return Bytes downloaded
+	 * @throws Exception
+	 */
+	public long download(String quickKey, OutputStream out, TransferProgress progress) throws Exception
+	{
+		HttpEntity entity = open(getDownloadLink(quickKey));
+		long total = entity.getContentLength();
+		long received = 0;
+		try(InputStream in = entity.getContent())
+		{
+			byte[] chunk = new byte[ChunkSize];
+			int read;
+			while((read = in.read(chunk)) >= 0)
+			{
+				out.write(chunk, 0, read);
+				received += read;
+				if(progress != null)
+					progress.progress(received, total);
+			}
+		}
+		if(total >= 0 && received != total)
+			throw new IOException("Download of " + quickKey + " ended after " + received + " of " + total + " bytes");
+		return received;
+	}
+
+	/**
+	 * Download a large file over several connections at once, each fetching a range of the file. If the download
+	 * fails part way through, calling this again carries on from where it got to (see RangedDownload).
+	 * 
+	 * @param quickKey Requires the mediafire quickkey for the file
+	 * @param file
+	 * @param connections Maximum number of ranges fetched at once
+	 * @param progress Told the bytes received so far, can be null. Called from the download threads.
+	 * @return Bytes downloaded
+	 * @throws Exception
+	 */
+	public long downloadRanged(String quickKey, Path file, int connections, TransferProgress progress) throws Exception
+	{
+		RangedDownload download = new RangedDownload(Transport, getDownloadLink(quickKey), file);
+		download.setConnections(connections);
+		return download.run(progress);
+	}
+
+	/**
+	 * GET a download link, failing unless the response is 200 OK.
+	 */
+	private HttpEntity open(String url) throws IOException
+	{
+		HttpResponse response = Transport.send(new HttpGet(url));
+		HttpEntity entity = response.getEntity();
+		int status = response.getStatusLine().getStatusCode();
+		if(status != 200 || entity == null)
+		{
+			EntityUtils.consume(entity);
+			throw new IOException("Download failed:" + response.getStatusLine() + " for " + url);
+		}
+		return entity;
 	}
 
 	/**
@@ -174,11 +407,14 @@ public class MediaFireClient {
 		
 		if(!result.equalsIgnoreCase("success"))
 			throw new Exception("File data failed:" + result);
+
+		if(Index.remove(quickKey) != null)
+			saveIndex();
 	}
 	
 	/**
 	 * List all the files in the root directory. Returns a Map<FileName, QuickKey> that is useful
-	 * for finding the quickkey for a specific filename.
+	 * for finding the quickkey for a specific filename. The index is refreshed with the listing too.
 	 * Mediafire reports files in blocks, requiring multiple queries to return them all.
 	 * 
 	 * @return
@@ -186,35 +422,273 @@ public class MediaFireClient {
 	 */
 	public Map<String, String> listFiles() throws Exception
 	{
+		//take the revision before the first block, so a change made during the listing is picked up by the next
+		//refresh. The same info gives the file count.
+		Document info = getFolderInfo();
+		List<MediaFireFile> files = collect(streamFiles(CompletableFuture.completedFuture(info)));
+		Index.replace(files, revision(info));
+		saveIndex();
+
 		Map<String, String> keyNameMap = new HashMap<String, String>();
+		for(MediaFireFile file : files)
+			keyNameMap.put(file.getName(), file.getQuickKey());
+		return keyNameMap;
+	}
 
-		int chunk = 1;
-		boolean reading = true;
-		while(reading)
+	/**
+	 * List all the files in the root directory, with their size and hash. Doesn't touch the index.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public List<MediaFireFile> listFileInfo() throws Exception
+	{
+		return collect(streamFiles());
+	}
+
+	private static List<MediaFireFile> collect(Stream<MediaFireFile> stream) throws IOException
+	{
+		try(Stream<MediaFireFile> files = stream)
 		{
-			String targetURL = HTTP_MEDIAFIRE_BASE_API + "folder/get_content.php?session_token=" + SessionToken + "&content_type=files&chunk=" + chunk;
-	
-			//send get request, and parse file entries
-			Document XMLDoc = httpGet(targetURL);
-			NodeList fileNames = XMLDoc.getElementsByTagName("filename");
-			NodeList quickKeys = XMLDoc.getElementsByTagName("quickkey");
-			
-			if(fileNames.getLength() != quickKeys.getLength())
-				throw new Exception("Mismatch between filenames/keys:" + fileNames.getLength() + " / " + quickKeys.getLength());
-			
-			
-			for(int i=0;i<fileNames.getLength();i++)
+			return files.collect(Collectors.toList());
+		}
+		catch(UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * List all the files in the root directory as a stream, so they can be worked on before the listing is
+	 * complete. The first block is read before this returns, while the folder's file count is fetched
+	 * alongside it. If there are more blocks, the count says how many to expect and they are all fetched in
+	 * parallel (see setListParallelism()), then handed out in order as they arrive. Close the stream if it
+	 * isn't read to the end.
+	 * 
+	 * A block that fails is thrown from the stream as an UncheckedIOException (or a RuntimeException
+	 * wrapping an API error).
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public Stream<MediaFireFile> streamFiles() throws Exception
+	{
+		return streamFiles(fetchFolderInfo());
+	}
+
+	private Stream<MediaFireFile> streamFiles(CompletableFuture<Document> info) throws Exception
+	{
+		Document first = getFolderContent(1);
+		List<MediaFireFile> firstFiles = parseFiles(first, 1);
+
+		//blocks are the size the server says, or failing that the size of the first one
+		String size = text(first.getDocumentElement(), "chunk_size");
+		int chunkSize = size == null ? firstFiles.size() : Integer.parseInt(size);
+		if(!hasMore(first, firstFiles.size(), chunkSize))
+			return firstFiles.stream();
+
+		//the remaining blocks are fetched in parallel. Without a file count they are read one after another.
+		//Files added after the count was taken are left to the next listing, as the folder revision will have changed.
+		long count = fileCount(await(info));
+		int chunks = count < 0 ? 2 : (int) ((count + chunkSize - 1) / chunkSize);
+		ExecutorService executor = getListExecutor();
+		List<CompletableFuture<List<MediaFireFile>>> blocks = new ArrayList<CompletableFuture<List<MediaFireFile>>>();
+		for(int chunk=2;chunk<=chunks;chunk++)
+		{
+			int number = chunk;
+			int last = count < 0 ? Integer.MAX_VALUE : chunk;
+			blocks.add(CompletableFuture.supplyAsync(() -> fetchChunks(number, last, chunkSize), executor));
+		}
+
+		Stream<MediaFireFile> rest = blocks.stream().flatMap(block -> join(block).stream());
+		return Stream.concat(firstFiles.stream(), rest).onClose(() -> {
+			for(CompletableFuture<List<MediaFireFile>> block : blocks)
+				block.cancel(false);
+		});
+	}
+
+	/**
+	 * Set how many blocks of a listing are fetched at once. Defaults to 4.
+	 * 
+	 * @param parallelism
+	 */
+	public synchronized void setListParallelism(int parallelism)
+	{
+		if(parallelism <= 0)
+			throw new IllegalArgumentException("Parallelism must be greater than 0");
+		ListParallelism = parallelism;
+		if(ListExecutor != null)
+		{
+			ListExecutor.shutdown();
+			ListExecutor = null;
+		}
+	}
+
+	private synchronized ExecutorService getListExecutor()
+	{
+		if(ListExecutor == null)
+			ListExecutor = Executors.newFixedThreadPool(ListParallelism, new AsyncSlicifyNode.DaemonThreadFactory("slicify-mediafire-list"));
+		return ListExecutor;
+	}
+
+	/**
+	 * @return Number of files in the root directory, -1 if the server doesn't report it
+	 * @throws Exception
+	 */
+	public long getFolderFileCount() throws Exception
+	{
+		return fileCount(getFolderInfo());
+	}
+
+	/**
+	 * Fetch the root directory's details, which hold both its revision and its file count.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	protected Document getFolderInfo() throws Exception
+	{
+		String targetURL = HTTP_MEDIAFIRE_BASE_API + "folder/get_info.php?session_token=" + SessionToken;
+		return httpGet(targetURL);
+	}
+
+	private CompletableFuture<Document> fetchFolderInfo()
+	{
+		return CompletableFuture.supplyAsync(() -> unchecked(this::getFolderInfo), getListExecutor());
+	}
+
+	private static String revision(Document info)
+	{
+		return text(info.getDocumentElement(), "revision");
+	}
+
+	private static long fileCount(Document info)
+	{
+		String count = text(info.getDocumentElement(), "file_count");
+		return count == null ? -1 : Long.parseLong(count);
+	}
+
+	/**
+	 * Fetch one block of the root directory listing.
+	 * 
+	 * @param chunk Block number, from 1
+	 * @return
+	 * @throws Exception
+	 */
+	protected Document getFolderContent(int chunk) throws Exception
+	{
+		String targetURL = HTTP_MEDIAFIRE_BASE_API + "folder/get_content.php?session_token=" + SessionToken + "&content_type=files&chunk=" + chunk;
+		return httpGet(targetURL);
+	}
+
+	/**
+	 * Fetch blocks from first up to last, stopping early at the end of the listing.
+	 */
+	private List<MediaFireFile> fetchChunks(int first, int last, int chunkSize)
+	{
+		return unchecked(() -> {
+			List<MediaFireFile> files = new ArrayList<MediaFireFile>();
+			for(int chunk=first;chunk<=last;chunk++)
 			{
-				keyNameMap.put(fileNames.item(i).getTextContent(), quickKeys.item(i).getTextContent());			
+				Document XMLDoc = getFolderContent(chunk);
+				List<MediaFireFile> page = parseFiles(XMLDoc, chunk);
+				files.addAll(page);
+				if(!hasMore(XMLDoc, page.size(), chunkSize))
+					break;
 			}
-			
-			//stop running when there are no more files returned
-			if(fileNames.getLength() == 0)
-				reading = false;
-			chunk++;
+			return files;
+		});
+	}
+
+	/**
+	 * Run a call from a listing thread, where an IOException has to be thrown as an UncheckedIOException.
+	 */
+	private static <T> T unchecked(Callable<T> call)
+	{
+		try
+		{
+			return call.call();
 		}
-		
-		return keyNameMap;
+		catch(IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		catch(RuntimeException e)
+		{
+			throw e;
+		}
+		catch(Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static <T> T join(CompletableFuture<T> block)
+	{
+		try
+		{
+			return block.join();
+		}
+		catch(CompletionException e)
+		{
+			//throw the block's own exception, not the wrapper
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Wait for the folder info fetched alongside a listing, throwing an IOException as itself.
+	 */
+	private static Document await(CompletableFuture<Document> info) throws IOException
+	{
+		try
+		{
+			return join(info);
+		}
+		catch(UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * @return True if there are more blocks after this one - from more_chunks if the server sends it, otherwise
+	 * if this block was full
+	 */
+	private static boolean hasMore(Document XMLDoc, int files, int chunkSize)
+	{
+		String more = text(XMLDoc.getDocumentElement(), "more_chunks");
+		if(more != null)
+			return more.equalsIgnoreCase("yes");
+		return files > 0 && files >= chunkSize;
+	}
+
+	private static List<MediaFireFile> parseFiles(Document XMLDoc, int chunk) throws Exception
+	{
+		List<MediaFireFile> files = new ArrayList<MediaFireFile>();
+		NodeList entries = XMLDoc.getElementsByTagName("file");
+		for(int i=0;i<entries.getLength();i++)
+		{
+			Element entry = (Element) entries.item(i);
+			String name = text(entry, "filename");
+			String quickKey = text(entry, "quickkey");
+			if(name == null || quickKey == null)
+				throw new Exception("File entry without a filename/key in chunk " + chunk);
+			String size = text(entry, "size");
+			files.add(new MediaFireFile(name, quickKey, size == null ? -1 : Long.parseLong(size), text(entry, "hash"), text(entry, "created")));
+		}
+		return files;
+	}
+
+	/**
+	 * @return Text of the first child element with the tag, or null if there isn't one
+	 */
+	private static String text(Element parent, String tag)
+	{
+		NodeList tags = parent.getElementsByTagName(tag);
+		return tags.getLength() == 0 ? null : tags.item(0).getTextContent().trim();
 	}
 
 
@@ -226,37 +700,170 @@ public class MediaFireClient {
 	 * @throws IOException
 	 */
 	public void upload(String fileName, byte[] data) throws IOException
+	{
+		post(new ByteArrayBody(data, fileName));
+	}
+
+	/**
+	 * Upload a file to mediafire. The file is streamed in chunks (see setUploadChunkSize()), so large files don't
+	 * need to fit in memory.
+	 * 
+	 * @param fileName The file name to create on mediafire.
+	 * @param file
+	 * @param progress Told the bytes sent after each chunk, can be null
+	 * @throws IOException
+	 */
+	public void upload(String fileName, Path file, TransferProgress progress) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			upload(fileName, channel, progress);
+		}
+	}
+
+	/**
+	 * Upload the rest of a file channel to mediafire, from its current position. The channel is left open, and
+	 * its position isn't changed.
+	 * 
+	 * @param fileName The file name to create on mediafire.
+	 * @param channel
+	 * @param progress Told the bytes sent after each chunk, can be null
+	 * @throws IOException
+	 */
+	public void upload(String fileName, FileChannel channel, TransferProgress progress) throws IOException
+	{
+		post(new StreamingBody(fileName, channel, ChunkSize, progress));
+	}
+
+	/**
+	 * Upload the contents of a stream to mediafire. The stream is left open.
+	 * 
+	 * @param fileName The file name to create on mediafire.
+	 * @param in
+	 * @param length Bytes to send, or -1 to send to the end of the stream. Give the length if it is known, as
+	 * otherwise the upload has to be sent with chunked transfer encoding.
+	 * @param progress Told the bytes sent after each chunk, can be null
+	 * @throws IOException
+	 */
+	public void upload(String fileName, InputStream in, long length, TransferProgress progress) throws IOException
+	{
+		post(new StreamingBody(fileName, in, length, ChunkSize, progress));
+	}
+
+	/**
+	 * @param bytes Size of the chunks files and streams are read and sent in
+	 */
+	public void setUploadChunkSize(int bytes)
+	{
+		if(bytes <= 0)
+			throw new IllegalArgumentException("Chunk size must be greater than 0");
+		ChunkSize = bytes;
+	}
+
+	private void post(ContentBody body) throws IOException
 	{
 		String targetURL = HTTP_MEDIAFIRE_BASE_API + "upload/upload.php?session_token=" + SessionToken;
 
-	    HttpClient httpclient = new DefaultHttpClient();
+		HttpPost httppost = new HttpPost(targetURL);
 
-	    HttpPost httppost = new HttpPost(targetURL);
+		MultipartEntity mpEntity = new MultipartEntity();
+		mpEntity.addPart("myFile", body);
+		httppost.setEntity(mpEntity);
 
-	    MultipartEntity mpEntity = new MultipartEntity();
-	    ContentBody cbFile = new ByteArrayBody(data, fileName);
-	    mpEntity.addPart("myFile", cbFile);
+		//always consume the response, so the connection goes back to the pool
+		HttpResponse response = Transport.send(httppost);
+		String reply;
+		try
+		{
+			if(response.getStatusLine().getStatusCode() != 200)
+				throw new IOException("Upload of " + body.getFilename() + " failed:" + response.getStatusLine());
+			reply = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+		}
+		finally
+		{
+			EntityUtils.consume(response.getEntity());
+		}
 
+		Element upload;
+		try
+		{
+			Document XMLDoc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(reply)));
+			checkReply(XMLDoc, "Upload of " + body.getFilename());
+			upload = (Element) XMLDoc.getElementsByTagName("doupload").item(0);
+		}
+		catch(ParserConfigurationException | SAXException e)
+		{
+			throw new IOException("Upload of " + body.getFilename() + " got an unreadable reply: " + reply, e);
+		}
 
-	    httppost.setEntity(mpEntity);
-	    System.out.println("executing request " + httppost.getRequestLine());
-	    HttpResponse response = httpclient.execute(httppost);
-	    HttpEntity resEntity = response.getEntity();
+		//a non-zero result means mediafire turned the upload down
+		String result = upload == null ? null : text(upload, "result");
+		if(result != null && !result.equals("0"))
+			throw new MediaFireException(parseCode(result), false, "Upload of " + body.getFilename() + " was rejected, result " + result);
 
-	    System.out.println(response.getStatusLine());
-	    if (resEntity != null) {
-	      System.out.println(EntityUtils.toString(resEntity));
-	    }
-	    if (resEntity != null) {
-	    	EntityUtils.consume(resEntity);
-	    }
+		//the quickkey is assigned once mediafire has processed the upload - remember the upload key to ask later
+		String uploadKey = upload == null ? null : text(upload, "key");
+		if(uploadKey != null && !uploadKey.isEmpty())
+			Index.addPending(body.getFilename(), uploadKey);
+		else
+			Index.expire();
+	}
 
-	    httpclient.getConnectionManager().shutdown();
+	/**
+	 * Throw the error mediafire reported in a reply, if it reported one. An expired session token is renewed
+	 * first, so the call can be retried.
+	 */
+	private void checkReply(Document XMLDoc, String call) throws MediaFireException
+	{
+		//the reply's own result, not the result of a nested section like doupload
+		String result = null;
+		String error = null;
+		String message = null;
+		NodeList children = XMLDoc.getDocumentElement().getChildNodes();
+		for(int i=0;i<children.getLength();i++)
+		{
+			String tag = children.item(i).getNodeName();
+			String value = children.item(i).getTextContent().trim();
+			if(tag.equals("result"))
+				result = value;
+			else if(tag.equals("error"))
+				error = value;
+			else if(tag.equals("message"))
+				message = value;
+		}
+		if(error == null && !"error".equalsIgnoreCase(result))
+			return;
 
+		int code = parseCode(error);
+		boolean retryable = code == MediaFireException.SESSION_TOKEN_INVALID;
+		if(retryable)
+		{
+			try
+			{
+				connect();
+			}
+			catch(Exception e)
+			{
+				//the retry will fail the same way
+			}
+		}
+		throw new MediaFireException(code, retryable, call + " failed: " + (message == null ? "error" : message) + " (" + code + ")");
+	}
+
+	private static int parseCode(String code)
+	{
+		try
+		{
+			return code == null ? -1 : Integer.parseInt(code.trim());
+		}
+		catch(NumberFormatException e)
+		{
+			return -1;
+		}
 	}
 		
 	/**
-	 * HTTP GET implementation using HttpURLConnection
+	 * HTTP GET of an API call, over the pooled transport
 	 * 
 	 * @param targetURL
 	 * @return
@@ -264,30 +871,18 @@ public class MediaFireClient {
 	 */
 	private Document httpGet(String targetURL) throws Exception
 	{		
-		URL url = new URL(targetURL);
-		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-		connection.setRequestMethod("GET");
-		connection.setUseCaches(false);
-		connection.setDoInput(true);
-		connection.setDoOutput(true);
-
-		// Send request
-		connection.getOutputStream().flush();
-		connection.getOutputStream().close();
-		
-		//check HTTP response code
-		int response = connection.getResponseCode();
-		if(response != 200)
-			throw new Exception("Unable to login to MediaFire:" + response + " for " + targetURL);
-
-		//parse response using xml DOM parser
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		DocumentBuilder db = dbf.newDocumentBuilder(); 
-		Document XMLDoc = db.parse(connection.getInputStream());
-		
-		connection.disconnect();
-		
-		return XMLDoc;
+		try(HttpsResponse response = Transport.get(targetURL, null))
+		{
+			//check HTTP response code
+			int status = response.getStatusCode();
+			if(status != 200)
+				throw new IOException("MediaFire request failed:" + status + " for " + targetURL);
+
+			//parse response using xml DOM parser
+			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			DocumentBuilder db = dbf.newDocumentBuilder(); 
+			return db.parse(response.getInputStream());
+		}
 	}
 	
 	/**
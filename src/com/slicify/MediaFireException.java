@@ -0,0 +1,47 @@
+package com.slicify;
+
+import java.io.IOException;
+
+/**
+ * Thrown when MediaFire answers a call with an error, rather than the request itself failing. MediaFire reports
+ * these with an HTTP 200 reply holding <result>Error</result> and an error code.
+ *
+ * @author slicify
+ *
+ */
+public class MediaFireException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	//the session token is missing, invalid or has expired
+	public static final int SESSION_TOKEN_INVALID = 105;
+
+	private final int Code;
+	private final boolean Retryable;
+
+	/**
+	 * @param code MediaFire's error code, -1 if it didn't send one
+	 * @param retryable True if the same call may work on another attempt
+	 * @param message
+	 */
+	public MediaFireException(int code, boolean retryable, String message) {
+		super(message);
+		Code = code;
+		Retryable = retryable;
+	}
+
+	/**
+	 * @return MediaFire's error code, -1 if it didn't send one
+	 */
+	public int getCode() {
+		return Code;
+	}
+
+	/**
+	 * @return True if the call may work on another attempt, e.g. after the session token has been renewed.
+	 * Errors like an unknown file or a rejected upload won't get any better.
+	 */
+	public boolean isRetryable() {
+		return Retryable;
+	}
+}
@@ -0,0 +1,65 @@
+package com.slicify;
+
+/**
+ * A file in the MediaFire root folder, as listed by folder/get_content.
+ *
+ * @author slicify
+ *
+ */
+public final class MediaFireFile {
+
+	private final String Name;
+	private final String QuickKey;
+	private final long Size;
+	private final String Hash;
+	private final String Created;
+
+	/**
+	 * @param name
+	 * @param quickKey
+	 * @param size Bytes, -1 if not known
+	 * @param hash SHA-256 of the contents as reported by MediaFire, null if not known
+	 * @param created Creation time as reported by MediaFire, null if not known
+	 */
+	public MediaFireFile(String name, String quickKey, long size, String hash, String created) {
+		Name = name;
+		QuickKey = quickKey;
+		Size = size;
+		Hash = hash;
+		Created = created;
+	}
+
+	public String getName() {
+		return Name;
+	}
+
+	public String getQuickKey() {
+		return QuickKey;
+	}
+
+	/**
+	 * @return Bytes, -1 if not known
+	 */
+	public long getSize() {
+		return Size;
+	}
+
+	/**
+	 * @return Hash of the contents as reported by MediaFire, null if not known
+	 */
+	public String getHash() {
+		return Hash;
+	}
+
+	/**
+	 * @return Creation time as reported by MediaFire, null if not known
+	 */
+	public String getCreated() {
+		return Created;
+	}
+
+	@Override
+	public String toString() {
+		return "MediaFireFile[" + Name + ", " + QuickKey + ", " + Size + " bytes]";
+	}
+}
@@ -0,0 +1,308 @@
+package com.slicify;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local index of the files in the MediaFire root folder, so MediaFireClient can look up a quickkey without
+ * listing the whole folder. The index is refreshed when it is older than its TTL (a refresh only re-lists the
+ * folder if the folder's revision has changed), and updated in place by uploads and deletes made through the
+ * client. It can be saved to disk, so a new process starts with a warm index. Thread safe.
+ *
+ * @author slicify
+ *
+ */
+public class MediaFireIndex {
+
+	public static final long DEFAULT_TTL = 5 * 60 * 1000L;
+
+	private static final String HEADER = "slicify-mediafire-index";
+
+	private final Map<String, MediaFireFile> ByName = new HashMap<String, MediaFireFile>();
+	private final Map<String, String> ByQuickKey = new HashMap<String, String>();
+
+	//uploads whose quickkey isn't known yet, file name -> upload key
+	private final Map<String, String> Pending = new HashMap<String, String>();
+
+	private long TTL;
+	private String Revision = null;
+	private long LastRefresh = 0;
+
+	private final AtomicLong Hits = new AtomicLong();
+	private final AtomicLong Misses = new AtomicLong();
+	private final AtomicLong Refreshes = new AtomicLong();
+
+	public MediaFireIndex() {
+		this(DEFAULT_TTL);
+	}
+
+	/**
+	 * @param ttlms How long the index is used before the folder is checked for changes
+	 */
+	public MediaFireIndex(long ttlms) {
+		setTTL(ttlms);
+	}
+
+	public synchronized void setTTL(long ttlms)
+	{
+		if(ttlms < 0)
+			throw new IllegalArgumentException("TTL must be >= 0");
+		TTL = ttlms;
+	}
+
+	/**
+	 * Look up a file. Counts as a hit or a miss.
+	 *
+	 * @param name
+	 * @return The file, or null if it isn't in the index
+	 */
+	public synchronized MediaFireFile get(String name)
+	{
+		MediaFireFile file = ByName.get(name);
+		if(file == null)
+			Misses.incrementAndGet();
+		else
+			Hits.incrementAndGet();
+		return file;
+	}
+
+	/**
+	 * @return A copy of the index, file name -> file
+	 */
+	public synchronized Map<String, MediaFireFile> getFiles()
+	{
+		return new HashMap<String, MediaFireFile>(ByName);
+	}
+
+	public synchronized int size()
+	{
+		return ByName.size();
+	}
+
+	/**
+	 * Add or replace a file, e.g. once an upload has been given its quickkey.
+	 */
+	public synchronized void put(MediaFireFile file)
+	{
+		MediaFireFile old = ByName.put(file.getName(), file);
+		if(old != null)
+			ByQuickKey.remove(old.getQuickKey());
+		ByQuickKey.put(file.getQuickKey(), file.getName());
+		Pending.remove(file.getName());
+	}
+
+	/**
+	 * Remove a file, e.g. after it has been deleted.
+	 *
+	 * @param quickKey
+	 * @return The file removed, or null if it wasn't in the index
+	 */
+	public synchronized MediaFireFile remove(String quickKey)
+	{
+		String name = ByQuickKey.remove(quickKey);
+		return name == null ? null : ByName.remove(name);
+	}
+
+	/**
+	 * Record an upload whose quickkey hasn't been assigned yet.
+	 */
+	public synchronized void addPending(String name, String uploadKey)
+	{
+		Pending.put(name, uploadKey);
+	}
+
+	/**
+	 * @return Upload key of a pending upload of the file, or null if there isn't one
+	 */
+	public synchronized String getPending(String name)
+	{
+		return Pending.get(name);
+	}
+
+	public synchronized void removePending(String name)
+	{
+		Pending.remove(name);
+	}
+
+	/**
+	 * Replace the whole index with a fresh listing of the folder.
+	 *
+	 * @param files
+	 * @param revision Folder revision the listing was taken at, null if not known
+	 */
+	public synchronized void replace(Collection<MediaFireFile> files, String revision)
+	{
+		fill(files, revision);
+		LastRefresh = System.currentTimeMillis();
+		Refreshes.incrementAndGet();
+	}
+
+	private void fill(Collection<MediaFireFile> files, String revision)
+	{
+		ByName.clear();
+		ByQuickKey.clear();
+		for(MediaFireFile file : files)
+		{
+			ByName.put(file.getName(), file);
+			ByQuickKey.put(file.getQuickKey(), file.getName());
+		}
+		Revision = revision;
+	}
+
+	/**
+	 * The folder was checked and hasn't changed, so the index is good for another TTL.
+	 */
+	public synchronized void touch()
+	{
+		LastRefresh = System.currentTimeMillis();
+	}
+
+	/**
+	 * Force a refresh on the next lookup.
+	 */
+	public synchronized void expire()
+	{
+		LastRefresh = 0;
+	}
+
+	/**
+	 * @return True if the index has never been filled, or is older than its TTL
+	 */
+	public synchronized boolean isExpired()
+	{
+		return getAge() >= TTL;
+	}
+
+	/**
+	 * @return Milliseconds since the index was last filled or checked
+	 */
+	public synchronized long getAge()
+	{
+		return LastRefresh == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - LastRefresh;
+	}
+
+	/**
+	 * @return Folder revision of the last listing, null if not known
+	 */
+	public synchronized String getRevision()
+	{
+		return Revision;
+	}
+
+	/**
+	 * Write the index to a file (via a temporary file, so a crash doesn't leave it half written).
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public synchronized void save(Path path) throws IOException
+	{
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try(BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+		{
+			out.write(HEADER + "\t" + (Revision == null ? "" : Revision) + "\t" + LastRefresh + "\n");
+			for(MediaFireFile file : ByName.values())
+			{
+				out.write(file.getQuickKey() + "\t" + file.getSize() + "\t" + (file.getHash() == null ? "" : file.getHash()) + "\t" +
+						(file.getCreated() == null ? "" : file.getCreated()) + "\t" + file.getName() + "\n");
+			}
+		}
+		try
+		{
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Replace the index with one saved by save(). Its age carries over, so a stale saved index is still
+	 * refreshed on first use.
+	 *
+	 * @param path
+	 * @return False if there is no saved index, or it isn't readable
+	 * @throws IOException
+	 */
+	public synchronized boolean load(Path path) throws IOException
+	{
+		if(!Files.exists(path))
+			return false;
+
+		Map<String, MediaFireFile> files = new HashMap<String, MediaFireFile>();
+		String revision;
+		long lastRefresh;
+		try(BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8))
+		{
+			String[] header = split(in.readLine(), 3);
+			if(header == null || !header[0].equals(HEADER))
+				return false;
+			revision = header[1].isEmpty() ? null : header[1];
+			lastRefresh = Long.parseLong(header[2]);
+
+			String line;
+			while((line = in.readLine()) != null)
+			{
+				String[] fields = split(line, 5);
+				if(fields == null)
+					return false;
+				files.put(fields[4], new MediaFireFile(fields[4], fields[0], Long.parseLong(fields[1]),
+						fields[2].isEmpty() ? null : fields[2], fields[3].isEmpty() ? null : fields[3]));
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			return false;
+		}
+
+		fill(files.values(), revision);
+		LastRefresh = Math.min(lastRefresh, System.currentTimeMillis());
+		return true;
+	}
+
+	private static String[] split(String line, int fields)
+	{
+		if(line == null)
+			return null;
+		String[] split = line.split("\t", fields);
+		return split.length == fields ? split : null;
+	}
+
+	/**
+	 * @return Lookups answered from the index
+	 */
+	public long getHitCount() {
+		return Hits.get();
+	}
+
+	/**
+	 * @return Lookups for files not in the index
+	 */
+	public long getMissCount() {
+		return Misses.get();
+	}
+
+	/**
+	 * @return Number of times the index has been filled from a full listing
+	 */
+	public long getRefreshCount() {
+		return Refreshes.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "MediaFireIndex[files=" + ByName.size() + ", pending=" + Pending.size() + ", revision=" + Revision +
+				", hits=" + getHitCount() + ", misses=" + getMissCount() + ", refreshes=" + getRefreshCount() + "]";
+	}
+}
@@ -0,0 +1,245 @@
+package com.slicify;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many MediaFire uploads and downloads in parallel over one MediaFireClient, at most parallelism at a time
+ * (the rest wait in a queue). A transfer that fails with an IOException is retried with jittered backoff, unless
+ * MediaFire itself turned it down (see MediaFireException.isRetryable()), and throughput is recorded for each
+ * transfer and for the whole manager.
+ *
+ * Example use:
+ *
+ *     MediaFireTransfers transfers = new MediaFireTransfers(mediaClient, 8, new ReconnectPolicy(3, 1000, 10000, 0));
+ *     List<TransferResult> results = transfers.uploadAll(artifacts).join();
+ *     System.out.println(transfers);
+ *
+ * @author slicify
+ *
+ */
+public class MediaFireTransfers {
+
+	public static final int DEFAULT_PARALLELISM = 8;
+
+	private interface Transfer {
+		long run() throws Exception;
+	}
+
+	private final MediaFireClient Client;
+	private final ReconnectPolicy Retry;
+	private final ExecutorService Executor;
+
+	private final AtomicLong Succeeded = new AtomicLong();
+	private final AtomicLong Failed = new AtomicLong();
+	private final AtomicLong Retries = new AtomicLong();
+	private final AtomicLong Bytes = new AtomicLong();
+
+	//wall clock span of the transfers so far, for the overall throughput
+	private long FirstStart = 0;
+	private long LastFinish = 0;
+
+	public MediaFireTransfers(MediaFireClient client) {
+		this(client, DEFAULT_PARALLELISM, new ReconnectPolicy(3, 1000, 30000, 0));
+	}
+
+	/**
+	 * @param client
+	 * @param parallelism Maximum number of transfers running at once
+	 * @param retry Attempts per transfer and backoff between them (the connect timeout isn't used)
+	 */
+	public MediaFireTransfers(MediaFireClient client, int parallelism, ReconnectPolicy retry) {
+		if(parallelism <= 0)
+			throw new IllegalArgumentException("Parallelism must be greater than 0");
+		Client = client;
+		Retry = retry;
+		Executor = Executors.newFixedThreadPool(parallelism, new AsyncSlicifyNode.DaemonThreadFactory("slicify-mediafire"));
+	}
+
+	/**
+	 * Queue an upload.
+	 *
+	 * @param fileName The file name to create on mediafire
+	 * @param file
+	 * @param progress Told the bytes sent so far, can be null. Restarts from 0 on a retry.
+	 * @return Completes with the result when the transfer has finished or given up - the future itself doesn't fail
+	 */
+	public CompletableFuture<TransferResult> upload(String fileName, Path file, TransferProgress progress)
+	{
+		return submit(fileName, true, () -> {
+			Client.upload(fileName, file, progress);
+			return Files.size(file);
+		});
+	}
+
+	/**
+	 * Queue a download, replacing the local file if it exists.
+	 *
+	 * @param quickKey Requires the mediafire quickkey for the file
+	 * @param file
+	 * @param progress Told the bytes received so far, can be null. Restarts from 0 on a retry.
+	 * @return Completes with the result when the transfer has finished or given up - the future itself doesn't fail
+	 */
+	public CompletableFuture<TransferResult> download(String quickKey, Path file, TransferProgress progress)
+	{
+		return submit(quickKey, false, () -> Client.download(quickKey, file, progress));
+	}
+
+	/**
+	 * Upload each file under its own file name.
+	 *
+	 * @param files
+	 * @return Completes with one result per file, in the same order as the files
+	 */
+	public CompletableFuture<List<TransferResult>> uploadAll(Collection<Path> files)
+	{
+		List<CompletableFuture<TransferResult>> transfers = new ArrayList<CompletableFuture<TransferResult>>();
+		for(Path file : files)
+			transfers.add(upload(file.getFileName().toString(), file, null));
+		return all(transfers);
+	}
+
+	/**
+	 * Wait for all of a set of transfers.
+	 *
+	 * @param transfers
+	 * @return Completes with the results, in the same order as the transfers
+	 */
+	public static CompletableFuture<List<TransferResult>> all(List<CompletableFuture<TransferResult>> transfers)
+	{
+		return CompletableFuture.allOf(transfers.toArray(new CompletableFuture<?>[transfers.size()])).thenApply(done -> {
+			List<TransferResult> results = new ArrayList<TransferResult>(transfers.size());
+			for(CompletableFuture<TransferResult> transfer : transfers)
+				results.add(transfer.join());
+			return results;
+		});
+	}
+
+	private CompletableFuture<TransferResult> submit(String name, boolean upload, Transfer transfer)
+	{
+		return CompletableFuture.supplyAsync(() -> run(name, upload, transfer), Executor);
+	}
+
+	private TransferResult run(String name, boolean upload, Transfer transfer)
+	{
+		long start = System.currentTimeMillis();
+		synchronized(this)
+		{
+			if(FirstStart == 0)
+				FirstStart = start;
+		}
+
+		Throwable error = null;
+		long bytes = 0;
+		int attempt = 0;
+		while(attempt < Retry.getMaxAttempts())
+		{
+			if(attempt > 0)
+			{
+				Retries.incrementAndGet();
+				try
+				{
+					Thread.sleep(Retry.getDelay(attempt));
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			attempt++;
+
+			try
+			{
+				bytes = transfer.run();
+				error = null;
+				break;
+			}
+			catch(IOException e)
+			{
+				//network trouble or an expired session - worth another go, unless mediafire turned the call down
+				error = e;
+				if(e instanceof MediaFireException && !((MediaFireException) e).isRetryable())
+					break;
+			}
+			catch(Exception e)
+			{
+				//e.g. an unknown quickkey, which won't get any better
+				error = e;
+				break;
+			}
+		}
+
+		long finish = System.currentTimeMillis();
+		synchronized(this)
+		{
+			LastFinish = Math.max(LastFinish, finish);
+		}
+		if(error == null)
+		{
+			Succeeded.incrementAndGet();
+			Bytes.addAndGet(bytes);
+		}
+		else
+			Failed.incrementAndGet();
+		return new TransferResult(name, upload, error == null ? bytes : 0, attempt, finish - start, error);
+	}
+
+	/**
+	 * Stop taking transfers. Queued transfers are still run.
+	 */
+	public void shutdown()
+	{
+		Executor.shutdown();
+	}
+
+	/**
+	 * @return Number of transfers that have finished successfully
+	 */
+	public long getSucceededCount() {
+		return Succeeded.get();
+	}
+
+	/**
+	 * @return Number of transfers that gave up
+	 */
+	public long getFailedCount() {
+		return Failed.get();
+	}
+
+	/**
+	 * @return Number of retries made across all transfers
+	 */
+	public long getRetryCount() {
+		return Retries.get();
+	}
+
+	/**
+	 * @return Bytes moved by successful transfers
+	 */
+	public long getBytes() {
+		return Bytes.get();
+	}
+
+	/**
+	 * @return Bytes per second across all transfers, from the first starting to the last finishing
+	 */
+	public synchronized double getThroughput() {
+		long span = LastFinish - FirstStart;
+		return span <= 0 ? 0 : Bytes.get() * 1000.0 / span;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MediaFireTransfers[succeeded=%d, failed=%d, retries=%d, bytes=%d, %.1f MB/s]",
+				getSucceededCount(), getFailedCount(), getRetryCount(), getBytes(), getThroughput() / 1e6);
+	}
+}
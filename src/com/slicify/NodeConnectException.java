@@ -0,0 +1,76 @@
+package com.slicify;
+
+import java.io.IOException;
+
+/**
+ * Thrown when NodeSSHClient.connect() fails, saying which phase failed and whether it timed out, so fleet code
+ * can decide quickly whether to retry or move on to another node.
+ *
+ * @author slicify
+ *
+ */
+public class NodeConnectException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Phase {
+		/** TCP connect to the gateway */
+		CONNECT,
+		/** SSH version and key exchange */
+		KEY_EXCHANGE,
+		/** Login with the booking password */
+		AUTHENTICATE,
+		/** Opening the session and shell */
+		SHELL,
+		/** Waiting for the first prompt */
+		PROMPT
+	}
+
+	private final Phase FailedPhase;
+	private final boolean Timeout;
+	private final boolean Rejected;
+
+	public NodeConnectException(Phase phase, boolean timeout, String message, Throwable cause) {
+		this(phase, timeout, false, message, cause);
+	}
+
+	/**
+	 * @param phase
+	 * @param timeout
+	 * @param rejected True if the gateway turned the login down, rather than the connection failing
+	 * @param message
+	 * @param cause
+	 */
+	public NodeConnectException(Phase phase, boolean timeout, boolean rejected, String message, Throwable cause) {
+		super(message, cause);
+		FailedPhase = phase;
+		Timeout = timeout;
+		Rejected = rejected;
+	}
+
+	public Phase getPhase() {
+		return FailedPhase;
+	}
+
+	/**
+	 * @return True if the phase ran out of time, rather than failing outright
+	 */
+	public boolean isTimeout() {
+		return Timeout;
+	}
+
+	/**
+	 * @return True if the gateway rejected the booking password (e.g. the booking has closed)
+	 */
+	public boolean isRejected() {
+		return Rejected;
+	}
+
+	/**
+	 * @return False if the booking password was rejected, as retrying won't help. Anything else, including a
+	 * connection dropped during login, may work on another attempt.
+	 */
+	public boolean isRetryable() {
+		return !Rejected;
+	}
+}
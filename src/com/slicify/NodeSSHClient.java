@@ -2,12 +2,27 @@ package com.slicify;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.ConnectionException;
 import net.schmizz.sshj.connection.channel.direct.Session;
 import net.schmizz.sshj.connection.channel.direct.Session.Shell;
+import net.schmizz.sshj.transport.TransportException;
+
+import com.slicify.NodeConnectException.Phase;
 
 /**
  * Simple SSH client that allows you to open a shell and send basic commands.
@@ -16,28 +31,70 @@ import net.schmizz.sshj.connection.channel.direct.Session.Shell;
  */
 public class NodeSSHClient {
 
-	//ssh client library
-	private final SSHClient ssh = new SSHClient();
-	private Session session = null; 
-	private Shell shell = null;
+	//ssh client library - either our own, or one borrowed from the pool. The connection fields are replaced by
+	//reconnects, which can run on the pool's threads, so they are volatile.
+	private volatile SSHClient ssh = null;
+	private final SSHConnectionPool Pool;
+	private volatile Session session = null; 
+	private volatile Shell shell = null;
 	private PrintStream Print = System.out;
 	private boolean Logging = false;
+	private ExpectEngine Engine = null;
+	private volatile ShellReader Reader = null;
+	private int MaxCapture = ShellReader.DEFAULT_MAX_CAPTURE;
+	private boolean Compress = true;
+
+	//login kept for reconnecting
+	private String Username = null;
+	private String Password = null;
+	private ReconnectPolicy Reconnect = null;
+	private boolean Reconnecting = false;
+	private int KeepAlive = DEFAULT_KEEP_ALIVE;
+	private ConnectTimeouts Timeouts = new ConnectTimeouts();
 	
 	public static final String SERVER = "www.slicify.com";
 	public static final String PROMPT = "slicify@slicify:~";
+	public static final int DEFAULT_KEEP_ALIVE = 30;
+	static final String HOST_KEY = "e9:5d:51:34:ec:8d:96:6d:1f:70:94:a3:ad:ef:0e:09";
 
 	public NodeSSHClient() {
+		this(null, false);
 	}
 
 	public NodeSSHClient(boolean logging) {
+		this(null, logging);
+	}
+
+	/**
+	 * Create a client that opens its shell over a transport from the pool, rather than connecting its own.
+	 * disconnect() closes the shell and hands the transport back to the pool.
+	 * @param pool
+	 */
+	public NodeSSHClient(SSHConnectionPool pool) {
+		this(pool, false);
+	}
+
+	public NodeSSHClient(SSHConnectionPool pool, boolean logging) {
+		Pool = pool;
 		Logging = logging;
 	}
 
 	public boolean isConnected() {
-		if(ssh == null || shell == null)
+		SSHClient client = ssh;
+		Session current = session;
+		Shell open = shell;
+		if(client == null || current == null || open == null)
 			return false;
 		else
-			return (ssh.isConnected() && session.isOpen() && shell.isOpen());
+			return (client.isConnected() && current.isOpen() && open.isOpen());
+	}
+
+	/**
+	 * @return True if this client's shell runs over the transport
+	 */
+	boolean usesTransport(SSHClient transport)
+	{
+		return ssh == transport;
 	}
 
 	public void setConsoleLogging(boolean logging)
@@ -62,23 +119,293 @@ public class NodeSSHClient {
 		return connect(username, bookingPassword, 0);
 	}
 	
+	/**
+	 * Connect and login, with each phase bounded by the connect timeouts (see setConnectTimeouts()).
+	 * @param username
+	 * @param bookingPassword
+	 * @param timeoutms Time to wait for the first prompt, 0 for the prompt timeout in the connect timeouts
+	 * @return Output up to and including the first prompt
+	 * @throws NodeConnectException Saying which phase failed or timed out
+	 * @throws IOException
+	 */
 	public String connect(String username, String bookingPassword, int timeoutms) throws IOException 
 	{
-		//validate host key
-		ssh.addHostKeyVerifier("e9:5d:51:34:ec:8d:96:6d:1f:70:94:a3:ad:ef:0e:09");
+		Username = username;
+		Password = bookingPassword;
+
+		if(Pool != null)
+		{
+			//reuse an authenticated transport for this login if the pool has one
+			ssh = Pool.acquire(username, bookingPassword, timeoutms);
+			Pool.register(this);
+		}
+		else
+			ssh = Handshake.open(username, bookingPassword, Timeouts, KeepAlive);
+
+		try
+		{
+			//start a session, and request a shell (note ssh exec is not supported by Slicify at this time)
+			final SSHClient client = ssh;
+			if(Pool != null)
+			{
+				//other shells may be using the transport, so a stalled shell is given up on rather than the transport cut
+				session = Handshake.runShared(Phase.SHELL, Timeouts.getShell(), () -> client.startSession(), s -> Handshake.close(s));
+				final Session opened = session;
+				shell = Handshake.runShared(Phase.SHELL, Timeouts.getShell(), () -> opened.startShell(), s -> Handshake.close(opened));
+			}
+			else
+			{
+				session = Handshake.run(Phase.SHELL, Timeouts.getShell(), client, () -> client.startSession());
+				shell = Handshake.run(Phase.SHELL, Timeouts.getShell(), client, () -> session.startShell());
+			}
+			ShellReader reader = new ShellReader(shell.getInputStream());
+			reader.setMaxCapture(MaxCapture);
+			Reader = reader;
+
+			//wait for prompt - a drop here fails the connect, rather than reconnecting from inside it
+			int prompt = timeoutms > 0 ? timeoutms : Timeouts.getPrompt();
+			boolean reconnecting = Reconnecting;
+			Reconnecting = true;
+			ExpectResult result;
+			try
+			{
+				result = expectAny(prompt, PROMPT);
+			}
+			finally
+			{
+				Reconnecting = reconnecting;
+			}
+			if(result.isTimeout())
+				throw new NodeConnectException(Phase.PROMPT, true, "No prompt from the node after " + prompt + "ms", null);
+			return result.getCaptured();
+		}
+		catch(IOException e)
+		{
+			Session opened = session;
+			session = null;
+			if(Pool != null)
+			{
+				Pool.unregister(this);
+
+				//only this shell has failed, unless the transport itself has died
+				if(opened != null)
+					Handshake.close(opened);
+				if(ssh.isConnected())
+					Pool.release(ssh);
+				else
+					Pool.discard(ssh);
+			}
+			else
+				Handshake.disconnect(ssh);
+			throw e;
+		}
+	}
+
+	/**
+	 * Set the timeouts for each phase of connect() (and reconnect()). A node that stalls in any phase fails with a
+	 * NodeConnectException rather than hanging the caller. Pooled clients use the pool's timeouts for the
+	 * transport, and these for the shell and prompt.
+	 * @param timeouts
+	 */
+	public void setConnectTimeouts(ConnectTimeouts timeouts)
+	{
+		if(timeouts == null)
+			throw new IllegalArgumentException("Timeouts can't be null");
+		Timeouts = timeouts;
+	}
+
+	public ConnectTimeouts getConnectTimeouts()
+	{
+		return Timeouts;
+	}
+
+	/**
+	 * Reconnect automatically with the cached login when the connection is found to be lost. A command that was
+	 * running when the connection dropped still fails, as its outcome on the node is unknown, but the client is
+	 * usable again by the time the exception is thrown. Use startJob() for long jobs so they carry on through the
+	 * drop.
+	 * @param policy Attempts and backoff between them, or null to turn reconnecting off (the default)
+	 */
+	public void setReconnectPolicy(ReconnectPolicy policy)
+	{
+		Reconnect = policy;
+	}
+
+	public ReconnectPolicy getReconnectPolicy()
+	{
+		return Reconnect;
+	}
+
+	/**
+	 * Drop the current connection and log in again with the username and booking password from the last
+	 * connect(), retrying with jittered backoff per the reconnect policy (a single attempt if there isn't one).
+	 * A booking that has closed fails straight away, as its password is no longer accepted.
+	 * @return The output up to the new prompt
+	 * @throws IOException If every attempt failed
+	 */
+	public synchronized String reconnect() throws IOException
+	{
+		if(Username == null)
+			throw new IllegalStateException("Not connected yet");
+
+		ReconnectPolicy policy = Reconnect != null ? Reconnect : new ReconnectPolicy(1, 0, 0, 0);
+		IOException last = null;
+		Reconnecting = true;
+		try
+		{
+			for(int attempt=0; attempt<policy.getMaxAttempts(); attempt++)
+			{
+				try
+				{
+					Thread.sleep(policy.getDelay(attempt));
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while reconnecting");
+				}
+
+				try
+				{
+					close();
+				}
+				catch(IOException e)
+				{
+					//the old connection is already gone
+				}
+
+				try
+				{
+					return connect(Username, Password, policy.getConnectTimeout());
+				}
+				catch(NodeConnectException e)
+				{
+					if(!e.isRetryable())
+						throw e;
+					last = e;
+				}
+				catch(IOException e)
+				{
+					last = e;
+				}
+			}
+		}
+		finally
+		{
+			Reconnecting = false;
+		}
+		throw new IOException("Couldn't reconnect after " + policy.getMaxAttempts() + " attempts", last);
+	}
+
+	/**
+	 * Reconnect before using the shell if the connection has been lost and there is a reconnect policy.
+	 */
+	private void ensureConnected() throws IOException
+	{
+		if(Reconnect != null && Username != null && !Reconnecting && !isConnected())
+			recover();
+	}
 
-		//connect
-		ssh.connect(SERVER);
-		ssh.authPassword(username, bookingPassword);
+	/**
+	 * Reconnect if the connection has been lost and there is a reconnect policy. Also called by the pool's health
+	 * check, so the client is ready again before its next command. Synchronized so a background reconnect and one
+	 * from a command don't both happen.
+	 */
+	synchronized void recover()
+	{
+		if(Reconnect == null || Username == null || isConnected())
+			return;
+		try
+		{
+			reconnect();
+		}
+		catch(IOException e)
+		{
+			//the next command will fail and report it
+		}
+	}
 
-		//start a session
-	    session = ssh.startSession();
-	    
-	    //request a shell (note ssh exec is not supported by Slicify at this time)
-	    shell = session.startShell();
-	    
-	    //wait for prompt
-	    return expectPrompt(true, timeoutms);
+	/**
+	 * Send an SSH keep-alive after this many seconds without traffic, so an idle connection isn't dropped by NAT or
+	 * firewalls, and a dead one is noticed. 0 turns keep-alives off. Pooled clients use the pool's setting.
+	 * @param seconds
+	 */
+	public void setKeepAlive(int seconds)
+	{
+		if(seconds < 0)
+			throw new IllegalArgumentException("Keep-alive must be >= 0");
+		KeepAlive = seconds;
+		if(Pool == null && ssh != null && ssh.isConnected())
+			ssh.getTransport().setHeartbeatInterval(seconds);
+	}
+
+	/**
+	 * Check the connection is still answering, with a round trip over the SSH transport that doesn't touch the
+	 * shell, so it is safe to call while a command is running.
+	 * @param timeoutms
+	 * @return False if the connection has gone, or didn't answer in time
+	 */
+	public boolean ping(int timeoutms)
+	{
+		SSHClient client = ssh;
+		return client != null && ping(client, timeoutms);
+	}
+
+	/**
+	 * Check the connection, e.g. before using a shell that has been idle for a while, and reconnect now if it
+	 * has gone rather than when the next command times out. Reconnecting needs a reconnect policy.
+	 * @param timeoutms Timeout for the check
+	 * @return True if the connection is good, or has been reconnected
+	 * @throws IOException If reconnecting failed
+	 */
+	public boolean checkConnection(int timeoutms) throws IOException
+	{
+		if(Username == null)
+			return false;
+		if(ping(timeoutms))
+			return true;
+		if(Reconnect == null)
+			return false;
+
+		synchronized(this)
+		{
+			//another thread may have reconnected while we were checking
+			if(!ping(timeoutms))
+			{
+				//drop the transport even if it still looks connected, so it isn't reused
+				SSHClient dead = ssh;
+				if(Pool != null)
+					Pool.discard(dead);
+				else
+					dead.disconnect();
+				reconnect();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Round trip over the transport. Servers answer an unknown global request with a failure, which is enough to
+	 * show the other end is there.
+	 */
+	static boolean ping(SSHClient client, int timeoutms)
+	{
+		if(!client.isConnected())
+			return false;
+		try
+		{
+			return client.getConnection().sendGlobalRequest("keepalive@openssh.com", true, new byte[0])
+					.tryRetrieve(timeoutms, TimeUnit.MILLISECONDS) != null;
+		}
+		catch(ConnectionException e)
+		{
+			//a failure reply still counts, but not losing the connection
+			return client.isConnected();
+		}
+		catch(TransportException e)
+		{
+			return false;
+		}
 	}
 
 	/**
@@ -106,7 +433,66 @@ public class NodeSSHClient {
 	}
 
 	/**
-	 * Wait for the specified literal text to be sent back from the server (regex not currently supported)
+	 * Wait for any of the specified literal strings to be sent back from the server. All the strings are watched
+	 * in a single pass over the output.
+	 * @param timeoutms Timeout in milliseconds, 0 for infinite. On timeout the result's index is -1.
+	 * @param literals
+	 * @return Which string matched, and the output up to and including it
+	 * @throws IOException
+	 */
+	public ExpectResult expectAny(int timeoutms, String... literals) throws IOException
+	{
+		return await(expectAnyAsync(timeoutms, literals));
+	}
+
+	public CompletableFuture<ExpectResult> expectAnyAsync(int timeoutms, String... literals) throws IOException
+	{
+		final SSHClient client = ssh;
+		return engine().expect(Reader, literals, true, timeoutms, Logging ? Print : null, () -> client.isConnected());
+	}
+
+	/**
+	 * Wait for any of the regular expressions to match the output from the server, e.g. the prompt, "Password:"
+	 * or "error (\\d+)". The output is scanned incrementally as it arrives, and the pattern whose match ends first
+	 * wins. Switch on the result's index to act on the pattern that matched.
+	 * @param timeoutms Timeout in milliseconds, 0 for infinite. On timeout the result's index is -1.
+	 * @param patterns
+	 * @return Which pattern matched, its groups, and the output up to and including the match
+	 * @throws IOException
+	 */
+	public ExpectResult expect(int timeoutms, Pattern... patterns) throws IOException
+	{
+		return await(expectAsync(timeoutms, patterns));
+	}
+
+	public CompletableFuture<ExpectResult> expectAsync(int timeoutms, Pattern... patterns) throws IOException
+	{
+		final SSHClient client = ssh;
+		return engine().expect(Reader, patterns, true, timeoutms, Logging ? Print : null, () -> client.isConnected());
+	}
+
+	/**
+	 * Wait for any of the regular expressions to match, passing the output to the sink as it arrives instead of
+	 * buffering it, so memory use stays flat however much output there is. See OutputSinks.
+	 * @param timeoutms Timeout in milliseconds, 0 for infinite. On timeout the result's index is -1.
+	 * @param sink Receives the output up to and including the match
+	 * @param patterns
+	 * @return Which pattern matched and its groups (getCaptured() is empty)
+	 * @throws IOException
+	 */
+	public ExpectResult expect(int timeoutms, OutputSink sink, Pattern... patterns) throws IOException
+	{
+		return await(expectAsync(timeoutms, sink, patterns));
+	}
+
+	public CompletableFuture<ExpectResult> expectAsync(int timeoutms, OutputSink sink, Pattern... patterns) throws IOException
+	{
+		final SSHClient client = ssh;
+		return engine().expect(Reader, patterns, sink, timeoutms, Logging ? Print : null, () -> client.isConnected());
+	}
+
+	/**
+	 * Wait for the specified literal text to be sent back from the server (see expect(int, Pattern...) for regex)
 	 * @param text
 	 * @param buffer
 	 * @param timeoutms Timeout in milliseconds to wait for the expected string. If buffer is true and the call 
@@ -118,59 +504,305 @@ public class NodeSSHClient {
 	 */
 	public String expectLiteral(String text, boolean buffer, int timeoutms) throws IOException
 	{
-		//buffer the output until we find the passed literal string
-    	StringBuffer sb = new StringBuffer();
-    	
-    	int foundPos = 0;
-    	boolean waiting = true;
-    	long startTime = System.currentTimeMillis();
-    	while(waiting && ssh.isConnected() && (timeoutms <= 0 || (System.currentTimeMillis() - startTime) < timeoutms))
-    	{
-    		//check if there is any pending data - TODO change this to use NIO
-    		if(shell.getInputStream().available() <= 0)
-    		{
-    			try {
-					Thread.sleep(100);
-				} catch (Error | Exception e) {
-					
-					//disconnect on exception
-					//this can be thrown by the SSH library on disconnect
-					System.out.println("Wait exception");
-					if(ssh.isConnected())
-						disconnect();
-					throw new IOException("Exception in thread wait");
+		//the engine watches the stream and wakes us as soon as the text arrives
+		return await(expectLiteralAsync(text, buffer, timeoutms));
+	}
+
+	private <T> T await(CompletableFuture<T> result) throws IOException
+	{
+		try
+		{
+			return result.get();
+		}
+		catch(ExecutionException e)
+		{
+			IOException error = e.getCause() instanceof IOException ? (IOException) e.getCause() :
+				new IOException("Error reading from shell", e.getCause());
+
+			//get ready for the next command, though this one is lost
+			if(Reconnect != null && Username != null && !Reconnecting && !isConnected())
+			{
+				try
+				{
+					reconnect();
 				}
-    		}
-    		else
-    		{
-        		//read next char from input stream (blocking call)
-	    		char nextChar = (char) shell.getInputStream().read();
-	    		if(buffer)
-	    			sb.append(nextChar);
-	
-				//check to see if this is the right string
-	    		if(nextChar == text.charAt(foundPos))
-	    		{
-	    			foundPos++;
-	        		if(foundPos >= text.length())
-	        			waiting = false;
-	    		}    		
-	    		else
-	    			foundPos = 0;
-	    		
-	    		//log to console
-	    		if(Logging)
-	    			Print.print(Character.toString(nextChar));
-    		}
-    	}
-    	
-    	if(!ssh.isConnected())
-    		throw new IOException("SSH no longer connected");
-    	
-    	//return buffer
-    	return sb.toString();
+				catch(IOException e2)
+				{
+					error.addSuppressed(e2);
+				}
+			}
+			throw error;
+		}
+		catch(InterruptedException e)
+		{
+			//drop the connection on interrupt, as the shell output is now in an unknown state. The login is kept,
+			//so reconnect() (or the reconnect policy) can bring the client back.
+			Thread.currentThread().interrupt();
+			close();
+			throw new IOException("Exception in thread wait");
+		}
+	}
+
+	/**
+	 * Wait for the specified literal text without blocking the calling thread. Only one expect should be
+	 * outstanding on a client at a time.
+	 * @param text
+	 * @param buffer
+	 * @param timeoutms Timeout in milliseconds, 0 for infinite. On timeout the future completes with whatever
+	 * data has been captured so far.
+	 * @return Completes with the captured data, or fails with an IOException if SSH disconnects
+	 * @throws IOException
+	 */
+	public CompletableFuture<String> expectLiteralAsync(String text, boolean buffer, int timeoutms) throws IOException
+	{
+		final SSHClient client = ssh;
+		return engine().expect(Reader, text, buffer, timeoutms, Logging ? Print : null, () -> client.isConnected());
+	}
+
+	private ExpectEngine engine() {
+		return Engine != null ? Engine : ExpectEngine.getShared();
+	}
+
+	/**
+	 * Use the specified engine to watch this client's shell, rather than the shared one.
+	 * @param engine
+	 */
+	public void setExpectEngine(ExpectEngine engine)
+	{
+		Engine = engine;
+	}
+
+	/**
+	 * Limit how much output a buffered expect keeps - beyond this only the most recent output is returned.
+	 * @param maxChars
+	 */
+	public void setMaxCapture(int maxChars)
+	{
+		if(maxChars <= 0)
+			throw new IllegalArgumentException("Capture size must be greater than 0");
+		MaxCapture = maxChars;
+		ShellReader reader = Reader;
+		if(reader != null)
+			reader.setMaxCapture(maxChars);
 	}
 	
+	/**
+	 * Run a command and wait for it to finish, returning its output and exit status. The command is followed by
+	 * a sentinel that echoes $?, so the end of the output is found exactly rather than by matching the prompt.
+	 * The command must be a single line that can be followed by "; ", e.g. not ending in '&' or a comment.
+	 * @param command
+	 * @param timeoutms Timeout in milliseconds, 0 for infinite. On timeout the result holds the partial output.
+	 * @return
+	 * @throws IOException If the connection fails
+	 */
+	public CommandResult run(String command, int timeoutms) throws IOException
+	{
+		return await(runAsync(command, timeoutms));
+	}
+
+	/**
+	 * Run a command without blocking the calling thread - see run().
+	 * @param command
+	 * @param timeoutms
+	 * @return
+	 * @throws IOException
+	 */
+	public CompletableFuture<CommandResult> runAsync(String command, int timeoutms) throws IOException
+	{
+		return runBatchAsync(Collections.singletonList(command), timeoutms, null).thenApply(results -> results.get(0));
+	}
+
+	/**
+	 * Run a list of commands, writing them all to the shell at once so there is no round trip between them, and
+	 * return each command's output and exit status. Each command line is wrapped with sentinels that mark the
+	 * start of its output and echo its exit status at the end. The commands run one after another whatever their
+	 * exit status - use "&&" within a command to make steps depend on each other.
+	 * @param commands Single-line commands, each of which can be followed by "; " (e.g. not ending in '&')
+	 * @param timeoutms Timeout for each command in milliseconds, 0 for infinite. If a command times out it and
+	 * all the commands after it are reported as timed out.
+	 * @return One result per command, in order
+	 * @throws IOException If the connection fails
+	 */
+	public List<CommandResult> runBatch(List<String> commands, int timeoutms) throws IOException
+	{
+		return await(runBatchAsync(commands, timeoutms, null));
+	}
+
+	/**
+	 * Run a list of commands without blocking the calling thread - see runBatch().
+	 * @param commands
+	 * @param timeoutms
+	 * @param onResult Called with each command's result as soon as it finishes (can be null)
+	 * @return
+	 * @throws IOException
+	 */
+	public CompletableFuture<List<CommandResult>> runBatchAsync(List<String> commands, int timeoutms, Consumer<CommandResult> onResult) throws IOException
+	{
+		if(commands.isEmpty())
+			return CompletableFuture.completedFuture(Collections.<CommandResult>emptyList());
+
+		Batch batch = new Batch(new ArrayList<String>(commands), timeoutms, onResult);
+
+		//pipeline the whole batch in one write
+		StringBuilder lines = new StringBuilder();
+		for(int i=0; i<batch.Commands.size(); i++)
+		{
+			if(i > 0)
+				lines.append('\n');
+			lines.append(batch.Sentinel.wrap(batch.Commands.get(i), i));
+		}
+		write(lines.toString(), false);
+
+		batch.collect(0);
+		return batch.Results;
+	}
+
+	/**
+	 * Splits the shell output of a pipelined batch into per-command results, one end marker at a time.
+	 */
+	private class Batch {
+
+		final List<String> Commands;
+		final int Timeout;
+		final Consumer<CommandResult> OnResult;
+		final ExitSentinel Sentinel = new ExitSentinel();
+		final List<CommandResult> Collected = new ArrayList<CommandResult>();
+		final CompletableFuture<List<CommandResult>> Results = new CompletableFuture<List<CommandResult>>();
+		long Last = System.currentTimeMillis();
+
+		Batch(List<String> commands, int timeoutms, Consumer<CommandResult> onResult) {
+			Commands = commands;
+			Timeout = timeoutms;
+			OnResult = onResult;
+		}
+
+		void collect(final int index)
+		{
+			CompletableFuture<ExpectResult> next;
+			try
+			{
+				next = expectAsync(Timeout, Sentinel.getPattern(index));
+			}
+			catch(IOException | RuntimeException e)
+			{
+				Results.completeExceptionally(e);
+				return;
+			}
+
+			next.whenComplete((result, e) -> {
+				if(e != null)
+				{
+					Results.completeExceptionally(e);
+					return;
+				}
+
+				long now = System.currentTimeMillis();
+				String output = Sentinel.output(result.getCaptured(), result.getMatch(), index);
+				int status = result.isTimeout() ? -1 : ExitSentinel.exitStatus(result);
+				add(new CommandResult(NodeSSHClient.this, Commands.get(index), output, status, result.isTimeout(), null, now - Last));
+				Last = now;
+
+				if(result.isTimeout())
+				{
+					//the shell is still busy, so nothing after this can be collected
+					for(int i=index+1; i<Commands.size(); i++)
+						add(new CommandResult(NodeSSHClient.this, Commands.get(i), "", -1, true, null, 0));
+					finish();
+				}
+				else if(index + 1 < Commands.size())
+					collect(index + 1);
+				else
+				{
+					//consume the prompt that follows, so the next command starts clean
+					try
+					{
+						expectLiteralAsync(PROMPT, false, Timeout).whenComplete((prompt, e2) -> finish());
+					}
+					catch(IOException e2)
+					{
+						finish();
+					}
+				}
+			});
+		}
+
+		void add(CommandResult result)
+		{
+			Collected.add(result);
+			if(OnResult != null)
+			{
+				try
+				{
+					OnResult.accept(result);
+				}
+				catch(RuntimeException e)
+				{
+					//ignore callback faults
+				}
+			}
+		}
+
+		void finish()
+		{
+			Results.complete(Collections.unmodifiableList(Collected));
+		}
+	}
+
+	/**
+	 * Copy a local file to the node through the shell, gzipped and base64 encoded, and check its md5 on the node.
+	 * Use this to push job inputs straight to a node rather than via MediaFire. See ShellTransfer.
+	 * @param local
+	 * @param remotePath Relative to the login directory, or absolute
+	 * @param timeoutms Timeout for each reply from the node in milliseconds, 0 for infinite
+	 * @return Number of bytes uploaded
+	 * @throws IOException
+	 */
+	public long upload(Path local, String remotePath, int timeoutms) throws IOException
+	{
+		return transfer().upload(local, remotePath, timeoutms);
+	}
+
+	public long upload(InputStream in, String remotePath, int timeoutms) throws IOException
+	{
+		return transfer().upload(in, remotePath, timeoutms);
+	}
+
+	/**
+	 * Copy a file from the node through the shell, and check it against its md5 on the node.
+	 * @param remotePath Relative to the login directory, or absolute
+	 * @param local
+	 * @param timeoutms Timeout for the whole download in milliseconds, 0 for infinite
+	 * @return Number of bytes downloaded
+	 * @throws IOException
+	 */
+	public long download(String remotePath, Path local, int timeoutms) throws IOException
+	{
+		return transfer().download(remotePath, local, timeoutms);
+	}
+
+	public long download(String remotePath, OutputStream out, int timeoutms) throws IOException
+	{
+		return transfer().download(remotePath, out, timeoutms);
+	}
+
+	/**
+	 * Gzip uploads and downloads (the default). Turn off for data that is already compressed.
+	 * @param compress
+	 */
+	public void setTransferCompression(boolean compress)
+	{
+		Compress = compress;
+	}
+
+	private ShellTransfer transfer() throws IOException
+	{
+		ensureConnected();
+		final SSHClient client = ssh;
+		ShellTransfer transfer = new ShellTransfer(Reader, shell.getOutputStream(), engine(), () -> client.isConnected());
+		transfer.setCompression(Compress);
+		return transfer;
+	}
+
 	public void sendRaw(String characters) throws IOException
 	{
 		send(characters, null, false, false);
@@ -246,11 +878,7 @@ public class NodeSSHClient {
 		String result = null;
 		
 		//write data out to stream
-    	DataOutputStream out = new DataOutputStream(shell.getOutputStream());
-    	out.write(shellCommand.getBytes());
-    	if(!noCRLF)
-    		out.writeChars("\n");
-    	out.flush();
+		write(shellCommand, noCRLF);
     	
     	//wait on the expected response
     	if(expectLiteral != null && expectLiteral.length() > 0)
@@ -260,13 +888,114 @@ public class NodeSSHClient {
     }
 
 	/**
-	 * Disconnect the SSH session.
+	 * Send a command to the shell and stream its output to the sink until the default prompt is seen, e.g. to
+	 * write a large build log or data file straight to disk.
+	 * @param shellCommand
+	 * @param sink Receives the output as it arrives, see OutputSinks
+	 * @param timeoutms Timeout in milliseconds, 0 for infinite. On timeout the result's index is -1.
+	 * @return
+	 * @throws IOException
+	 */
+	public ExpectResult send(String shellCommand, OutputSink sink, int timeoutms) throws IOException
+	{
+		return await(sendAsync(shellCommand, sink, timeoutms));
+	}
+
+	public CompletableFuture<ExpectResult> sendAsync(String shellCommand, OutputSink sink, int timeoutms) throws IOException
+	{
+		write(shellCommand, false);
+		final SSHClient client = ssh;
+		return engine().expect(Reader, new String[] { PROMPT }, sink, timeoutms, Logging ? Print : null, () -> client.isConnected());
+	}
+
+	/**
+	 * Send a string to the shell, and return a future that completes when the specified literal is seen in the
+	 * reply. Lets one thread drive many shells at once.
+	 * @param shellCommand
+	 * @param expectLiteral
+	 * @param noCRLF
+	 * @param buffer
+	 * @param timeoutms
+	 * @return
+	 * @throws IOException
+	 */
+	public CompletableFuture<String> sendAsync(String shellCommand, String expectLiteral, boolean noCRLF, boolean buffer, int timeoutms) throws IOException
+	{
+		write(shellCommand, noCRLF);
+		return expectLiteralAsync(expectLiteral, buffer, timeoutms);
+	}
+
+	private void write(String shellCommand, boolean noCRLF) throws IOException
+	{
+		ensureConnected();
+    	DataOutputStream out = new DataOutputStream(shell.getOutputStream());
+    	out.write(shellCommand.getBytes());
+    	if(!noCRLF)
+    		out.writeChars("\n");
+    	out.flush();
+	}
+
+	/**
+	 * Start a long-running command on the node under nohup, so it keeps running if the connection drops. Its
+	 * output goes to a log file on the node, and its exit status is saved when it finishes, so it can be checked
+	 * from a new connection - see RemoteJob.
+	 * @param name Identifies the job on the node (letters, digits, '.', '_' and '-'). Starting a job with the same
+	 * name replaces the old job's log and status.
+	 * @param command
+	 * @param timeoutms Timeout for starting the job
+	 * @return
+	 * @throws IOException
+	 */
+	public RemoteJob startJob(String name, String command, int timeoutms) throws IOException
+	{
+		RemoteJob job = new RemoteJob(this, name);
+		job.start(command, timeoutms);
+		return job;
+	}
+
+	/**
+	 * Get a job that was started earlier, e.g. by a previous run of the controller.
+	 * @param name
+	 * @return
+	 */
+	public RemoteJob getJob(String name)
+	{
+		return new RemoteJob(this, name);
+	}
+
+	/**
+	 * Disconnect the SSH session. The client won't reconnect automatically after this.
 	 * @throws IOException
 	 */
 	public void disconnect() throws IOException
 	{
-		if(session != null)
-			session.close();
-	    ssh.disconnect();
+		Username = null;
+		Password = null;
+		if(Pool != null)
+			Pool.unregister(this);
+		close();
+	}
+
+	private synchronized void close() throws IOException
+	{
+		SSHClient client = ssh;
+		Session current = session;
+		if(current != null)
+		{
+			try
+			{
+				current.close();
+			}
+			finally
+			{
+				session = null;
+
+				//the transport may be carrying other shells, so hand it back rather than disconnect it
+				if(Pool != null)
+					Pool.release(client);
+			}
+		}
+		if(Pool == null && client != null)
+			client.disconnect();
 	}
 }
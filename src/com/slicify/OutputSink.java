@@ -0,0 +1,49 @@
+package com.slicify;
+
+import java.io.IOException;
+
+/**
+ * Receives shell output as it arrives, instead of it being buffered into a String. See OutputSinks for sinks
+ * that split the output into lines or write it to a channel.
+ *
+ * Sinks are called on an ExpectEngine dispatcher thread. A sink that can't take everything it is offered
+ * returns the number of characters it did take - the shell then isn't read any further until the sink has taken
+ * the rest, so the remote command is held back by SSH flow control rather than the output piling up in memory.
+ *
+ * @author slicify
+ *
+ */
+public interface OutputSink {
+
+	/**
+	 * Offer the next block of output.
+	 *
+	 * @param chars
+	 * @param offset
+	 * @param length
+	 * @return Number of characters taken (0 to length). The rest are offered again later.
+	 * @throws IOException Fails the expect
+	 */
+	int write(char[] chars, int offset, int length) throws IOException;
+
+	/**
+	 * Called when the expect finishes (matched or timed out), to pass on any output the sink is holding.
+	 *
+	 * @throws IOException
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Like flush(), for a sink that may not be able to pass everything on straight away (e.g. to a full
+	 * non-blocking channel). Must not block - the engine calls it again on later sweeps until it returns true,
+	 * and only then completes the expect.
+	 *
+	 * @return True once the sink is holding nothing back
+	 * @throws IOException Fails the expect
+	 */
+	default boolean tryFlush() throws IOException
+	{
+		flush();
+		return true;
+	}
+}
@@ -0,0 +1,390 @@
+package com.slicify;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Ready made OutputSinks. Memory use of each is fixed, however much output passes through.
+ *
+ * Example use:
+ *
+ *     //stream a build log to disk without holding it in memory
+ *     try(FileChannel log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+ *     {
+ *         sshClient.send("make all", OutputSinks.channel(log), 0);
+ *     }
+ *
+ * @author slicify
+ *
+ */
+public final class OutputSinks {
+
+	//lines longer than this are passed on in pieces
+	public static final int MAX_LINE = 64 * 1024;
+
+	static final int BUFFER_SIZE = 8192;
+
+	private OutputSinks() {
+	}
+
+	/**
+	 * Split the output into lines (without the line break or a trailing '\r'). An unfinished last line is passed
+	 * on when the expect finishes.
+	 *
+	 * @param consumer Called with each line. Runs on the engine thread, so should be quick - wrap with async()
+	 * if it isn't.
+	 * @return
+	 */
+	public static OutputSink lines(final Consumer<String> consumer)
+	{
+		return new OutputSink() {
+			private final StringBuilder Line = new StringBuilder();
+
+			@Override
+			public int write(char[] chars, int offset, int length) {
+				int start = offset;
+				int end = offset + length;
+				for(int i=offset; i<end; i++)
+				{
+					if(chars[i] == '\n')
+					{
+						Line.append(chars, start, i - start);
+						emit();
+						start = i + 1;
+					}
+					else if(Line.length() + (i - start) >= MAX_LINE)
+					{
+						Line.append(chars, start, i - start);
+						emit();
+						start = i;
+					}
+				}
+				Line.append(chars, start, end - start);
+				return length;
+			}
+
+			@Override
+			public void flush() {
+				if(Line.length() > 0)
+					emit();
+			}
+
+			private void emit() {
+				int length = Line.length();
+				if(length > 0 && Line.charAt(length - 1) == '\r')
+					Line.setLength(length - 1);
+				consumer.accept(Line.toString());
+				Line.setLength(0);
+			}
+		};
+	}
+
+	/**
+	 * Encode the output as UTF-8 and pass it on in byte chunks.
+	 *
+	 * @param consumer Called with each chunk. The buffer is reused, so copy anything that is needed later.
+	 * @return
+	 */
+	public static OutputSink bytes(final Consumer<ByteBuffer> consumer)
+	{
+		return channel(new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) {
+				int length = src.remaining();
+				consumer.accept(src);
+				src.position(src.limit());
+				return length;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		}, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write the output to the channel as UTF-8.
+	 *
+	 * @param channel
+	 * @return
+	 */
+	public static OutputSink channel(WritableByteChannel channel)
+	{
+		return channel(channel, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write the output to the channel. If the channel is non-blocking and fills up, no more output is taken (and
+	 * so no more is read from the shell) until it has room again. flush() never waits for the channel - the
+	 * engine finishes the expect once the channel has taken the rest.
+	 *
+	 * @param channel
+	 * @param charset
+	 * @return
+	 */
+	public static OutputSink channel(final WritableByteChannel channel, Charset charset)
+	{
+		final CharsetEncoder encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		return new OutputSink() {
+			private final ByteBuffer Bytes = (ByteBuffer) ByteBuffer.allocate(BUFFER_SIZE).flip();
+			private final char[] Pair = new char[2];
+			private boolean HasHigh = false;
+
+			@Override
+			public int write(char[] chars, int offset, int length) throws IOException {
+				//finish writing the last block first
+				if(!drain() || length == 0)
+					return 0;
+
+				int taken = 0;
+				if(HasHigh)
+				{
+					//complete a surrogate pair split across blocks
+					Pair[1] = chars[offset];
+					encode(CharBuffer.wrap(Pair, 0, 2));
+					HasHigh = false;
+					taken = 1;
+				}
+				else
+				{
+					CharBuffer in = CharBuffer.wrap(chars, offset, length);
+					encode(in);
+					taken = in.position() - offset;
+
+					//the encoder holds back a high surrogate at the end until it sees the low one
+					if(taken == length - 1 && Character.isHighSurrogate(chars[offset + taken]))
+					{
+						Pair[0] = chars[offset + taken];
+						HasHigh = true;
+						taken = length;
+					}
+				}
+				drain();
+				return taken;
+			}
+
+			@Override
+			public void flush() throws IOException {
+				tryFlush();
+			}
+
+			@Override
+			public boolean tryFlush() throws IOException {
+				if(!drain())
+					return false;
+				if(HasHigh)
+				{
+					encode(CharBuffer.wrap(Pair, 0, 1));
+					HasHigh = false;
+				}
+
+				//a full non-blocking channel takes the rest on a later call, rather than holding up the engine
+				return drain();
+			}
+
+			private void encode(CharBuffer in) {
+				Bytes.clear();
+				encoder.encode(in, Bytes, false);
+				Bytes.flip();
+			}
+
+			private boolean drain() throws IOException {
+				while(Bytes.hasRemaining())
+				{
+					if(channel.write(Bytes) == 0)
+						return false;
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Decouple a slow sink from the engine. Output is copied into a fixed size buffer and passed to the sink on
+	 * the executor, so a slow consumer doesn't hold up the other shells on the same engine. Once the buffer is
+	 * full, no more output is read from the shell until the sink catches up. The expect doesn't complete until
+	 * the sink has taken and flushed everything, and an error from the sink fails it.
+	 *
+	 * @param sink
+	 * @param capacity Buffer size in characters
+	 * @param executor Runs the sink
+	 * @return
+	 */
+	public static OutputSink async(OutputSink sink, int capacity, Executor executor)
+	{
+		return new AsyncSink(sink, capacity, executor);
+	}
+
+	/**
+	 * Ring buffer between the engine thread and a sink running on an executor.
+	 */
+	private static class AsyncSink implements OutputSink, Runnable {
+
+		private final OutputSink Target;
+		private final Executor Executor;
+		private final char[] Ring;
+		private int Start = 0;
+		private int Length = 0;
+		private boolean Draining = false;
+		private boolean FlushRequested = false;
+		//the target has passed on everything written so far
+		private boolean Flushed = true;
+		private volatile IOException Error = null;
+
+		AsyncSink(OutputSink target, int capacity, Executor executor) {
+			if(capacity <= 0)
+				throw new IllegalArgumentException("Capacity must be greater than 0");
+			Target = target;
+			Executor = executor;
+			Ring = new char[capacity];
+		}
+
+		@Override
+		public int write(char[] chars, int offset, int length) throws IOException {
+			if(Error != null)
+				throw Error;
+
+			int taken;
+			synchronized(this)
+			{
+				taken = Math.min(length, Ring.length - Length);
+				int pos = (Start + Length) % Ring.length;
+				int first = Math.min(taken, Ring.length - pos);
+				System.arraycopy(chars, offset, Ring, pos, first);
+				System.arraycopy(chars, offset + first, Ring, 0, taken - first);
+				Length += taken;
+				if(taken > 0)
+					Flushed = false;
+			}
+			schedule();
+			return taken;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(Error != null)
+				throw Error;
+			synchronized(this)
+			{
+				FlushRequested = true;
+			}
+			schedule();
+		}
+
+		/**
+		 * Only true once the ring is empty, the drain has finished and the target itself has flushed, so the
+		 * expect doesn't complete while output is still on its way to the target.
+		 */
+		@Override
+		public boolean tryFlush() throws IOException {
+			if(Error != null)
+				throw Error;
+			synchronized(this)
+			{
+				if(Flushed && Length == 0 && !Draining)
+					return true;
+				FlushRequested = true;
+			}
+			schedule();
+			return false;
+		}
+
+		private void schedule() {
+			synchronized(this)
+			{
+				if(Draining || (Length == 0 && !FlushRequested))
+					return;
+				Draining = true;
+			}
+			Executor.execute(this);
+		}
+
+		@Override
+		public void run() {
+			try
+			{
+				while(true)
+				{
+					int start;
+					int length;
+					boolean flush;
+					synchronized(this)
+					{
+						start = Start;
+						length = Math.min(Length, Ring.length - Start);
+						flush = FlushRequested && Length == 0;
+						if(length == 0 && !flush)
+						{
+							Draining = false;
+							return;
+						}
+					}
+
+					if(flush)
+					{
+						synchronized(this)
+						{
+							FlushRequested = false;
+						}
+						if(Target.tryFlush())
+						{
+							synchronized(this)
+							{
+								//output written during the flush still needs passing on
+								Flushed = Length == 0;
+							}
+						}
+						else
+						{
+							synchronized(this)
+							{
+								FlushRequested = true;
+							}
+							LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+						}
+						continue;
+					}
+
+					int taken = Target.write(Ring, start, length);
+					synchronized(this)
+					{
+						Start = (Start + taken) % Ring.length;
+						Length -= taken;
+					}
+					if(taken == 0)
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+				}
+			}
+			catch(IOException e)
+			{
+				Error = e;
+			}
+			catch(RuntimeException e)
+			{
+				Error = new IOException("Error in output sink", e);
+			}
+			synchronized(this)
+			{
+				Draining = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.slicify;
+
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming matcher for a set of regular expressions. Output is appended to a sliding window as it arrives.
+ * A match found in a new block has to end in that block, so after a failed search a pattern only needs to look
+ * back MAX_MATCH characters the next time round - each block costs a search over itself plus at most MAX_MATCH
+ * characters of overlap, however long the output gets.
+ *
+ * Matches longer than MAX_MATCH characters can be missed if they arrive in pieces. '^' and '$' only match at line
+ * breaks (with MULTILINE), never at the edge of the data received so far.
+ *
+ * @author slicify
+ *
+ */
+final class PatternMatcher implements StreamMatcher {
+
+	static final int MAX_MATCH = 1024;
+
+	//context kept before the earliest search position, for lookbehinds
+	static final int LOOKBEHIND = 256;
+
+	private final Matcher[] Matchers;
+	private final int[] SearchStart;
+	private final StringBuilder Window = new StringBuilder();
+
+	private int Matched = -1;
+	private String[] Groups = null;
+
+	/**
+	 * @param patterns Patterns to watch for
+	 */
+	PatternMatcher(Pattern... patterns) {
+		if(patterns == null || patterns.length == 0)
+			throw new IllegalArgumentException("At least one pattern is required");
+
+		Matchers = new Matcher[patterns.length];
+		SearchStart = new int[patterns.length];
+		for(int i=0; i<patterns.length; i++)
+		{
+			if(patterns[i] == null)
+				throw new IllegalArgumentException("Patterns must not be null");
+			Matchers[i] = patterns[i].matcher(Window);
+			Matchers[i].useTransparentBounds(true);
+			Matchers[i].useAnchoringBounds(false);
+		}
+	}
+
+	@Override
+	public int scan(char[] chars, int offset, int length)
+	{
+		int base = Window.length();
+		Window.append(chars, offset, length);
+		int end = Window.length();
+
+		//the pattern whose match ends first wins
+		int best = -1;
+		MatchResult bestResult = null;
+		for(int i=0; i<Matchers.length; i++)
+		{
+			Matcher m = Matchers[i];
+			m.reset(Window);
+			m.region(SearchStart[i], end);
+			if(m.find())
+			{
+				if(bestResult == null || m.end() < bestResult.end())
+				{
+					best = i;
+					bestResult = m.toMatchResult();
+				}
+			}
+			else
+				advance(i, end);
+		}
+
+		if(best >= 0)
+		{
+			Matched = best;
+			Groups = new String[bestResult.groupCount() + 1];
+			for(int g=0; g<Groups.length; g++)
+				Groups[g] = bestResult.group(g);
+			return offset + Math.max(0, bestResult.end() - base);
+		}
+
+		trim();
+		return -1;
+	}
+
+	@Override
+	public int getMatchedIndex() {
+		return Matched;
+	}
+
+	@Override
+	public String[] getGroups() {
+		return Groups;
+	}
+
+	/**
+	 * Move the search start up after a failed search. A later match has to end in output that hasn't arrived
+	 * yet, so it can't start more than MAX_MATCH characters before the current end.
+	 */
+	private void advance(int index, int end)
+	{
+		SearchStart[index] = Math.max(SearchStart[index], end - MAX_MATCH);
+	}
+
+	/**
+	 * Drop output that no pattern can use any more.
+	 */
+	private void trim()
+	{
+		int keep = Window.length();
+		for(int start : SearchStart)
+			keep = Math.min(keep, start);
+		int drop = keep - LOOKBEHIND;
+
+		//only compact once there is a worthwhile amount to drop
+		if(drop < MAX_MATCH)
+			return;
+
+		Window.delete(0, drop);
+		for(int i=0; i<SearchStart.length; i++)
+			SearchStart[i] = Math.max(0, SearchStart[i] - drop);
+	}
+}
@@ -0,0 +1,328 @@
+package com.slicify;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * HttpsTransport backed by a bounded pool of keep-alive connections (Apache httpclient). Connections are
+ * reused across requests and threads, limited per route, and closed by a background evictor once they
+ * have been idle for too long.
+ *
+ * A single shared instance is used by SlicifyNode unless another transport is supplied.
+ *
+ * @author slicify
+ *
+ */
+public class PooledHttpsTransport implements HttpsTransport {
+
+	public static final int DEFAULT_MAX_TOTAL = 200;
+	public static final int DEFAULT_MAX_PER_ROUTE = 100;
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	private static PooledHttpsTransport Shared = null;
+
+	private final AtomicLong RequestCount = new AtomicLong();
+	private final AtomicLong ConnectionsOpened = new AtomicLong();
+
+	private final CountingConnectionManager ConnectionManager;
+	private final DefaultHttpClient HttpClient;
+	private final IdleConnectionEvictor Evictor;
+
+	/**
+	 * Get the transport shared by all SlicifyNode instances that haven't been given their own.
+	 * @return
+	 */
+	public static synchronized PooledHttpsTransport getShared()
+	{
+		if(Shared == null)
+			Shared = new PooledHttpsTransport();
+		return Shared;
+	}
+
+	public PooledHttpsTransport() {
+		this(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * @param maxTotal Maximum number of open connections across all routes
+	 * @param maxPerRoute Maximum number of open connections to a single host
+	 * @param idleTimeoutms Connections idle for longer than this are closed by the background evictor
+	 */
+	public PooledHttpsTransport(int maxTotal, int maxPerRoute, long idleTimeoutms) {
+		if(maxTotal <= 0 || maxPerRoute <= 0)
+			throw new IllegalArgumentException("Connection limits must be greater than 0");
+		if(idleTimeoutms <= 0)
+			throw new IllegalArgumentException("Idle timeout must be greater than 0");
+
+		ConnectionManager = new CountingConnectionManager(SchemeRegistryFactory.createDefault());
+		ConnectionManager.setMaxTotal(maxTotal);
+		ConnectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+		HttpClient = new DefaultHttpClient(ConnectionManager);
+		HttpParams params = HttpClient.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, 120000);
+		HttpConnectionParams.setSoTimeout(params, 120000);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+		Evictor = new IdleConnectionEvictor(ConnectionManager, idleTimeoutms);
+		Evictor.start();
+	}
+
+	/**
+	 * Set the maximum number of pooled connections to the host of the specified URL.
+	 *
+	 * @param url e.g. https://secure.slicify.com/
+	 * @param max
+	 */
+	public void setMaxPerRoute(String url, int max)
+	{
+		URI uri = URI.create(url);
+		int port = uri.getPort();
+		if(port < 0)
+			port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+		ConnectionManager.setMaxPerRoute(new HttpRoute(new HttpHost(uri.getHost(), port, uri.getScheme())), max);
+	}
+
+	/**
+	 * Set the TCP connect and socket read timeouts for new requests.
+	 *
+	 * @param connectTimeoutms
+	 * @param readTimeoutms
+	 */
+	public void setTimeouts(int connectTimeoutms, int readTimeoutms)
+	{
+		HttpParams params = HttpClient.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeoutms);
+		HttpConnectionParams.setSoTimeout(params, readTimeoutms);
+	}
+
+	@Override
+	public HttpsResponse get(String url, String authorization) throws IOException
+	{
+		HttpGet get = new HttpGet(url);
+		if(authorization != null)
+			get.setHeader("Authorization", authorization);
+		return execute(get);
+	}
+
+	@Override
+	public HttpsResponse post(String url, String authorization, String formBody) throws IOException
+	{
+		HttpPost post = new HttpPost(url);
+		if(authorization != null)
+			post.setHeader("Authorization", authorization);
+		post.setHeader("Content-Language", "en-US");
+		post.setEntity(new StringEntity(formBody, ContentType.APPLICATION_FORM_URLENCODED));
+		return execute(post);
+	}
+
+	/**
+	 * Send a request HttpsTransport doesn't cover (e.g. a multipart upload or a ranged download) over the pooled
+	 * connections. Consume or close the response entity to release the connection.
+	 *
+	 * @param request
+	 * @return
+	 * @throws IOException
+	 */
+	public HttpResponse send(HttpRequestBase request) throws IOException
+	{
+		RequestCount.incrementAndGet();
+		try
+		{
+			return HttpClient.execute(request);
+		}
+		catch(IOException e)
+		{
+			request.abort();
+			throw e;
+		}
+	}
+
+	private HttpsResponse execute(HttpRequestBase request) throws IOException
+	{
+		return new PooledResponse(request, send(request));
+	}
+
+	@Override
+	public void shutdown() {
+		Evictor.shutdown();
+		ConnectionManager.shutdown();
+	}
+
+	/**
+	 * @return Total number of requests sent through this transport
+	 */
+	public long getRequestCount() {
+		return RequestCount.get();
+	}
+
+	/**
+	 * @return Number of new connections (TCP + TLS handshakes) opened by this transport
+	 */
+	public long getConnectionsOpened() {
+		return ConnectionsOpened.get();
+	}
+
+	/**
+	 * @return Number of requests that were served on an already open connection
+	 */
+	public long getConnectionsReused() {
+		return Math.max(0, RequestCount.get() - ConnectionsOpened.get());
+	}
+
+	/**
+	 * @return Fraction of requests (0..1) that reused an open connection
+	 */
+	public double getReuseRatio() {
+		long requests = RequestCount.get();
+		return requests == 0 ? 0 : (double) getConnectionsReused() / requests;
+	}
+
+	/**
+	 * @return Current leased/available/pending/max counts across the whole pool
+	 */
+	public PoolStats getPoolStats() {
+		return ConnectionManager.getTotalStats();
+	}
+
+	@Override
+	public String toString() {
+		return "PooledHttpsTransport[requests=" + getRequestCount() + ", opened=" + getConnectionsOpened() +
+				", reused=" + getConnectionsReused() + ", " + getPoolStats() + "]";
+	}
+
+	/**
+	 * Connection manager that counts how many physical connections are opened, so we can report reuse.
+	 */
+	private class CountingConnectionManager extends PoolingClientConnectionManager {
+
+		CountingConnectionManager(SchemeRegistry registry) {
+			super(registry);
+		}
+
+		@Override
+		protected ClientConnectionOperator createConnectionOperator(SchemeRegistry registry) {
+			return new DefaultClientConnectionOperator(registry) {
+				@Override
+				public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local,
+						HttpContext context, HttpParams params) throws IOException {
+					super.openConnection(conn, target, local, context, params);
+					ConnectionsOpened.incrementAndGet();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Response wrapper - closing it consumes the entity, which hands the connection back to the pool.
+	 */
+	private static class PooledResponse implements HttpsResponse {
+
+		private final HttpRequestBase Request;
+		private final HttpResponse Response;
+
+		PooledResponse(HttpRequestBase request, HttpResponse response) {
+			Request = request;
+			Response = response;
+		}
+
+		@Override
+		public int getStatusCode() {
+			return Response.getStatusLine().getStatusCode();
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			HttpEntity entity = Response.getEntity();
+			if(entity == null)
+				return new ByteArrayInputStream(new byte[0]);
+			return entity.getContent();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try
+			{
+				EntityUtils.consume(Response.getEntity());
+			}
+			catch(IOException e)
+			{
+				//connection is in an unknown state - drop it rather than return it to the pool
+				Request.abort();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Background thread that closes expired and idle connections.
+	 */
+	private static class IdleConnectionEvictor extends Thread {
+
+		private final PoolingClientConnectionManager Manager;
+		private final long IdleTimeout;
+		private volatile boolean Running = true;
+
+		IdleConnectionEvictor(PoolingClientConnectionManager manager, long idleTimeoutms) {
+			super("slicify-https-evictor");
+			setDaemon(true);
+			Manager = manager;
+			IdleTimeout = idleTimeoutms;
+		}
+
+		@Override
+		public void run() {
+			try
+			{
+				while(Running)
+				{
+					synchronized(this)
+					{
+						wait(Math.max(1000, IdleTimeout / 2));
+					}
+					Manager.closeExpiredConnections();
+					Manager.closeIdleConnections(IdleTimeout, TimeUnit.MILLISECONDS);
+				}
+			}
+			catch(InterruptedException e)
+			{
+				//shutting down
+			}
+		}
+
+		void shutdown() {
+			Running = false;
+			synchronized(this)
+			{
+				notifyAll();
+			}
+		}
+	}
+}
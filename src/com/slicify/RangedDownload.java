@@ -0,0 +1,472 @@
+package com.slicify;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Downloads a large file as a set of byte ranges fetched in parallel, each written straight to its place in a
+ * preallocated file. Finished segments are recorded in a checkpoint file next to the download, so a download
+ * that fails (or a process that dies) part way through carries on from where it got to when run again, rather
+ * than starting over. A segment that fails is retried from the byte it had reached.
+ *
+ * The file is downloaded to file.part and renamed once complete. If the server doesn't support ranges the file
+ * is downloaded in one piece, without resume.
+ *
+ * Example use:
+ *
+ *     RangedDownload download = new RangedDownload(transport, url, Paths.get("results.tar"));
+ *     download.setConnections(8);
+ *     long size = download.run((bytes, total) -> System.out.println(bytes + "/" + total));
+ *
+ * @author slicify
+ *
+ */
+public class RangedDownload {
+
+	public static final long DEFAULT_SEGMENT_SIZE = 8 << 20;
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	private static final String PART_SUFFIX = ".part";
+	private static final String CHECKPOINT_SUFFIX = ".part.checkpoint";
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final PooledHttpsTransport Transport;
+	private final String Url;
+	private final Path File;
+
+	private long SegmentSize = DEFAULT_SEGMENT_SIZE;
+	private int Connections = DEFAULT_CONNECTIONS;
+	private ReconnectPolicy Retry = new ReconnectPolicy(3, 1000, 10000, 0);
+
+	/**
+	 * The file on the server has changed since the checkpoint was written, so the parts already downloaded are
+	 * no use.
+	 */
+	private static class ChangedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		ChangedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * @param transport
+	 * @param url Direct link to the file
+	 * @param file Where to save it
+	 */
+	public RangedDownload(PooledHttpsTransport transport, String url, Path file) {
+		Transport = transport;
+		Url = url;
+		File = file;
+	}
+
+	/**
+	 * @param bytes Size of each range request. Also the unit of resume - a segment cut off part way through is
+	 * fetched again from the start on the next run.
+	 */
+	public void setSegmentSize(long bytes)
+	{
+		if(bytes <= 0)
+			throw new IllegalArgumentException("Segment size must be greater than 0");
+		SegmentSize = bytes;
+	}
+
+	/**
+	 * @param connections Maximum number of segments fetched at once
+	 */
+	public void setConnections(int connections)
+	{
+		if(connections <= 0)
+			throw new IllegalArgumentException("Connections must be greater than 0");
+		Connections = connections;
+	}
+
+	/**
+	 * @param retry Attempts for each segment and backoff between them (the connect timeout isn't used)
+	 */
+	public void setRetry(ReconnectPolicy retry)
+	{
+		Retry = retry;
+	}
+
+	/**
+	 * @return File the download is written to until it is complete
+	 */
+	public Path getPartPath() {
+		return File.resolveSibling(File.getFileName() + PART_SUFFIX);
+	}
+
+	/**
+	 * @return File recording which segments have been downloaded
+	 */
+	public Path getCheckpointPath() {
+		return File.resolveSibling(File.getFileName() + CHECKPOINT_SUFFIX);
+	}
+
+	/**
+	 * Download the file, carrying on from the checkpoint if there is one for the same file on the server.
+	 *
+	 * @param progress Told the bytes downloaded so far (including those from earlier runs), can be null. Called
+	 * from the download threads.
+	 * @return Size of the file
+	 * @throws IOException If a segment still fails after its retries. The parts downloaded so far are kept, so
+	 * running the download again resumes it.
+	 */
+	public long run(TransferProgress progress) throws IOException
+	{
+		//ask for the first byte, to find the size and whether ranges work
+		HttpGet probe = new HttpGet(Url);
+		probe.setHeader("Range", "bytes=0-0");
+		HttpResponse response = Transport.send(probe);
+		int status = response.getStatusLine().getStatusCode();
+		if(status == 200)
+			return whole(response.getEntity(), progress);
+
+		long total;
+		String validator;
+		try
+		{
+			if(status != 206 && status != 416)
+				throw new IOException("Download failed:" + response.getStatusLine() + " for " + Url);
+			total = total(response);
+			validator = validator(response);
+		}
+		finally
+		{
+			EntityUtils.consume(response.getEntity());
+		}
+		if(total < 0)
+			return whole(null, progress);
+
+		try
+		{
+			return segments(total, validator, progress);
+		}
+		catch(ChangedException e)
+		{
+			//start again from scratch next time
+			Files.deleteIfExists(getCheckpointPath());
+			Files.deleteIfExists(getPartPath());
+			throw e;
+		}
+	}
+
+	private long segments(long total, String validator, TransferProgress progress) throws IOException
+	{
+		int count = (int) ((total + SegmentSize - 1) / SegmentSize);
+		Path part = getPartPath();
+		Path checkpointPath = getCheckpointPath();
+		String header = "slicify-download " + total + " " + SegmentSize + " " + (validator == null ? "-" : validator);
+
+		//pick up the segments done by an earlier run, if it was for the same file
+		BitSet done = new BitSet(count);
+		boolean resume = validator != null && Files.exists(part) && Files.size(part) == total && read(checkpointPath, header, done);
+		if(!resume)
+		{
+			done.clear();
+			Files.deleteIfExists(part);
+			Files.write(checkpointPath, (header + "\n").getBytes(StandardCharsets.US_ASCII));
+		}
+
+		final AtomicLong received = new AtomicLong();
+		final ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<Integer>();
+		for(int i=0; i<count; i++)
+		{
+			if(done.get(i))
+				received.addAndGet(Math.min(SegmentSize, total - i * SegmentSize));
+			else
+				pending.add(i);
+		}
+		if(progress != null)
+			progress.progress(received.get(), total);
+
+		try(FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			OutputStream checkpoint = Files.newOutputStream(checkpointPath, StandardOpenOption.APPEND))
+		{
+			//preallocate, so each segment can be written in place
+			if(channel.size() < total)
+				channel.write(ByteBuffer.wrap(new byte[1]), total - 1);
+
+			int workers = Math.min(Connections, pending.size());
+			if(workers > 0)
+			{
+				ExecutorService executor = Executors.newFixedThreadPool(workers, new AsyncSlicifyNode.DaemonThreadFactory("slicify-download"));
+				try
+				{
+					CompletableFuture<?>[] running = new CompletableFuture<?>[workers];
+					for(int i=0; i<workers; i++)
+					{
+						running[i] = CompletableFuture.runAsync(() -> {
+							Integer segment;
+							while((segment = pending.poll()) != null)
+							{
+								try
+								{
+									fetch(segment, total, validator, channel, received, progress);
+									record(segment, channel, checkpoint);
+								}
+								catch(IOException e)
+								{
+									//stop the other workers taking new segments
+									pending.clear();
+									throw new CompletionException(e);
+								}
+							}
+						}, executor);
+					}
+					CompletableFuture.allOf(running).join();
+				}
+				catch(CompletionException e)
+				{
+					if(e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw e;
+				}
+				finally
+				{
+					executor.shutdownNow();
+				}
+			}
+			channel.force(false);
+		}
+
+		finish(part);
+		Files.deleteIfExists(checkpointPath);
+		return total;
+	}
+
+	/**
+	 * Fetch one segment into its place in the file, retrying from the byte reached if the connection fails.
+	 */
+	private void fetch(int segment, long total, String validator, FileChannel channel, AtomicLong received, TransferProgress progress) throws IOException
+	{
+		long position = segment * SegmentSize;
+		long end = Math.min(total, position + SegmentSize);
+		byte[] chunk = new byte[CHUNK_SIZE];
+		int attempt = 0;
+		while(true)
+		{
+			HttpGet get = new HttpGet(Url);
+			get.setHeader("Range", "bytes=" + position + "-" + (end - 1));
+			if(validator != null)
+				get.setHeader("If-Range", validator);
+
+			try
+			{
+				HttpResponse response = Transport.send(get);
+				boolean complete = false;
+				try
+				{
+					int status = response.getStatusLine().getStatusCode();
+					if(status == 200)
+						throw new ChangedException("File changed on the server during the download: " + Url);
+					if(status != 206)
+						throw new IOException("Download of bytes " + position + "-" + (end - 1) + " failed:" + response.getStatusLine());
+					if(!response.containsHeader("Content-Range") || !response.getFirstHeader("Content-Range").getValue().startsWith("bytes " + position + "-"))
+						throw new IOException("Server sent the wrong range for bytes " + position + "-" + (end - 1));
+
+					try(InputStream in = response.getEntity().getContent())
+					{
+						int read;
+						while(position < end && (read = in.read(chunk, 0, (int) Math.min(chunk.length, end - position))) >= 0)
+						{
+							ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, read);
+							while(buffer.hasRemaining())
+								channel.write(buffer, position + buffer.position());
+							position += read;
+							long bytes = received.addAndGet(read);
+							if(progress != null)
+								progress.progress(bytes, total);
+						}
+					}
+					if(position < end)
+						throw new IOException("Download of bytes " + position + "-" + (end - 1) + " ended early");
+					complete = true;
+					return;
+				}
+				finally
+				{
+					//drop the connection rather than reuse it part way through a response
+					if(!complete)
+						get.abort();
+				}
+			}
+			catch(ChangedException e)
+			{
+				throw e;
+			}
+			catch(IOException e)
+			{
+				if(++attempt >= Retry.getMaxAttempts())
+					throw e;
+			}
+
+			try
+			{
+				Thread.sleep(Retry.getDelay(attempt));
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted downloading " + Url);
+			}
+		}
+	}
+
+	/**
+	 * Mark a segment done, once its data is on disk.
+	 */
+	private void record(int segment, FileChannel channel, OutputStream checkpoint) throws IOException
+	{
+		channel.force(false);
+		synchronized(checkpoint)
+		{
+			checkpoint.write((segment + "\n").getBytes(StandardCharsets.US_ASCII));
+			checkpoint.flush();
+		}
+	}
+
+	/**
+	 * Read the segments done from a checkpoint.
+	 * @return False if there is no checkpoint, or it is for a different file or segment size
+	 */
+	private static boolean read(Path checkpoint, String header, BitSet done) throws IOException
+	{
+		if(!Files.exists(checkpoint))
+			return false;
+		try(BufferedReader reader = Files.newBufferedReader(checkpoint, StandardCharsets.US_ASCII))
+		{
+			if(!header.equals(reader.readLine()))
+				return false;
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				try
+				{
+					done.set(Integer.parseInt(line.trim()));
+				}
+				catch(NumberFormatException e)
+				{
+					//half written line from a run that died
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Download without ranges, for servers that don't support them.
+	 *
+	 * @param entity Body of a full response already received, or null to request one
+	 */
+	private long whole(HttpEntity entity, TransferProgress progress) throws IOException
+	{
+		if(entity == null)
+		{
+			HttpResponse response = Transport.send(new HttpGet(Url));
+			entity = response.getEntity();
+			if(response.getStatusLine().getStatusCode() != 200 || entity == null)
+			{
+				EntityUtils.consume(entity);
+				throw new IOException("Download failed:" + response.getStatusLine() + " for " + Url);
+			}
+		}
+
+		Path part = getPartPath();
+		long total = entity.getContentLength();
+		long received = 0;
+		try(InputStream in = entity.getContent();
+			OutputStream out = Files.newOutputStream(part))
+		{
+			byte[] chunk = new byte[CHUNK_SIZE];
+			int read;
+			while((read = in.read(chunk)) >= 0)
+			{
+				out.write(chunk, 0, read);
+				received += read;
+				if(progress != null)
+					progress.progress(received, total);
+			}
+		}
+		if(total >= 0 && received != total)
+			throw new IOException("Download ended after " + received + " of " + total + " bytes: " + Url);
+		finish(part);
+		Files.deleteIfExists(getCheckpointPath());
+		return received;
+	}
+
+	private void finish(Path part) throws IOException
+	{
+		try
+		{
+			Files.move(part, File, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(AtomicMoveNotSupportedException e)
+		{
+			Files.move(part, File, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @return Size of the file from the Content-Range of a ranged response, or -1 if not given
+	 */
+	private static long total(HttpResponse response)
+	{
+		Header range = response.getFirstHeader("Content-Range");
+		if(range == null)
+			return -1;
+		String value = range.getValue();
+		int slash = value.lastIndexOf('/');
+		try
+		{
+			return Long.parseLong(value.substring(slash + 1).trim());
+		}
+		catch(NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * @return Strong ETag, else Last-Modified, to check the file hasn't changed between runs - null if neither
+	 */
+	private static String validator(HttpResponse response)
+	{
+		Header etag = response.getFirstHeader("ETag");
+		if(etag != null && !etag.getValue().startsWith("W/"))
+			return etag.getValue();
+		Header modified = response.getFirstHeader("Last-Modified");
+		return modified == null ? null : modified.getValue();
+	}
+
+	@Override
+	public String toString() {
+		return "RangedDownload[" + Url + " -> " + File + "]";
+	}
+}
@@ -0,0 +1,85 @@
+package com.slicify;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a NodeSSHClient reconnects after losing its connection: how many attempts to make, and how long to wait
+ * between them. The wait doubles after each failed attempt up to a maximum, and is jittered (a random amount
+ * between half and all of it), so a fleet of clients dropped by the same gateway blip doesn't reconnect in
+ * lockstep. MediaFireTransfers uses the same attempts and backoff to retry failed transfers.
+ *
+ * @author slicify
+ *
+ */
+public final class ReconnectPolicy {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 8;
+	public static final long DEFAULT_BASE_DELAY = 1000;
+	public static final long DEFAULT_MAX_DELAY = 60000;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+
+	private final int MaxAttempts;
+	private final long BaseDelay;
+	private final long MaxDelay;
+	private final int ConnectTimeout;
+
+	public ReconnectPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_CONNECT_TIMEOUT);
+	}
+
+	/**
+	 * @param maxAttempts Connection attempts before giving up
+	 * @param baseDelayms Wait before the second attempt (the first is made straight away)
+	 * @param maxDelayms Longest wait between attempts
+	 * @param connectTimeoutms Timeout for each attempt, 0 for infinite
+	 */
+	public ReconnectPolicy(int maxAttempts, long baseDelayms, long maxDelayms, int connectTimeoutms) {
+		if(maxAttempts <= 0)
+			throw new IllegalArgumentException("Max attempts must be greater than 0");
+		if(baseDelayms < 0 || maxDelayms < baseDelayms)
+			throw new IllegalArgumentException("Delays must be >= 0, and the max at least the base delay");
+		if(connectTimeoutms < 0)
+			throw new IllegalArgumentException("Connect timeout must be >= 0");
+		MaxAttempts = maxAttempts;
+		BaseDelay = baseDelayms;
+		MaxDelay = maxDelayms;
+		ConnectTimeout = connectTimeoutms;
+	}
+
+	public int getMaxAttempts() {
+		return MaxAttempts;
+	}
+
+	public long getBaseDelay() {
+		return BaseDelay;
+	}
+
+	public long getMaxDelay() {
+		return MaxDelay;
+	}
+
+	public int getConnectTimeout() {
+		return ConnectTimeout;
+	}
+
+	/**
+	 * @param attempt Attempt about to be made, from 1 for the first retry
+	 * @return Milliseconds to wait before the attempt
+	 */
+	public long getDelay(int attempt) {
+		if(attempt <= 0)
+			return 0;
+		long delay = BaseDelay;
+		for(int i=1; i<attempt && delay < MaxDelay; i++)
+			delay *= 2;
+		delay = Math.min(delay, MaxDelay);
+		if(delay == 0)
+			return 0;
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay - delay / 2 + 1);
+	}
+
+	@Override
+	public String toString() {
+		return "ReconnectPolicy[attempts=" + MaxAttempts + ", delay=" + BaseDelay + "-" + MaxDelay + "ms]";
+	}
+}
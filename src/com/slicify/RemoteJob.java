@@ -0,0 +1,202 @@
+package com.slicify;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.regex.Pattern;
+
+/**
+ * A long-running command started on a node with NodeSSHClient.startJob(). The command runs under nohup, detached
+ * from the shell, so it carries on if the SSH connection drops. Its output goes to a log file, and its exit status
+ * is written to a status file when it finishes, so the job can be checked again after reconnecting, or from a
+ * new client using getJob().
+ *
+ * The job files are kept in ~/.slicify-jobs on the node.
+ *
+ * Example use:
+ *
+ *     sshClient.setReconnectPolicy(new ReconnectPolicy());
+ *     RemoteJob job = sshClient.startJob("render", "./render.sh scene1", 60000);
+ *     int exitStatus = job.waitFor(30000, 0);
+ *     sshClient.download(job.getLogPath(), Paths.get("render.log"), 0);
+ *
+ * @author slicify
+ *
+ */
+public class RemoteJob {
+
+	public static final String JOB_DIR = ".slicify-jobs";
+	public static final int RUNNING = -1;
+	public static final int CHECK_TIMEOUT = 60000;
+
+	private static final Pattern NAME = Pattern.compile("[A-Za-z0-9._-]+");
+
+	private final NodeSSHClient Client;
+	private final String Name;
+
+	RemoteJob(NodeSSHClient client, String name) {
+		if(!NAME.matcher(name).matches())
+			throw new IllegalArgumentException("Job name can only contain letters, digits, '.', '_' and '-': " + name);
+		Client = client;
+		Name = name;
+	}
+
+	public String getName() {
+		return Name;
+	}
+
+	/**
+	 * @return Path of the job's output on the node, relative to the login directory (e.g. for
+	 * NodeSSHClient.download())
+	 */
+	public String getLogPath() {
+		return JOB_DIR + "/" + Name + ".log";
+	}
+
+	void start(String command, int timeoutms) throws IOException
+	{
+		//the status is written to a temp file and renamed, so it is never seen half written
+		String script = "( " + command + " ); echo $? > " + file("tmp") + " && mv -f " + file("tmp") + " " + file("exit");
+		CommandResult result = Client.run("mkdir -p ~/" + JOB_DIR + " && rm -f " + file("exit") + " && { nohup bash -c "
+				+ ShellTransfer.quote(script) + " > " + file("log") + " 2>&1 < /dev/null & } && echo $! > " + file("pid")
+				+ " && disown", timeoutms);
+		if(result.isTimeout())
+			throw new IOException("Timed out starting job " + Name);
+		if(result.getExitStatus() != 0)
+			throw new IOException("Couldn't start job " + Name + ": " + result.getOutput());
+	}
+
+	/**
+	 * Check on the job.
+	 * @param timeoutms
+	 * @return The job's exit status, or RUNNING if it hasn't finished
+	 * @throws IOException If the check fails, or the job has stopped without saving a status (e.g. it was killed)
+	 */
+	public int poll(int timeoutms) throws IOException
+	{
+		return parse(status(timeoutms));
+	}
+
+	/**
+	 * Wait for the job to finish, checking on it every poll interval. If the connection drops the client is
+	 * reconnected (see NodeSSHClient.setReconnectPolicy()) and the wait carries on, as the job itself isn't
+	 * affected.
+	 * @param pollms Time between checks
+	 * @param timeoutms Maximum time to wait in milliseconds, 0 for infinite
+	 * @return The job's exit status, or RUNNING if it was still running at the timeout
+	 * @throws IOException If the client can't reconnect, or the job has stopped without saving a status
+	 */
+	public int waitFor(long pollms, long timeoutms) throws IOException
+	{
+		long deadline = System.currentTimeMillis() + timeoutms;
+		while(true)
+		{
+			String status;
+			try
+			{
+				status = status(CHECK_TIMEOUT);
+			}
+			catch(IOException e)
+			{
+				//ride out a dropped connection
+				if(Client.getReconnectPolicy() == null)
+					throw e;
+				if(!Client.isConnected())
+					Client.reconnect();
+				status = null;
+			}
+
+			if(status != null)
+			{
+				int exitStatus = parse(status);
+				if(exitStatus != RUNNING)
+					return exitStatus;
+			}
+
+			long wait = pollms;
+			if(timeoutms > 0)
+			{
+				long left = deadline - System.currentTimeMillis();
+				if(left <= 0)
+					return RUNNING;
+				wait = Math.min(wait, left);
+			}
+
+			try
+			{
+				Thread.sleep(wait);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for job " + Name);
+			}
+		}
+	}
+
+	/**
+	 * @param lines
+	 * @param timeoutms
+	 * @return The last lines of the job's output
+	 * @throws IOException
+	 */
+	public String tail(int lines, int timeoutms) throws IOException
+	{
+		CommandResult result = Client.run("tail -n " + lines + " " + file("log"), timeoutms);
+		if(result.isTimeout())
+			throw new IOException("Timed out reading the output of job " + Name);
+		return result.getOutput();
+	}
+
+	/**
+	 * Stop the job, and anything it started.
+	 * @param timeoutms
+	 * @throws IOException
+	 */
+	public void kill(int timeoutms) throws IOException
+	{
+		//an interactive shell starts each job in its own process group, so kill the group if there is one
+		String pid = "$(cat " + file("pid") + ")";
+		CommandResult result = Client.run("kill -- -" + pid + " 2> /dev/null || kill " + pid, timeoutms);
+		if(result.isTimeout())
+			throw new IOException("Timed out stopping job " + Name);
+	}
+
+	/**
+	 * @return "running", the exit status, or empty if the job has gone
+	 */
+	private String status(int timeoutms) throws IOException
+	{
+		//a zombie doesn't count as running, and the second cat catches a job that finishes between the first
+		//cat and the ps
+		String exit = "cat " + file("exit") + " 2> /dev/null";
+		CommandResult result = Client.run(exit + " || { ps -o stat= -p \"$(cat " + file("pid") + " 2> /dev/null)\" 2> /dev/null | grep -q '^[^Z]' && echo running || "
+				+ exit + "; }", timeoutms);
+		if(result.isTimeout())
+			throw new IOException("Timed out checking job " + Name);
+		return result.getOutput().trim();
+	}
+
+	private int parse(String status) throws IOException
+	{
+		if(status.equals("running"))
+			return RUNNING;
+		try
+		{
+			return Integer.parseInt(status);
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IOException("Job " + Name + " is no longer running on the node, and saved no exit status");
+		}
+	}
+
+	private String file(String extension)
+	{
+		return "~/" + JOB_DIR + "/" + Name + "." + extension;
+	}
+
+	@Override
+	public String toString() {
+		return "RemoteJob[" + Name + "]";
+	}
+}
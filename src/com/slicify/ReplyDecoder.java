@@ -0,0 +1,279 @@
+package com.slicify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Streaming (StAX) decoder for web service replies. The parser factories are created once and reused, and
+ * each of the standard handlers only keeps the text it has been asked for, rather than building a DOM
+ * of the whole reply.
+ *
+ * @author slicify
+ *
+ */
+public final class ReplyDecoder {
+
+	//creating readers from a configured factory is thread safe, so one factory serves every call
+	private static final XMLInputFactory InputFactory = createInputFactory();
+
+	//DocumentBuilders aren't thread safe, so the legacy DOM path keeps one per thread
+	private static final ThreadLocal<DocumentBuilder> DocumentBuilders = new ThreadLocal<DocumentBuilder>() {
+		@Override
+		protected DocumentBuilder initialValue() {
+			try
+			{
+				return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			}
+			catch(ParserConfigurationException e)
+			{
+				throw new IllegalStateException("Unable to create XML DOM parser", e);
+			}
+		}
+	};
+
+	private ReplyDecoder() {
+	}
+
+	private static XMLInputFactory createInputFactory()
+	{
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	}
+
+	/**
+	 * Run the handler over the XML in the passed stream. The stream itself is not closed.
+	 *
+	 * @param in
+	 * @param handler
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	public static <T> T decode(InputStream in, ReplyHandler<T> handler) throws XMLStreamException
+	{
+		XMLStreamReader reader = InputFactory.createXMLStreamReader(in);
+		try
+		{
+			return handler.read(reader);
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Create a streaming reader over the passed stream, for callers that want to pull records themselves.
+	 *
+	 * @param in
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	public static XMLStreamReader createReader(InputStream in) throws XMLStreamException
+	{
+		return InputFactory.createXMLStreamReader(in);
+	}
+
+	/**
+	 * Parse the whole stream into a DOM, reusing this thread's DocumentBuilder. Only used by the legacy
+	 * query() / XMLDoc path.
+	 *
+	 * @param in
+	 * @return
+	 * @throws SAXException
+	 * @throws IOException
+	 */
+	public static Document parseDocument(InputStream in) throws SAXException, IOException
+	{
+		DocumentBuilder db = DocumentBuilders.get();
+		db.reset();
+		return db.parse(in);
+	}
+
+	/**
+	 * Handler returning the text content of the indexed element (in document order, starting with the root
+	 * element) - the same value as HttpsGet.parseReply(index). Stops reading once the element has been found.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public static ReplyHandler<String> text(final int index)
+	{
+		return new ReplyHandler<String>() {
+			@Override
+			public String read(XMLStreamReader reader) throws XMLStreamException {
+				int count = 0;
+				while(reader.hasNext())
+				{
+					if(reader.next() == XMLStreamConstants.START_ELEMENT)
+					{
+						if(count == index)
+							return readElementText(reader);
+						count++;
+					}
+				}
+				throw new IndexOutOfBoundsException("Index out of bounds in web service response (" + index + "/" + count + ")");
+			}
+		};
+	}
+
+	/**
+	 * Handler returning the text content of every element with the specified (local) tag name, in document order.
+	 *
+	 * @param tagName
+	 * @return
+	 */
+	public static ReplyHandler<List<String>> texts(final String tagName)
+	{
+		return new ReplyHandler<List<String>>() {
+			@Override
+			public List<String> read(XMLStreamReader reader) throws XMLStreamException {
+				List<String> result = new ArrayList<String>();
+				while(reader.hasNext())
+				{
+					if(reader.next() == XMLStreamConstants.START_ELEMENT && tagName.equals(reader.getLocalName()))
+						result.add(readElementText(reader));
+				}
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Handler returning the text content of the elements with any of the specified tag names, grouped by name.
+	 *
+	 * @param tagNames
+	 * @return Map of tag name to texts in document order. Every requested name has an entry, even if empty.
+	 */
+	public static ReplyHandler<Map<String, List<String>>> textsByName(final String... tagNames)
+	{
+		return new ReplyHandler<Map<String, List<String>>>() {
+			@Override
+			public Map<String, List<String>> read(XMLStreamReader reader) throws XMLStreamException {
+				Map<String, List<String>> result = new HashMap<String, List<String>>();
+				for(String tagName : tagNames)
+					result.put(tagName, new ArrayList<String>());
+
+				while(reader.hasNext())
+				{
+					if(reader.next() == XMLStreamConstants.START_ELEMENT)
+					{
+						List<String> texts = result.get(reader.getLocalName());
+						if(texts != null)
+							texts.add(readElementText(reader));
+					}
+				}
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Handler that keeps every element name and text, for the general purpose ServiceReply.
+	 *
+	 * @return
+	 */
+	static ReplyHandler<ServiceReply> all()
+	{
+		return new ReplyHandler<ServiceReply>() {
+			@Override
+			public ServiceReply read(XMLStreamReader reader) throws XMLStreamException {
+				List<String> names = new ArrayList<String>();
+				List<String> texts = new ArrayList<String>();
+
+				//element text includes its descendants' text, so append to every open element
+				List<StringBuilder> open = new ArrayList<StringBuilder>();
+				List<Integer> openIndex = new ArrayList<Integer>();
+				while(reader.hasNext())
+				{
+					switch(reader.next())
+					{
+					case XMLStreamConstants.START_ELEMENT:
+						openIndex.add(names.size());
+						open.add(new StringBuilder());
+						names.add(reader.getLocalName());
+						texts.add(null);
+						break;
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.CDATA:
+					case XMLStreamConstants.SPACE:
+						for(StringBuilder sb : open)
+							sb.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						int last = open.size() - 1;
+						texts.set(openIndex.remove(last), open.remove(last).toString());
+						break;
+					}
+				}
+				return new ServiceReply(names, texts);
+			}
+		};
+	}
+
+	/**
+	 * Read the text content of the current element, including the text of any child elements, and leave
+	 * the reader on its end tag.
+	 *
+	 * @param reader Positioned on a START_ELEMENT
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	public static String readElementText(XMLStreamReader reader) throws XMLStreamException
+	{
+		StringBuilder sb = null;
+		String single = null;
+		int depth = 1;
+		while(depth > 0)
+		{
+			switch(reader.next())
+			{
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				//most elements have a single text node, so avoid the builder unless we need it
+				if(single == null && sb == null)
+					single = reader.getText();
+				else
+				{
+					if(sb == null)
+					{
+						sb = new StringBuilder(single);
+						single = null;
+					}
+					sb.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				}
+				break;
+			case XMLStreamConstants.END_DOCUMENT:
+				throw new XMLStreamException("Unexpected end of web service response");
+			}
+		}
+
+		if(sb != null)
+			return sb.toString();
+		return single != null ? single : "";
+	}
+}
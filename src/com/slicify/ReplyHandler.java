@@ -0,0 +1,26 @@
+package com.slicify;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pulls the value(s) needed by one operation out of a web service reply, as the reply is streamed in.
+ * Handlers can stop reading as soon as they have what they need - the rest of the reply is discarded.
+ *
+ * See ReplyDecoder for the standard handlers.
+ *
+ * @author slicify
+ *
+ * @param <T> Type of value decoded from the reply
+ */
+public interface ReplyHandler<T> {
+
+	/**
+	 * Read the reply.
+	 *
+	 * @param reader Positioned at the start of the document
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	public T read(XMLStreamReader reader) throws XMLStreamException;
+}
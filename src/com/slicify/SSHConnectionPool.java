@@ -0,0 +1,728 @@
+package com.slicify;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Pool of authenticated SSH transports to the Slicify gateway, shared by many NodeSSHClients.
+ *
+ * Transports are keyed by login (username + booking password), so a second shell on the same node reuses the
+ * existing transport and opens another session over it, rather than doing a new key exchange. Each transport
+ * carries at most maxSessions sessions - set this to 1 if the gateway only allows one shell per connection,
+ * in which case transports are still reused once a shell has been closed.
+ *
+ * The number of handshakes running at once is limited, so connecting a large fleet doesn't flood the gateway,
+ * and connectAhead() can be used to open transports in the background while other work is going on.
+ * Transports with no sessions are closed once they have been idle for the idle timeout.
+ *
+ * Each transport sends SSH keep-alives while idle, and a background health check pings every transport so a dead
+ * one is found and replaced while nothing is using it, rather than by the next command timing out.
+ *
+ * Example use:
+ *
+ *     SSHConnectionPool pool = new SSHConnectionPool();
+ *     for(BookingInfo info : fleet.getNodes())
+ *         pool.connectAhead(username, info.getPassword());
+ *     NodeSSHClient client = new NodeSSHClient(pool);
+ *     client.connect(username, info.getPassword());
+ *
+ * @author slicify
+ *
+ */
+public class SSHConnectionPool {
+
+	public static final int DEFAULT_MAX_HANDSHAKES = 8;
+	public static final int DEFAULT_MAX_SESSIONS = 4;
+	public static final long DEFAULT_IDLE_TIMEOUT = 300000;
+	public static final long DEFAULT_HEALTH_INTERVAL = 30000;
+	public static final int DEFAULT_PING_TIMEOUT = 10000;
+
+	//how long connectAhead() waits for a handshake slot
+	private static final int QUEUE_TIMEOUT = 120000;
+
+	private final int MaxSessions;
+	private final long IdleTimeout;
+	private final Semaphore Handshakes;
+	private final ScheduledExecutorService Executor;
+	//reconnects sleep through their backoff, so they are kept off the handshake and maintenance threads
+	private final ExecutorService Recovery = Executors.newCachedThreadPool(new AsyncSlicifyNode.DaemonThreadFactory("slicify-ssh-recover"));
+
+	//transports for each login, plus a lookup from client back to its transport for release()
+	private final Map<String, List<PooledTransport>> Transports = new HashMap<String, List<PooledTransport>>();
+	private final Map<SSHClient, PooledTransport> ByClient = new IdentityHashMap<SSHClient, PooledTransport>();
+	private boolean Closed = false;
+	private ScheduledFuture<?> HealthCheck = null;
+
+	//clients to reconnect when their transport is found dead
+	private final Set<NodeSSHClient> Clients = Collections.newSetFromMap(new ConcurrentHashMap<NodeSSHClient, Boolean>());
+	private volatile int KeepAlive = NodeSSHClient.DEFAULT_KEEP_ALIVE;
+	private volatile int PingTimeout = DEFAULT_PING_TIMEOUT;
+	private volatile ConnectTimeouts Timeouts = new ConnectTimeouts();
+	private volatile String Host = NodeSSHClient.SERVER;
+	private volatile int Port = SSHClient.DEFAULT_PORT;
+
+	private final AtomicLong HandshakeCount = new AtomicLong();
+	private final AtomicLong ReuseCount = new AtomicLong();
+	private final AtomicLong DeadCount = new AtomicLong();
+
+	public SSHConnectionPool() {
+		this(DEFAULT_MAX_HANDSHAKES, DEFAULT_MAX_SESSIONS, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * @param maxHandshakes Maximum number of transports being connected and authenticated at once
+	 * @param maxSessions Maximum number of sessions (shells) open over one transport
+	 * @param idleTimeoutms Transports with no sessions for longer than this are disconnected
+	 */
+	public SSHConnectionPool(int maxHandshakes, int maxSessions, long idleTimeoutms) {
+		if(maxHandshakes <= 0 || maxSessions <= 0)
+			throw new IllegalArgumentException("Handshake and session limits must be greater than 0");
+		if(idleTimeoutms <= 0)
+			throw new IllegalArgumentException("Idle timeout must be greater than 0");
+
+		MaxSessions = maxSessions;
+		IdleTimeout = idleTimeoutms;
+		Handshakes = new Semaphore(maxHandshakes, true);
+		Executor = Executors.newScheduledThreadPool(maxHandshakes, new AsyncSlicifyNode.DaemonThreadFactory("slicify-ssh"));
+
+		long period = Math.max(1000, idleTimeoutms / 2);
+		Executor.scheduleWithFixedDelay(() -> evictIdle(), period, period, TimeUnit.MILLISECONDS);
+		scheduleHealthCheck(DEFAULT_HEALTH_INTERVAL);
+	}
+
+	/**
+	 * Send an SSH keep-alive on each new transport after this many seconds without traffic, so idle transports
+	 * aren't dropped by NAT or firewalls along the way. 0 turns keep-alives off.
+	 * @param seconds
+	 */
+	public void setKeepAlive(int seconds)
+	{
+		if(seconds < 0)
+			throw new IllegalArgumentException("Keep-alive must be >= 0");
+		KeepAlive = seconds;
+	}
+
+	/**
+	 * Set the timeouts for connecting, key exchange and login on new transports, so a stalled handshake gives up
+	 * its slot rather than holding up every connect queued behind it.
+	 * @param timeouts
+	 */
+	public void setConnectTimeouts(ConnectTimeouts timeouts)
+	{
+		if(timeouts == null)
+			throw new IllegalArgumentException("Timeouts can't be null");
+		Timeouts = timeouts;
+	}
+
+	/**
+	 * Connect new transports to a different address for the gateway, e.g. a local end of an SSH tunnel. The
+	 * gateway's host key is still checked.
+	 * @param host
+	 * @param port
+	 */
+	public void setServer(String host, int port)
+	{
+		if(host == null || port <= 0)
+			throw new IllegalArgumentException("Host and port are required");
+		Host = host;
+		Port = port;
+	}
+
+	/**
+	 * How often every transport is pinged to find dead ones before a client tries to use them. 0 turns the
+	 * health check off.
+	 * @param intervalms
+	 */
+	public void setHealthCheckInterval(long intervalms)
+	{
+		if(intervalms < 0)
+			throw new IllegalArgumentException("Interval must be >= 0");
+		scheduleHealthCheck(intervalms);
+	}
+
+	/**
+	 * @param timeoutms How long a transport has to answer a health check ping
+	 */
+	public void setPingTimeout(int timeoutms)
+	{
+		if(timeoutms <= 0)
+			throw new IllegalArgumentException("Ping timeout must be greater than 0");
+		PingTimeout = timeoutms;
+	}
+
+	private synchronized void scheduleHealthCheck(long intervalms)
+	{
+		if(HealthCheck != null)
+			HealthCheck.cancel(false);
+		HealthCheck = null;
+		if(intervalms > 0 && !Closed)
+			HealthCheck = Executor.scheduleWithFixedDelay(() -> checkHealth(), intervalms, intervalms, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Ping every connected transport in the background, and drop the ones that don't answer. If a dead
+	 * transport had shells open on it, a replacement is connected straight away, and the clients using the pool
+	 * that have a reconnect policy are reconnected, so they are ready before their next command. This runs
+	 * every health check interval, but can also be called directly, e.g. after the network has been down.
+	 *
+	 * @return Completes with the number of dead transports found, once every ping has finished
+	 */
+	public CompletableFuture<Integer> checkHealth()
+	{
+		List<PooledTransport> transports = new ArrayList<PooledTransport>();
+		synchronized(this)
+		{
+			for(List<PooledTransport> list : Transports.values())
+			{
+				for(PooledTransport transport : list)
+				{
+					if(transport.Client.getNow(null) != null)
+						transports.add(transport);
+				}
+			}
+		}
+
+		final int timeout = PingTimeout;
+		List<CompletableFuture<Boolean>> pings = new ArrayList<CompletableFuture<Boolean>>();
+		for(final PooledTransport transport : transports)
+		{
+			final SSHClient client = transport.Client.getNow(null);
+			try
+			{
+				pings.add(CompletableFuture.supplyAsync(() -> {
+					if(ping(client, timeout))
+						return true;
+					dead(transport, client);
+					return false;
+				}, Executor));
+			}
+			catch(RejectedExecutionException e)
+			{
+				//pool has been closed
+				break;
+			}
+		}
+
+		return CompletableFuture.allOf(pings.toArray(new CompletableFuture<?>[pings.size()])).thenApply(v -> {
+			int dead = 0;
+			for(CompletableFuture<Boolean> ping : pings)
+			{
+				if(!ping.join())
+					dead++;
+			}
+			return dead;
+		});
+	}
+
+	/**
+	 * Check a transport is still answering.
+	 *
+	 * @param client
+	 * @param timeoutms
+	 * @return
+	 */
+	protected boolean ping(SSHClient client, int timeoutms)
+	{
+		return NodeSSHClient.ping(client, timeoutms);
+	}
+
+	private void dead(PooledTransport transport, SSHClient client)
+	{
+		boolean inUse;
+		boolean closed;
+		synchronized(this)
+		{
+			remove(transport);
+			inUse = transport.Sessions > 0;
+			closed = Closed;
+		}
+		DeadCount.incrementAndGet();
+		disconnect(client);
+		if(closed)
+			return;
+
+		//the shells on it will be back for a new transport, so have one ready
+		if(inUse)
+		{
+			try
+			{
+				connectAhead(transport.Username, transport.Password);
+			}
+			catch(IllegalStateException e)
+			{
+				//closed in the meantime
+				return;
+			}
+		}
+
+		//only the shells that were on the dead transport need reconnecting
+		for(final NodeSSHClient shell : Clients)
+		{
+			if(!shell.usesTransport(client))
+				continue;
+			try
+			{
+				Recovery.execute(() -> shell.recover());
+			}
+			catch(RejectedExecutionException e)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reconnect the client if a health check finds its transport dead (if it has a reconnect policy).
+	 */
+	void register(NodeSSHClient client)
+	{
+		Clients.add(client);
+	}
+
+	void unregister(NodeSSHClient client)
+	{
+		Clients.remove(client);
+	}
+
+	/**
+	 * Get a connected, authenticated transport for the login, reserving one session on it. Reuses a pooled
+	 * transport with a free session if there is one, waits for one that is already being connected, or
+	 * otherwise connects a new one. Every successful call must be matched by release() or discard().
+	 *
+	 * @param username
+	 * @param bookingPassword
+	 * @param timeoutms Timeout for waiting for a handshake slot and for connecting, including waiting for a
+	 * handshake already in progress. 0 for no timeout.
+	 * @return
+	 * @throws IOException
+	 */
+	public SSHClient acquire(String username, String bookingPassword, int timeoutms) throws IOException
+	{
+		PooledTransport transport;
+		boolean open = false;
+		synchronized(this)
+		{
+			if(Closed)
+				throw new IOException("Connection pool is closed");
+
+			transport = find(key(username, bookingPassword), false);
+			if(transport == null)
+			{
+				transport = add(username, bookingPassword);
+				open = true;
+			}
+			else
+				ReuseCount.incrementAndGet();
+			transport.Sessions++;
+		}
+
+		long deadline = System.currentTimeMillis() + timeoutms;
+		if(open)
+			handshake(transport, username, bookingPassword, timeoutms);
+
+		try
+		{
+			if(timeoutms <= 0)
+				return transport.Client.get();
+
+			//a handshake started by someone else may still be running, so only wait for what's left of the timeout
+			long remaining = Math.max(0, deadline - System.currentTimeMillis());
+			return transport.Client.get(remaining, TimeUnit.MILLISECONDS);
+		}
+		catch(TimeoutException e)
+		{
+			releaseSession(transport);
+			throw new IOException("Timed out waiting to connect to " + NodeSSHClient.SERVER);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			releaseSession(transport);
+			throw new InterruptedIOException("Interrupted waiting for SSH connection");
+		}
+		catch(ExecutionException e)
+		{
+			releaseSession(transport);
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error connecting to " + NodeSSHClient.SERVER, e.getCause());
+		}
+	}
+
+	/**
+	 * Open a transport for the login in the background, so a later acquire() doesn't have to wait for the
+	 * handshake. Does nothing if the login already has a transport with a free session.
+	 *
+	 * @param username
+	 * @param bookingPassword
+	 * @return Completes when the transport is connected and authenticated
+	 */
+	public CompletableFuture<Void> connectAhead(final String username, final String bookingPassword)
+	{
+		final PooledTransport transport;
+		synchronized(this)
+		{
+			if(Closed)
+				throw new IllegalStateException("Connection pool is closed");
+
+			PooledTransport existing = find(key(username, bookingPassword), true);
+			if(existing != null)
+				return existing.Client.thenApply(c -> null);
+			transport = add(username, bookingPassword);
+		}
+
+		//a queued handshake gives up its place after a while, rather than waiting behind stalled ones for good
+		Executor.execute(() -> handshake(transport, username, bookingPassword, QUEUE_TIMEOUT));
+		return transport.Client.thenApply(c -> null);
+	}
+
+	/**
+	 * Hand back a session reserved by acquire(). The transport stays open for reuse.
+	 *
+	 * @param client
+	 */
+	public void release(SSHClient client)
+	{
+		PooledTransport transport;
+		synchronized(this)
+		{
+			transport = ByClient.get(client);
+		}
+		if(transport != null)
+			releaseSession(transport);
+	}
+
+	/**
+	 * Hand back a session reserved by acquire() and disconnect its transport, e.g. after an error left it in an
+	 * unknown state. Any other sessions on the same transport are closed too.
+	 *
+	 * @param client
+	 */
+	public void discard(SSHClient client)
+	{
+		synchronized(this)
+		{
+			PooledTransport transport = ByClient.get(client);
+			if(transport != null)
+				remove(transport);
+		}
+		disconnect(client);
+	}
+
+	/**
+	 * Disconnect every transport. Clients using the pool can't connect after this.
+	 */
+	public void close()
+	{
+		List<PooledTransport> all = new ArrayList<PooledTransport>();
+		synchronized(this)
+		{
+			Closed = true;
+			Clients.clear();
+			for(List<PooledTransport> transports : Transports.values())
+				all.addAll(transports);
+			Transports.clear();
+			ByClient.clear();
+		}
+		Executor.shutdownNow();
+		Recovery.shutdownNow();
+
+		for(PooledTransport transport : all)
+		{
+			//fail anything still waiting on a queued connectAhead
+			transport.Client.completeExceptionally(new IOException("Connection pool is closed"));
+			SSHClient client = transport.Client.isCompletedExceptionally() ? null : transport.Client.getNow(null);
+			if(client != null)
+				disconnect(client);
+		}
+	}
+
+	/**
+	 * @return Number of open (or opening) transports
+	 */
+	public synchronized int getTransportCount() {
+		int count = 0;
+		for(List<PooledTransport> transports : Transports.values())
+			count += transports.size();
+		return count;
+	}
+
+	/**
+	 * @return Number of sessions currently reserved across all transports
+	 */
+	public synchronized int getSessionCount() {
+		int count = 0;
+		for(List<PooledTransport> transports : Transports.values())
+		{
+			for(PooledTransport transport : transports)
+				count += transport.Sessions;
+		}
+		return count;
+	}
+
+	/**
+	 * @return Number of successful connect + authenticate handshakes
+	 */
+	public long getHandshakeCount() {
+		return HandshakeCount.get();
+	}
+
+	/**
+	 * @return Number of acquire() calls that were served by an existing transport
+	 */
+	public long getReuseCount() {
+		return ReuseCount.get();
+	}
+
+	/**
+	 * @return Number of transports found dead by health checks
+	 */
+	public long getDeadCount() {
+		return DeadCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "SSHConnectionPool[transports=" + getTransportCount() + ", sessions=" + getSessionCount() +
+				", handshakes=" + getHandshakeCount() + ", reused=" + getReuseCount() + ", dead=" + getDeadCount() + "]";
+	}
+
+	/**
+	 * Create a new transport to the Slicify gateway, verify its host key, and log in.
+	 *
+	 * @param username
+	 * @param bookingPassword
+	 * @param timeoutms Timeout the transport was acquired with. The handshake itself is bounded by the connect
+	 * timeouts (see setConnectTimeouts()).
+	 * @return
+	 * @throws NodeConnectException
+	 */
+	protected SSHClient openTransport(String username, String bookingPassword, int timeoutms) throws IOException
+	{
+		return Handshake.open(Host, Port, username, bookingPassword, Timeouts, KeepAlive);
+	}
+
+	private void handshake(PooledTransport transport, String username, String bookingPassword, int timeoutms)
+	{
+		try
+		{
+			if(timeoutms > 0)
+			{
+				if(!Handshakes.tryAcquire(timeoutms, TimeUnit.MILLISECONDS))
+					throw new IOException("Timed out waiting to connect to " + NodeSSHClient.SERVER);
+			}
+			else
+				Handshakes.acquire();
+
+			SSHClient client;
+			try
+			{
+				client = openTransport(username, bookingPassword, timeoutms);
+			}
+			finally
+			{
+				Handshakes.release();
+			}
+
+			HandshakeCount.incrementAndGet();
+			boolean closed;
+			synchronized(this)
+			{
+				closed = Closed;
+				if(!closed)
+				{
+					ByClient.put(client, transport);
+					transport.LastUsed = System.currentTimeMillis();
+				}
+			}
+			if(closed)
+			{
+				disconnect(client);
+				throw new IOException("Connection pool is closed");
+			}
+			transport.Client.complete(client);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			failed(transport, new InterruptedIOException("Interrupted waiting to connect"));
+		}
+		catch(IOException | RuntimeException e)
+		{
+			failed(transport, e);
+		}
+	}
+
+	private void failed(PooledTransport transport, Throwable cause)
+	{
+		synchronized(this)
+		{
+			remove(transport);
+		}
+		transport.Client.completeExceptionally(cause);
+	}
+
+	private void releaseSession(PooledTransport transport)
+	{
+		SSHClient stale = null;
+		synchronized(this)
+		{
+			if(transport.Sessions > 0)
+				transport.Sessions--;
+			transport.LastUsed = System.currentTimeMillis();
+
+			//drop transports that have died while in use (a failed handshake has already been removed)
+			SSHClient client = transport.Client.isCompletedExceptionally() ? null : transport.Client.getNow(null);
+			if(client != null && !client.isConnected())
+			{
+				remove(transport);
+				stale = client;
+			}
+		}
+		if(stale != null)
+			disconnect(stale);
+	}
+
+	/**
+	 * Find a usable transport for the login. Must hold the lock.
+	 *
+	 * @param anyCapacity If true, return a transport even if all its sessions are in use
+	 */
+	private PooledTransport find(String key, boolean anyCapacity)
+	{
+		List<PooledTransport> transports = Transports.get(key);
+		if(transports == null)
+			return null;
+
+		for(PooledTransport transport : transports)
+		{
+			if(transport.Client.isCompletedExceptionally())
+				continue;
+			SSHClient client = transport.Client.getNow(null);
+			if(client != null && !client.isConnected())
+				continue;
+			if(anyCapacity || transport.Sessions < MaxSessions)
+				return transport;
+		}
+		return null;
+	}
+
+	private PooledTransport add(String username, String bookingPassword)
+	{
+		String key = key(username, bookingPassword);
+		PooledTransport transport = new PooledTransport(key, username, bookingPassword);
+		List<PooledTransport> transports = Transports.get(key);
+		if(transports == null)
+		{
+			transports = new ArrayList<PooledTransport>(1);
+			Transports.put(key, transports);
+		}
+		transports.add(transport);
+		return transport;
+	}
+
+	private void remove(PooledTransport transport)
+	{
+		List<PooledTransport> transports = Transports.get(transport.Key);
+		if(transports != null)
+		{
+			transports.remove(transport);
+			if(transports.isEmpty())
+				Transports.remove(transport.Key);
+		}
+		SSHClient client = transport.Client.getNow(null);
+		if(client != null)
+			ByClient.remove(client);
+	}
+
+	private void evictIdle()
+	{
+		List<SSHClient> idle = new ArrayList<SSHClient>();
+		long cutoff = System.currentTimeMillis() - IdleTimeout;
+		synchronized(this)
+		{
+			Iterator<List<PooledTransport>> lists = Transports.values().iterator();
+			while(lists.hasNext())
+			{
+				List<PooledTransport> transports = lists.next();
+				Iterator<PooledTransport> it = transports.iterator();
+				while(it.hasNext())
+				{
+					PooledTransport transport = it.next();
+					SSHClient client = transport.Client.getNow(null);
+					if(client == null || transport.Sessions > 0)
+						continue;
+					if(transport.LastUsed < cutoff || !client.isConnected())
+					{
+						it.remove();
+						ByClient.remove(client);
+						idle.add(client);
+					}
+				}
+				if(transports.isEmpty())
+					lists.remove();
+			}
+		}
+
+		for(SSHClient client : idle)
+			disconnect(client);
+	}
+
+	private static void disconnect(SSHClient client)
+	{
+		try
+		{
+			client.disconnect();
+		}
+		catch(IOException e)
+		{
+			//already gone
+		}
+	}
+
+	private static String key(String username, String bookingPassword)
+	{
+		return username + "\n" + bookingPassword;
+	}
+
+	/**
+	 * One transport, and the number of sessions reserved on it. Client completes once the handshake is done.
+	 */
+	private static class PooledTransport {
+
+		final String Key;
+		final String Username;
+		final String Password;
+		final CompletableFuture<SSHClient> Client = new CompletableFuture<SSHClient>();
+		int Sessions = 0;
+		long LastUsed = System.currentTimeMillis();
+
+		PooledTransport(String key, String username, String password) {
+			Key = key;
+			Username = username;
+			Password = password;
+		}
+	}
+}
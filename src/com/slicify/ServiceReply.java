@@ -0,0 +1,67 @@
+package com.slicify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable result of a single web service call. Each call gets its own reply, so replies can be
+ * read and passed between threads freely.
+ *
+ * @author slicify
+ *
+ */
+public final class ServiceReply {
+
+	private final List<String> TagNames;
+	private final List<String> Texts;
+
+	/**
+	 * @param tagNames Element names, in document order
+	 * @param texts Text content of each element (including descendants), in the same order
+	 */
+	ServiceReply(List<String> tagNames, List<String> texts) {
+		TagNames = Collections.unmodifiableList(new ArrayList<String>(tagNames));
+		Texts = Collections.unmodifiableList(new ArrayList<String>(texts));
+	}
+
+	/**
+	 * Grab the text content of the indexed element (in document order, starting with the root element).
+	 * For many queries, the XML is a simple structure and this is sufficient to get the result.
+	 *
+	 * @param index
+	 * @return
+	 * @throws IndexOutOfBoundsException
+	 */
+	public String getText(int index) throws IndexOutOfBoundsException
+	{
+		if(Texts.size() < index + 1)
+			throw new IndexOutOfBoundsException("Index out of bounds in web service response (" + index + "/" + Texts.size() + ")");
+
+		return Texts.get(index);
+	}
+
+	/**
+	 * Get the text content of every element with the specified tag name, in document order.
+	 *
+	 * @param tagName
+	 * @return Unmodifiable list, empty if there are no matching elements
+	 */
+	public List<String> getTexts(String tagName)
+	{
+		List<String> result = new ArrayList<String>();
+		for(int i=0; i<TagNames.size(); i++)
+		{
+			if(TagNames.get(i).equals(tagName))
+				result.add(Texts.get(i));
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * @return Number of elements in the reply
+	 */
+	public int size() {
+		return Texts.size();
+	}
+}
@@ -0,0 +1,114 @@
+package com.slicify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes a shell's output stream in bulk, without blocking. Bytes are read in blocks of whatever is available
+ * into a reusable buffer and decoded to characters, so multi-byte UTF-8 sequences come out whole even when they
+ * are split across reads. Characters decoded past the end of one expect are kept for the next, so a reader must
+ * be used for every expect on its stream.
+ *
+ * @author slicify
+ *
+ */
+public class ShellReader {
+
+	public static final int DEFAULT_MAX_CAPTURE = 4 << 20;
+	static final int BUFFER_SIZE = 8192;
+
+	private final InputStream In;
+	private final CharsetDecoder Decoder;
+	private final ByteBuffer Bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharBuffer Chars = CharBuffer.allocate(BUFFER_SIZE);
+	private boolean EOF = false;
+	private volatile int MaxCapture = DEFAULT_MAX_CAPTURE;
+
+	public ShellReader(InputStream in) {
+		this(in, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param in Shell output stream
+	 * @param charset Encoding used by the remote shell
+	 */
+	public ShellReader(InputStream in, Charset charset) {
+		In = in;
+		Decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		Chars.flip();
+	}
+
+	/**
+	 * Set the maximum number of characters an expect keeps when buffering. Older output is discarded beyond this.
+	 * @param maxChars
+	 */
+	public void setMaxCapture(int maxChars) {
+		if(maxChars <= 0)
+			throw new IllegalArgumentException("Capture size must be greater than 0");
+		MaxCapture = maxChars;
+	}
+
+	public int getMaxCapture() {
+		return MaxCapture;
+	}
+
+	/**
+	 * Make decoded characters available, reading from the stream only if nothing is pending and it won't block.
+	 *
+	 * @return Number of characters pending (0 if none yet), or -1 at end of stream
+	 * @throws IOException
+	 */
+	int fill() throws IOException
+	{
+		if(Chars.hasRemaining())
+			return Chars.remaining();
+		if(EOF)
+			return -1;
+
+		int available = In.available();
+		if(available <= 0)
+			return 0;
+
+		int read = In.read(Bytes.array(), Bytes.position(), Math.min(available, Bytes.remaining()));
+		if(read < 0)
+		{
+			EOF = true;
+			return -1;
+		}
+		Bytes.position(Bytes.position() + read);
+
+		//decode, keeping any incomplete multi-byte sequence for next time
+		Bytes.flip();
+		Chars.clear();
+		Decoder.decode(Bytes, Chars, false);
+		Chars.flip();
+		Bytes.compact();
+		return Chars.remaining();
+	}
+
+	/**
+	 * @return Array holding the pending characters, starting at offset()
+	 */
+	char[] chars() {
+		return Chars.array();
+	}
+
+	int offset() {
+		return Chars.position();
+	}
+
+	/**
+	 * Mark pending characters as used.
+	 */
+	void consume(int count) {
+		Chars.position(Chars.position() + count);
+	}
+}
@@ -0,0 +1,480 @@
+package com.slicify;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Copies files to and from a node through its interactive shell, as Slicify doesn't support SSH exec (so no
+ * SFTP or SCP).
+ *
+ * Uploads are gzipped and base64 encoded, and streamed to the shell in long lines without waiting for any reply,
+ * so the only limit is the SSH channel window. The node's terminal is switched to raw mode with echo off for the
+ * transfer, so the data isn't echoed back or mangled by the line discipline, and restored afterwards. The data
+ * goes to a ".slicify-part" file that is only moved into place once its md5 matches the local one.
+ *
+ * Downloads run gzip | base64 on the node, and the output is decoded and inflated as it arrives, so memory use
+ * stays flat however large the file is. The md5 of the file on the node is checked against what was received.
+ *
+ * The node needs bash, stty, awk, base64, gzip and md5sum, as on the standard Slicify images. Remote paths are
+ * relative to the login directory, and are quoted so no ~ or variable expansion is done.
+ *
+ * Only one transfer or expect should be running on a shell at a time. If a transfer fails part way through (e.g.
+ * a timeout or a write error) the shell is in an unknown state, so it is best to disconnect.
+ *
+ * @author slicify
+ *
+ */
+public class ShellTransfer {
+
+	//raw bytes per upload line - a multiple of 3 so each line is whole base64, 4096 chars
+	public static final int LINE_BYTES = 3072;
+	public static final String PART_SUFFIX = ".slicify-part";
+
+	private static final AtomicLong Sequence = new AtomicLong();
+	private static final String READY = "[slicify-ready:";
+	private static final String UPLOADED = "[slicify-upload:";
+	private static final String DONE = "[slicify-done:";
+	private static final String START = "[slicify-start:";
+	private static final String DOWNLOADED = "[slicify-download:";
+	private static final String END = "=slicify-end";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ShellReader Reader;
+	private final OutputStream Out;
+	private final ExpectEngine Engine;
+	private final BooleanSupplier Connected;
+	private volatile boolean Compress = true;
+
+	/**
+	 * @param reader Output from the shell
+	 * @param out Input to the shell
+	 * @param engine Engine that watches the shell output
+	 * @param connected Checked while waiting, so a lost connection fails the transfer (can be null)
+	 */
+	public ShellTransfer(ShellReader reader, OutputStream out, ExpectEngine engine, BooleanSupplier connected) {
+		Reader = reader;
+		Out = out;
+		Engine = engine;
+		Connected = connected;
+	}
+
+	/**
+	 * Gzip the data on the way through (the default). Turn off for data that is already compressed.
+	 * @param compress
+	 */
+	public void setCompression(boolean compress) {
+		Compress = compress;
+	}
+
+	public long upload(Path local, String remotePath, int timeoutms) throws IOException
+	{
+		try(InputStream in = Files.newInputStream(local))
+		{
+			return upload(in, remotePath, timeoutms);
+		}
+	}
+
+	/**
+	 * Copy the stream to a file on the node, replacing it if it exists.
+	 * @param in Read to the end, but not closed
+	 * @param remotePath
+	 * @param timeoutms Timeout for each reply from the node in milliseconds, 0 for infinite. Streaming the data
+	 * itself isn't timed.
+	 * @return Number of bytes uploaded
+	 * @throws IOException If the upload fails or the file on the node doesn't match
+	 */
+	public long upload(InputStream in, String remotePath, int timeoutms) throws IOException
+	{
+		String token = newToken();
+		String part = quote(remotePath + PART_SUFFIX);
+		String decode = Compress ? "base64 -d | gzip -dc" : "base64 -d";
+
+		//awk passes the data on up to the end line, and the cat keeps it reading even if decoding fails, so none
+		//of the data can end up at the shell prompt
+		line("if : > " + part + "; then S=$(stty -g); stty raw -echo; echo \"" + READY + token + ":$((1))]\"; "
+				+ "awk '$0==\"" + END + "\"{exit} 1' | { " + decode + " > " + part + "; cat > /dev/null; }; stty \"$S\"; fi; "
+				+ "echo \"" + UPLOADED + token + ":$(md5sum < " + part + " | cut -c1-32)]\"");
+
+		Pattern ready = Pattern.compile(Pattern.quote(READY + token + ":1]"));
+		Pattern uploaded = Pattern.compile(Pattern.quote(UPLOADED + token + ":") + "([0-9a-f]*)\\]");
+		ExpectResult result = expect(timeoutms, ready, uploaded);
+		if(result.getIndex() != 0)
+		{
+			finish(timeoutms);
+			throw new IOException("Couldn't write " + remotePath + " on the node");
+		}
+
+		//stream it all in one go - the node doesn't reply until the end line
+		MessageDigest md5 = md5();
+		long length = 0;
+		DigestInputStream data = new DigestInputStream(in, md5);
+		Base64Lines lines = new Base64Lines(new BufferedOutputStream(Out, BUFFER_SIZE));
+		OutputStream encoded = lines;
+		if(Compress)
+		{
+			//fastest level, as the link is usually the limit and most of the gain is on text anyway
+			encoded = new GZIPOutputStream(lines, BUFFER_SIZE) {
+				{
+					def.setLevel(Deflater.BEST_SPEED);
+				}
+			};
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while((read = data.read(buffer)) > 0)
+		{
+			encoded.write(buffer, 0, read);
+			length += read;
+		}
+		encoded.close();
+
+		result = expect(timeoutms, uploaded);
+		String local = hex(md5.digest());
+		boolean match = local.equals(result.getGroup(1));
+
+		//only replace the file once it is known to be good
+		line((match ? "mv -f " + part + " " + quote(remotePath) : "rm -f " + part) + "; echo \"" + DONE + token + ":$?]\"");
+		result = expect(timeoutms, Pattern.compile(Pattern.quote(DONE + token + ":") + "(\\d+)\\]"));
+		finish(timeoutms);
+
+		if(!match)
+			throw new IOException("Upload of " + remotePath + " is corrupt on the node - md5 " + local + " was sent");
+		if(!result.getGroup(1).equals("0"))
+			throw new IOException("Couldn't move the upload to " + remotePath);
+		return length;
+	}
+
+	public long download(String remotePath, Path local, int timeoutms) throws IOException
+	{
+		try(OutputStream out = Files.newOutputStream(local))
+		{
+			return download(remotePath, out, timeoutms);
+		}
+	}
+
+	/**
+	 * Copy a file from the node to the stream.
+	 * @param remotePath
+	 * @param out Written from an engine thread as the data arrives, and not closed
+	 * @param timeoutms Timeout for the whole download in milliseconds, 0 for infinite
+	 * @return Number of bytes downloaded
+	 * @throws IOException If the file can't be read, or what arrived doesn't match it
+	 */
+	public long download(String remotePath, OutputStream out, int timeoutms) throws IOException
+	{
+		String token = newToken();
+		String path = quote(remotePath);
+		String encode = Compress ? "gzip -1 -c < " + path + " | base64" : "base64 < " + path;
+
+		line("if [ -r " + path + " ]; then echo \"" + START + token + ":$((1))]\"; " + encode + "; fi; "
+				+ "echo \"" + DOWNLOADED + token + ":$(md5sum < " + path + " 2> /dev/null | cut -c1-32)]\"");
+
+		MessageDigest md5 = md5();
+		DownloadSink sink = new DownloadSink(START + token + ":1]", new DigestOutputStream(out, md5), Compress);
+		Pattern downloaded = Pattern.compile(Pattern.quote(DOWNLOADED + token + ":") + "([0-9a-f]*)\\]");
+		ExpectResult result = await(Engine.expect(Reader, new Pattern[] { downloaded }, sink, timeoutms, null, Connected));
+		if(result.isTimeout())
+			throw new IOException("Timed out downloading " + remotePath);
+		finish(timeoutms);
+
+		String remote = result.getGroup(1);
+		if(remote.isEmpty())
+			throw new IOException("Couldn't read " + remotePath + " on the node");
+		if(sink.Error != null)
+			throw new IOException("Download of " + remotePath + " failed: " + sink.Error);
+		if(!remote.equals(hex(md5.digest())))
+			throw new IOException("Download of " + remotePath + " is corrupt - md5 on the node is " + remote);
+		return sink.Length;
+	}
+
+	/**
+	 * Wait for the prompt that follows the last marker, so the shell is ready for the next command.
+	 */
+	private void finish(int timeoutms) throws IOException
+	{
+		await(Engine.expect(Reader, NodeSSHClient.PROMPT, false, timeoutms, null, Connected));
+	}
+
+	private ExpectResult expect(int timeoutms, Pattern... patterns) throws IOException
+	{
+		ExpectResult result = await(Engine.expect(Reader, patterns, true, timeoutms, null, Connected));
+		if(result.isTimeout())
+			throw new IOException("Timed out waiting for the node during transfer");
+		return result;
+	}
+
+	private static <T> T await(CompletableFuture<T> result) throws IOException
+	{
+		try
+		{
+			return result.get();
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error reading from shell", e.getCause());
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			result.cancel(false);
+			throw new IOException("Interrupted during transfer");
+		}
+	}
+
+	private void line(String command) throws IOException
+	{
+		Out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+		Out.flush();
+	}
+
+	private static String newToken()
+	{
+		return Long.toHexString(System.nanoTime()) + "-" + Sequence.incrementAndGet();
+	}
+
+	/**
+	 * Single quote for the shell, so nothing in the path is expanded.
+	 */
+	static String quote(String path)
+	{
+		return "'" + path.replace("'", "'\\''") + "'";
+	}
+
+	private static MessageDigest md5()
+	{
+		try
+		{
+			return MessageDigest.getInstance("MD5");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] digest)
+	{
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for(byte b : digest)
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return sb.toString();
+	}
+
+	/**
+	 * Base64 encodes the data in whole lines, and writes the end line on close without closing the shell stream.
+	 */
+	private static class Base64Lines extends OutputStream {
+
+		private final OutputStream Out;
+		private final Base64.Encoder Encoder = Base64.getEncoder();
+		private final byte[] Chunk = new byte[LINE_BYTES];
+		private final byte[] Line = new byte[LINE_BYTES / 3 * 4 + 1];
+		private int Length = 0;
+
+		Base64Lines(OutputStream out) {
+			Out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0)
+			{
+				int n = Math.min(len, Chunk.length - Length);
+				System.arraycopy(b, off, Chunk, Length, n);
+				Length += n;
+				off += n;
+				len -= n;
+				if(Length == Chunk.length)
+					emit();
+			}
+		}
+
+		private void emit() throws IOException {
+			int n = Encoder.encode(Length == Chunk.length ? Chunk : Arrays.copyOf(Chunk, Length), Line);
+			Line[n] = '\n';
+			Out.write(Line, 0, n + 1);
+			Length = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(Length > 0)
+				emit();
+			Out.write((END + "\n").getBytes(StandardCharsets.US_ASCII));
+			Out.flush();
+		}
+	}
+
+	/**
+	 * Decodes the base64 lines between the start marker and the end marker as they arrive. Anything else on the
+	 * node's output (e.g. an error from gzip) stops the download and is kept as the error.
+	 */
+	private static class DownloadSink implements OutputSink {
+
+		private final String Start;
+		private final OutputStream Out;
+		private final OutputSink Lines = OutputSinks.lines(line -> line(line));
+		private final Base64.Decoder Decoder = Base64.getDecoder();
+		private boolean Started = false;
+		private boolean Ended = false;
+		volatile String Error = null;
+		volatile long Length = 0;
+
+		DownloadSink(String start, OutputStream out, boolean compressed) {
+			Start = start;
+			OutputStream counted = new FilterOutputStream(out) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					Length += len;
+				}
+
+				@Override
+				public void close() throws IOException {
+					//leave the caller's stream open
+					flush();
+				}
+			};
+			Out = new BufferedOutputStream(compressed ? new Gunzip(counted) : counted, BUFFER_SIZE);
+		}
+
+		@Override
+		public int write(char[] chars, int offset, int length) throws IOException {
+			return Lines.write(chars, offset, length);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			Lines.flush();
+			if(Started && Error == null)
+			{
+				try
+				{
+					Out.close();
+				}
+				catch(IOException e)
+				{
+					Error = e.toString();
+				}
+			}
+		}
+
+		private void line(String line) {
+			if(!Started)
+			{
+				Started = line.endsWith(Start);
+				return;
+			}
+			if(Ended || Error != null)
+				return;
+			if(line.startsWith(DOWNLOADED))
+			{
+				Ended = true;
+				return;
+			}
+
+			try
+			{
+				Out.write(Decoder.decode(line));
+			}
+			catch(IllegalArgumentException e)
+			{
+				Error = line;
+			}
+			catch(IOException e)
+			{
+				Error = e.toString();
+			}
+		}
+	}
+
+	/**
+	 * Inflates a gzip stream as it is written. gzip reading from a pipe writes a plain 10 byte header with no
+	 * name, so that is all that is handled. The trailer is ignored, as the md5 is checked anyway.
+	 */
+	private static class Gunzip extends FilterOutputStream {
+
+		private final Inflater Inflater = new Inflater(true);
+		private final byte[] Header = new byte[10];
+		private final byte[] Buffer = new byte[BUFFER_SIZE];
+		private int HeaderLength = 0;
+
+		Gunzip(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(HeaderLength < Header.length && len > 0)
+			{
+				Header[HeaderLength++] = b[off++];
+				len--;
+				if(HeaderLength == Header.length && ((Header[0] & 0xff) != 0x1f || (Header[1] & 0xff) != 0x8b || Header[2] != 8 || Header[3] != 0))
+					throw new IOException("Unsupported gzip header");
+			}
+			if(len == 0 || Inflater.finished())
+				return;
+
+			Inflater.setInput(b, off, len);
+			try
+			{
+				while(true)
+				{
+					int n = Inflater.inflate(Buffer);
+					if(n > 0)
+						out.write(Buffer, 0, n);
+					else if(Inflater.finished() || Inflater.needsInput())
+						break;
+					else if(Inflater.needsDictionary())
+						throw new IOException("Unsupported gzip data");
+				}
+			}
+			catch(DataFormatException e)
+			{
+				throw new IOException("Corrupt gzip data", e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+			boolean finished = Inflater.finished();
+			Inflater.end();
+			if(!finished)
+				throw new IOException("Download is truncated");
+		}
+	}
+}
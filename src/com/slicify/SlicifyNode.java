@@ -1,20 +1,28 @@
 package com.slicify;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 /**
  * Provides a simple interface for Java applications to access Slicify Node booking service.
+ * 
+ * Instances are thread safe - a single SlicifyNode can be shared by a pool of worker threads, and each
+ * call gets its own reply from the web service.
  * @author slicify
  *
  */
@@ -23,7 +31,27 @@ public class SlicifyNode {
 	private static final String SERVER = "secure.slicify.com";
 	private static final String SERVICEURL = "https://" + SERVER + "/Service/BookingService.asmx";
 	
-	private HttpsGet HttpsGet = new HttpsGet(SERVICEURL);
+	//most operations return a single value in the root element
+	private static final ReplyHandler<String> FIRST_FIELD = ReplyDecoder.text(0);
+	
+	private final HttpsGet HttpsGet;
+	private volatile BookingCache Cache = new BookingCache();
+
+	/**
+	 * Create a node client that uses the shared pool of keep-alive connections.
+	 */
+	public SlicifyNode() {
+		this(PooledHttpsTransport.getShared());
+	}
+
+	/**
+	 * Create a node client that sends all web service calls through the specified transport.
+	 * 
+	 * @param transport
+	 */
+	public SlicifyNode(HttpsTransport transport) {
+		HttpsGet = new HttpsGet(SERVICEURL, transport);
+	}
 
 	/**
 	 * Set your www.slicify.com username. Must be set before any methods are called.
@@ -45,6 +73,25 @@ public class SlicifyNode {
 		HttpsGet.Password = password;
 	}
 
+	/**
+	 * Set the cache used for booking details that don't change (passwords, spec, cores etc). Set to null to
+	 * always query the web service.
+	 * 
+	 * @param cache
+	 */
+	public void setCache(BookingCache cache)
+	{
+		Cache = cache;
+	}
+
+	/**
+	 * @return The booking details cache, or null if caching is disabled
+	 */
+	public BookingCache getCache()
+	{
+		return Cache;
+	}
+
 	public double getAccountBalance() throws Exception
 	{
 		String bal = runOperation("AccountBalance", null, true);
@@ -68,14 +115,7 @@ public class SlicifyNode {
 	{
 		String targetOP = "BidAdd";
 		
-		if(minRam < 0 || minRam > 256*1024)
-			throw new IllegalArgumentException("Minimum RAM must be between 0 and 262144 (mb)");
-		if(maxPrice < 0 || maxPrice > 2)
-			throw new IllegalArgumentException("Maximum price must be between 0 and 2.0 ($/hour)");
-		if(bits != 32 && bits != 64 && bits != 0)
-			throw new IllegalArgumentException("Bits must be set to either 32 or 64 (or 0 for either)");
-		if(minEcu < 0)
-			throw new IllegalArgumentException("Minimum ECU must be greater than 0");
+		validateBid(minRam, maxPrice, bits, minEcu);
 		
 		Map<String, Object> params = new HashMap<String, Object>();
 		params.put("active", true);
@@ -87,9 +127,7 @@ public class SlicifyNode {
 		String urlParameters = createUrlParameters(params);
 
 		//need to parse the first field, which will be an integer bid reference
-		HttpsGet.ParseOnQuery = true;
-		HttpsGet.query(targetOP, urlParameters);		
-		String result = HttpsGet.parseReply(0);			
+		String result = HttpsGet.execute(targetOP, urlParameters, FIRST_FIELD);
 		return Integer.parseInt(result);		
 	}
 	
@@ -104,6 +142,11 @@ public class SlicifyNode {
 	public void deleteBid(int bidID) throws Exception
 	{
 		runBidOperation("BidDelete", bidID, false);
+		
+		//the bid's bookings are being closed, so their cached details are no longer useful
+		BookingCache cache = Cache;
+		if(cache != null)
+			cache.invalidateBid(bidID);
 	}
 	
 	/**
@@ -118,7 +161,12 @@ public class SlicifyNode {
 	public int getBookingID(int bidID) throws Exception
 	{
 		String sBookingID = runBidOperation("BidGetBookingID", bidID, true);
-		return Integer.parseInt(sBookingID);
+		int bookingID = Integer.parseInt(sBookingID);
+		
+		BookingCache cache = Cache;
+		if(cache != null)
+			cache.associate(bidID, bookingID);
+		return bookingID;
 	}
 
 	/**
@@ -130,30 +178,86 @@ public class SlicifyNode {
 	public List<Integer> getActiveBidIDs() throws Exception
 	{
 		//create result container
-		List<Integer> result = new ArrayList<Integer>();
-		
-		//get the XML back from the web service
-		HttpsGet.ParseOnQuery = true;
-		HttpsGet.query("BidGetAllInfo", "");
-		Document document = HttpsGet.XMLDoc;
-		
-		//extract list of booking IDs
-		NodeList bidIDs = document.getElementsByTagName("BidID");
-		NodeList activeFlags = document.getElementsByTagName("Active");
+		int[] bidIDs = getActiveBidIDArray();
+		List<Integer> result = new ArrayList<Integer>(bidIDs.length);
+		for(int bidID : bidIDs)
+			result.add(bidID);
 		
-		for(int i=0; i<bidIDs.getLength(); i++)
+		return result;
+	}
+
+	/**
+	 * Return the IDs of all bids that are currently active for this user, without boxing.
+	 * 
+	 * @return Array of all currently active bid IDs.
+	 * @throws Exception
+	 */
+	public int[] getActiveBidIDArray() throws Exception
+	{
+		try(IntStream bidIDs = streamActiveBidIDs())
 		{
-			String sbidID = bidIDs.item(i).getTextContent();
-			String sactive = activeFlags.item(i).getTextContent();
-			if(sactive.equalsIgnoreCase("true"))
+			return bidIDs.toArray();
+		}
+	}
+
+	/**
+	 * Stream the IDs of all bids that are currently active for this user. Bid records are parsed one at a time
+	 * as the reply arrives, and only the BidID/Active fields are decoded. The stream holds an open connection, 
+	 * so must be closed (e.g. try-with-resources).
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public IntStream streamActiveBidIDs() throws Exception
+	{
+		BidRecordReader reader = openBidRecords();
+		return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(reader.bidIDs(true), Spliterator.ORDERED), false)
+				.onClose(closer(reader));
+	}
+
+	/**
+	 * Stream every bid (active or not) for this user, with all the fields of each bid record. Records are parsed
+	 * one at a time as the reply arrives, so memory use doesnt grow with the size of the bid history. The stream 
+	 * holds an open connection, so must be closed (e.g. try-with-resources).
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public Stream<BidInfo> streamBids() throws Exception
+	{
+		BidRecordReader reader = openBidRecords();
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(reader.bids(), Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(closer(reader));
+	}
+
+	private BidRecordReader openBidRecords() throws Exception
+	{
+		HttpsResponse response = HttpsGet.open("BidGetAllInfo", "");
+		try
+		{
+			return new BidRecordReader(response.getInputStream(), response);
+		}
+		catch(Exception e)
+		{
+			response.close();
+			throw e;
+		}
+	}
+
+	private static Runnable closer(final Closeable closeable)
+	{
+		return () -> {
+			try
 			{
-				int bidID = Integer.parseInt(sbidID);
-				result.add(bidID);
+				closeable.close();
 			}
-		}
-		
-		return result;
+			catch(IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		};
 	}
+
 	/**
 	 * Return a list of all bookings that are currently active for this user
 	 * 
@@ -166,15 +270,11 @@ public class SlicifyNode {
 		List<Integer> result = new ArrayList<Integer>();
 		
 		//get the XML back from the web service
-		HttpsGet.ParseOnQuery = true;
-		HttpsGet.query("BookingGetActiveIDs", "");
-		Document document = HttpsGet.XMLDoc;
+		List<String> bookingFields = HttpsGet.execute("BookingGetActiveIDs", "", ReplyDecoder.texts("int"));
 		
 		//extract list of booking IDs
-		NodeList bookingFields = document.getElementsByTagName("int");
-		for(int i=0; i<bookingFields.getLength(); i++)
+		for(String bookingID : bookingFields)
 		{
-			String bookingID = bookingFields.item(i).getTextContent();
 			result.add(Integer.parseInt(bookingID));
 		}
 		
@@ -306,7 +406,10 @@ public class SlicifyNode {
 
 	
 	/**
-	 * Wait until Node is in "Ready" status, indicating it is ready for user
+	 * Wait until Node is in "Ready" status, indicating it is ready for user. This blocks the calling thread - 
+	 * use BookingWatcher to wait on many bookings at once.
+	 * 
+	 * @throws BookingClosedException If the booking is closed before it becomes ready
 	 */
 	public void waitReady(int bookingID) throws Exception {
 		String status = "Unknown";
@@ -314,7 +417,7 @@ public class SlicifyNode {
 		{
 			//check it hasnt faulted
 			if(status.equals("Closed"))
-				throw new Exception("Machine wasnt able to be booked succesfully:" + bookingID + " " + status);
+				throw new BookingClosedException(bookingID, getCloseReason(bookingID));
 			
 			//check the status every 10 seconds
 			Thread.sleep(10000);					
@@ -323,21 +426,61 @@ public class SlicifyNode {
 	}
 		
 	
-	private String runBookingOperation(String targetOP, int bookingID, boolean parse) throws Exception
-	{		
+	/**
+	 * Check the bid parameters are within the ranges accepted by the booking service.
+	 * 
+	 * @throws IllegalArgumentException
+	 */
+	static void validateBid(int minRam, double maxPrice, int bits, int minEcu)
+	{
+		if(minRam < 0 || minRam > 256*1024)
+			throw new IllegalArgumentException("Minimum RAM must be between 0 and 262144 (mb)");
+		if(maxPrice < 0 || maxPrice > 2)
+			throw new IllegalArgumentException("Maximum price must be between 0 and 2.0 ($/hour)");
+		if(bits != 32 && bits != 64 && bits != 0)
+			throw new IllegalArgumentException("Bits must be set to either 32 or 64 (or 0 for either)");
+		if(minEcu < 0)
+			throw new IllegalArgumentException("Minimum ECU must be greater than 0");
+	}
+
+	static void validateBookingID(int bookingID)
+	{
 		if(bookingID < 0)
 			throw new IllegalArgumentException("Booking ID must be > 0");
+	}
+
+	static void validateBidID(int bidID)
+	{
+		if(bidID < 0)
+			throw new IllegalArgumentException("Bid ID must be >= 0");
+	}
+
+	private String runBookingOperation(String targetOP, int bookingID, boolean parse) throws Exception
+	{		
+		validateBookingID(bookingID);
+		
+		//immutable booking details can be served from the cache
+		BookingCache cache = Cache;
+		boolean cacheable = parse && cache != null && cache.isCacheable(targetOP);
+		if(cacheable)
+		{
+			String cached = cache.get(targetOP, bookingID);
+			if(cached != null)
+				return cached;
+		}
 		
 		Map<String, Object> params = new HashMap<String, Object>();
 		params.put("bookingID", bookingID);
 		
-		return runOperation(targetOP, params, parse);
+		String result = runOperation(targetOP, params, parse);
+		if(cacheable)
+			cache.put(targetOP, bookingID, result);
+		return result;
 	}
 
 	private String runBidOperation(String targetOP, int bidID, boolean parse) throws Exception
 	{		
-		if(bidID < 0)
-			throw new IllegalArgumentException("Bid ID must be >= 0");
+		validateBidID(bidID);
 		
 		Map<String, Object> params = new HashMap<String, Object>();
 		params.put("bidID", bidID);
@@ -350,12 +493,7 @@ public class SlicifyNode {
 		String urlParameters = createUrlParameters(params);
 
 		//need to parse the first field, which be the result of the operation
-		HttpsGet.ParseOnQuery = parse;
-		HttpsGet.query(targetOP, urlParameters);
-		if(parse)
-			return HttpsGet.parseReply(0);
-		else
-			return null;
+		return HttpsGet.execute(targetOP, urlParameters, parse ? FIRST_FIELD : null);
 	}
 
 	private String createUrlParameters(Map<String, Object> params)
@@ -0,0 +1,30 @@
+package com.slicify;
+
+/**
+ * Something an expect scans shell output with, one decoded block at a time as it arrives.
+ *
+ * @author slicify
+ *
+ */
+interface StreamMatcher {
+
+	/**
+	 * Scan the next block of output. Stops at the first match.
+	 *
+	 * @param chars
+	 * @param offset
+	 * @param length
+	 * @return Index just past the end of the match in chars, or -1 if there was no match yet
+	 */
+	int scan(char[] chars, int offset, int length);
+
+	/**
+	 * @return Index of the literal or pattern found by the last successful scan(), or -1
+	 */
+	int getMatchedIndex();
+
+	/**
+	 * @return The matched text (group 0) followed by any captured groups, from the last successful scan()
+	 */
+	String[] getGroups();
+}
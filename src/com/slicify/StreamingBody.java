@@ -0,0 +1,130 @@
+package com.slicify;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+/**
+ * Multipart file body that streams from a FileChannel or InputStream in fixed size chunks, through one reused
+ * buffer, so heap use doesn't grow with the file size. A FileChannel is read with positional reads, so the body
+ * can be written again if the request is retried.
+ *
+ * @author slicify
+ *
+ */
+public class StreamingBody extends AbstractContentBody {
+
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+	private final String FileName;
+	private final FileChannel Channel;
+	private final long Position;
+	private final InputStream In;
+	private final long Length;
+	private final int ChunkSize;
+	private final TransferProgress Progress;
+
+	/**
+	 * @param fileName
+	 * @param channel Read from its current position to the end. The position isn't changed.
+	 * @param chunkSize
+	 * @param progress Can be null
+	 * @throws IOException
+	 */
+	public StreamingBody(String fileName, FileChannel channel, int chunkSize, TransferProgress progress) throws IOException {
+		super("application/octet-stream");
+		if(chunkSize <= 0)
+			throw new IllegalArgumentException("Chunk size must be greater than 0");
+		FileName = fileName;
+		Channel = channel;
+		Position = channel.position();
+		In = null;
+		Length = channel.size() - Position;
+		ChunkSize = chunkSize;
+		Progress = progress;
+	}
+
+	/**
+	 * @param fileName
+	 * @param in
+	 * @param length Bytes to send, or -1 to send to the end of the stream (the request is then sent chunked)
+	 * @param chunkSize
+	 * @param progress Can be null
+	 */
+	public StreamingBody(String fileName, InputStream in, long length, int chunkSize, TransferProgress progress) {
+		super("application/octet-stream");
+		if(chunkSize <= 0)
+			throw new IllegalArgumentException("Chunk size must be greater than 0");
+		FileName = fileName;
+		Channel = null;
+		Position = 0;
+		In = in;
+		Length = length;
+		ChunkSize = chunkSize;
+		Progress = progress;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException
+	{
+		byte[] chunk = new byte[(int) Math.max(1, Length < 0 ? ChunkSize : Math.min(ChunkSize, Length))];
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		long sent = 0;
+		report(0);
+		while(Length < 0 || sent < Length)
+		{
+			int want = Length < 0 ? chunk.length : (int) Math.min(chunk.length, Length - sent);
+			int read;
+			if(Channel != null)
+			{
+				buffer.clear().limit(want);
+				read = Channel.read(buffer, Position + sent);
+			}
+			else
+				read = In.read(chunk, 0, want);
+
+			if(read < 0)
+			{
+				if(Length < 0)
+					break;
+				throw new EOFException("File " + FileName + " ended after " + sent + " of " + Length + " bytes");
+			}
+			out.write(chunk, 0, read);
+			sent += read;
+			report(sent);
+		}
+		out.flush();
+	}
+
+	private void report(long sent)
+	{
+		if(Progress != null)
+			Progress.progress(sent, Length);
+	}
+
+	@Override
+	public String getFilename() {
+		return FileName;
+	}
+
+	@Override
+	public String getCharset() {
+		return null;
+	}
+
+	@Override
+	public String getTransferEncoding() {
+		return MIME.ENC_BINARY;
+	}
+
+	@Override
+	public long getContentLength() {
+		return Length;
+	}
+}
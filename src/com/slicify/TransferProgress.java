@@ -0,0 +1,17 @@
+package com.slicify;
+
+/**
+ * Told how far a MediaFire transfer has got, after each chunk is sent. Called on the thread doing the transfer,
+ * so it should return quickly.
+ *
+ * @author slicify
+ *
+ */
+public interface TransferProgress {
+
+	/**
+	 * @param bytes Bytes transferred so far
+	 * @param total Total bytes to transfer, or -1 if not known (e.g. an InputStream of unknown length)
+	 */
+	void progress(long bytes, long total);
+}
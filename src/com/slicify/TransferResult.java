@@ -0,0 +1,84 @@
+package com.slicify;
+
+/**
+ * Outcome of one upload or download run by MediaFireTransfers.
+ *
+ * @author slicify
+ *
+ */
+public final class TransferResult {
+
+	private final String Name;
+	private final boolean Upload;
+	private final long Bytes;
+	private final int Attempts;
+	private final long Duration;
+	private final Throwable Error;
+
+	/**
+	 * @param name File name for an upload, quickkey for a download
+	 * @param upload
+	 * @param bytes Bytes transferred by the last attempt
+	 * @param attempts
+	 * @param durationms Time taken by all the attempts, including waits between them
+	 * @param error Null if the transfer succeeded
+	 */
+	public TransferResult(String name, boolean upload, long bytes, int attempts, long durationms, Throwable error) {
+		Name = name;
+		Upload = upload;
+		Bytes = bytes;
+		Attempts = attempts;
+		Duration = durationms;
+		Error = error;
+	}
+
+	/**
+	 * @return File name for an upload, quickkey for a download
+	 */
+	public String getName() {
+		return Name;
+	}
+
+	public boolean isUpload() {
+		return Upload;
+	}
+
+	public long getBytes() {
+		return Bytes;
+	}
+
+	/**
+	 * @return Number of attempts made, 1 if the transfer worked first time
+	 */
+	public int getAttempts() {
+		return Attempts;
+	}
+
+	public long getDuration() {
+		return Duration;
+	}
+
+	/**
+	 * @return Why the last attempt failed, or null if the transfer succeeded
+	 */
+	public Throwable getError() {
+		return Error;
+	}
+
+	public boolean isSuccess() {
+		return Error == null;
+	}
+
+	/**
+	 * @return Bytes per second over the whole transfer, including any retries
+	 */
+	public double getThroughput() {
+		return Duration == 0 ? 0 : Bytes * 1000.0 / Duration;
+	}
+
+	@Override
+	public String toString() {
+		return "TransferResult[" + (Upload ? "upload " : "download ") + Name + ", " + Bytes + " bytes, attempts=" + Attempts +
+				", " + Duration + "ms" + (Error != null ? ", error=" + Error : "") + "]";
+	}
+}
@@ -0,0 +1,117 @@
+package com.slicify;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * HttpsTransport based on the JDK HttpURLConnection. Connections are not explicitly disconnected, so
+ * the JDK keep-alive cache can reuse them, but there is no control over pool size or idle eviction.
+ * Use PooledHttpsTransport where that matters.
+ *
+ * @author slicify
+ *
+ */
+public class UrlConnectionTransport implements HttpsTransport {
+
+	private final int ConnectTimeout;
+
+	public UrlConnectionTransport() {
+		this(120000);
+	}
+
+	public UrlConnectionTransport(int connectTimeoutms) {
+		ConnectTimeout = connectTimeoutms;
+	}
+
+	@Override
+	public HttpsResponse get(String url, String authorization) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("GET");
+		connection.setUseCaches(false);
+		connection.setDoInput(true);
+		if(authorization != null)
+			connection.setRequestProperty("Authorization", authorization);
+		connection.setConnectTimeout(ConnectTimeout);
+		connection.connect();
+
+		return new UrlConnectionResponse(connection);
+	}
+
+	@Override
+	public HttpsResponse post(String url, String authorization, String formBody) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type","application/x-www-form-urlencoded");
+		connection.setRequestProperty("Content-Length", Integer.toString(formBody.getBytes().length));
+		connection.setRequestProperty("Content-Language", "en-US");
+		connection.setUseCaches(false);
+		connection.setDoInput(true);
+		connection.setDoOutput(true);
+		if(authorization != null)
+			connection.setRequestProperty("Authorization", authorization);
+		connection.setConnectTimeout(ConnectTimeout);
+
+		// Send request
+		DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
+		wr.writeBytes(formBody);
+		wr.flush();
+		wr.close();
+
+		return new UrlConnectionResponse(connection);
+	}
+
+	@Override
+	public void shutdown() {
+		//nothing to release - the JDK owns the keep-alive cache
+	}
+
+	private static class UrlConnectionResponse implements HttpsResponse {
+
+		private final HttpURLConnection Connection;
+		private InputStream Stream = null;
+
+		UrlConnectionResponse(HttpURLConnection connection) {
+			Connection = connection;
+		}
+
+		@Override
+		public int getStatusCode() throws IOException {
+			return Connection.getResponseCode();
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			if(Stream == null)
+			{
+				InputStream in = getStatusCode() < 400 ? Connection.getInputStream() : Connection.getErrorStream();
+				Stream = (in != null) ? in : new ByteArrayInputStream(new byte[0]);
+			}
+			return Stream;
+		}
+
+		@Override
+		public void close() throws IOException {
+			//drain and close the stream rather than disconnecting, so the socket can go back in the keep-alive cache
+			try
+			{
+				InputStream in = getInputStream();
+				byte[] skip = new byte[4096];
+				while(in.read(skip) >= 0)
+					;
+				in.close();
+			}
+			catch(IOException e)
+			{
+				//the socket can't be reused, so drop it
+				Connection.disconnect();
+				throw e;
+			}
+		}
+	}
+}
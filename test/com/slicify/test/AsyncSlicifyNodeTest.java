@@ -0,0 +1,189 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.slicify.AsyncSlicifyNode;
+import com.slicify.BookingInfo;
+import com.slicify.BookingInfoResult;
+import com.slicify.SlicifyNode;
+
+/**
+ * Runs the async wrapper against canned service replies, and checks arguments are validated up front by both the
+ * blocking and async calls.
+ *
+ * @author slicify
+ *
+ */
+public class AsyncSlicifyNodeTest {
+
+	private static SlicifyNode stubNode(StubTransport transport)
+	{
+		transport.reply("BidAdd", "<int xmlns=\"http://www.slicify.com/\">7</int>");
+		transport.reply("BidGetBookingID", "<int xmlns=\"http://www.slicify.com/\">42</int>");
+		transport.reply("BookingGetStatus", "<string xmlns=\"http://www.slicify.com/\">Ready</string>");
+		transport.reply("BookingGetPassword", "<string xmlns=\"http://www.slicify.com/\">pw</string>");
+		transport.reply("BookingGetSudoPassword", "<string xmlns=\"http://www.slicify.com/\">sudo</string>");
+		transport.reply("BookingGetCoreCount", "<int xmlns=\"http://www.slicify.com/\">2</int>");
+		transport.reply("BookingGetECU", "<int xmlns=\"http://www.slicify.com/\">6</int>");
+		transport.reply("BookingGetMachineSpec", "<string xmlns=\"http://www.slicify.com/\">Xeon E5</string>");
+		transport.reply("BookingGetCountry", "<string xmlns=\"http://www.slicify.com/\">UK</string>");
+		transport.reply("BookingGetBidID", "<int xmlns=\"http://www.slicify.com/\">7</int>");
+
+		SlicifyNode node = new SlicifyNode(transport);
+		node.setUsername("user");
+		node.setPassword("password");
+		return node;
+	}
+
+	@Test
+	public void callsCompleteOnExecutor() throws Exception {
+		StubTransport transport = new StubTransport();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			AsyncSlicifyNode async = new AsyncSlicifyNode(stubNode(transport), executor);
+			int bookingID = async.addBid(1, 0.03, 64, 5, "")
+					.thenCompose(bidID -> async.getBookingID(bidID))
+					.get(5, TimeUnit.SECONDS);
+			assertEquals(42, bookingID);
+
+			BookingInfo info = async.getBookingInfo(bookingID).get(5, TimeUnit.SECONDS);
+			assertEquals("Ready", info.getStatus());
+			assertEquals("pw", info.getPassword());
+			assertEquals("sudo", info.getSudoPassword());
+			assertEquals(2, info.getCoreCount());
+			assertEquals(6, info.getECU());
+			assertEquals("Xeon E5", info.getMachineSpec());
+			assertEquals("UK", info.getCountry());
+			assertEquals(7, info.getBidID());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void manyBookingsWithPartialFailure() throws Exception {
+		StubTransport transport = new StubTransport();
+		transport.setDelay(50);
+		transport.fail("bookingID=13");
+		SlicifyNode node = stubNode(transport);
+		node.setCache(null);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try
+		{
+			AsyncSlicifyNode async = new AsyncSlicifyNode(node, executor);
+			List<Integer> ids = Arrays.asList(11, 12, 13, 14, 15, 16, 17, 18);
+			Map<Integer, BookingInfoResult> results = async.getBookingInfo(ids).get(10, TimeUnit.SECONDS);
+
+			//one result per booking, in order, with only the failing one missing its details
+			assertEquals(ids, new ArrayList<Integer>(results.keySet()));
+			for(int id : ids)
+			{
+				BookingInfoResult result = results.get(id);
+				assertEquals(id, result.getBookingID());
+				if(id == 13)
+				{
+					assertFalse(result.isSuccess());
+					assertNull(result.getInfo());
+					assertTrue(result.getError() instanceof IOException);
+				}
+				else
+				{
+					assertTrue(result.toString(), result.isSuccess());
+					assertEquals(id, result.getInfo().getBookingID());
+					assertEquals("pw", result.getInfo().getPassword());
+				}
+			}
+
+			//the 8 bookings were looked up at the same time, rather than one after another
+			assertEquals(8 * 8, transport.getRequests().size());
+			assertEquals(8, transport.getMaxConcurrent());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void serviceErrorFailsFuture() throws Exception {
+		StubTransport transport = new StubTransport();
+		AsyncSlicifyNode async = new AsyncSlicifyNode(stubNode(transport));
+
+		//no canned reply, so the service answers 404
+		CompletableFuture<String> reason = async.getCloseReason(42);
+		try
+		{
+			reason.get(5, TimeUnit.SECONDS);
+			fail("Missing reply didn't fail the call");
+		}
+		catch(ExecutionException e)
+		{
+			assertTrue(reason.isCompletedExceptionally());
+		}
+	}
+
+	@Test
+	public void invalidArgumentsThrowStraightAway() throws Exception {
+		StubTransport transport = new StubTransport();
+		SlicifyNode node = stubNode(transport);
+		AsyncSlicifyNode async = new AsyncSlicifyNode(node);
+
+		expectInvalid(() -> node.addBid(-1, 0.03, 64, 5, ""));
+		expectInvalid(() -> node.addBid(1, 3.0, 64, 5, ""));
+		expectInvalid(() -> node.addBid(1, 0.03, 48, 5, ""));
+		expectInvalid(() -> node.addBid(1, 0.03, 64, -1, ""));
+		expectInvalid(() -> node.getBookingStatus(-1));
+		expectInvalid(() -> node.deleteBid(-1));
+		expectInvalid(() -> node.getBookingID(-1));
+
+		expectInvalid(() -> async.addBid(1, -0.5, 64, 5, ""));
+		expectInvalid(() -> async.getBookingPassword(-1));
+		expectInvalid(() -> async.getBookingInfo(-1));
+		expectInvalid(() -> async.deleteBid(-1));
+		expectInvalid(() -> async.getBookingID(-1));
+
+		//nothing reached the service
+		assertEquals(0, transport.getRequests().size());
+
+		//the edges of the ranges are allowed
+		node.addBid(0, 2.0, 0, 0, "");
+		async.addBid(256 * 1024, 0, 32, 0, "").get(5, TimeUnit.SECONDS);
+	}
+
+	private interface Call {
+		void run() throws Exception;
+	}
+
+	private static void expectInvalid(Call call) throws Exception
+	{
+		try
+		{
+			call.run();
+			fail("Invalid argument was accepted");
+		}
+		catch(IllegalArgumentException e)
+		{
+			//expected, and thrown before anything was queued
+		}
+	}
+}
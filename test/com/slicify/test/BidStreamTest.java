@@ -0,0 +1,64 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.slicify.BidInfo;
+import com.slicify.SlicifyNode;
+
+/**
+ * Checks the BidGetAllInfo reply is streamed record by record, using a stubbed transport.
+ *
+ * @author slicify
+ *
+ */
+public class BidStreamTest {
+
+	private static StubTransport transport;
+	private static SlicifyNode node;
+
+	@BeforeClass
+	public static void setup() {
+		transport = new StubTransport();
+		transport.reply("BidGetAllInfo", "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+				"<ArrayOfBidInfo xmlns=\"http://www.slicify.com/\">" +
+				"<BidInfo><BidID>101</BidID><Active>true</Active><MaxPrice>0.03</MaxPrice></BidInfo>" +
+				//record without an Active flag - used to shift the parallel lists out of step
+				"<BidInfo><BidID>102</BidID><MaxPrice>0.05</MaxPrice></BidInfo>" +
+				"<BidInfo><BidID>103</BidID><Active>false</Active></BidInfo>" +
+				"<BidInfo><BidID>104</BidID><Active>true</Active><Country>UK</Country></BidInfo>" +
+				"</ArrayOfBidInfo>");
+
+		node = new SlicifyNode(transport);
+		node.setUsername("user");
+		node.setPassword("password");
+	}
+
+	@Test
+	public void activeBidIDs() throws Exception {
+		assertArrayEquals(new int[] { 101, 104 }, node.getActiveBidIDArray());
+		assertEquals(Arrays.asList(101, 104), node.getActiveBidIDs());
+	}
+
+	@Test
+	public void allFields() throws Exception {
+		try(Stream<BidInfo> bids = node.streamBids())
+		{
+			List<BidInfo> all = bids.collect(Collectors.toList());
+			assertEquals(4, all.size());
+			assertEquals(102, all.get(1).getBidID());
+			assertEquals(false, all.get(1).isActive());
+			assertEquals(0.05, all.get(1).getDouble("MaxPrice", 0), 0.0001);
+			assertEquals("UK", all.get(3).getField("Country"));
+			assertEquals(Arrays.asList("BidID", "Active", "MaxPrice"), Arrays.asList(all.get(0).getFields().keySet().toArray()));
+		}
+	}
+}
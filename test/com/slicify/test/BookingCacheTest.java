@@ -0,0 +1,130 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.slicify.BookingCache;
+import com.slicify.SlicifyNode;
+
+/**
+ * Checks which booking operations are cached, and that entries are evicted/invalidated correctly.
+ *
+ * @author slicify
+ *
+ */
+public class BookingCacheTest {
+
+	private static SlicifyNode stubNode(StubTransport transport)
+	{
+		transport.reply("BookingGetMachineSpec", "<string xmlns=\"http://www.slicify.com/\">Xeon E5</string>");
+		transport.reply("BookingGetStatus", "<string xmlns=\"http://www.slicify.com/\">Ready</string>");
+		transport.reply("BookingGetBidID", "<int xmlns=\"http://www.slicify.com/\">7</int>");
+		transport.reply("BidDelete", "<boolean xmlns=\"http://www.slicify.com/\">true</boolean>");
+
+		SlicifyNode node = new SlicifyNode(transport);
+		node.setUsername("user");
+		node.setPassword("password");
+		return node;
+	}
+
+	@Test
+	public void immutableOperationsAreCached() throws Exception {
+		StubTransport transport = new StubTransport();
+		SlicifyNode node = stubNode(transport);
+
+		for(int i=0;i<5;i++)
+		{
+			assertEquals("Xeon E5", node.getMachineSpec(42));
+			assertEquals("Ready", node.getBookingStatus(42));
+		}
+
+		assertEquals(1, transport.count("BookingGetMachineSpec"));
+		assertEquals("Status must always come from the service", 5, transport.count("BookingGetStatus"));
+		assertEquals(4, node.getCache().getHitCount());
+		assertEquals(1, node.getCache().getMissCount());
+	}
+
+	@Test
+	public void deleteBidInvalidates() throws Exception {
+		StubTransport transport = new StubTransport();
+		SlicifyNode node = stubNode(transport);
+
+		assertEquals(7, node.getBookingBidID(42));
+		node.getMachineSpec(42);
+		assertEquals(2, node.getCache().size());
+
+		node.deleteBid(7);
+		assertEquals(0, node.getCache().size());
+
+		node.getMachineSpec(42);
+		assertEquals(2, transport.count("BookingGetMachineSpec"));
+	}
+
+	@Test
+	public void lruEviction() {
+		BookingCache cache = new BookingCache(2, 60000);
+		cache.put("BookingGetECU", 1, "5");
+		cache.put("BookingGetECU", 2, "6");
+		cache.get("BookingGetECU", 1);
+		cache.put("BookingGetECU", 3, "7");
+
+		assertEquals("5", cache.get("BookingGetECU", 1));
+		assertNull("Least recently used entry should be evicted", cache.get("BookingGetECU", 2));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void ttlAndVolatileOperations() throws Exception {
+		BookingCache cache = new BookingCache();
+		assertFalse(cache.isCacheable("BookingGetStatus"));
+		assertFalse(cache.isCacheable("AccountBalance"));
+
+		cache.put("BookingGetStatus", 1, "Ready");
+		assertNull(cache.get("BookingGetStatus", 1));
+
+		cache.setTTL("BookingGetCountry", 1);
+		cache.put("BookingGetCountry", 1, "UK");
+		Thread.sleep(5);
+		assertNull("Entry should have expired", cache.get("BookingGetCountry", 1));
+
+		cache.setTTL("BookingGetECU", 0);
+		assertFalse(cache.isCacheable("BookingGetECU"));
+		assertTrue(cache.isCacheable("BookingGetPassword"));
+	}
+
+	@Test
+	public void bidLookupIsTrimmed() throws Exception {
+		BookingCache cache = new BookingCache(10, 60000);
+
+		//bookings whose values are evicted drop out of their bids
+		for(int booking=0; booking<1000; booking++)
+			cache.put("BookingGetBidID", booking, Integer.toString(booking + 5000));
+		assertEquals(10, cache.size());
+		assertEquals(10, cache.getBidCount());
+
+		//as do bookings that were only associated, and bookings whose values expire
+		cache.clear();
+		for(int booking=0; booking<1000; booking++)
+			cache.associate(booking / 2, booking);
+		assertTrue(cache.getBidCount() <= 10);
+
+		cache.clear();
+		cache.setTTL("BookingGetCountry", 1);
+		cache.associate(7, 42);
+		cache.put("BookingGetCountry", 42, "UK");
+		Thread.sleep(5);
+		assertNull(cache.get("BookingGetCountry", 42));
+		assertEquals(0, cache.getBidCount());
+
+		//a booking with values left is still invalidated with its bid
+		cache.associate(8, 43);
+		cache.put("BookingGetECU", 43, "6");
+		cache.invalidateBid(8);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBidCount());
+	}
+}
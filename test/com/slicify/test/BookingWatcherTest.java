@@ -0,0 +1,84 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.slicify.AsyncSlicifyNode;
+import com.slicify.BookingClosedException;
+import com.slicify.BookingWatcher;
+import com.slicify.SlicifyNode;
+import com.slicify.UrlConnectionTransport;
+
+/**
+ * Runs the booking watcher against a stubbed node, so the state transitions can be checked
+ * without booking real machines.
+ *
+ * @author slicify
+ *
+ */
+public class BookingWatcherTest {
+
+	/**
+	 * Bookings with an even ID become Ready after a few polls, odd IDs are Closed.
+	 */
+	private static class StubNode extends SlicifyNode {
+
+		private final int[] Polls = new int[100];
+
+		StubNode() {
+			super(new UrlConnectionTransport());
+		}
+
+		@Override
+		public synchronized String getBookingStatus(int bookingID) {
+			Polls[bookingID]++;
+			if(Polls[bookingID] < 3)
+				return "Pending";
+			return bookingID % 2 == 0 ? "Ready" : "Closed";
+		}
+
+		@Override
+		public String getCloseReason(int bookingID) {
+			return "Price too high";
+		}
+	}
+
+	@Test
+	public void readyAndClosed() throws Exception {
+		AsyncSlicifyNode node = new AsyncSlicifyNode(new StubNode());
+		BookingWatcher watcher = new BookingWatcher(node, 50, 200, 2);
+		try
+		{
+			CompletableFuture<Integer> ready = watcher.watch(10);
+			CompletableFuture<Integer> closed = watcher.watch(11);
+			assertEquals(2, watcher.getWatchedCount());
+
+			assertEquals(Integer.valueOf(10), ready.get(10, TimeUnit.SECONDS));
+			try
+			{
+				closed.get(10, TimeUnit.SECONDS);
+				fail("Closed booking should complete exceptionally");
+			}
+			catch(ExecutionException e)
+			{
+				assertTrue(e.getCause() instanceof BookingClosedException);
+				assertEquals("Price too high", ((BookingClosedException) e.getCause()).getCloseReason());
+			}
+
+			//3 status checks each, plus the close reason lookup
+			assertEquals(7, watcher.getStatusCallCount());
+			assertEquals(0, watcher.getWatchedCount());
+		}
+		finally
+		{
+			watcher.shutdown();
+		}
+	}
+}
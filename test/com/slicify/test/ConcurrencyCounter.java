@@ -0,0 +1,44 @@
+package com.slicify.test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts how many pieces of work a fake has in progress, and the most there were at once, so tests can check a
+ * parallelism limit.
+ *
+ * @author slicify
+ *
+ */
+public class ConcurrencyCounter {
+
+	private final AtomicInteger Running = new AtomicInteger();
+	private final AtomicInteger MaxRunning = new AtomicInteger();
+
+	/**
+	 * Call as a piece of work starts.
+	 */
+	public void enter() {
+		MaxRunning.accumulateAndGet(Running.incrementAndGet(), Math::max);
+	}
+
+	/**
+	 * Call as it finishes, from a finally block.
+	 */
+	public void exit() {
+		Running.decrementAndGet();
+	}
+
+	/**
+	 * @return Most pieces of work that were in progress at once
+	 */
+	public int getMax() {
+		return MaxRunning.get();
+	}
+
+	/**
+	 * Forget the maximum, for a counter shared between tests.
+	 */
+	public void reset() {
+		MaxRunning.set(0);
+	}
+}
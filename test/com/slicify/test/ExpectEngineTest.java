@@ -0,0 +1,441 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.slicify.ExpectEngine;
+import com.slicify.ExpectResult;
+import com.slicify.NodeSSHClient;
+import com.slicify.ShellReader;
+
+/**
+ * Checks the expect engine against fake shell streams, and compares its prompt latency with the old
+ * sleep-poll loop.
+ *
+ * @author slicify
+ *
+ */
+public class ExpectEngineTest {
+
+	@Test
+	public void matchesAndBuffers() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			ShellReader reader = new ShellReader(in);
+			CompletableFuture<String> result = engine.expect(reader, NodeSSHClient.PROMPT, true, 0, null, () -> true);
+			in.feed("total 0\n" + NodeSSHClient.PROMPT + "$ ");
+			assertEquals("total 0\n" + NodeSSHClient.PROMPT, result.get(5, TimeUnit.SECONDS));
+
+			//the rest of the output is left for the next expect
+			assertEquals("$ ", engine.expect(reader, " ", true, 0, null, () -> true).get(5, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void overlappingMatch() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			//a reset-to-zero matcher misses "aab" here, as the second 'a' restarts the match too late
+			FakeShellStream in = new FakeShellStream();
+			in.feed("xaaab tail");
+			String result = engine.expect(new ShellReader(in), "aab", true, 2000, null, () -> true).get(5, TimeUnit.SECONDS);
+			assertEquals("xaaab", result);
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void firstOfSeveralLiterals() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			ShellReader reader = new ShellReader(in);
+			String[] literals = { NodeSSHClient.PROMPT, "Password:", "error" };
+
+			in.feed("sudo ls\n[sudo] Password: ");
+			ExpectResult result = engine.expect(reader, literals, true, 0, null, () -> true).get(5, TimeUnit.SECONDS);
+			assertEquals(1, result.getIndex());
+			assertEquals("Password:", result.getMatch());
+			assertEquals("sudo ls\n[sudo] Password:", result.getCaptured());
+
+			in.feed("\nls: error reading\n" + NodeSSHClient.PROMPT);
+			result = engine.expect(reader, literals, true, 0, null, () -> true).get(5, TimeUnit.SECONDS);
+			assertEquals(2, result.getIndex());
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void patternGroups() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			Pattern[] patterns = { Pattern.compile(Pattern.quote(NodeSSHClient.PROMPT)), Pattern.compile("[Pp]assword:"),
+					Pattern.compile("error (\\d+): (\\w+)") };
+			CompletableFuture<ExpectResult> result = engine.expect(new ShellReader(in), patterns, true, 0, null, () -> true);
+
+			//the match is split across several arrivals
+			in.feed("make all\ncc -c main.c\nerr");
+			Thread.sleep(20);
+			in.feed("or 12");
+			Thread.sleep(20);
+			in.feed("7: missing_header\n" + NodeSSHClient.PROMPT);
+
+			ExpectResult r = result.get(5, TimeUnit.SECONDS);
+			assertEquals(2, r.getIndex());
+			assertEquals(2, r.getGroupCount());
+			assertEquals("127", r.getGroup(1));
+			assertEquals("missing_header", r.getGroup(2));
+			assertEquals("make all\ncc -c main.c\nerror 127: missing_header", r.getCaptured());
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void earliestPatternWins() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			in.feed("Warning: x\nDone.\n$ ");
+			Pattern[] patterns = { Pattern.compile("\\$ "), Pattern.compile("(?m)^Done\\.$") };
+			ExpectResult r = engine.expect(new ShellReader(in), patterns, false, 0, null, () -> true).get(5, TimeUnit.SECONDS);
+			assertEquals(1, r.getIndex());
+			assertEquals("Done.", r.getMatch());
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * A pattern that only matches at the end of a multi-megabyte output should cost about the same as a literal,
+	 * not re-scan the output on every block.
+	 */
+	@Test
+	public void largeOutputPattern() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			StringBuilder line = new StringBuilder();
+			for(int i=0; i<100; i++)
+				line.append((char) ('a' + i % 26));
+			line.append('\n');
+			byte[] block = line.toString().getBytes(StandardCharsets.UTF_8);
+
+			FakeShellStream in = new FakeShellStream();
+			int lines = 100000;
+			Pattern[] patterns = { Pattern.compile("exit code (\\d+)"), Pattern.compile("(?m)^FAILED: (.*)$") };
+			CompletableFuture<ExpectResult> result = engine.expect(new ShellReader(in), patterns, false, 0, null, () -> true);
+			long start = System.nanoTime();
+			for(int i=0; i<lines; i++)
+				in.feed(block);
+			in.feed("exit code 3\n");
+			ExpectResult r = result.get(60, TimeUnit.SECONDS);
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			assertEquals("3", r.getGroup(1));
+			double mb = (double) lines * block.length / (1 << 20);
+			System.out.println(String.format("Pattern scanned %.1f MB of output in %.3fs (%.1f MB/s)", mb, seconds, mb / seconds));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void splitMultiByteCharacters() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			CompletableFuture<String> result = engine.expect(new ShellReader(in), "\u00e9t\u00e9>", true, 0, null, () -> true);
+
+			//feed one byte at a time, so every multi-byte sequence is split across reads
+			byte[] bytes = "caf\u00e9 \u20ac5 \u00e9t\u00e9>".getBytes(StandardCharsets.UTF_8);
+			for(byte b : bytes)
+			{
+				in.feed(new byte[] { b });
+				Thread.sleep(1);
+			}
+			assertEquals("caf\u00e9 \u20ac5 \u00e9t\u00e9>", result.get(5, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void captureIsCapped() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			ShellReader reader = new ShellReader(in);
+			reader.setMaxCapture(1000);
+
+			StringBuilder output = new StringBuilder();
+			for(int i=0; i<5000; i++)
+				output.append("line ").append(i).append('\n');
+			output.append("DONE");
+			in.feed(output.toString());
+
+			ExpectResult result = engine.expect(reader, new String[] { "DONE" }, true, 0, null, () -> true).get(5, TimeUnit.SECONDS);
+			assertEquals(1000, result.getCaptured().length());
+			assertEquals(output.length() - 1000, result.getDroppedCount());
+			assertTrue(output.toString().endsWith(result.getCaptured()));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * Throughput of scanning a large command output for the prompt.
+	 */
+	@Test
+	public void largeOutputThroughput() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			StringBuilder line = new StringBuilder();
+			for(int i=0; i<100; i++)
+				line.append((char) ('a' + i % 26));
+			line.append('\n');
+			byte[] block = line.toString().getBytes(StandardCharsets.UTF_8);
+
+			FakeShellStream in = new FakeShellStream();
+			int lines = 200000;
+			CompletableFuture<ExpectResult> result = engine.expect(new ShellReader(in), new String[] { NodeSSHClient.PROMPT }, false, 0, null, () -> true);
+			long start = System.nanoTime();
+			for(int i=0; i<lines; i++)
+				in.feed(block);
+			in.feed(NodeSSHClient.PROMPT);
+			result.get(60, TimeUnit.SECONDS);
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			double mb = (double) lines * block.length / (1 << 20);
+			System.out.println(String.format("Scanned %.1f MB of output in %.3fs (%.1f MB/s)", mb, seconds, mb / seconds));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void timeoutReturnsCaptured() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			in.feed("partial output");
+			String result = engine.expect(new ShellReader(in), "never", true, 100, null, () -> true).get(5, TimeUnit.SECONDS);
+			assertEquals("partial output", result);
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void backsOffWhenIdle() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			final AtomicLong checks = new AtomicLong();
+			FakeShellStream in = new FakeShellStream() {
+				@Override
+				public int available() {
+					checks.incrementAndGet();
+					return super.available();
+				}
+			};
+			CompletableFuture<String> result = engine.expect(new ShellReader(in), NodeSSHClient.PROMPT, true, 0, null, () -> true);
+
+			//a shell that has been quiet for a while is checked a few times a second, not hundreds
+			Thread.sleep(1500);
+			long before = checks.get();
+			Thread.sleep(1000);
+			long quiet = checks.get() - before;
+			assertTrue("Checked " + quiet + " times in a quiet second", quiet < 100);
+
+			//and output is still picked up promptly
+			long start = System.currentTimeMillis();
+			in.feed(NodeSSHClient.PROMPT);
+			result.get(5, TimeUnit.SECONDS);
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue("Took " + elapsed + "ms", elapsed < 500);
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test(expected=IOException.class)
+	public void disconnectFails() throws Throwable {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			AtomicBoolean connected = new AtomicBoolean(true);
+			CompletableFuture<String> result = engine.expect(new ShellReader(new FakeShellStream()), "never", false, 0, null, () -> connected.get());
+			connected.set(false);
+			result.get(5, TimeUnit.SECONDS);
+		}
+		catch(ExecutionException e)
+		{
+			throw e.getCause();
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void manyShellsFewThreads() throws Exception {
+		ExpectEngine engine = new ExpectEngine(2);
+		try
+		{
+			int shells = 500;
+			List<FakeShellStream> streams = new ArrayList<FakeShellStream>();
+			List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+			for(int i=0; i<shells; i++)
+			{
+				FakeShellStream in = new FakeShellStream();
+				streams.add(in);
+				results.add(engine.expect(new ShellReader(in), "done-" + i, true, 0, null, () -> true));
+			}
+			assertEquals(shells, engine.getPendingCount());
+
+			for(int i=shells-1; i>=0; i--)
+				streams.get(i).feed("output of " + i + "\ndone-" + i);
+			for(int i=0; i<shells; i++)
+				assertTrue(results.get(i).get(10, TimeUnit.SECONDS).endsWith("done-" + i));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * Latency from the prompt bytes arriving to the expect returning, engine vs the old 100ms sleep-poll loop.
+	 */
+	@Test
+	public void latencyBenchmark() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		int samples = 20;
+		long engineTotal = 0;
+		long pollTotal = 0;
+		try
+		{
+			for(int i=0; i<samples; i++)
+			{
+				//engine
+				FakeShellStream in = new FakeShellStream();
+				AtomicLong done = new AtomicLong();
+				CompletableFuture<String> result = engine.expect(new ShellReader(in), NodeSSHClient.PROMPT, false, 0, null, () -> true);
+				CompletableFuture<Void> timed = result.thenRun(() -> done.set(System.nanoTime()));
+				Thread.sleep(5 + (i * 7) % 50);
+				long sent = System.nanoTime();
+				in.feed(NodeSSHClient.PROMPT);
+				timed.get(5, TimeUnit.SECONDS);
+				engineTotal += done.get() - sent;
+
+				//sleep-poll
+				final FakeShellStream pollIn = new FakeShellStream();
+				final AtomicLong pollDone = new AtomicLong();
+				Thread poller = new Thread(() -> {
+					try
+					{
+						sleepPollExpect(pollIn, NodeSSHClient.PROMPT);
+						pollDone.set(System.nanoTime());
+					}
+					catch(Exception e)
+					{
+						//reported by the zero latency check below
+					}
+				});
+				poller.start();
+				Thread.sleep(5 + (i * 7) % 50);
+				sent = System.nanoTime();
+				pollIn.feed(NodeSSHClient.PROMPT);
+				poller.join(5000);
+				assertTrue(pollDone.get() != 0);
+				pollTotal += pollDone.get() - sent;
+			}
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+
+		double engineMean = engineTotal / 1e6 / samples;
+		double pollMean = pollTotal / 1e6 / samples;
+		System.out.println(String.format("Prompt latency over %d samples: engine=%.3fms sleep-poll=%.3fms", samples, engineMean, pollMean));
+		assertTrue("Engine should beat sleep-poll", engineMean < pollMean);
+	}
+
+	/**
+	 * The loop NodeSSHClient.expectLiteral used before the engine.
+	 */
+	private static void sleepPollExpect(InputStream in, String text) throws Exception {
+		int foundPos = 0;
+		while(true)
+		{
+			if(in.available() <= 0)
+				Thread.sleep(100);
+			else
+			{
+				char nextChar = (char) in.read();
+				if(nextChar == text.charAt(foundPos))
+				{
+					foundPos++;
+					if(foundPos >= text.length())
+						return;
+				}
+				else
+					foundPos = 0;
+			}
+		}
+	}
+}
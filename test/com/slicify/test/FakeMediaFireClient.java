@@ -0,0 +1,43 @@
+package com.slicify.test;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import com.slicify.MediaFireClient;
+import com.slicify.PooledHttpsTransport;
+
+/**
+ * MediaFireClient that never logs in, for tests to override the calls they need with canned replies.
+ *
+ * @author slicify
+ *
+ */
+public class FakeMediaFireClient extends MediaFireClient {
+
+	public FakeMediaFireClient() throws Exception {
+		this(null);
+	}
+
+	/**
+	 * @param transport Answers the calls that aren't overridden
+	 */
+	public FakeMediaFireClient(PooledHttpsTransport transport) throws Exception {
+		super("user", "password", "appid", "appkey", transport);
+	}
+
+	@Override
+	public void connect() {
+		//no session needed
+	}
+
+	/**
+	 * Parse a canned API reply.
+	 */
+	protected static Document parse(String xml) throws Exception {
+		return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+	}
+}
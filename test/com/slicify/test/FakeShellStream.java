@@ -0,0 +1,84 @@
+package com.slicify.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stands in for an SSH shell's output stream. Like sshj's channel stream, available() reports buffered bytes and
+ * read() blocks until data is fed in from another thread.
+ *
+ * @author slicify
+ *
+ */
+public class FakeShellStream extends InputStream {
+
+	private byte[] Buffer = new byte[1024];
+	private int Start = 0;
+	private int End = 0;
+	private boolean Closed = false;
+
+	/**
+	 * Make the text available to readers.
+	 */
+	public synchronized void feed(String text) {
+		feed(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public synchronized void feed(byte[] data) {
+		if(End + data.length > Buffer.length)
+		{
+			byte[] bigger = new byte[Math.max(Buffer.length * 2, End - Start + data.length)];
+			System.arraycopy(Buffer, Start, bigger, 0, End - Start);
+			End -= Start;
+			Start = 0;
+			Buffer = bigger;
+		}
+		System.arraycopy(data, 0, Buffer, End, data.length);
+		End += data.length;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized int available() {
+		return End - Start;
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		while(Start == End)
+		{
+			if(Closed)
+				return -1;
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+				throw new IOException(e);
+			}
+		}
+		return Buffer[Start++] & 0xff;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return 0;
+		int first = read();
+		if(first < 0)
+			return -1;
+		b[off] = (byte) first;
+		int count = Math.min(len - 1, End - Start);
+		System.arraycopy(Buffer, Start, b, off + 1, count);
+		Start += count;
+		return count + 1;
+	}
+
+	@Override
+	public synchronized void close() {
+		Closed = true;
+		notifyAll();
+	}
+}
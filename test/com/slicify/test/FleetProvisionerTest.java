@@ -0,0 +1,196 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.slicify.AsyncSlicifyNode;
+import com.slicify.BookingInfo;
+import com.slicify.BookingWatcher;
+import com.slicify.Fleet;
+import com.slicify.FleetProvisioner;
+import com.slicify.FleetSpec;
+import com.slicify.SlicifyNode;
+import com.slicify.UrlConnectionTransport;
+
+/**
+ * Provisions a fleet against a stubbed node that returns a mix of bookings, "no machines" and errors,
+ * and checks the failed bids are deleted and re-bid.
+ *
+ * @author slicify
+ *
+ */
+public class FleetProvisionerTest {
+
+	/**
+	 * Bid IDs are handed out in sequence. Bids divisible by 3 get an error, bids divisible by 4 get
+	 * "no machines" once and then a booking, and booking IDs are bidID + 1000.
+	 */
+	private static class StubNode extends SlicifyNode {
+
+		final AtomicInteger NextBid = new AtomicInteger(1);
+		final Set<Integer> Deleted = new HashSet<Integer>();
+		final Set<Integer> NoMachineSeen = new HashSet<Integer>();
+
+		StubNode() {
+			super(new UrlConnectionTransport());
+		}
+
+		@Override
+		public int addBid(int minRam, double maxPrice, int bits, int minEcu, String country) {
+			return NextBid.getAndIncrement();
+		}
+
+		@Override
+		public synchronized int getBookingID(int bidID) {
+			if(bidID % 3 == 0)
+				return -2;
+			if(bidID % 4 == 0 && NoMachineSeen.add(bidID))
+				return -1;
+			return bidID + 1000;
+		}
+
+		@Override
+		public synchronized void deleteBid(int bidID) {
+			Deleted.add(bidID);
+		}
+
+		@Override
+		public String getBookingStatus(int bookingID) {
+			return "Ready";
+		}
+
+		@Override
+		public String getBookingPassword(int bookingID) { return "pw" + bookingID; }
+		@Override
+		public String getSudoPassword(int bookingID) { return "sudo" + bookingID; }
+		@Override
+		public String getMachineSpec(int bookingID) { return "spec"; }
+		@Override
+		public String getBookingCountry(int bookingID) { return "UK"; }
+		@Override
+		public int getCoreCount(int bookingID) { return 2; }
+		@Override
+		public int getECU(int bookingID) { return 6; }
+		@Override
+		public int getBookingBidID(int bookingID) { return bookingID - 1000; }
+	}
+
+	@Test
+	public void provisionWithRetries() throws Exception {
+		StubNode stub = new StubNode();
+		AsyncSlicifyNode node = new AsyncSlicifyNode(stub);
+		BookingWatcher watcher = new BookingWatcher(node, 20, 100, 2);
+		FleetProvisioner provisioner = new FleetProvisioner(node, watcher);
+		provisioner.setRetryDelay(10);
+
+		final AtomicInteger readyCallbacks = new AtomicInteger();
+		try
+		{
+			Fleet fleet = provisioner.provision(new FleetSpec(8, 1, 0.03, 64, 5, ""), info -> readyCallbacks.incrementAndGet())
+					.get(30, TimeUnit.SECONDS);
+
+			assertTrue(fleet.toString(), fleet.isComplete());
+			assertEquals(8, fleet.getNodes().size());
+			assertEquals(8, readyCallbacks.get());
+			for(BookingInfo info : fleet.getNodes())
+			{
+				assertFalse("Errored bids should have been replaced", info.getBidID() % 3 == 0);
+				assertEquals("pw" + info.getBookingID(), info.getPassword());
+			}
+
+			//every errored bid was deleted rather than left open
+			for(int bidID = 3; bidID < stub.NextBid.get(); bidID += 3)
+				assertTrue("Bid not deleted:" + bidID, stub.Deleted.contains(bidID));
+
+			fleet.release().get(10, TimeUnit.SECONDS);
+			for(BookingInfo info : fleet.getNodes())
+				assertTrue(stub.Deleted.contains(info.getBidID()));
+		}
+		finally
+		{
+			provisioner.shutdown();
+			watcher.shutdown();
+		}
+	}
+
+	@Test
+	public void cancelledWatchKeepsOtherNodes() throws Exception {
+		//booking 1002 never becomes ready, and its watch is cancelled
+		final AtomicInteger polls = new AtomicInteger();
+		StubNode stub = new StubNode() {
+			@Override
+			public String getBookingStatus(int bookingID) {
+				if(bookingID != 1002)
+					return "Ready";
+				polls.incrementAndGet();
+				return "Booked";
+			}
+		};
+		AsyncSlicifyNode node = new AsyncSlicifyNode(stub);
+		BookingWatcher watcher = new BookingWatcher(node, 20, 100, 2);
+		FleetProvisioner provisioner = new FleetProvisioner(node, watcher);
+		provisioner.setMaxAttempts(1);
+		try
+		{
+			CompletableFuture<Fleet> result = provisioner.provision(new FleetSpec(2, 1, 0.03, 64, 5, ""));
+			long deadline = System.currentTimeMillis() + 10000;
+			while(polls.get() == 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			watcher.unwatch(1002);
+
+			Fleet fleet = result.get(10, TimeUnit.SECONDS);
+			assertFalse(fleet.isComplete());
+			assertEquals(1, fleet.getNodes().size());
+			assertEquals(1001, fleet.getNodes().get(0).getBookingID());
+			assertEquals(1, fleet.getFailures().size());
+
+			//the cancelled slot's bid is given up in the background
+			deadline = System.currentTimeMillis() + 5000;
+			while(!stub.Deleted.contains(2) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertTrue(stub.Deleted.contains(2));
+		}
+		finally
+		{
+			provisioner.shutdown();
+			watcher.shutdown();
+		}
+	}
+
+	@Test
+	public void watcherShutDown() throws Exception {
+		//a watch that can't be started gives up the bid, rather than leaving provision() waiting forever
+		StubNode stub = new StubNode();
+		AsyncSlicifyNode node = new AsyncSlicifyNode(stub);
+		BookingWatcher watcher = new BookingWatcher(node, 20, 100, 2);
+		watcher.shutdown();
+		FleetProvisioner provisioner = new FleetProvisioner(node, watcher);
+		provisioner.setMaxAttempts(1);
+		try
+		{
+			Fleet fleet = provisioner.provision(new FleetSpec(2, 1, 0.03, 64, 5, "")).get(10, TimeUnit.SECONDS);
+			assertEquals(0, fleet.getNodes().size());
+			assertEquals(2, fleet.getFailures().size());
+			assertTrue(fleet.getFailures().get(0) instanceof IllegalStateException);
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while(stub.Deleted.size() < 2 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertTrue(stub.Deleted.contains(1));
+			assertTrue(stub.Deleted.contains(2));
+		}
+		finally
+		{
+			provisioner.shutdown();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.slicify.CommandResult;
+import com.slicify.FleetShell;
+import com.slicify.NodeSSHClient;
+
+/**
+ * Runs commands across fake clients that take different times to finish, and checks FleetShell runs them in
+ * parallel within its concurrency limit.
+ *
+ * @author slicify
+ *
+ */
+public class FleetShellTest {
+
+	private static final ScheduledExecutorService Scheduler = Executors.newScheduledThreadPool(4);
+	private static final ConcurrencyCounter Running = new ConcurrencyCounter();
+
+	/**
+	 * Client that "runs" each command for a fixed time. Node -1 fails with an IOException.
+	 */
+	private static class FakeClient extends NodeSSHClient {
+
+		final int Node;
+		final long Delay;
+		volatile String StartedOn;
+
+		FakeClient(int node, long delayms) {
+			Node = node;
+			Delay = delayms;
+		}
+
+		@Override
+		public CompletableFuture<CommandResult> runAsync(String command, int timeoutms) throws IOException {
+			StartedOn = Thread.currentThread().getName();
+			if(Node < 0)
+				throw new IOException("SSH no longer connected");
+
+			Running.enter();
+			final CompletableFuture<CommandResult> result = new CompletableFuture<CommandResult>();
+			final boolean timeout = timeoutms > 0 && Delay > timeoutms;
+			Scheduler.schedule(() -> {
+				Running.exit();
+				result.complete(new CommandResult(this, command, timeout ? "" : "node" + Node, timeout ? -1 : Node % 2,
+						timeout, null, Delay));
+			}, timeout ? timeoutms : Delay, TimeUnit.MILLISECONDS);
+			return result;
+		}
+	}
+
+	@Test
+	public void parallelWithLimit() throws Exception {
+		List<NodeSSHClient> clients = new ArrayList<NodeSSHClient>();
+		for(int i=0; i<20; i++)
+			clients.add(new FakeClient(i, 100));
+		Running.reset();
+
+		final List<CommandResult> streamed = Collections.synchronizedList(new ArrayList<CommandResult>());
+		long start = System.currentTimeMillis();
+		List<CommandResult> results = new FleetShell(clients, 10).runAsync("hostname", 0, r -> streamed.add(r))
+				.get(10, TimeUnit.SECONDS);
+		long elapsed = System.currentTimeMillis() - start;
+
+		//20 nodes at 10 at a time is two rounds, not twenty
+		assertTrue("Took " + elapsed + "ms", elapsed < 1000);
+		assertTrue("Max running " + Running.getMax(), Running.getMax() <= 10);
+		assertEquals(20, streamed.size());
+		for(int i=0; i<20; i++)
+		{
+			assertEquals("node" + i, results.get(i).getOutput());
+			assertEquals(i % 2, results.get(i).getExitStatus());
+		}
+	}
+
+	@Test
+	public void nextNodeStartsOffEngineThread() throws Exception {
+		//the second node is started as the first finishes, but not on the thread that finished it
+		FakeClient first = new FakeClient(1, 10);
+		FakeClient second = new FakeClient(2, 10);
+		new FleetShell(Arrays.<NodeSSHClient>asList(first, second), 1).run("hostname", 0);
+		assertTrue(second.StartedOn, second.StartedOn.startsWith("slicify-fleet"));
+	}
+
+	@Test
+	public void failuresAndTimeouts() throws Exception {
+		List<NodeSSHClient> clients = new ArrayList<NodeSSHClient>();
+		clients.add(new FakeClient(2, 10));
+		clients.add(new FakeClient(-1, 10));
+		clients.add(new FakeClient(4, 5000));
+
+		List<CommandResult> results = new FleetShell(clients).run("make", 200);
+		assertTrue(results.get(0).isSuccess());
+		assertTrue(results.get(1).getError() instanceof IOException);
+		assertEquals(-1, results.get(1).getExitStatus());
+		assertTrue(results.get(2).isTimeout());
+	}
+}
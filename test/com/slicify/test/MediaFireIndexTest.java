@@ -0,0 +1,209 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.slicify.MediaFireFile;
+import com.slicify.MediaFireIndex;
+
+/**
+ * Checks the MediaFire folder index - in place updates, expiry, saving and loading - and that MediaFireClient
+ * answers lookups from it without listing the folder each time.
+ *
+ * @author slicify
+ *
+ */
+public class MediaFireIndexTest {
+
+	/**
+	 * Client with a folder held in memory, counting the calls made to "mediafire".
+	 */
+	private static class FakeClient extends FakeMediaFireClient {
+
+		final List<MediaFireFile> Folder = new ArrayList<MediaFireFile>();
+		String Revision = "1";
+		int Listings = 0;
+		int RevisionChecks = 0;
+
+		FakeClient() throws Exception {
+		}
+
+		@Override
+		protected Document getFolderInfo() throws Exception {
+			RevisionChecks++;
+			return parse("<response><folder_info><revision>" + Revision + "</revision><file_count>" + Folder.size() + "</file_count></folder_info></response>");
+		}
+
+		@Override
+		protected Document getFolderContent(int chunk) throws Exception {
+			Listings++;
+			StringBuilder xml = new StringBuilder("<response><folder_content><more_chunks>no</more_chunks><files>");
+			for(MediaFireFile file : Folder)
+				xml.append("<file><quickkey>" + file.getQuickKey() + "</quickkey><filename>" + file.getName() + "</filename><size>" + file.getSize() + "</size></file>");
+			xml.append("</files></folder_content></response>");
+			return parse(xml.toString());
+		}
+	}
+
+	private static MediaFireFile file(String name, String quickKey)
+	{
+		return new MediaFireFile(name, quickKey, name.length(), "hash-" + quickKey, "2013-01-01 00:00:00");
+	}
+
+	@Test
+	public void updatesInPlace() {
+		MediaFireIndex index = new MediaFireIndex();
+		index.replace(Arrays.asList(file("a.txt", "qa"), file("b.txt", "qb")), "7");
+		assertEquals("qa", index.get("a.txt").getQuickKey());
+		assertNull(index.get("c.txt"));
+		assertEquals(1, index.getHitCount());
+		assertEquals(1, index.getMissCount());
+
+		//an upload is pending until it has its quickkey
+		index.addPending("c.txt", "upload1");
+		assertEquals("upload1", index.getPending("c.txt"));
+		index.put(file("c.txt", "qc"));
+		assertNull(index.getPending("c.txt"));
+		assertEquals(3, index.size());
+
+		//replacing a file drops its old quickkey
+		index.put(file("a.txt", "qa2"));
+		assertNull(index.remove("qa"));
+		assertEquals("a.txt", index.remove("qa2").getName());
+		assertNull(index.get("a.txt"));
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	public void expiry() {
+		MediaFireIndex index = new MediaFireIndex(60000);
+		assertTrue(index.isExpired());
+		index.replace(Arrays.asList(file("a.txt", "qa")), null);
+		assertFalse(index.isExpired());
+		index.expire();
+		assertTrue(index.isExpired());
+		index.touch();
+		assertFalse(index.isExpired());
+		index.setTTL(0);
+		assertTrue(index.isExpired());
+	}
+
+	@Test
+	public void saveAndLoad() throws Exception {
+		Path dir = Files.createTempDirectory("slicify");
+		Path path = dir.resolve("index");
+		MediaFireIndex index = new MediaFireIndex();
+		assertFalse(index.load(path));
+		index.replace(Arrays.asList(file("a.txt", "qa"), file("tab\tname.txt", "qt"),
+				new MediaFireFile("unknown", "qu", -1, null, null)), "42");
+		index.save(path);
+
+		MediaFireIndex loaded = new MediaFireIndex();
+		assertTrue(loaded.load(path));
+		assertEquals("42", loaded.getRevision());
+		assertEquals(3, loaded.size());
+		assertFalse(loaded.isExpired());
+		assertEquals(0, loaded.getRefreshCount());
+		assertEquals("hash-qa", loaded.get("a.txt").getHash());
+		assertEquals("qt", loaded.get("tab\tname.txt").getQuickKey());
+		assertEquals(-1, loaded.get("unknown").getSize());
+		assertNull(loaded.get("unknown").getCreated());
+
+		Files.delete(path);
+		Files.delete(dir);
+	}
+
+	@Test
+	public void clientLookupsUseIndex() throws Exception {
+		FakeClient client = new FakeClient();
+		client.Folder.add(file("a.txt", "qa"));
+		client.Folder.add(file("b.txt", "qb"));
+
+		//first lookup fills the index, the rest are answered from it
+		assertEquals("qa", client.getQuickKey("a.txt"));
+		for(int i=0;i<100;i++)
+			assertEquals("qb", client.getQuickKey("b.txt"));
+		assertEquals(1, client.Listings);
+		assertEquals(1, client.RevisionChecks);
+
+		//an expired index whose folder hasn't changed is only checked, not listed again
+		client.getIndex().expire();
+		assertEquals("qa", client.getQuickKey("a.txt"));
+		assertEquals(1, client.Listings);
+		assertEquals(2, client.RevisionChecks);
+
+		//a new revision is listed again
+		client.Folder.add(file("c.txt", "qc"));
+		client.Revision = "2";
+		client.getIndex().expire();
+		assertEquals("qc", client.getQuickKey("c.txt"));
+		assertEquals(2, client.Listings);
+
+		//misses straight after a refresh don't list the folder again
+		for(int i=0;i<100;i++)
+			assertNull(client.getQuickKey("missing.txt"));
+		assertEquals(2, client.Listings);
+	}
+
+	@Test
+	public void changeDuringListing() throws Exception {
+		//the folder changes after the revision is taken but before the first block is read
+		FakeClient client = new FakeClient() {
+			boolean Changed = false;
+
+			@Override
+			protected Document getFolderContent(int chunk) throws Exception {
+				if(!Changed)
+				{
+					Changed = true;
+					Folder.add(file("b.txt", "qb"));
+					Revision = "2";
+				}
+				return super.getFolderContent(chunk);
+			}
+		};
+		client.Folder.add(file("a.txt", "qa"));
+		client.listFiles();
+		assertEquals("1", client.getIndex().getRevision());
+
+		//so the next refresh sees the new revision and lists the folder again
+		client.Folder.remove(0);
+		client.refreshIndex();
+		assertEquals("2", client.getIndex().getRevision());
+		assertNull(client.getIndex().get("a.txt"));
+		assertEquals(2, client.Listings);
+	}
+
+	@Test
+	public void clientIndexFile() throws Exception {
+		Path dir = Files.createTempDirectory("slicify");
+		Path path = dir.resolve("index");
+
+		FakeClient client = new FakeClient();
+		client.Folder.add(file("a.txt", "qa"));
+		client.setIndexFile(path);
+		assertEquals("qa", client.getQuickKey("a.txt"));
+		assertTrue(Files.exists(path));
+
+		//a new client starts with the saved index
+		FakeClient restarted = new FakeClient();
+		restarted.setIndexFile(path);
+		assertEquals("qa", restarted.getQuickKey("a.txt"));
+		assertEquals(0, restarted.Listings);
+		assertEquals(0, restarted.RevisionChecks);
+
+		Files.delete(path);
+		Files.delete(dir);
+	}
+}
@@ -0,0 +1,155 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.slicify.MediaFireFile;
+
+/**
+ * Lists a fake folder in blocks, to check the blocks after the first are fetched in parallel, handed out in
+ * order, and that no more blocks are requested than the folder holds.
+ *
+ * @author slicify
+ *
+ */
+public class MediaFireListingTest {
+
+	/**
+	 * Client serving a folder of numbered files in blocks, slowly.
+	 */
+	private static class FakeClient extends FakeMediaFireClient {
+
+		final int FileCount;
+		final int ChunkSize;
+		boolean ReportCount = true;
+		int FailChunk = -1;
+
+		final AtomicInteger Requests = new AtomicInteger();
+		final AtomicInteger InfoRequests = new AtomicInteger();
+		final ConcurrencyCounter Running = new ConcurrencyCounter();
+
+		FakeClient(int fileCount, int chunkSize) throws Exception {
+			FileCount = fileCount;
+			ChunkSize = chunkSize;
+		}
+
+		@Override
+		protected Document getFolderInfo() throws Exception {
+			InfoRequests.incrementAndGet();
+			Thread.sleep(20);
+			return parse("<response><folder_info><revision>1</revision>" + (ReportCount ? "<file_count>" + FileCount + "</file_count>" : "") + "</folder_info></response>");
+		}
+
+		@Override
+		protected Document getFolderContent(int chunk) throws Exception {
+			Requests.incrementAndGet();
+			Running.enter();
+			try
+			{
+				Thread.sleep(20);
+				if(chunk == FailChunk)
+					throw new IOException("Connection reset");
+
+				StringBuilder xml = new StringBuilder("<response><folder_content><chunk_size>" + ChunkSize + "</chunk_size><files>");
+				for(int i=(chunk-1)*ChunkSize;i<Math.min(chunk*ChunkSize, FileCount);i++)
+					xml.append("<file><quickkey>q" + i + "</quickkey><filename>file" + i + "</filename><size>" + i + "</size></file>");
+				xml.append("</files></folder_content></response>");
+				return parse(xml.toString());
+			}
+			finally
+			{
+				Running.exit();
+			}
+		}
+	}
+
+	private static void checkInOrder(List<MediaFireFile> files, int count)
+	{
+		assertEquals(count, files.size());
+		for(int i=0;i<count;i++)
+		{
+			assertEquals("file" + i, files.get(i).getName());
+			assertEquals("q" + i, files.get(i).getQuickKey());
+			assertEquals(i, files.get(i).getSize());
+		}
+	}
+
+	@Test
+	public void parallelBlocks() throws Exception {
+		FakeClient client = new FakeClient(1050, 100);
+		checkInOrder(client.listFileInfo(), 1050);
+		assertEquals(11, client.Requests.get());
+		assertEquals(1, client.InfoRequests.get());
+		assertTrue("Max running " + client.Running.getMax(), client.Running.getMax() > 1);
+		assertTrue(client.Running.getMax() <= 4);
+	}
+
+	@Test
+	public void noWastedRequests() throws Exception {
+		//a single short block
+		FakeClient small = new FakeClient(30, 100);
+		checkInOrder(small.listFileInfo(), 30);
+		assertEquals(1, small.Requests.get());
+
+		//an exact number of full blocks doesn't need an empty block to find the end
+		FakeClient exact = new FakeClient(300, 100);
+		checkInOrder(exact.listFileInfo(), 300);
+		assertEquals(3, exact.Requests.get());
+	}
+
+	@Test
+	public void singleFolderInfo() throws Exception {
+		//the revision and file count come from the one get_info call
+		FakeClient client = new FakeClient(1050, 100);
+		assertEquals(1050, client.listFiles().size());
+		assertEquals("1", client.getIndex().getRevision());
+		assertEquals(1, client.InfoRequests.get());
+		assertEquals(11, client.Requests.get());
+	}
+
+	@Test
+	public void withoutFileCount() throws Exception {
+		FakeClient client = new FakeClient(350, 100);
+		client.ReportCount = false;
+		checkInOrder(client.listFileInfo(), 350);
+		assertEquals(4, client.Requests.get());
+	}
+
+	@Test
+	public void streamStartsBeforeListingCompletes() throws Exception {
+		FakeClient client = new FakeClient(1000, 100);
+		client.setListParallelism(1);
+		try(Stream<MediaFireFile> files = client.streamFiles())
+		{
+			//the first block is there straight away, the rest are still being fetched
+			List<MediaFireFile> first = files.limit(100).collect(Collectors.toList());
+			checkInOrder(first, 100);
+			assertTrue("Requests " + client.Requests.get(), client.Requests.get() < 10);
+		}
+	}
+
+	@Test
+	public void failedBlock() throws Exception {
+		FakeClient client = new FakeClient(500, 100);
+		client.FailChunk = 4;
+		try
+		{
+			client.listFileInfo();
+			fail("Failed block wasn't reported");
+		}
+		catch(IOException e)
+		{
+			assertEquals("Connection reset", e.getMessage());
+		}
+	}
+}
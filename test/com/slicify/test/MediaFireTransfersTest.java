@@ -0,0 +1,206 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import com.slicify.MediaFireException;
+import com.slicify.MediaFireTransfers;
+import com.slicify.PooledHttpsTransport;
+import com.slicify.ReconnectPolicy;
+import com.slicify.TransferProgress;
+import com.slicify.TransferResult;
+
+/**
+ * Runs many transfers through MediaFireTransfers with a fake client, and checks the parallelism limit, retries
+ * and stats.
+ *
+ * @author slicify
+ *
+ */
+public class MediaFireTransfersTest {
+
+	/**
+	 * Client that "uploads" by sleeping, failing the first attempts at some files.
+	 */
+	private static class FakeClient extends FakeMediaFireClient {
+
+		final ConcurrencyCounter Running = new ConcurrencyCounter();
+		final Map<String, AtomicInteger> Failures = new ConcurrentHashMap<String, AtomicInteger>();
+
+		FakeClient() throws Exception {
+		}
+
+		@Override
+		public void upload(String fileName, Path file, TransferProgress progress) throws IOException {
+			Running.enter();
+			try
+			{
+				Thread.sleep(20);
+				AtomicInteger failures = Failures.get(fileName);
+				if(failures != null && failures.getAndDecrement() > 0)
+					throw new IOException("Connection reset");
+				if(progress != null)
+					progress.progress(Files.size(file), Files.size(file));
+			}
+			catch(InterruptedException e)
+			{
+				throw new IOException(e);
+			}
+			finally
+			{
+				Running.exit();
+			}
+		}
+
+		@Override
+		public long download(String quickKey, Path file, TransferProgress progress) throws Exception {
+			throw new Exception("Missing/multiple direct_download section:0");
+		}
+	}
+
+	@Test
+	public void parallelUploadsWithRetries() throws Exception {
+		FakeClient client = new FakeClient();
+		client.Failures.put("file3.dat", new AtomicInteger(2));
+		client.Failures.put("file7.dat", new AtomicInteger(5));
+		MediaFireTransfers transfers = new MediaFireTransfers(client, 4, new ReconnectPolicy(3, 1, 2, 0));
+
+		List<Path> files = new ArrayList<Path>();
+		try
+		{
+			for(int i=0; i<20; i++)
+			{
+				Path file = Files.createTempFile("file", ".dat");
+				Files.write(file, new byte[1000]);
+				files.add(Files.move(file, file.resolveSibling("file" + i + ".dat")));
+			}
+
+			List<TransferResult> results = transfers.uploadAll(files).join();
+			assertEquals(20, results.size());
+			assertEquals(4, client.Running.getMax());
+
+			//a file that fails twice works on the third attempt, one that keeps failing gives up
+			assertTrue(results.get(3).isSuccess());
+			assertEquals(3, results.get(3).getAttempts());
+			assertFalse(results.get(7).isSuccess());
+			assertEquals(3, results.get(7).getAttempts());
+			assertEquals("file0.dat", results.get(0).getName());
+			assertEquals(1000, results.get(0).getBytes());
+
+			assertEquals(19, transfers.getSucceededCount());
+			assertEquals(1, transfers.getFailedCount());
+			assertEquals(4, transfers.getRetryCount());
+			assertEquals(19000, transfers.getBytes());
+			assertTrue(transfers.getThroughput() > 0);
+		}
+		finally
+		{
+			transfers.shutdown();
+			for(Path file : files)
+				Files.delete(file);
+		}
+	}
+
+	@Test
+	public void apiErrorIsNotRetried() throws Exception {
+		MediaFireTransfers transfers = new MediaFireTransfers(new FakeClient());
+		Path file = Files.createTempFile("slicify", ".dat");
+		try
+		{
+			TransferResult result = transfers.download("badkey", file, null).join();
+			assertFalse(result.isSuccess());
+			assertEquals(1, result.getAttempts());
+			assertEquals(0, transfers.getRetryCount());
+		}
+		finally
+		{
+			transfers.shutdown();
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Transport answering each request with the next canned reply.
+	 */
+	private static class ReplyTransport extends PooledHttpsTransport {
+
+		final Queue<String> Replies = new ConcurrentLinkedQueue<String>();
+
+		ReplyTransport() {
+			super(1, 1, 60000);
+		}
+
+		@Override
+		public HttpResponse send(HttpRequestBase request) {
+			BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+			response.setEntity(new StringEntity(Replies.remove(), ContentType.TEXT_XML));
+			return response;
+		}
+	}
+
+	@Test
+	public void uploadErrorReplies() throws Exception {
+		ReplyTransport transport = new ReplyTransport();
+		MediaFireTransfers transfers = new MediaFireTransfers(new FakeMediaFireClient(transport), 1, new ReconnectPolicy(3, 0, 0, 0));
+		Path file = Files.createTempFile("slicify", ".dat");
+		try
+		{
+			Files.write(file, new byte[1000]);
+
+			//an expired session token is worth another go
+			transport.Replies.add("<response><action>upload/upload</action><message>Session Token is invalid</message>"
+					+ "<error>105</error><result>Error</result></response>");
+			transport.Replies.add("<response><action>upload/upload</action><doupload><result>0</result><key>k1</key></doupload>"
+					+ "<result>Success</result></response>");
+			TransferResult result = transfers.upload("file.dat", file, null).join();
+			assertTrue(result.isSuccess());
+			assertEquals(2, result.getAttempts());
+
+			//a rejected upload isn't retried, and isn't counted as a success
+			transport.Replies.add("<response><action>upload/upload</action><doupload><result>-700</result></doupload>"
+					+ "<result>Success</result></response>");
+			result = transfers.upload("file.dat", file, null).join();
+			assertFalse(result.isSuccess());
+			assertEquals(1, result.getAttempts());
+			assertEquals(-700, ((MediaFireException) result.getError()).getCode());
+
+			//an unreadable reply is retried, then counted as a failure
+			transport.Replies.add("<html>Service unavailable");
+			transport.Replies.add("<html>Service unavailable");
+			transport.Replies.add("<html>Service unavailable");
+			result = transfers.upload("file.dat", file, null).join();
+			assertFalse(result.isSuccess());
+			assertEquals(3, result.getAttempts());
+
+			assertEquals(1, transfers.getSucceededCount());
+			assertEquals(2, transfers.getFailedCount());
+			assertEquals(1000, transfers.getBytes());
+		}
+		finally
+		{
+			transfers.shutdown();
+			transport.shutdown();
+			Files.delete(file);
+		}
+	}
+}
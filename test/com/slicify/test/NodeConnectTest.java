@@ -0,0 +1,202 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.schmizz.sshj.SSHClient;
+
+import org.junit.Test;
+
+import com.slicify.ConnectTimeouts;
+import com.slicify.NodeConnectException;
+import com.slicify.NodeConnectException.Phase;
+import com.slicify.NodeSSHClient;
+import com.slicify.ReconnectPolicy;
+import com.slicify.SSHConnectionPool;
+
+/**
+ * Checks that connect failures say which phase failed, and that reconnecting gives up straight away on a login
+ * that will never work but keeps trying after a timeout. Stalled and refused handshakes are run against a local
+ * socket.
+ *
+ * @author slicify
+ *
+ */
+public class NodeConnectTest {
+
+	/**
+	 * Pool whose handshakes always fail the same way.
+	 */
+	private static class FailingPool extends SSHConnectionPool {
+
+		final NodeConnectException Failure;
+		final AtomicInteger Attempts = new AtomicInteger();
+
+		FailingPool(NodeConnectException failure) {
+			Failure = failure;
+		}
+
+		@Override
+		protected SSHClient openTransport(String username, String bookingPassword, int timeoutms) throws IOException {
+			Attempts.incrementAndGet();
+			throw Failure;
+		}
+	}
+
+	@Test
+	public void closedBookingIsNotRetried() throws Exception {
+		FailingPool pool = new FailingPool(new NodeConnectException(Phase.AUTHENTICATE, false, true, "Login rejected", null));
+		try
+		{
+			NodeSSHClient client = new NodeSSHClient(pool);
+			client.setReconnectPolicy(new ReconnectPolicy(5, 1, 1, 0));
+			NodeConnectException e = connect(client);
+			assertEquals(Phase.AUTHENTICATE, e.getPhase());
+			assertFalse(e.isRetryable());
+
+			try
+			{
+				client.reconnect();
+				fail("Reconnect didn't fail");
+			}
+			catch(NodeConnectException e2)
+			{
+				assertEquals(2, pool.Attempts.get());
+			}
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+
+	@Test
+	public void timeoutIsRetried() throws Exception {
+		FailingPool pool = new FailingPool(new NodeConnectException(Phase.KEY_EXCHANGE, true, "Timed out", null));
+		try
+		{
+			NodeSSHClient client = new NodeSSHClient(pool);
+			client.setReconnectPolicy(new ReconnectPolicy(5, 1, 1, 0));
+			NodeConnectException e = connect(client);
+			assertTrue(e.isTimeout());
+			assertTrue(e.isRetryable());
+
+			try
+			{
+				client.reconnect();
+				fail("Reconnect didn't fail");
+			}
+			catch(IOException e2)
+			{
+				assertEquals(6, pool.Attempts.get());
+				assertTrue(e2.getCause() instanceof NodeConnectException);
+			}
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+
+	@Test
+	public void retryable() {
+		assertTrue(new NodeConnectException(Phase.CONNECT, false, "Refused", null).isRetryable());
+		assertTrue(new NodeConnectException(Phase.AUTHENTICATE, true, "Timed out", null).isRetryable());
+		assertTrue(new NodeConnectException(Phase.PROMPT, true, "Timed out", null).isRetryable());
+		assertFalse(new NodeConnectException(Phase.AUTHENTICATE, false, true, "Rejected", null).isRetryable());
+
+		//a connection dropped during login isn't a rejected password
+		assertTrue(new NodeConnectException(Phase.AUTHENTICATE, false, "Connection reset", null).isRetryable());
+	}
+
+	@Test
+	public void silentServerTimesOutInKeyExchange() throws Exception {
+		//accepts the connection but never sends a version line
+		try(ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress()))
+		{
+			List<Socket> accepted = new ArrayList<Socket>();
+			Thread acceptor = new Thread(() -> {
+				try
+				{
+					while(true)
+						accepted.add(server.accept());
+				}
+				catch(IOException e)
+				{
+					//closed
+				}
+			});
+			acceptor.setDaemon(true);
+			acceptor.start();
+
+			SSHConnectionPool pool = new SSHConnectionPool();
+			pool.setServer("127.0.0.1", server.getLocalPort());
+			pool.setConnectTimeouts(new ConnectTimeouts(2000, 500, 2000, 2000, 2000));
+			try
+			{
+				long start = System.currentTimeMillis();
+				NodeConnectException e = connect(new NodeSSHClient(pool));
+				assertEquals(Phase.KEY_EXCHANGE, e.getPhase());
+				assertTrue(e.isTimeout());
+				assertTrue(e.isRetryable());
+				assertTrue(System.currentTimeMillis() - start < 5000);
+				assertEquals(0, pool.getTransportCount());
+			}
+			finally
+			{
+				pool.close();
+			}
+		}
+	}
+
+	@Test
+	public void refusedConnectionFailsInConnect() throws Exception {
+		int port;
+		try(ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress()))
+		{
+			port = server.getLocalPort();
+		}
+
+		SSHConnectionPool pool = new SSHConnectionPool();
+		pool.setServer("127.0.0.1", port);
+		try
+		{
+			NodeConnectException e = connect(new NodeSSHClient(pool));
+			assertEquals(Phase.CONNECT, e.getPhase());
+			assertFalse(e.isTimeout());
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeTimeout() {
+		new ConnectTimeouts(1000, -1, 1000, 1000, 1000);
+	}
+
+	private static NodeConnectException connect(NodeSSHClient client) throws IOException
+	{
+		try
+		{
+			client.connect("node", "password", 1000);
+			fail("Connect didn't fail");
+			return null;
+		}
+		catch(NodeConnectException e)
+		{
+			return e;
+		}
+	}
+}
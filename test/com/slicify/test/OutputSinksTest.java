@@ -0,0 +1,264 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.slicify.ExpectEngine;
+import com.slicify.ExpectResult;
+import com.slicify.NodeSSHClient;
+import com.slicify.OutputSink;
+import com.slicify.OutputSinks;
+import com.slicify.ShellReader;
+
+/**
+ * Streams fake shell output through the OutputSinks, and checks a slow sink holds back reading instead of
+ * buffering.
+ *
+ * @author slicify
+ *
+ */
+public class OutputSinksTest {
+
+	private static final String[] PROMPT = { NodeSSHClient.PROMPT };
+
+	@Test
+	public void lines() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+			CompletableFuture<ExpectResult> result = engine.expect(new ShellReader(in), PROMPT, OutputSinks.lines(lines::add), 0, null, () -> true);
+			in.feed("first\r\nsec");
+			Thread.sleep(20);
+			in.feed("ond\r\n\u00e9t\u00e9\r\n" + NodeSSHClient.PROMPT);
+
+			ExpectResult r = result.get(5, TimeUnit.SECONDS);
+			assertEquals(0, r.getIndex());
+			assertEquals("", r.getCaptured());
+			assertEquals(4, lines.size());
+			assertEquals("first", lines.get(0));
+			assertEquals("second", lines.get(1));
+			assertEquals("\u00e9t\u00e9", lines.get(2));
+			assertEquals(NodeSSHClient.PROMPT, lines.get(3));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void channel() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			String text = "caf\u00e9 \ud83d\ude00 data\n";
+			in.feed(text + NodeSSHClient.PROMPT);
+			engine.expect(new ShellReader(in), PROMPT, OutputSinks.channel(Channels.newChannel(out)), 0, null, () -> true)
+				.get(5, TimeUnit.SECONDS);
+			assertEquals(text + NodeSSHClient.PROMPT, new String(out.toByteArray(), StandardCharsets.UTF_8));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * A sink that only takes a little at a time must hold back reading from the shell, rather than the engine
+	 * buffering everything the shell sends.
+	 */
+	@Test
+	public void backpressure() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			final AtomicLong total = new AtomicLong();
+			final AtomicInteger calls = new AtomicInteger();
+			OutputSink slow = new OutputSink() {
+				@Override
+				public int write(char[] chars, int offset, int length) {
+					//take at most 1000 chars every other call
+					if(calls.incrementAndGet() % 2 == 0)
+						return 0;
+					int taken = Math.min(1000, length);
+					total.addAndGet(taken);
+					return taken;
+				}
+
+				@Override
+				public void flush() {
+				}
+			};
+
+			StringBuilder sb = new StringBuilder();
+			for(int i=0; i<20000; i++)
+				sb.append("output line ").append(i).append('\n');
+			byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+			in.feed(data);
+			in.feed(NodeSSHClient.PROMPT);
+
+			CompletableFuture<ExpectResult> result = engine.expect(new ShellReader(in), PROMPT,
+					OutputSinks.async(slow, 1000, executor), 0, null, () -> true);
+
+			//while the sink is behind, the engine only reads a little ahead of what the sink has taken
+			for(int i=0; i<5; i++)
+			{
+				Thread.sleep(20);
+				long aheadOfSink = data.length - in.available() - total.get();
+				assertTrue("Read " + aheadOfSink + " chars ahead of the sink", aheadOfSink < 64 * 1024);
+			}
+			assertTrue(in.available() > 0);
+
+			//the expect isn't complete until the sink has taken everything
+			result.get(30, TimeUnit.SECONDS);
+			assertEquals(data.length + NodeSSHClient.PROMPT.length(), total.get());
+		}
+		finally
+		{
+			executor.shutdownNow();
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * An error flushing the sink behind async() fails the expect, rather than being lost once it has completed.
+	 */
+	@Test
+	public void asyncFlushError() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			OutputSink failing = new OutputSink() {
+				@Override
+				public int write(char[] chars, int offset, int length) {
+					return length;
+				}
+
+				@Override
+				public void flush() throws IOException {
+					throw new IOException("Disk full");
+				}
+			};
+			in.feed("abc\n" + NodeSSHClient.PROMPT);
+			try
+			{
+				engine.expect(new ShellReader(in), PROMPT, OutputSinks.async(failing, 1000, executor), 0, null, () -> true)
+						.get(5, TimeUnit.SECONDS);
+				fail("Flush error wasn't reported");
+			}
+			catch(ExecutionException e)
+			{
+				assertEquals("Disk full", e.getCause().getMessage());
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void bytes() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeShellStream in = new FakeShellStream();
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final WritableByteChannel copy = Channels.newChannel(out);
+			in.feed("abc\n" + NodeSSHClient.PROMPT);
+			engine.expect(new ShellReader(in), PROMPT, OutputSinks.bytes((ByteBuffer chunk) -> {
+				try
+				{
+					copy.write(chunk.duplicate());
+				}
+				catch(Exception e)
+				{
+					throw new RuntimeException(e);
+				}
+			}), 0, null, () -> true).get(5, TimeUnit.SECONDS);
+			assertEquals("abc\n" + NodeSSHClient.PROMPT, new String(out.toByteArray(), StandardCharsets.UTF_8));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void fullChannelDoesNotBlockEngine() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			//non-blocking channel that takes nothing until it is opened up
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final AtomicInteger room = new AtomicInteger();
+			WritableByteChannel full = new WritableByteChannel() {
+				@Override
+				public int write(ByteBuffer src) {
+					int length = Math.min(room.get(), src.remaining());
+					byte[] bytes = new byte[length];
+					src.get(bytes);
+					out.write(bytes, 0, length);
+					return length;
+				}
+
+				@Override
+				public boolean isOpen() {
+					return true;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+
+			FakeShellStream in = new FakeShellStream();
+			in.feed("abc\n" + NodeSSHClient.PROMPT);
+			CompletableFuture<ExpectResult> stuck = engine.expect(new ShellReader(in), PROMPT, OutputSinks.channel(full), 0, null, () -> true);
+
+			//another shell on the same dispatcher carries on while the channel is full
+			FakeShellStream other = new FakeShellStream();
+			other.feed(NodeSSHClient.PROMPT);
+			assertEquals(0, engine.expect(new ShellReader(other), PROMPT, false, 0, null, () -> true).get(5, TimeUnit.SECONDS).getIndex());
+			assertTrue(!stuck.isDone());
+
+			//the expect completes once the channel has taken the rest
+			room.set(Integer.MAX_VALUE);
+			assertEquals(0, stuck.get(5, TimeUnit.SECONDS).getIndex());
+			assertEquals("abc\n" + NodeSSHClient.PROMPT, new String(out.toByteArray(), StandardCharsets.UTF_8));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+}
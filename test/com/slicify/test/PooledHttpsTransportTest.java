@@ -0,0 +1,133 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.slicify.HttpsGet;
+import com.slicify.HttpsResponse;
+import com.slicify.HttpsTransport;
+import com.slicify.PooledHttpsTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks that the pooled transport keeps connections open between requests, using a local
+ * HTTP server in place of the slicify web service, and that HttpsGet hands back a response it fails on.
+ *
+ * @author slicify
+ *
+ */
+public class PooledHttpsTransportTest {
+
+	private static HttpServer server;
+	private static String baseURL;
+
+	@BeforeClass
+	public static void setup() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] reply = "<int>42</int>".getBytes();
+				exchange.sendResponseHeaders(200, reply.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(reply);
+				out.close();
+			}
+		});
+		server.start();
+		baseURL = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	@Test
+	public void reusesConnections() throws Exception {
+		PooledHttpsTransport transport = new PooledHttpsTransport(4, 2, 60000);
+		try
+		{
+			for(int i=0;i<20;i++)
+			{
+				HttpsResponse response = transport.get(baseURL + "BookingGetStatus?bookingID=" + i, null);
+				assertEquals(200, response.getStatusCode());
+				response.close();
+			}
+
+			assertEquals(20, transport.getRequestCount());
+			assertEquals("Sequential requests should share one connection", 1, transport.getConnectionsOpened());
+			assertEquals(19, transport.getConnectionsReused());
+			assertTrue(transport.getPoolStats().getLeased() == 0);
+			assertTrue(transport.toString(), transport.toString().startsWith("PooledHttpsTransport[requests=20, opened=1, reused=19"));
+		}
+		finally
+		{
+			transport.shutdown();
+		}
+	}
+
+	@Test
+	public void failedStatusClosesResponse() throws Exception {
+		//a response whose status can't be read is still handed back to the transport
+		final AtomicBoolean closed = new AtomicBoolean();
+		HttpsGet get = new HttpsGet("https://example.invalid", new HttpsTransport() {
+			@Override
+			public HttpsResponse get(String url, String authorization) {
+				return new HttpsResponse() {
+					@Override
+					public int getStatusCode() throws IOException {
+						throw new IOException("Connection reset");
+					}
+
+					@Override
+					public InputStream getInputStream() {
+						return new ByteArrayInputStream(new byte[0]);
+					}
+
+					@Override
+					public void close() {
+						closed.set(true);
+					}
+				};
+			}
+
+			@Override
+			public HttpsResponse post(String url, String authorization, String formBody) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void shutdown() {
+			}
+		});
+		get.Username = "user";
+		get.Password = "password";
+		try
+		{
+			get.query("BookingGetStatus", "bookingID=1");
+			fail("Status error wasn't reported");
+		}
+		catch(IOException e)
+		{
+			assertEquals("Connection reset", e.getMessage());
+		}
+		assertTrue(closed.get());
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		server.stop(0);
+	}
+}
@@ -0,0 +1,225 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.slicify.PooledHttpsTransport;
+import com.slicify.RangedDownload;
+import com.slicify.ReconnectPolicy;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Downloads from a local HTTP server that serves byte ranges, and can be told to cut responses off, to check
+ * segments are fetched in parallel and a failed download resumes from its checkpoint.
+ *
+ * @author slicify
+ *
+ */
+public class RangedDownloadTest {
+
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+	private static HttpServer server;
+	private static String url;
+	private static PooledHttpsTransport transport;
+
+	private static volatile byte[] data;
+	private static volatile String etag = "\"v1\"";
+	private static volatile boolean ranges = true;
+
+	//bytes the server will send before cutting responses off
+	private static final AtomicLong budget = new AtomicLong(Long.MAX_VALUE);
+	private static final AtomicLong served = new AtomicLong();
+	private static final ConcurrencyCounter running = new ConcurrencyCounter();
+
+	@BeforeClass
+	public static void setup() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> serve(exchange));
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+		transport = new PooledHttpsTransport(20, 20, 60000);
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		transport.shutdown();
+		server.stop(0);
+	}
+
+	private static void serve(HttpExchange exchange) throws IOException
+	{
+		running.enter();
+		try
+		{
+			byte[] file = data;
+			long start = 0;
+			long end = file.length - 1;
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+			Matcher matcher = range == null ? null : RANGE.matcher(range);
+			boolean partial = ranges && matcher != null && matcher.matches() && (ifRange == null || ifRange.equals(etag));
+			if(partial)
+			{
+				start = Long.parseLong(matcher.group(1));
+				end = Math.min(end, Long.parseLong(matcher.group(2)));
+				exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + file.length);
+			}
+			exchange.getResponseHeaders().set("ETag", etag);
+			int length = (int) (end - start + 1);
+			exchange.sendResponseHeaders(partial ? 206 : 200, length);
+
+			//send what the budget allows, then cut the response off
+			int allowed = (int) Math.max(0, Math.min(length, budget.getAndAdd(-length)));
+			OutputStream out = exchange.getResponseBody();
+			out.write(file, (int) start, allowed);
+			served.addAndGet(allowed);
+			out.flush();
+			exchange.close();
+		}
+		finally
+		{
+			running.exit();
+		}
+	}
+
+	private static RangedDownload download(Path file)
+	{
+		RangedDownload download = new RangedDownload(transport, url, file);
+		download.setSegmentSize(64 * 1024);
+		download.setConnections(4);
+		download.setRetry(new ReconnectPolicy(1, 0, 0, 0));
+		return download;
+	}
+
+	private static void reset(int size, String version)
+	{
+		data = new byte[size];
+		new Random(size).nextBytes(data);
+		etag = version;
+		ranges = true;
+		budget.set(Long.MAX_VALUE);
+		served.set(0);
+		running.reset();
+	}
+
+	@Test
+	public void parallelSegments() throws Exception {
+		reset(1000000, "\"v1\"");
+		Path dir = Files.createTempDirectory("slicify");
+		Path file = dir.resolve("results.dat");
+		long[] last = new long[1];
+		RangedDownload download = download(file);
+		assertEquals(data.length, download.run((bytes, total) -> last[0] = bytes));
+		assertArrayEquals(data, Files.readAllBytes(file));
+		assertEquals(data.length, last[0]);
+		assertTrue("Max running " + running.getMax(), running.getMax() > 1);
+		assertFalse(Files.exists(download.getPartPath()));
+		assertFalse(Files.exists(download.getCheckpointPath()));
+		delete(dir);
+	}
+
+	@Test
+	public void resumesAfterFailure() throws Exception {
+		reset(1000000, "\"v2\"");
+		Path dir = Files.createTempDirectory("slicify");
+		Path file = dir.resolve("results.dat");
+		RangedDownload download = download(file);
+
+		//cut off a bit over half way
+		budget.set(600000);
+		try
+		{
+			download.run(null);
+			fail("Cut off download didn't fail");
+		}
+		catch(IOException e)
+		{
+			assertTrue(Files.exists(download.getCheckpointPath()));
+			assertFalse(Files.exists(file));
+		}
+
+		//the second run only fetches the missing segments
+		budget.set(Long.MAX_VALUE);
+		served.set(0);
+		long[] first = { -1 };
+		download.run((bytes, total) -> {
+			if(first[0] < 0)
+				first[0] = bytes;
+		});
+		assertArrayEquals(data, Files.readAllBytes(file));
+		assertTrue("Resumed from " + first[0], first[0] >= 6 * 64 * 1024);
+		assertTrue("Served " + served.get(), served.get() < 500000);
+		assertFalse(Files.exists(download.getCheckpointPath()));
+		delete(dir);
+	}
+
+	@Test
+	public void changedFileStartsAgain() throws Exception {
+		reset(500000, "\"v3\"");
+		Path dir = Files.createTempDirectory("slicify");
+		Path file = dir.resolve("results.dat");
+		RangedDownload download = download(file);
+		budget.set(200000);
+		try
+		{
+			download.run(null);
+			fail("Cut off download didn't fail");
+		}
+		catch(IOException e)
+		{
+			//expected
+		}
+
+		//a new version of the file doesn't get mixed up with the old parts
+		reset(500000 + 1, "\"v4\"");
+		download.run(null);
+		assertArrayEquals(data, Files.readAllBytes(file));
+		delete(dir);
+	}
+
+	@Test
+	public void noRangeSupport() throws Exception {
+		reset(300000, "\"v5\"");
+		ranges = false;
+		Path dir = Files.createTempDirectory("slicify");
+		Path file = dir.resolve("results.dat");
+		assertEquals(data.length, download(file).run(null));
+		assertArrayEquals(data, Files.readAllBytes(file));
+		assertEquals(data.length, served.get());
+		delete(dir);
+	}
+
+	private static void delete(Path dir) throws IOException
+	{
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+		{
+			for(Path file : files)
+				Files.delete(file);
+		}
+		Files.delete(dir);
+	}
+}
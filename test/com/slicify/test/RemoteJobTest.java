@@ -0,0 +1,143 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import com.slicify.CommandResult;
+import com.slicify.NodeSSHClient;
+import com.slicify.ReconnectPolicy;
+import com.slicify.RemoteJob;
+
+/**
+ * Waits on a job through a client whose connection drops part way through, and checks the wait reconnects and
+ * carries on. Also checks the reconnect backoff.
+ *
+ * @author slicify
+ *
+ */
+public class RemoteJobTest {
+
+	/**
+	 * Client that answers job status checks from a script. A null entry drops the connection.
+	 */
+	private static class FakeClient extends NodeSSHClient {
+
+		final List<String> Statuses;
+		final List<String> Commands = new ArrayList<String>();
+		boolean Connected = true;
+		int Reconnects = 0;
+
+		FakeClient(String... statuses) {
+			Statuses = new ArrayList<String>(Arrays.asList(statuses));
+		}
+
+		@Override
+		public boolean isConnected() {
+			return Connected;
+		}
+
+		@Override
+		public String reconnect() {
+			Reconnects++;
+			Connected = true;
+			return "";
+		}
+
+		@Override
+		public CompletableFuture<CommandResult> runAsync(String command, int timeoutms) throws IOException {
+			if(!Connected)
+				throw new IOException("SSH no longer connected");
+			Commands.add(command);
+			String output = "";
+			if(command.contains("nohup"))
+				output = "[1] 1234";
+			else if(command.startsWith("cat "))
+			{
+				output = Statuses.remove(0);
+				if(output == null)
+				{
+					Connected = false;
+					throw new IOException("SSH no longer connected");
+				}
+			}
+			return CompletableFuture.completedFuture(new CommandResult(this, command, output + "\r\n", 0, false, null, 0));
+		}
+	}
+
+	@Test
+	public void waitRidesOutDrop() throws Exception {
+		FakeClient client = new FakeClient("running", null, "running", "3");
+		client.setReconnectPolicy(new ReconnectPolicy());
+
+		RemoteJob job = client.startJob("render-1", "./render.sh", 1000);
+		assertTrue(client.Commands.get(0).contains("nohup bash -c '( ./render.sh ); echo $?"));
+		assertEquals(3, job.waitFor(1, 5000));
+		assertEquals(1, client.Reconnects);
+		assertEquals(".slicify-jobs/render-1.log", job.getLogPath());
+	}
+
+	@Test
+	public void dropWithoutPolicyFails() throws Exception {
+		FakeClient client = new FakeClient("running", null, "0");
+		RemoteJob job = client.getJob("render-1");
+		try
+		{
+			job.waitFor(1, 5000);
+			fail("Drop wasn't reported");
+		}
+		catch(IOException e)
+		{
+			assertEquals(0, client.Reconnects);
+		}
+	}
+
+	@Test
+	public void lostJob() throws Exception {
+		FakeClient client = new FakeClient("");
+		client.setReconnectPolicy(new ReconnectPolicy());
+		try
+		{
+			client.getJob("render-1").waitFor(1, 5000);
+			fail("Lost job wasn't reported");
+		}
+		catch(IOException e)
+		{
+			assertTrue(e.getMessage(), e.getMessage().contains("no longer running"));
+		}
+	}
+
+	@Test
+	public void waitTimesOut() throws Exception {
+		FakeClient client = new FakeClient("running", "running", "running", "running", "running", "running");
+		assertEquals(RemoteJob.RUNNING, client.getJob("render-1").waitFor(20, 50));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void badName() throws Exception {
+		new FakeClient().getJob("../x y");
+	}
+
+	@Test
+	public void backoff() {
+		ReconnectPolicy policy = new ReconnectPolicy(10, 100, 1000, 0);
+		assertEquals(0, policy.getDelay(0));
+		for(int i=0; i<100; i++)
+		{
+			long first = policy.getDelay(1);
+			assertTrue("Delay " + first, first >= 50 && first <= 100);
+			long third = policy.getDelay(3);
+			assertTrue("Delay " + third, third >= 200 && third <= 400);
+			long capped = policy.getDelay(9);
+			assertTrue("Delay " + capped, capped >= 500 && capped <= 1000);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import com.slicify.ReplyDecoder;
+
+/**
+ * Checks the streaming decoder returns the same values as the original DOM parsing, and compares how much
+ * memory each allocates when decoding a large BidGetAllInfo reply.
+ *
+ * @author slicify
+ *
+ */
+public class ReplyDecoderTest {
+
+	private static final String NS = "xmlns=\"http://www.slicify.com/\"";
+
+	@Test
+	public void singleValue() throws Exception {
+		byte[] xml = ("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<string " + NS + ">Ready</string>").getBytes("UTF-8");
+		assertEquals("Ready", ReplyDecoder.decode(new ByteArrayInputStream(xml), ReplyDecoder.text(0)));
+		assertEquals(domParseReply(xml, 0), ReplyDecoder.decode(new ByteArrayInputStream(xml), ReplyDecoder.text(0)));
+	}
+
+	@Test
+	public void nestedTextMatchesDom() throws Exception {
+		byte[] xml = bidGetAllInfo(3);
+		for(int i=0;i<5;i++)
+			assertEquals(domParseReply(xml, i), ReplyDecoder.decode(new ByteArrayInputStream(xml), ReplyDecoder.text(i)));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void indexOutOfBounds() throws Exception {
+		byte[] xml = ("<int " + NS + ">5</int>").getBytes("UTF-8");
+		ReplyDecoder.decode(new ByteArrayInputStream(xml), ReplyDecoder.text(1));
+	}
+
+	@Test
+	public void textsByName() throws Exception {
+		byte[] xml = bidGetAllInfo(10);
+		Map<String, List<String>> texts = ReplyDecoder.decode(new ByteArrayInputStream(xml), ReplyDecoder.textsByName("BidID", "Active"));
+		assertEquals(domTexts(xml, "BidID"), texts.get("BidID"));
+		assertEquals(domTexts(xml, "Active"), texts.get("Active"));
+	}
+
+	/**
+	 * Not a strict benchmark - just reports allocated bytes per decode, and checks the streaming path
+	 * allocates less than building a DOM with a fresh DocumentBuilderFactory (the original code path).
+	 */
+	@Test
+	public void allocationComparedToDom() throws Exception {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		byte[] xml = bidGetAllInfo(5000);
+		int rounds = 20;
+
+		//warm up both paths
+		for(int i=0;i<rounds;i++)
+		{
+			domTexts(xml, "BidID");
+			ReplyDecoder.decode(new ByteArrayInputStream(xml), ReplyDecoder.texts("BidID"));
+		}
+
+		long start = mx.getThreadAllocatedBytes(thread);
+		for(int i=0;i<rounds;i++)
+			domTexts(xml, "BidID");
+		long dom = (mx.getThreadAllocatedBytes(thread) - start) / rounds;
+
+		start = mx.getThreadAllocatedBytes(thread);
+		for(int i=0;i<rounds;i++)
+			ReplyDecoder.decode(new ByteArrayInputStream(xml), ReplyDecoder.texts("BidID"));
+		long stax = (mx.getThreadAllocatedBytes(thread) - start) / rounds;
+
+		System.out.println("BidGetAllInfo (" + xml.length + " bytes) allocated per decode: DOM=" + dom + " StAX=" + stax);
+		assertTrue("Streaming decode should allocate less than DOM", stax < dom);
+	}
+
+	private static byte[] bidGetAllInfo(int bids) throws Exception
+	{
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<ArrayOfBidInfo " + NS + ">");
+		for(int i=0;i<bids;i++)
+		{
+			sb.append("<BidInfo><BidID>").append(1000 + i).append("</BidID><Active>").append(i % 3 == 0)
+				.append("</Active><MaxPrice>0.03</MaxPrice><MinECU>5</MinECU><MinRam>1</MinRam><Bits>64</Bits><Country>UK</Country></BidInfo>");
+		}
+		sb.append("</ArrayOfBidInfo>");
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	private static Document domParse(byte[] xml) throws Exception
+	{
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		DocumentBuilder db = dbf.newDocumentBuilder();
+		return db.parse(new ByteArrayInputStream(xml));
+	}
+
+	private static String domParseReply(byte[] xml, int index) throws Exception
+	{
+		return domParse(xml).getElementsByTagName("*").item(index).getTextContent();
+	}
+
+	private static List<String> domTexts(byte[] xml, String tagName) throws Exception
+	{
+		NodeList nodes = domParse(xml).getElementsByTagName(tagName);
+		List<String> result = new ArrayList<String>();
+		for(int i=0;i<nodes.getLength();i++)
+			result.add(nodes.item(i).getTextContent());
+		return result;
+	}
+}
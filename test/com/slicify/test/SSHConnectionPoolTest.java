@@ -0,0 +1,229 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.schmizz.sshj.SSHClient;
+
+import org.junit.Test;
+
+import com.slicify.SSHConnectionPool;
+
+/**
+ * Checks transport reuse, session limits and the handshake limit of SSHConnectionPool, using fake transports
+ * in place of real connections to the gateway.
+ *
+ * @author slicify
+ *
+ */
+public class SSHConnectionPoolTest {
+
+	private static class FakeClient extends SSHClient {
+
+		volatile boolean Connected = true;
+
+		//false for a transport that looks connected but no longer answers
+		volatile boolean Answering = true;
+
+		@Override
+		public boolean isConnected() {
+			return Connected;
+		}
+
+		@Override
+		public void disconnect() {
+			Connected = false;
+		}
+	}
+
+	/**
+	 * Pool that hands out fake transports, taking a while to "handshake" and recording how many run at once.
+	 */
+	private static class FakePool extends SSHConnectionPool {
+
+		final ConcurrencyCounter Running = new ConcurrencyCounter();
+		volatile long Delay = 50;
+
+		FakePool(int maxHandshakes, int maxSessions) {
+			super(maxHandshakes, maxSessions, 60000);
+		}
+
+		@Override
+		protected SSHClient openTransport(String username, String bookingPassword, int timeoutms) throws IOException {
+			Running.enter();
+			try
+			{
+				Thread.sleep(Delay);
+			}
+			catch(InterruptedException e)
+			{
+				throw new IOException(e);
+			}
+			finally
+			{
+				Running.exit();
+			}
+			return new FakeClient();
+		}
+
+		@Override
+		protected boolean ping(SSHClient client, int timeoutms) {
+			return client.isConnected() && ((FakeClient) client).Answering;
+		}
+	}
+
+	@Test
+	public void reusesTransportUpToSessionLimit() throws Exception {
+		FakePool pool = new FakePool(4, 2);
+		try
+		{
+			SSHClient a = pool.acquire("user", "node1", 0);
+			SSHClient b = pool.acquire("user", "node1", 0);
+			SSHClient c = pool.acquire("user", "node1", 0);
+			SSHClient other = pool.acquire("user", "node2", 0);
+
+			assertSame(a, b);
+			assertNotSame(a, c);
+			assertNotSame(a, other);
+			assertEquals(3, pool.getHandshakeCount());
+			assertEquals(1, pool.getReuseCount());
+			assertEquals(4, pool.getSessionCount());
+
+			//released transports stay open for the next shell
+			pool.release(a);
+			pool.release(b);
+			assertSame(a, pool.acquire("user", "node1", 0));
+			assertEquals(3, pool.getHandshakeCount());
+
+			//dead transports are dropped
+			((FakeClient) other).Connected = false;
+			pool.release(other);
+			assertNotSame(other, pool.acquire("user", "node2", 0));
+			assertEquals(4, pool.getHandshakeCount());
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+
+	@Test
+	public void limitsParallelHandshakes() throws Exception {
+		final FakePool pool = new FakePool(3, 1);
+		ExecutorService executor = Executors.newFixedThreadPool(20);
+		try
+		{
+			List<Future<SSHClient>> results = new ArrayList<Future<SSHClient>>();
+			for(int i=0; i<20; i++)
+			{
+				final int node = i;
+				results.add(executor.submit(() -> pool.acquire("user", "node" + node, 0)));
+			}
+			for(Future<SSHClient> result : results)
+				assertTrue(result.get(10, TimeUnit.SECONDS).isConnected());
+
+			assertEquals(20, pool.getHandshakeCount());
+			assertTrue("Max concurrent handshakes: " + pool.Running.getMax(), pool.Running.getMax() <= 3);
+		}
+		finally
+		{
+			executor.shutdownNow();
+			pool.close();
+		}
+	}
+
+	@Test
+	public void connectAheadIsShared() throws Exception {
+		FakePool pool = new FakePool(2, 4);
+		try
+		{
+			pool.connectAhead("user", "node1");
+			pool.connectAhead("user", "node1");
+
+			//waits on the transport that is already connecting, rather than starting another
+			SSHClient client = pool.acquire("user", "node1", 0);
+			assertTrue(client.isConnected());
+			assertEquals(1, pool.getHandshakeCount());
+			assertEquals(1, pool.getTransportCount());
+
+			pool.close();
+			assertTrue(!client.isConnected());
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+
+	@Test
+	public void healthCheckReplacesDeadTransports() throws Exception {
+		FakePool pool = new FakePool(4, 4);
+		try
+		{
+			FakeClient inUse = (FakeClient) pool.acquire("user", "node1", 0);
+			FakeClient idle = (FakeClient) pool.acquire("user", "node2", 0);
+			FakeClient healthy = (FakeClient) pool.acquire("user", "node3", 0);
+			pool.release(idle);
+			assertEquals(0, pool.checkHealth().get(5, TimeUnit.SECONDS).intValue());
+
+			inUse.Answering = false;
+			idle.Answering = false;
+			assertEquals(2, pool.checkHealth().get(5, TimeUnit.SECONDS).intValue());
+			assertEquals(2, pool.getDeadCount());
+			assertTrue(!inUse.isConnected());
+			assertTrue(healthy.isConnected());
+
+			//the transport that had a shell on it is replaced ahead of the shell reconnecting
+			long deadline = System.currentTimeMillis() + 5000;
+			while(pool.getHandshakeCount() < 4 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(4, pool.getHandshakeCount());
+			SSHClient replacement = pool.acquire("user", "node1", 0);
+			assertNotSame(inUse, replacement);
+			assertEquals(4, pool.getHandshakeCount());
+			assertEquals(2, pool.getTransportCount());
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+
+	@Test
+	public void joiningSlowHandshakeTimesOut() throws Exception {
+		FakePool pool = new FakePool(2, 4);
+		pool.Delay = 2000;
+		try
+		{
+			pool.connectAhead("user", "node1");
+			long start = System.currentTimeMillis();
+			try
+			{
+				pool.acquire("user", "node1", 200);
+				fail("Acquire didn't time out");
+			}
+			catch(IOException e)
+			{
+				assertTrue(System.currentTimeMillis() - start < 1500);
+			}
+
+			//the session reserved for the timed out call is handed back
+			assertEquals(0, pool.getSessionCount());
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.slicify.ExpectEngine;
+import com.slicify.NodeSSHClient;
+import com.slicify.ShellReader;
+import com.slicify.ShellTransfer;
+
+/**
+ * Uploads and downloads through a fake node that plays the shell's part of the transfer commands, and checks the
+ * data, md5 checks and error handling.
+ *
+ * @author slicify
+ *
+ */
+public class ShellTransferTest {
+
+	private static final Pattern TOKEN = Pattern.compile("\\[slicify-[a-z]+:([^:]+):");
+	private static final Pattern PATHS = Pattern.compile("'([^']*)'");
+
+	/**
+	 * Stands in for bash on a node. Files are kept in a map, and the terminal echoes each command line back like
+	 * a real one does.
+	 */
+	private static class FakeNode extends Thread {
+
+		final FakeShellStream Output = new FakeShellStream();
+		final PipedOutputStream Input = new PipedOutputStream();
+		final Map<String, byte[]> Files = new ConcurrentHashMap<String, byte[]>();
+		final BufferedReader Lines;
+		volatile boolean Corrupt = false;
+
+		FakeNode() throws IOException {
+			Lines = new BufferedReader(new InputStreamReader(new PipedInputStream(Input, 1 << 16), StandardCharsets.ISO_8859_1));
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try
+			{
+				String line;
+				while((line = Lines.readLine()) != null)
+				{
+					Matcher token = TOKEN.matcher(line);
+					if(!token.find())
+						continue;
+					String t = token.group(1);
+					Matcher paths = PATHS.matcher(line);
+					paths.find();
+					String path = paths.group(1);
+					Output.feed(line + "\r\n");
+
+					if(line.contains("[slicify-ready:"))
+					{
+						//receive lines up to the end line in raw mode, so nothing is echoed
+						Output.feed("[slicify-ready:" + t + ":1]\n");
+						StringBuilder encoded = new StringBuilder();
+						String data;
+						while(!(data = Lines.readLine()).equals("=slicify-end"))
+							encoded.append(data);
+						byte[] bytes = Base64.getDecoder().decode(encoded.toString());
+						if(line.contains("gzip -dc"))
+							bytes = gunzip(bytes);
+						if(Corrupt)
+							bytes[0]++;
+						Files.put(path, bytes);
+						Output.feed("[slicify-upload:" + t + ":" + md5(bytes) + "]\r\n" + NodeSSHClient.PROMPT);
+					}
+					else if(line.contains("[slicify-done:"))
+					{
+						if(line.startsWith("mv -f"))
+						{
+							paths.find();
+							Files.put(paths.group(1), Files.remove(path));
+						}
+						else
+							Files.remove(path);
+						Output.feed("[slicify-done:" + t + ":0]\r\n" + NodeSSHClient.PROMPT);
+					}
+					else if(line.contains("[slicify-start:"))
+					{
+						byte[] file = Files.get(path);
+						if(file != null)
+						{
+							byte[] sent = line.contains("gzip") ? gzip(file) : file;
+							Output.feed("[slicify-start:" + t + ":1]\r\n");
+							Output.feed(Base64.getMimeEncoder(76, "\r\n".getBytes()).encodeToString(sent) + "\r\n");
+						}
+						Output.feed("[slicify-download:" + t + ":" + (file == null ? "" : md5(file)) + "]\r\n" + NodeSSHClient.PROMPT);
+					}
+				}
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeNode node = new FakeNode();
+			ShellTransfer transfer = new ShellTransfer(new ShellReader(node.Output), node.Input, engine, () -> true);
+			byte[] data = data(1000000);
+
+			for(boolean compress : new boolean[] { true, false })
+			{
+				transfer.setCompression(compress);
+				assertEquals(data.length, transfer.upload(new ByteArrayInputStream(data), "job/input.dat", 5000));
+				assertArrayEquals(data, node.Files.get("job/input.dat"));
+				assertFalse(node.Files.containsKey("job/input.dat" + ShellTransfer.PART_SUFFIX));
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				assertEquals(data.length, transfer.download("job/input.dat", out, 5000));
+				assertArrayEquals(data, out.toByteArray());
+			}
+
+			//empty files work too
+			transfer.upload(new ByteArrayInputStream(new byte[0]), "empty", 5000);
+			assertEquals(0, node.Files.get("empty").length);
+			assertEquals(0, transfer.download("empty", new ByteArrayOutputStream(), 5000));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void corruptUploadIsNotKept() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeNode node = new FakeNode();
+			node.Files.put("input.dat", new byte[] { 1, 2, 3 });
+			node.Corrupt = true;
+			ShellTransfer transfer = new ShellTransfer(new ShellReader(node.Output), node.Input, engine, () -> true);
+			try
+			{
+				transfer.upload(new ByteArrayInputStream(data(10000)), "input.dat", 5000);
+				fail("Corrupt upload wasn't detected");
+			}
+			catch(IOException e)
+			{
+				assertTrue(e.getMessage(), e.getMessage().contains("corrupt"));
+			}
+
+			//the old file is left alone, and the part file removed
+			assertArrayEquals(new byte[] { 1, 2, 3 }, node.Files.get("input.dat"));
+			assertFalse(node.Files.containsKey("input.dat" + ShellTransfer.PART_SUFFIX));
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	@Test
+	public void missingDownload() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeNode node = new FakeNode();
+			ShellTransfer transfer = new ShellTransfer(new ShellReader(node.Output), node.Input, engine, () -> true);
+			try
+			{
+				transfer.download("missing.dat", new ByteArrayOutputStream(), 5000);
+				fail("Missing file wasn't reported");
+			}
+			catch(IOException e)
+			{
+				assertTrue(e.getMessage(), e.getMessage().contains("Couldn't read"));
+			}
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * Throughput of the client side of a transfer - encoding, compression and checksums - with the fake node
+	 * doing the other half. Over a real SSH link the network is usually the limit.
+	 */
+	@Test
+	public void throughputBenchmark() throws Exception {
+		ExpectEngine engine = new ExpectEngine(1);
+		try
+		{
+			FakeNode node = new FakeNode();
+			ShellTransfer transfer = new ShellTransfer(new ShellReader(node.Output), node.Input, engine, () -> true);
+			byte[] data = data(16 << 20);
+
+			for(boolean compress : new boolean[] { true, false })
+			{
+				transfer.setCompression(compress);
+				long start = System.nanoTime();
+				transfer.upload(new ByteArrayInputStream(data), "bench.dat", 0);
+				double up = (System.nanoTime() - start) / 1e9;
+
+				start = System.nanoTime();
+				transfer.download("bench.dat", new ByteArrayOutputStream(data.length), 0);
+				double down = (System.nanoTime() - start) / 1e9;
+
+				System.out.println(String.format("Transfer of %.1f MB (compress=%b): upload %.1f MB/s, download %.1f MB/s",
+						data.length / 1e6, compress, data.length / up / 1e6, data.length / down / 1e6));
+			}
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * Half text, half random bytes.
+	 */
+	private static byte[] data(int size)
+	{
+		byte[] data = new byte[size];
+		Random random = new Random(1);
+		String text = "job input 0123456789\n";
+		for(int i=0; i<size; i++)
+			data[i] = i < size / 2 ? (byte) text.charAt(random.nextInt(text.length())) : (byte) random.nextInt();
+		return data;
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(GZIPOutputStream gz = new GZIPOutputStream(out))
+		{
+			gz.write(data);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] gunzip(byte[] data) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(data)))
+		{
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = gz.read(buffer)) > 0)
+				out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static String md5(byte[] data) throws Exception
+	{
+		StringBuilder sb = new StringBuilder();
+		for(byte b : MessageDigest.getInstance("MD5").digest(data))
+			sb.append(String.format("%02x", b & 0xff));
+		return sb.toString();
+	}
+}
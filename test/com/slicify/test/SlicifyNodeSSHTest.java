@@ -1,11 +1,18 @@
 package com.slicify.test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
 import static org.junit.Assert.*;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.slicify.CommandResult;
 import com.slicify.NodeSSHClient;
 import com.slicify.SlicifyNode;
 
@@ -51,6 +58,7 @@ public class SlicifyNodeSSHTest {
 		getStatus();
 		getPassword();
 		//sshTest();
+		//transferTest();
 	}
 	
 	private void addBid() throws Exception {
@@ -131,9 +139,31 @@ public class SlicifyNodeSSHTest {
 		String catResult = sshClient.send("cat index.html", true);
 		assertTrue(catResult.contains("</html>"));
 		
+		//pipeline several commands in one round trip, with an exit code for each
+		List<CommandResult> batch = sshClient.runBatch(Arrays.asList("cd /tmp", "ls /nonexistent", "echo done"), 60000);
+		assertEquals(0, batch.get(0).getExitStatus());
+		assertTrue(batch.get(1).getExitStatus() != 0);
+		assertEquals("done", batch.get(2).getOutput().trim());
+		
 		sshClient.disconnect();				
 	}
 	
+	private void transferTest() throws IOException {
+		
+		//send a file to the node through the shell, and fetch it back
+		NodeSSHClient sshClient = new NodeSSHClient();
+		sshClient.connect(username, bookingOTP);
+		
+		byte[] data = new byte[64 * 1024];
+		new Random(1).nextBytes(data);
+		sshClient.upload(new ByteArrayInputStream(data), "upload.dat", 60000);
+		ByteArrayOutputStream downloaded = new ByteArrayOutputStream();
+		sshClient.download("upload.dat", downloaded, 60000);
+		assertArrayEquals(data, downloaded.toByteArray());
+		
+		sshClient.disconnect();
+	}
+	
 	@AfterClass
 	public static void cancelBooking() {
 		if(node != null && bidID > 0) 
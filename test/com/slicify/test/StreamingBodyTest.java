@@ -0,0 +1,133 @@
+package com.slicify.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.http.entity.mime.MultipartEntity;
+import org.junit.Test;
+
+import com.slicify.StreamingBody;
+
+/**
+ * Checks the chunked upload body sends the right bytes from files and streams, reports progress after each chunk,
+ * and never writes more than a chunk at a time.
+ *
+ * @author slicify
+ *
+ */
+public class StreamingBodyTest {
+
+	/**
+	 * Records the size of each write.
+	 */
+	private static class ChunkRecorder extends OutputStream {
+
+		final ByteArrayOutputStream Data = new ByteArrayOutputStream();
+		int Largest = 0;
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			Largest = Math.max(Largest, len);
+			Data.write(b, off, len);
+		}
+	}
+
+	@Test
+	public void fromFile() throws Exception {
+		byte[] data = data(100000);
+		Path file = Files.createTempFile("slicify", ".dat");
+		try
+		{
+			Files.write(file, data);
+			try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+			{
+				//upload from part way into the file
+				channel.position(1000);
+				List<Long> progress = new ArrayList<Long>();
+				StreamingBody body = new StreamingBody("input.dat", channel, 4096, (bytes, total) -> {
+					assertEquals(99000, total);
+					progress.add(bytes);
+				});
+				assertEquals(99000, body.getContentLength());
+
+				//written twice, as for a retried request
+				for(int i=0; i<2; i++)
+				{
+					ChunkRecorder out = new ChunkRecorder();
+					body.writeTo(out);
+					assertArrayEquals(Arrays.copyOfRange(data, 1000, data.length), out.Data.toByteArray());
+					assertEquals(4096, out.Largest);
+				}
+				assertEquals(1000, channel.position());
+				assertEquals(2 * (1 + (99000 + 4095) / 4096), progress.size());
+				assertEquals(99000, (long) progress.get(progress.size() - 1));
+			}
+		}
+		finally
+		{
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void fromStream() throws Exception {
+		byte[] data = data(10000);
+		long[] last = new long[2];
+		StreamingBody body = new StreamingBody("input.dat", new ByteArrayInputStream(data), -1, 1024, (bytes, total) -> {
+			last[0] = bytes;
+			last[1] = total;
+		});
+		ChunkRecorder out = new ChunkRecorder();
+		body.writeTo(out);
+		assertArrayEquals(data, out.Data.toByteArray());
+		assertTrue(out.Largest <= 1024);
+		assertEquals(10000, last[0]);
+		assertEquals(-1, last[1]);
+	}
+
+	@Test(expected = EOFException.class)
+	public void shortStream() throws Exception {
+		new StreamingBody("input.dat", new ByteArrayInputStream(new byte[10]), 20, 1024, null).writeTo(new ByteArrayOutputStream());
+	}
+
+	@Test
+	public void requestLength() throws IOException {
+		//a known length gives a Content-Length request, an unknown one a chunked request
+		MultipartEntity known = new MultipartEntity();
+		known.addPart("myFile", new StreamingBody("input.dat", new ByteArrayInputStream(new byte[10]), 10, 1024, null));
+		assertFalse(known.isChunked());
+		assertTrue(known.getContentLength() > 10);
+
+		MultipartEntity unknown = new MultipartEntity();
+		unknown.addPart("myFile", new StreamingBody("input.dat", new ByteArrayInputStream(new byte[10]), -1, 1024, null));
+		assertTrue(unknown.isChunked());
+	}
+
+	private static byte[] data(int size)
+	{
+		byte[] data = new byte[size];
+		new Random(1).nextBytes(data);
+		return data;
+	}
+}
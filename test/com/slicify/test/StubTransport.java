@@ -0,0 +1,149 @@
+package com.slicify.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.slicify.HttpsResponse;
+import com.slicify.HttpsTransport;
+
+/**
+ * Transport that answers web service calls with canned XML replies, keyed by operation name, so
+ * SlicifyNode can be tested without talking to the booking service.
+ *
+ * @author slicify
+ *
+ */
+public class StubTransport implements HttpsTransport {
+
+	private final Map<String, String> Replies = new HashMap<String, String>();
+	private final List<String> Failing = new ArrayList<String>();
+	private final List<String> Requests = Collections.synchronizedList(new ArrayList<String>());
+	private final ConcurrencyCounter Running = new ConcurrencyCounter();
+	private volatile long Delay = 0;
+
+	/**
+	 * Set the XML body returned for the operation.
+	 */
+	public synchronized void reply(String operation, String xml) {
+		Replies.put(operation, xml);
+	}
+
+	/**
+	 * Answer requests whose URL contains the text with a server error, e.g. "bookingID=13".
+	 */
+	public synchronized void fail(String text) {
+		Failing.add(text);
+	}
+
+	/**
+	 * Take this long over each request, so concurrent requests overlap.
+	 */
+	public void setDelay(long delayms) {
+		Delay = delayms;
+	}
+
+	/**
+	 * @return Most requests that were in progress at once
+	 */
+	public int getMaxConcurrent() {
+		return Running.getMax();
+	}
+
+	/**
+	 * @return URLs requested so far, in order
+	 */
+	public List<String> getRequests() {
+		return Requests;
+	}
+
+	/**
+	 * @return Number of requests made for the operation
+	 */
+	public int count(String operation) {
+		int count = 0;
+		synchronized(Requests)
+		{
+			for(String url : Requests)
+			{
+				if(operation(url).equals(operation))
+					count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public HttpsResponse get(String url, String authorization) throws IOException {
+		Requests.add(url);
+		Running.enter();
+		try
+		{
+			if(Delay > 0)
+				Thread.sleep(Delay);
+		}
+		catch(InterruptedException e)
+		{
+			throw new IOException(e);
+		}
+		finally
+		{
+			Running.exit();
+		}
+
+		String reply;
+		boolean failing = false;
+		synchronized(this)
+		{
+			reply = Replies.get(operation(url));
+			for(String text : Failing)
+				failing |= url.contains(text);
+		}
+		final String xml = failing ? null : reply;
+		final byte[] body = xml == null ? new byte[0] : utf8(xml);
+		final int status = failing ? 500 : xml == null ? 404 : 200;
+		return new HttpsResponse() {
+			@Override
+			public int getStatusCode() {
+				return status;
+			}
+
+			@Override
+			public InputStream getInputStream() {
+				return new ByteArrayInputStream(body);
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public HttpsResponse post(String url, String authorization, String formBody) throws IOException {
+		return get(url, authorization);
+	}
+
+	@Override
+	public void shutdown() {
+	}
+
+	private static String operation(String url) {
+		String path = url.contains("?") ? url.substring(0, url.indexOf('?')) : url;
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}